@@ -0,0 +1,479 @@
+package it.sapienza.netlab.airmon;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+import it.sapienza.netlab.airmon.common.DebugLog;
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+import it.sapienza.netlab.airmon.common.LatencyHistogram;
+import it.sapienza.netlab.airmon.common.LegacyTextEncoder;
+import it.sapienza.netlab.airmon.common.LocationIntake;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.common.Utility;
+import it.sapienza.netlab.airmon.listeners.Events;
+import it.sapienza.netlab.airmon.listeners.ServerScanCallback;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.tasks.ConnectionManager;
+import it.sapienza.netlab.airmon.tasks.LatencyMetrics;
+import it.sapienza.netlab.airmon.tasks.ScanScheduler;
+import it.sapienza.netlab.airmon.tasks.ServerRanking;
+import it.sapienza.netlab.airmon.transport.AndroidBleTransport;
+import it.sapienza.netlab.airmon.transport.BleTransport;
+import it.sapienza.netlab.airmon.transport.HandlerScheduler;
+
+/**
+ * Foreground service collecting the fixes and delivering them to the servers, whether the
+ * activity is shown or not.
+ * <p>
+ * Location updates and the track filter run on the location thread. Scanning, connections and,
+ * from Android 8, the GATT callbacks run on a single GATT thread, so the main thread is never on
+ * the path of a fix. The activity sends commands with the ACTION_* intents and binds to observe.
+ */
+public class AirmonService extends Service {
+
+    private static final String TAG = AirmonService.class.getSimpleName();
+
+    public static final String ACTION_SCAN = "it.sapienza.netlab.airmon.action.SCAN";     //Start or stop a scan session
+    public static final String ACTION_SEND = "it.sapienza.netlab.airmon.action.SEND";     //Connect, or send the stored fixes
+    public static final String ACTION_STOP = "it.sapienza.netlab.airmon.action.STOP";
+
+    private static final String CHANNEL_ID = "collection";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private final IBinder binder = new LocalBinder();
+    private DebugLog debugLog;
+    private volatile OnLogChangedListener logListener;
+
+    private HandlerThread locationThread;
+    private HandlerThread gattThread;
+    private Handler gattHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Events reach the service on the main thread, once per frame, never on the thread that posted them
+    private final Executor frameExecutor = command -> mainHandler.postDelayed(command, Constants.EVENT_FRAME_MS);
+    private final Executor gattExecutor = command -> gattHandler.post(command);
+    private final EventDispatcher events = new EventDispatcher();
+
+    private FusedLocationProviderClient mFusedLocationClient;
+    private LocationCallback mLocationCallback;
+    private boolean mRequestingLocationUpdates = false;
+    private final LocationRecord mRecord = new LocationRecord();       //Written on the location thread only.
+    private final LocationRecord lastFix = new LocationRecord();       //Copy of the last fix for the GATT thread, guarded by itself.
+    private boolean hasFix = false;
+    private LocationOutbox outbox;                                      //Fixes not delivered to any server yet.
+    private LocationIntake intake;                                      //Keeps only the significant fixes for the outbox, location thread only.
+    private final LegacyTextEncoder textEncoder = new LegacyTextEncoder(true);     //Used on the GATT thread.
+    private final byte[] textBuffer = new byte[LegacyTextEncoder.TIMESTAMP_LENGTH];
+
+    private ServerScanCallback serverScanCallback;
+    private ScanScheduler scanScheduler;                                //Chooses scan mode and window length.
+    private BleTransport transport;
+    private volatile boolean isScanning = false;                        //Until the transport reports the scan stopped.
+    private boolean stopRequested = false;                              //GATT thread only.
+    private int windowServers = 0;                                      //Servers of the window given to the scheduler, GATT thread only.
+    private final Runnable stopScanRunnable = this::stopScan;
+    private final Runnable scanWindowRunnable = this::startScanWindow;
+    private final Runnable drainRunnable = this::drain;
+    private ConnectionManager connectionManager;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        debugLog = ((AppGlobal) getApplication()).getDebugLog();
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        locationThread = new HandlerThread("AirmonLocation");
+        locationThread.start();
+        gattThread = new HandlerThread("AirmonGatt");
+        gattThread.start();
+        gattHandler = new Handler(gattThread.getLooper());
+        transport = new AndroidBleTransport(this, gattHandler);
+
+        events.subscribe(Events.ServerFound.class, frameExecutor, event -> writeDebug("New server found"));
+        events.subscribe(Events.ScanFailed.class, frameExecutor, event -> writeErrorDebug(event.getMessage()));
+        events.subscribe(Events.ConnectionLost.class, frameExecutor, event -> writeDebug("Connection lost with " + event.getAddress()));
+        serverScanCallback = new ServerScanCallback(events);
+        scanScheduler = new ScanScheduler(Constants.MAX_CONCURRENT_CONNECTIONS);
+        events.subscribe(Events.ServersUpdated.class, gattExecutor, event -> onServersUpdated());
+        events.subscribe(Events.ScanStopped.class, gattExecutor, event -> onScanStopped());
+
+        connectionManager = new ConnectionManager(transport, Constants.MAX_CONCURRENT_CONNECTIONS,
+                new HandlerScheduler(gattHandler), Clock.SYSTEM, events);
+        events.subscribe(Events.AdvertisementReceived.class, gattExecutor, event -> connectionManager.getServerRanking()
+                .onAdvertisement(event.getAddress(), event.getRssi(), event.getTimestampNanos()));
+        events.subscribe(Events.ServerReady.class, frameExecutor, event -> {
+            LatencyHistogram.Snapshot ready = connectionManager.getLatencyMetrics().snapshot(event.getAddress(), LatencyMetrics.Phase.READY);
+            writeDebug("Connected to " + event.getAddress() + ", services discovered"
+                    + (ready == null ? "" : " in " + ready.getPercentile(50) / 1000 + " ms (p99 " + ready.getPercentile(99) / 1000 + " ms)"));
+        });
+        connectionManager.getLatencyMetrics().startPeriodicDump(new File(getFilesDir(), Constants.LATENCY_FILE_NAME),
+                Constants.LATENCY_TAG, Constants.LATENCY_DUMP_INTERVAL_MS);
+        events.subscribe(Events.NotificationReceived.class, frameExecutor, event -> {
+            if (!CreditCodec.isCredit(event.getValue())) {
+                writeDebug("ERROR: Memory full on " + event.getAddress() + " (The list is full, sending data failed for 256 attempts)");
+            } else if (CreditCodec.getFreeSlots(event.getValue()) == 0) {
+                writeDebug("Memory full on " + event.getAddress() + ", uploads paused until it frees space");
+            }
+        });
+        openOutbox();
+
+        mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        createLocationCallback();
+        startLocationUpdates();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent == null ? null : intent.getAction();
+        if (ACTION_SCAN.equals(action)) {
+            gattHandler.post(this::startScan);
+        } else if (ACTION_SEND.equals(action)) {
+            gattHandler.post(this::sendMessage);
+        } else if (ACTION_STOP.equals(action)) {
+            stopSelf();
+        }
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    private Notification buildNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.notification_channel), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        PendingIntent stop = PendingIntent.getService(this, 0, new Intent(this, AirmonService.class).setAction(ACTION_STOP), 0);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_text))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .setContentIntent(open)
+                .addAction(0, getString(R.string.stop), stop)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    private void openOutbox() {
+        try {
+            outbox = LocationOutbox.open(new File(getFilesDir(), Constants.OUTBOX_FILE_NAME), Constants.OUTBOX_CAPACITY);
+            writeDebug("Outbox opened, " + outbox.size() + " fixes waiting");
+        } catch (IOException e) {
+            writeErrorDebug("Outbox unavailable, fixes will be sent only while connected: " + e.getMessage());
+            return;
+        }
+        // Keep every significant fix until a server accepted it, sent once the whole batch is in
+        intake = new LocationIntake(outbox, this::postDrain);
+        connectionManager.setOutbox(outbox, new ConnectionManager.OnFanOutListener() {
+            @Override
+            public void OnServerResult(String address, boolean success, long elapsedNanos) {
+                if (!success) writeErrorDebug(address + ": failed to send a stored fix");
+            }
+
+            @Override
+            public void OnFanOutDone(int succeeded, int total) {
+            }
+        });
+    }
+
+    private void drain() {
+        connectionManager.drain();
+    }
+
+    private void sendMessage() {
+        if (connectionManager.getReadyTasks().isEmpty()) {
+            // Connect to the best servers found, up to the pool size
+            int connecting = connectionManager.connectBest(serverScanCallback.getResults());
+            writeDebug("Connecting to " + connecting + " servers");
+        } else if (outbox != null) {
+            int sent = connectionManager.drain();
+            writeDebug(sent == 0 ? "No stored fix to send" : "Sending " + sent + " stored fixes, " + outbox.size() + " in the outbox");
+        } else {
+            byte[] latitude;
+            byte[] longitude;
+            byte[] timestamp;
+            synchronized (lastFix) {
+                if (!hasFix) {
+                    writeErrorDebug("No location available yet, try again");
+                    return;
+                }
+                latitude = Arrays.copyOf(textBuffer, LegacyTextEncoder.encodeCoordinate(lastFix.getLatitudeE6(), textBuffer, 0));
+                longitude = Arrays.copyOf(textBuffer, LegacyTextEncoder.encodeCoordinate(lastFix.getLongitudeE6(), textBuffer, 0));
+                timestamp = Arrays.copyOf(textBuffer, textEncoder.encodeTimestamp(lastFix.getEpochSeconds() * 1000, textBuffer, 0));
+            }
+            int servers = connectionManager.sendToAll(latitude, longitude, timestamp,
+                    new ConnectionManager.OnFanOutListener() {
+                        @Override
+                        public void OnServerResult(String address, boolean success, long elapsedNanos) {
+                            String message = address + (success ? ": written in " : ": failed after ")
+                                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms";
+                            if (success) writeDebug(message);
+                            else writeErrorDebug(message);
+                        }
+
+                        @Override
+                        public void OnFanOutDone(int succeeded, int total) {
+                            writeDebug("All characteristics values has been written on " + succeeded + "/" + total + " servers");
+                        }
+                    });
+            writeDebug("Writing on Latitude, Longitude and Time Characteristics of " + servers + " servers");
+        }
+    }
+
+    private void startScan() {
+        if (scanScheduler.isInSession()) {
+            gattHandler.removeCallbacks(scanWindowRunnable);
+            scanScheduler.stopSession();
+            if (isScanning) stopScan();
+            return;
+        }
+        if (isScanning) {
+            // The scan of the previous session is still delivering its last results
+            writeDebug("Scan still stopping, try again");
+            return;
+        }
+        writeDebug("Scan started");
+        connectionManager.disconnectAll();
+        serverScanCallback.clearResults();
+        scanScheduler.startSession();
+        startScanWindow();
+    }
+
+    private void startScanWindow() {
+        scanScheduler.startWindow();
+        serverScanCallback.startWindow();
+        windowServers = 0;
+        if (!transport.startScan(scanScheduler.getScanMode(), serverScanCallback)) {
+            writeErrorDebug("Bluetooth is off, scan not started");
+            scanScheduler.stopSession();
+            return;
+        }
+        isScanning = true;
+        stopRequested = false;
+        // Stops scanning after the window chosen by the scheduler.
+        gattHandler.postDelayed(stopScanRunnable, scanScheduler.getWindowMillis());
+    }
+
+    //Gives the scheduler the servers seen since the last update, stops as soon as enough are found.
+    private void onServersUpdated() {
+        if (!isScanning) return;
+        List<String> seen = serverScanCallback.getWindowResults(windowServers);
+        windowServers += seen.size();
+        boolean reached = false;
+        for (String address : seen) {
+            reached = scanScheduler.onServerFound(address);
+        }
+        if (reached) stopScan();
+    }
+
+    //The window ends in onScanStopped, once the results still batched are delivered.
+    private void stopScan() {
+        if (stopRequested) return;
+        stopRequested = true;
+        gattHandler.removeCallbacks(stopScanRunnable);
+        transport.stopScan();
+    }
+
+    private void onScanStopped() {
+        if (!isScanning) return;
+        isScanning = false;
+        long pause = scanScheduler.endWindow();
+        if (pause != ScanScheduler.STOP) {
+            writeDebug("Next scan in " + pause + " ms");
+            gattHandler.postDelayed(scanWindowRunnable, pause);
+            return;
+        }
+        writeDebug("Scan stopped");
+        ServerRanking ranking = connectionManager.getServerRanking();
+        List<String> results = ranking.rank(serverScanCallback.getResults());
+        for (String address : results) {
+            writeDebug("Address: " + address + ", RSSI " + serverScanCallback.getRssi(address)
+                    + ", score " + Math.round(ranking.getScore(address) * 100) + "%");
+        }
+        if (connectionManager.size() > 0) {
+            int connecting = connectionManager.connectBest(results);
+            String replaced = connectionManager.getLastReplaced();
+            if (replaced != null) {
+                writeDebug("Switched from " + replaced + " to a better server");
+            } else if (connecting > 0) {
+                writeDebug("Connecting to " + connecting + " more servers");
+            }
+        }
+        if (results.size() == 0) {
+            writeDebug("No server found, check another device.");
+        } else {
+            writeDebug("First server found after " + scanScheduler.getLastTimeToFirstDiscovery() + " ms, "
+                    + scanScheduler.getScanMillis() + " ms of scan in total");
+        }
+        writeDebug("Scan operation completed.");
+    }
+
+    //Creates a callback for receiving location events, on the location thread.
+    private void createLocationCallback() {
+        mLocationCallback = new LocationCallback() {
+            @Override
+            public void onLocationResult(LocationResult locationResult) {
+                super.onLocationResult(locationResult);
+                // Batched or not, every fix since the last delivery, oldest first
+                List<Location> locations = locationResult.getLocations();
+                if (locations.isEmpty()) return;
+                for (Location location : locations) {
+                    Utility.toLocationRecord(location, mRecord);
+                    if (intake != null) {
+                        intake.offer(mRecord);
+                    }
+                }
+                synchronized (lastFix) {
+                    lastFix.set(mRecord.getLatitudeE6(), mRecord.getLongitudeE6(), mRecord.getEpochSeconds(), mRecord.getFlags());
+                    hasFix = true;
+                }
+                if (intake != null) {
+                    intake.endBatch();
+                }
+            }
+        };
+    }
+
+    //Send the fixes appended to the outbox if any server is connected, with a single drain for the whole batch.
+    private void postDrain() {
+        gattHandler.removeCallbacks(drainRunnable);
+        gattHandler.post(drainRunnable);
+    }
+
+    //Requests location updates from the FusedLocationApi, delivered on the location thread.
+    private void startLocationUpdates() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            writeErrorDebug("Location permission missing, no fix will be collected");
+            return;
+        }
+        mFusedLocationClient.requestLocationUpdates(Utility.buildLocationRequest(Constants.BATCH_LOCATION_UPDATES), mLocationCallback, locationThread.getLooper());
+        mRequestingLocationUpdates = true;
+        writeDebug("Location update started");
+    }
+
+    //Removes location updates from the FusedLocationApi.
+    private void stopLocationUpdates() {
+        if (mRequestingLocationUpdates) {
+            mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+            mRequestingLocationUpdates = false;
+        }
+        // The last fix may be held back waiting for the next one
+        new Handler(locationThread.getLooper()).post(() -> {
+            if (intake != null) intake.flush();
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopLocationUpdates();
+        locationThread.quitSafely();
+        gattHandler.removeCallbacksAndMessages(null);
+        gattHandler.post(() -> {
+            if (isScanning) transport.stopScan();
+            isScanning = false;
+            connectionManager.disconnectAll();
+        });
+        gattThread.quitSafely();
+        join(locationThread);
+        join(gattThread);
+        connectionManager.getLatencyMetrics().stopPeriodicDump();
+        try {
+            connectionManager.getLatencyMetrics().dump(new File(getFilesDir(), Constants.LATENCY_FILE_NAME), Constants.LATENCY_TAG);
+        } catch (IOException e) {
+            Log.e(TAG, "onDestroy: latency not saved", e);
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                Log.e(TAG, "onDestroy: outbox not closed", e);
+            }
+        }
+        writeDebug("Collection stopped");
+    }
+
+    private static void join(HandlerThread thread) {
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeDebug(final String message) {
+        if (debugLog.append(message)) notifyLogChanged();
+        Log.d(TAG, message);
+    }
+
+    private void writeErrorDebug(final String message) {
+        if (debugLog.append(message)) notifyLogChanged();
+        Log.e(TAG, message);
+    }
+
+    private void notifyLogChanged() {
+        OnLogChangedListener l = logListener;
+        if (l != null) l.OnLogChanged();
+    }
+
+    /**
+     * @param l called, from any thread, when lines are written to the debug log and nobody rendered it yet
+     */
+    public void setOnLogChangedListener(OnLogChangedListener l) {
+        this.logListener = l;
+    }
+
+    /**
+     * @return the events of the scans and of the connections, e.g. {@link Events.ServersUpdated} to show the servers found
+     */
+    public EventDispatcher getEventDispatcher() {
+        return events;
+    }
+
+    public class LocalBinder extends Binder {
+        public AirmonService getService() {
+            return AirmonService.this;
+        }
+    }
+
+    public interface OnLogChangedListener {
+        void OnLogChanged();
+    }
+}
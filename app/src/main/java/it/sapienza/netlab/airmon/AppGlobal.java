@@ -3,14 +3,19 @@ package it.sapienza.netlab.airmon;
 import android.app.Application;
 import android.util.Log;
 
+import it.sapienza.netlab.airmon.common.DebugLog;
+
 public class AppGlobal extends Application {
     private final static String TAG = AppGlobal.class.getSimpleName();
+    private final DebugLog debugLog = new DebugLog();      //Lines shown by the debugger, written by the service and the activity.
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "Application Started");
     }
-}
-
 
+    public DebugLog getDebugLog() {
+        return debugLog;
+    }
+}
@@ -3,22 +3,16 @@ package it.sapienza.netlab.airmon;
 import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanResult;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.location.Location;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.widget.Button;
@@ -30,29 +24,17 @@ import androidx.core.content.ContextCompat;
 
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.common.api.ResolvableApiException;
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationCallback;
-import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.location.LocationSettingsRequest;
 import com.google.android.gms.location.LocationSettingsResponse;
 import com.google.android.gms.location.LocationSettingsStatusCodes;
 import com.google.android.gms.location.SettingsClient;
-import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
-
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.concurrent.TimeUnit;
 
 import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.DebugLog;
 import it.sapienza.netlab.airmon.common.Utility;
-import it.sapienza.netlab.airmon.listeners.ServerScanCallback;
 
 import static it.sapienza.netlab.airmon.common.Utility.isBLESupported;
 
@@ -60,40 +42,40 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_CHECK_SETTINGS = 0x1;
     public static final int REQUEST_ENABLE_BT = 322;
-    private static final long SCAN_PERIOD = 5000;
     private static final int PERMISSION_REQUEST_FINE_LOCATION = 456;
-    private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 10000;  //This is the interval for Location updates.
-    private static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS =
-            UPDATE_INTERVAL_IN_MILLISECONDS / 2;                        //This is fastest rate for active location updates.
     private static final String TAG = MainActivity.class.getSimpleName();
 
     private TextView debugger;
+    private DebugLog debugLog;                                          //Lines shown by the debugger, written from any thread.
+    private final StringBuilder debugText = new StringBuilder();
+    private final Handler debugHandler = new Handler(Looper.getMainLooper());
+    private final Runnable refreshDebugRunnable = this::refreshDebug;
     private Button startScanButton;
     private Button sendMessageButton;
 
-    //The fused location provider is a location API that combines different signals to provide the location information.
-    private FusedLocationProviderClient mFusedLocationClient;           //Provides access to the Fused Location Provider API.
     private SettingsClient mSettingsClient;                             //Provides access to the Location Settings API.
-    private LocationRequest mLocationRequest;                           //Stores parameters for requests to the FusedLocationProviderApi.
     private LocationSettingsRequest mLocationSettingsRequest;           //Stores the types of location services the client is interested in using.
                                                                         //Checks settings to determine if the device has optimal location settings.
 
-    private LocationCallback mLocationCallback;                         //Callback for Location events.
-    private Location mCurrentLocation;                                  //This represents a geographical location.
-    private String mTimestamp;                                          //This represents a current time.
-
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner bluetoothLeScanner;
 
     private boolean isMultipleAdvertisementSupported;
-    private boolean isScanning = false;
-    private boolean isConnected = false;
-    private boolean mRequestingLocationUpdates = false;
 
-    private ServerScanCallback serverScanCallback;
-    private BluetoothGattCallback mGattCallback;
-    BluetoothGatt mGatt;
+    private AirmonService service;                                      //Bound while the activity is visible, only to observe it.
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((AirmonService.LocalBinder) binder).getService();
+            service.setOnLogChangedListener(MainActivity.this::scheduleDebugRefresh);
+            refreshDebug();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -102,195 +84,49 @@ public class MainActivity extends AppCompatActivity {
         debugger = findViewById(R.id.debugger);
         startScanButton = findViewById(R.id.startService);
         sendMessageButton = findViewById(R.id.sendMessage);
+        debugLog = ((AppGlobal) getApplication()).getDebugLog();
         startScanButton.setOnClickListener(v -> {
-            startScan();
+            sendCommand(AirmonService.ACTION_SCAN);
             sendMessageButton.setText("Connect");
         });
         sendMessageButton.setOnClickListener(v -> {
-            sendMessage();
+            sendCommand(AirmonService.ACTION_SEND);
             sendMessageButton.setText("Send Message");
         });
-        cleanDebug();
-        askPermissions(savedInstanceState);
-
-        mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
         mSettingsClient = LocationServices.getSettingsClient(this);
-
-        // Now we kick off the process of building the LocationCallback, LocationRequest,
-        // and LocationSettingsRequest objects.
-        createLocationCallback();
-        createLocationRequest();
         buildLocationSettingsRequest();
-
-        // Start the scan of devices.
-        bluetoothLeScanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
-        serverScanCallback = new ServerScanCallback(new ServerScanCallback.OnServerFoundMessageListener() {
-            @Override
-            public void OnServerFound(String message) {
-                writeDebug(message);
-            }
-
-            @Override
-            public void OnErrorScan(String message, int errorCodeCallback) {
-                writeErrorDebug(message);
-            }
-        });
-
-        mGattCallback = new BluetoothGattCallback() {
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    isConnected = true;
-                    writeDebug("Connected to GATT client. Attempting to start service discovery from " + gatt.getDevice().getAddress());
-                    boolean res = gatt.discoverServices();
-                    writeDebug("onConnectionStateChange: discover services: " + res);
-                    mGatt = gatt;
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    isConnected = false;
-                    writeDebug("onConnectionStateChange: disconnected");
-                }
-                super.onConnectionStateChange(gatt, status, newState);
-            }
-
-            @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                writeDebug("Service discovered");
-                super.onServicesDiscovered(gatt, status);
-            }
-
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    writeDebug("A characteristic value has been written");
-                } else {
-                    writeErrorDebug("Error in writing in the characteristic");
-                }
-                super.onCharacteristicWrite(gatt, characteristic, status);
-            }
-
-            @Override
-            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                writeDebug("ERROR: Memory full (The list is full, sending data failed for 256 attempts)");
-                super.onCharacteristicChanged(gatt, characteristic);
-            }
-        };
-        writeDebug("Location update started");
-        mRequestingLocationUpdates = true;
-        startLocationUpdates();
+        askPermissions(savedInstanceState);
     }
 
-    private void sendMessage() {
-        if (!isConnected) {
-            mGatt = serverScanCallback.getResults().get(0).getDevice().connectGatt(this, false, mGattCallback);
-        } else {
-            writeDebug("Services available");
-            for (BluetoothGattService service : mGatt.getServices()) {
-                writeDebug(service.getUuid().toString());
-            }
-            writeDebug("Getting location service");
-            BluetoothGattService locationService = mGatt.getService(Constants.LocationServiceUUID);
-            if (locationService == null) {
-                writeErrorDebug("Location Service is null, try again");
-                return;
-            }
-
-            writeDebug("Characteristics available on Location service");
-            for (BluetoothGattCharacteristic characteristic : locationService.getCharacteristics()) {
-                writeDebug(characteristic.getUuid().toString());
-            }
-
-            BluetoothGattCharacteristic latitudeCharacteristic = locationService.getCharacteristic(Constants.CharacteristicLatitudeUUID);
-            if (latitudeCharacteristic == null) {
-                writeErrorDebug("Latitude Characteristic is null, try again");
-                return;
-            }
-            writeDebug("Writing on Latitude Characteristic");
-            latitudeCharacteristic.setValue(String.valueOf(mCurrentLocation.getLatitude()));
-            mGatt.writeCharacteristic(latitudeCharacteristic);      //We wrote the latitude value on latitude characteristic
-            try{
-            TimeUnit.SECONDS.sleep(1);
-            } catch (InterruptedException e){
-                System.out.print("Delay");
-            }
-            BluetoothGattCharacteristic longitudeCharacteristic = locationService.getCharacteristic(Constants.CharacteristicLongitudeUUID);
-            if (longitudeCharacteristic == null) {
-                writeErrorDebug("Longitude Characteristic is null, try again");
-                return;
-            }
-            writeDebug("Writing on Longitude Characteristic");
-            longitudeCharacteristic.setValue(String.valueOf(mCurrentLocation.getLongitude()));
-            mGatt.writeCharacteristic(longitudeCharacteristic);     //We wrote the longitude value on longitude characteristic
-            try{
-                TimeUnit.SECONDS.sleep(1);
-            } catch (InterruptedException e){
-                System.out.print("Delay");
-            }
-
-            BluetoothGattCharacteristic locationChar = locationService.getCharacteristic(Constants.CharacteristicLocationUUID);
-            BluetoothGattDescriptor desc = locationChar.getDescriptor(Constants.NotificationDescriptor);
-            desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mGatt.writeDescriptor(desc);
-            mGatt.setCharacteristicNotification(locationChar, true);
-
-            writeDebug("Getting Time service");
-            BluetoothGattService timeService = mGatt.getService(Constants.TimeServiceUUID);
-            if (timeService == null) {
-                writeErrorDebug("Time Service is null, try again");
-                return;
-            }
-
-            writeDebug("Characteristics available on Time service");
-            for (BluetoothGattCharacteristic characteristic : timeService.getCharacteristics()) {
-                writeDebug(characteristic.getUuid().toString());
-            }
-
-            BluetoothGattCharacteristic timeCharacteristic = timeService.getCharacteristic(Constants.CharacteristicTimestampUUID);
-            if (timeCharacteristic == null) {
-                writeErrorDebug("Time Characteristic is null, try again");
-                return;
-            }
-            writeDebug("Writing on Time Characteristic");
-            timeCharacteristic.setValue(mTimestamp.getBytes());
-            mGatt.writeCharacteristic(timeCharacteristic);          //We wrote the time value on time characteristic
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, AirmonService.class), serviceConnection, 0);
+        refreshDebug();
+    }
 
-            writeDebug("All characteristics values has been written");
-        }
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null) service.setOnLogChangedListener(null);
+        service = null;
+        unbindService(serviceConnection);
+        debugHandler.removeCallbacks(refreshDebugRunnable);
     }
 
-    private void startScan() {
-        writeDebug("Scan started");
-        if (isConnected) {
-            mGatt.disconnect();
-            isConnected = false;
-        }
-        if (!isScanning) {
-            // Stops scanning after a pre-defined scan period.
-            new Handler().postDelayed(this::stopScan, SCAN_PERIOD);
-            serverScanCallback.clearResults();
-            isScanning = true;
-            bluetoothLeScanner.startScan(Utility.buildScanFilters(), Utility.buildScanSettings(), serverScanCallback);
-        } else {
-            isScanning = false;
-            bluetoothLeScanner.stopScan(serverScanCallback);
-        }
+    //The scans, connections and location updates run in the service, which keeps running in background.
+    private void startCollection() {
+        ContextCompat.startForegroundService(this, new Intent(this, AirmonService.class));
     }
 
-    private void stopScan() {
-        isScanning = false;
-        bluetoothLeScanner.stopScan(serverScanCallback);
-        writeDebug("Scan stopped");
-        for (ScanResult result : serverScanCallback.getResults()) {
-            writeDebug("Address: " + result.getDevice().getAddress() + ", UUIDs Found " + result.getScanRecord().getServiceUuids());
-        }
-        if (serverScanCallback.getResults().size() == 0) {
-            writeDebug("No server found, check another device.");
-        }
-        writeDebug("Scan operation completed.");
+    private void sendCommand(String action) {
+        startService(new Intent(this, AirmonService.class).setAction(action));
     }
 
     private void askPermissions(Bundle savedInstanceState) {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
             checkBluetoothAvailability(savedInstanceState);
+            checkLocationSettings();
         } else {
             requestPermissions(new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, PERMISSION_REQUEST_FINE_LOCATION);
         }
@@ -309,6 +145,7 @@ public class MainActivity extends AppCompatActivity {
                         && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
 
                     checkBluetoothAvailability();
+                    checkLocationSettings();
                 } else {
                     writeErrorDebug("onRequestPermissionsResult: Permission denied");
                 }
@@ -360,6 +197,7 @@ public class MainActivity extends AppCompatActivity {
             switch (resultCode) {
                 case Activity.RESULT_OK:
                     writeDebug("GPS OK");
+                    startCollection();
                     break;
                 case Activity.RESULT_CANCELED:
                     writeErrorDebug("GPS request was cancelled.");
@@ -381,59 +219,24 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        stopLocationUpdates();
-        mRequestingLocationUpdates = false;
-        if (isConnected) {
-            mGatt.disconnect();
-            isConnected = false;
-        }
-    }
-
-    private void createLocationRequest() {
-        mLocationRequest = new LocationRequest();
-
-        // Sets the interval for active location updates (10 seconds).
-        // You may not receive updates at all if no location sources are available, or you may receive them slower/faster than requested.
-        mLocationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
-
-        // Sets the fastest rate for active location updates.
-        mLocationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
-
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-    }
-
-    //Creates a callback for receiving location events.
-    private void createLocationCallback() {
-        mLocationCallback = new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
-                super.onLocationResult(locationResult);
-                mCurrentLocation = locationResult.getLastLocation();
-                DateFormat dateformat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.ITALY);
-                mTimestamp = dateformat.format(new Date());
-            }
-        };
+        // Collection goes on in the service, stopped from its notification
+        debugHandler.removeCallbacks(refreshDebugRunnable);
     }
 
     private void buildLocationSettingsRequest() {
         LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(mLocationRequest);
+        builder.addLocationRequest(Utility.buildLocationRequest(Constants.BATCH_LOCATION_UPDATES));
         mLocationSettingsRequest = builder.build();
     }
 
-
-    //Requests location updates from the FusedLocationApi.
-    private void startLocationUpdates() {
-        // Begin by checking if the device has the necessary location settings.
+    //Checks that the device has the necessary location settings, then starts the collection.
+    private void checkLocationSettings() {
         mSettingsClient.checkLocationSettings(mLocationSettingsRequest)
                 .addOnSuccessListener(this, new OnSuccessListener<LocationSettingsResponse>() {
                     @Override
                     public void onSuccess(LocationSettingsResponse locationSettingsResponse) {
                         Log.i(TAG, "All location settings are satisfied.");
-
-                        //noinspection MissingPermission
-                        mFusedLocationClient.requestLocationUpdates(mLocationRequest,
-                                mLocationCallback, Looper.myLooper());
+                        startCollection();
                     }
                 })
                 .addOnFailureListener(this, new OnFailureListener() {
@@ -457,55 +260,34 @@ public class MainActivity extends AppCompatActivity {
                                 String errorMessage = "Location settings are inadequate, and cannot be " +
                                         "fixed here. Fix it in Settings.";
                                 writeErrorDebug(errorMessage);
-                                mRequestingLocationUpdates = false;
                         }
                     }
                 });
     }
 
-
-    //Removes location updates from the FusedLocationApi.
-    private void stopLocationUpdates() {
-        if (!mRequestingLocationUpdates) {
-            Log.d(TAG, "stopLocationUpdates: updates never requested, no-op.");
-            return;
-        }
-        mFusedLocationClient.removeLocationUpdates(mLocationCallback)
-                .addOnCompleteListener(this, new OnCompleteListener<Void>() {
-                    @Override
-                    public void onComplete(@NonNull Task<Void> task) {
-                        mRequestingLocationUpdates = false;
-                    }
-                });
-    }
-
-    //Clean the field debugger
-    private void cleanDebug() {
-        runOnUiThread(() -> debugger.setText(""));
-    }
-
     //Write a message debug into log and text debugger.
     //The message will be logged into the debug logger.
     private void writeDebug(final String message) {
-        runOnUiThread(() -> {
-            if (debugger.getLineCount() == debugger.getMaxLines())
-                debugger.setText(String.format("%s\n", message));
-            else
-                debugger.setText(String.format("%s%s\n", debugger.getText(), message));
-        });
+        if (debugLog.append(message)) scheduleDebugRefresh();
         Log.d(TAG, message);
     }
 
     //Write a message debug into log and text debugger.
     //The message will be logged into the error logger.
     private void writeErrorDebug(final String message) {
-        runOnUiThread(() -> {
-            if (debugger.getLineCount() == debugger.getMaxLines())
-                debugger.setText(String.format("%s\n", message));
-            else
-                debugger.setText(String.format("%s%s\n", debugger.getText(), message));
-        });
+        if (debugLog.append(message)) scheduleDebugRefresh();
         Log.e(TAG, message);
     }
 
+    //Redraw the debugger at most once every refresh interval, whatever the number of lines written.
+    //Called from any thread.
+    private void scheduleDebugRefresh() {
+        debugHandler.postDelayed(refreshDebugRunnable, DebugLog.REFRESH_INTERVAL_MS);
+    }
+
+    private void refreshDebug() {
+        debugLog.render(debugText, debugger.getMaxLines());
+        debugger.setText(debugText);
+    }
+
 }
\ No newline at end of file
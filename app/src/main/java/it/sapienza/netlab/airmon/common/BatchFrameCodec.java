@@ -0,0 +1,156 @@
+package it.sapienza.netlab.airmon.common;
+
+/**
+ * Framing of the batched upload, shared with the ESP32 firmware.
+ * <p>
+ * Batch frame, written without response on the Batch characteristic (little-endian):
+ * <pre>
+ * offset  size      field
+ * 0       1         version (high nibble) | flags (low nibble), flags bit 0 = ack requested
+ * 1       1         record count N
+ * 2       4         sequence number of the first record, uint32
+ * 6       N * 14    N LocationRecordCodec records, with consecutive sequence numbers
+ * </pre>
+ * The firmware answers a frame with the ack flag by notifying the Batch Ack characteristic:
+ * <pre>
+ * offset  size  field
+ * 0       1     version (high nibble)
+ * 1       1     status, 0 = ok, 1 = storage full
+ * 2       4     sequence number of the next record expected, uint32: every record before it is stored
+ * </pre>
+ * The firmware stores records in sequence: records before the expected sequence number are
+ * duplicates and are skipped, a frame starting after it means a frame was lost and is discarded.
+ * A discarded frame with the ack flag is still acked, so the client learns where to restart from.
+ * <p>
+ * Sequence numbers belong to the outbox of a phone, so the firmware keeps the expected sequence
+ * number of each session. A connection starts with a sync frame, a frame without records and with
+ * the ack flag, whose first sequence number is the oldest record the phone still holds, followed by
+ * its session id:
+ * <pre>
+ * offset  size  field
+ * 0       6     header, record count 0
+ * 6       4     session id, uint32
+ * </pre>
+ * The firmware binds the connection to the session and acks with the next record it expects from
+ * it, never before the first sequence number of the sync frame: a new session starts from there.
+ * A frame with records on a connection without a session is discarded and, if it asks for an ack,
+ * answered with status 2: the phone must sync again. The session id travels in the sync frame
+ * rather than in every header, so that a record still fits the write of the default MTU.
+ */
+public class BatchFrameCodec {
+
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 6;
+    public static final int SYNC_SIZE = HEADER_SIZE + 4;
+    public static final int ACK_SIZE = 6;
+    public static final int FLAG_ACK_REQUESTED = 1;
+    public static final int MAX_RECORDS_PER_FRAME = 255;
+
+    public static final int ACK_STATUS_OK = 0;
+    public static final int ACK_STATUS_FULL = 1;
+    public static final int ACK_STATUS_UNKNOWN_SESSION = 2;
+
+    private static final int ATT_HEADER_SIZE = 3;       //Opcode and handle of an ATT write
+
+    /**
+     * @return the number of records that fit in a single write with the given ATT MTU
+     */
+    public static int recordsPerFrame(int mtu) {
+        int records = (mtu - ATT_HEADER_SIZE - HEADER_SIZE) / LocationRecordCodec.RECORD_SIZE;
+        return Math.max(0, Math.min(MAX_RECORDS_PER_FRAME, records));
+    }
+
+    public static int frameSize(int records) {
+        return HEADER_SIZE + records * LocationRecordCodec.RECORD_SIZE;
+    }
+
+    /**
+     * Write the header of a frame whose records are already at {@link #HEADER_SIZE}.
+     */
+    public static void writeHeader(byte[] frame, int flags, int count, long firstSeq) {
+        frame[0] = (byte) (VERSION << 4 | (flags & 0x0F));
+        frame[1] = (byte) count;
+        putUInt32(frame, 2, firstSeq);
+    }
+
+    /**
+     * Write the sync frame of a session, {@link #SYNC_SIZE} bytes.
+     *
+     * @param oldestSeq the oldest record the phone still holds
+     */
+    public static void writeSync(byte[] frame, int session, long oldestSeq) {
+        writeHeader(frame, FLAG_ACK_REQUESTED, 0, oldestSeq);
+        putUInt32(frame, HEADER_SIZE, session & 0xFFFFFFFFL);
+    }
+
+    public static boolean isSync(byte[] frame, int length) {
+        return length >= SYNC_SIZE && getCount(frame) == 0;
+    }
+
+    public static int getSession(byte[] frame) {
+        return (int) getUInt32(frame, HEADER_SIZE);
+    }
+
+    public static int getFlags(byte[] frame) {
+        return frame[0] & 0x0F;
+    }
+
+    public static int getCount(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    /**
+     * @return the low 32 bits of the first sequence number
+     */
+    public static long getFirstSeq(byte[] frame) {
+        return getUInt32(frame, 2);
+    }
+
+    public static void writeAck(byte[] ack, int status, long nextSeq) {
+        ack[0] = (byte) (VERSION << 4);
+        ack[1] = (byte) status;
+        putUInt32(ack, 2, nextSeq);
+    }
+
+    public static boolean isValidAck(byte[] ack) {
+        return ack != null && ack.length >= ACK_SIZE && (ack[0] & 0xF0) >> 4 == VERSION;
+    }
+
+    public static int getAckStatus(byte[] ack) {
+        return ack[1] & 0xFF;
+    }
+
+    /**
+     * @return the low 32 bits of the next expected sequence number
+     */
+    public static long getAckNextSeq(byte[] ack) {
+        return getUInt32(ack, 2);
+    }
+
+    /**
+     * Rebuild a full sequence number from its low 32 bits, choosing the one closest to reference.
+     */
+    public static long expandSeq(long low32, long reference) {
+        long candidate = (reference & ~0xFFFFFFFFL) | low32;
+        if (candidate - reference > 0x80000000L) {
+            candidate -= 0x100000000L;
+        } else if (reference - candidate > 0x80000000L) {
+            candidate += 0x100000000L;
+        }
+        return candidate;
+    }
+
+    private static void putUInt32(byte[] dst, int offset, long value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+        dst[offset + 2] = (byte) (value >>> 16);
+        dst[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static long getUInt32(byte[] src, int offset) {
+        return (src[offset] & 0xFFL)
+                | (src[offset + 1] & 0xFFL) << 8
+                | (src[offset + 2] & 0xFFL) << 16
+                | (src[offset + 3] & 0xFFL) << 24;
+    }
+}
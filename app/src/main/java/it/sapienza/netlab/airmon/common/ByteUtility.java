@@ -2,10 +2,36 @@ package it.sapienza.netlab.airmon.common;
 
 import android.util.Log;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bit and byte packing for compact frames.
+ * <p>
+ * Bits are numbered from the least significant bit of the first byte, as {@link #getBit(byte, int)}
+ * does: bit n of a buffer is bit n % 8 of byte n / 8. Fields wider than one byte are therefore
+ * little-endian, as the other codecs of the app.
+ */
 public class ByteUtility {
 
     private static final String TAG = ByteUtility.class.getSimpleName();
 
+    public static final int MAX_VARINT_SIZE = 10;           //Bytes of the LEB128 encoding of a 64 bit value
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final String[] BINARY = new String[256];
+
+    static {
+        char[] digits = new char[8];
+        for (int b = 0; b < 256; b++) {
+            for (int i = 0; i < 8; i++) {
+                digits[i] = (char) ('0' + ((b >> (7 - i)) & 1));
+            }
+            BINARY[b] = new String(digits);
+        }
+    }
+
     /**
      * @param val    byte to read
      * @param offset the offset of the bit to return
@@ -39,10 +65,471 @@ public class ByteUtility {
      * @param b just print the byte in the logs
      */
     public static void printByte(byte b) {
-        String s = "";
-        for (int i = 7; i > -1; i--) {
-            s += getBit(b, i);
+        Log.d(TAG, "OUD: " + toBinaryString(b));
+    }
+
+    /**
+     * @return the eight bits of the byte, most significant first, without allocating
+     */
+    public static String toBinaryString(byte b) {
+        return BINARY[b & 0xff];
+    }
+
+    /**
+     * Append the bytes in binary, most significant bit first, separated by a space.
+     */
+    public static StringBuilder appendBinary(StringBuilder dst, byte[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (i > 0) dst.append(' ');
+            dst.append(BINARY[src[offset + i] & 0xff]);
+        }
+        return dst;
+    }
+
+    /**
+     * Append the bytes in upper case hexadecimal, without separators.
+     */
+    public static StringBuilder appendHex(StringBuilder dst, byte[] src, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = src[offset + i] & 0xff;
+            dst.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return dst;
+    }
+
+    /**
+     * @return a mask of the lowest width bits, width from 0 to 64
+     */
+    static long mask(int width) {
+        return width == 64 ? -1L : (1L << width) - 1;
+    }
+
+    private static void checkWidth(int width) {
+        if (width < 0 || width > 64) {
+            throw new IllegalArgumentException("Field width must be between 0 and 64 bits: " + width);
+        }
+    }
+
+    /**
+     * Read an unsigned field at any bit position.
+     *
+     * @param bitOffset position of the least significant bit of the field
+     * @param width     bits of the field, from 0 to 64
+     */
+    public static long readBits(byte[] src, long bitOffset, int width) {
+        checkWidth(width);
+        if (width == 0) return 0;
+        int index = (int) (bitOffset >>> 3);
+        int shift = (int) (bitOffset & 7);
+        // The field spans at most 9 bytes: the first one only for its high bits
+        long value = (src[index] & 0xffL) >>> shift;
+        int read = 8 - shift;
+        while (read < width) {
+            value |= (src[++index] & 0xffL) << read;
+            read += 8;
+        }
+        return value & mask(width);
+    }
+
+    /**
+     * Read a two's complement field at any bit position, see {@link #readBits(byte[], long, int)}.
+     */
+    public static long readSignedBits(byte[] src, long bitOffset, int width) {
+        return signExtend(readBits(src, bitOffset, width), width);
+    }
+
+    /**
+     * Write the lowest width bits of the value at any bit position, leaving the other bits of the
+     * buffer untouched. Signed values are written in two's complement.
+     *
+     * @param bitOffset position of the least significant bit of the field
+     * @param width     bits of the field, from 0 to 64
+     */
+    public static void writeBits(byte[] dst, long bitOffset, int width, long value) {
+        checkWidth(width);
+        if (width == 0) return;
+        int index = (int) (bitOffset >>> 3);
+        int shift = (int) (bitOffset & 7);
+        if ((((long) index << 3) + shift + width + 7 >>> 3) > dst.length) {
+            throw new IndexOutOfBoundsException("Field of " + width + " bits at bit " + bitOffset + " exceeds " + dst.length + " bytes");
+        }
+        value &= mask(width);
+        int written = 0;
+        while (written < width) {
+            int bits = Math.min(8 - shift, width - written);
+            int byteMask = (int) mask(bits) << shift;
+            int chunk = (int) (value >>> written) << shift;
+            dst[index] = (byte) ((dst[index] & ~byteMask) | (chunk & byteMask));
+            written += bits;
+            shift = 0;
+            index++;
+        }
+    }
+
+    /**
+     * @return the field of the given width extended to a signed long
+     */
+    public static long signExtend(long value, int width) {
+        if (width == 0) return 0;
+        return value << (64 - width) >> (64 - width);
+    }
+
+    public static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Map signed values to unsigned ones so that small magnitudes stay small: 0, -1, 1, -2...
+     * become 0, 1, 2, 3...
+     */
+    public static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the bytes of the unsigned LEB128 encoding of the value, from 1 to {@link #MAX_VARINT_SIZE}
+     */
+    public static int varintSize(long value) {
+        // 7 bits per byte, a zero value still takes one byte
+        int bits = 64 - Long.numberOfLeadingZeros(value | 1);
+        return (bits + 6) / 7;
+    }
+
+    /**
+     * Write the value as an unsigned LEB128 varint: 7 bits per byte, least significant first, the
+     * high bit set on every byte but the last. Negative values take {@link #MAX_VARINT_SIZE} bytes,
+     * zigzag encode them first.
+     *
+     * @return the number of bytes written
+     */
+    public static int writeVarint(long value, byte[] dst, int offset) {
+        int position = offset;
+        while ((value & ~0x7FL) != 0) {
+            dst[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[position++] = (byte) value;
+        return position - offset;
+    }
+
+    /**
+     * @return the value of the varint at the offset, its length is {@link #varintSize(long)}
+     * @throws IllegalArgumentException if the varint is longer than {@link #MAX_VARINT_SIZE} bytes
+     */
+    public static long readVarint(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            byte b = src[offset + i];
+            value |= (b & 0x7FL) << (7 * i);
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint at offset " + offset);
+    }
+
+    /**
+     * Write the value as an unsigned LEB128 varint at the buffer position and advance it.
+     *
+     * @return the number of bytes written
+     */
+    public static int putVarint(ByteBuffer dst, long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) (value | 0x80));
+            value >>>= 7;
+            size++;
+        }
+        dst.put((byte) value);
+        return size;
+    }
+
+    /**
+     * Read an unsigned LEB128 varint at the buffer position and advance it.
+     *
+     * @throws IllegalArgumentException if the varint is longer than {@link #MAX_VARINT_SIZE} bytes
+     */
+    public static long getVarint(ByteBuffer src) {
+        long value = 0;
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            byte b = src.get();
+            value |= (b & 0x7FL) << (7 * i);
+            if (b >= 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint before position " + src.position());
+    }
+
+    private static long loadWord(byte[] src, int offset) {
+        return (src[offset] & 0xffL)
+                | (src[offset + 1] & 0xffL) << 8
+                | (src[offset + 2] & 0xffL) << 16
+                | (src[offset + 3] & 0xffL) << 24
+                | (src[offset + 4] & 0xffL) << 32
+                | (src[offset + 5] & 0xffL) << 40
+                | (src[offset + 6] & 0xffL) << 48
+                | (src[offset + 7] & 0xffL) << 56;
+    }
+
+    private static void storeWord(byte[] dst, int offset, long word) {
+        dst[offset] = (byte) word;
+        dst[offset + 1] = (byte) (word >>> 8);
+        dst[offset + 2] = (byte) (word >>> 16);
+        dst[offset + 3] = (byte) (word >>> 24);
+        dst[offset + 4] = (byte) (word >>> 32);
+        dst[offset + 5] = (byte) (word >>> 40);
+        dst[offset + 6] = (byte) (word >>> 48);
+        dst[offset + 7] = (byte) (word >>> 56);
+    }
+
+    /**
+     * Writes fields of any width one after the other, collecting them in a 64 bit word that is
+     * stored eight bytes at a time. Call {@link #flush()} once the last field is written.
+     * <p>
+     * Over a ByteBuffer the bytes go from its position on, whatever its byte order, and the
+     * position advances as they are stored. Not thread safe.
+     */
+    public static class BitWriter {
+
+        private final byte[] array;
+        private final ByteBuffer buffer;
+        private final int start;
+        private int position;                   //Next byte to store
+        private long word;                      //Bits written and not stored yet
+        private int pending;                    //Number of those bits, always below 64
+
+        public BitWriter(byte[] dst, int offset) {
+            this.array = dst;
+            this.buffer = null;
+            this.start = offset;
+            this.position = offset;
+        }
+
+        public BitWriter(ByteBuffer dst) {
+            this.array = null;
+            this.buffer = dst;
+            this.start = dst.position();
+            this.position = start;
+        }
+
+        /**
+         * Write the lowest width bits of the value. Signed values are written in two's complement.
+         *
+         * @param width bits of the field, from 0 to 64
+         */
+        public BitWriter write(long value, int width) {
+            checkWidth(width);
+            if (width == 0) return this;
+            value &= mask(width);
+            word |= value << pending;
+            int total = pending + width;
+            if (total < 64) {
+                pending = total;
+                return this;
+            }
+            store(word, 8);
+            // The bits of the value that did not fit in the word, none if it was empty
+            word = pending == 0 ? 0 : value >>> (64 - pending);
+            pending = total - 64;
+            return this;
+        }
+
+        public BitWriter writeBit(boolean bit) {
+            return write(bit ? 1 : 0, 1);
+        }
+
+        /**
+         * Write the value as a varint, see {@link ByteUtility#writeVarint(long, byte[], int)},
+         * at the current bit position.
+         */
+        public BitWriter writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            return write(value, 8);
+        }
+
+        /**
+         * Skip to the next byte boundary, the bits skipped are zero.
+         */
+        public BitWriter alignToByte() {
+            return write(0, (8 - (pending & 7)) & 7);
+        }
+
+        /**
+         * Store the bits still held in the word, padding the last byte with zeros. Fields can
+         * still be written afterwards, from the next byte boundary.
+         *
+         * @return the number of bytes written since the writer was created
+         */
+        public int flush() {
+            int bytes = (pending + 7) >>> 3;
+            store(word, bytes);
+            word = 0;
+            pending = 0;
+            return position - start;
+        }
+
+        /**
+         * @return the number of bits written so far, padding included
+         */
+        public long getBitCount() {
+            return ((long) (position - start) << 3) + pending;
+        }
+
+        private void store(long value, int bytes) {
+            if (array != null) {
+                if (bytes == 8 && array.length - position >= 8) {
+                    storeWord(array, position, value);
+                } else {
+                    if (array.length - position < bytes) {
+                        throw new IndexOutOfBoundsException("No room for " + bytes + " bytes at offset " + position);
+                    }
+                    for (int i = 0; i < bytes; i++) array[position + i] = (byte) (value >>> (8 * i));
+                }
+            } else if (bytes == 8) {
+                ByteOrder order = buffer.order();
+                buffer.order(ByteOrder.LITTLE_ENDIAN).putLong(value);
+                buffer.order(order);
+            } else {
+                for (int i = 0; i < bytes; i++) buffer.put((byte) (value >>> (8 * i)));
+            }
+            position += bytes;
+        }
+    }
+
+    /**
+     * Reads the fields written by a {@link BitWriter}, loading the source eight bytes at a time.
+     * <p>
+     * Over a ByteBuffer the bytes are read from its position on and the position advances as
+     * they are loaded, so it may run up to seven bytes ahead of the fields read. Not thread safe.
+     */
+    public static class BitReader {
+
+        private final byte[] array;
+        private final ByteBuffer buffer;
+        private final int limit;
+        private final int start;
+        private int position;                   //Next byte to load
+        private long word;                      //Bits loaded and not read yet
+        private int available;                  //Number of those bits
+
+        public BitReader(byte[] src, int offset, int length) {
+            if (offset < 0 || length < 0 || length > src.length - offset) {
+                throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside of " + src.length + " bytes");
+            }
+            this.array = src;
+            this.buffer = null;
+            this.start = offset;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        public BitReader(ByteBuffer src) {
+            this.array = null;
+            this.buffer = src;
+            this.start = src.position();
+            this.position = start;
+            this.limit = src.limit();
+        }
+
+        /**
+         * @param width bits of the field, from 0 to 64
+         * @return the unsigned field
+         * @throws BufferUnderflowException if fewer bits are left
+         */
+        public long read(int width) {
+            checkWidth(width);
+            if (width <= available) {
+                long value = word & mask(width);
+                word = width == 64 ? 0 : word >>> width;
+                available -= width;
+                return value;
+            }
+            long low = word;
+            int lowBits = available;
+            load();
+            int needed = width - lowBits;
+            if (needed > available) {
+                throw new BufferUnderflowException();
+            }
+            long high = word & mask(needed);
+            word = needed == 64 ? 0 : word >>> needed;
+            available -= needed;
+            return low | high << lowBits;
+        }
+
+        /**
+         * @return the two's complement field extended to a long
+         */
+        public long readSigned(int width) {
+            return signExtend(read(width), width);
+        }
+
+        public boolean readBit() {
+            return read(1) != 0;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the varint is longer than {@link #MAX_VARINT_SIZE} bytes
+         */
+        public long readVarint() {
+            long value = 0;
+            for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+                long b = read(8);
+                value |= (b & 0x7F) << (7 * i);
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        /**
+         * Skip to the next byte boundary.
+         */
+        public BitReader alignToByte() {
+            read(available & 7);
+            return this;
+        }
+
+        /**
+         * @return the number of bits read so far
+         */
+        public long getBitCount() {
+            return ((long) (position - start) << 3) - available;
+        }
+
+        /**
+         * @return the number of bits left
+         */
+        public long getRemainingBits() {
+            return ((long) (limit - position) << 3) + available;
+        }
+
+        private void load() {
+            int bytes = Math.min(8, limit - position);
+            if (array != null) {
+                if (bytes == 8) {
+                    word = loadWord(array, position);
+                } else {
+                    word = 0;
+                    for (int i = 0; i < bytes; i++) word |= (array[position + i] & 0xffL) << (8 * i);
+                }
+            } else if (bytes == 8) {
+                ByteOrder order = buffer.order();
+                word = buffer.order(ByteOrder.LITTLE_ENDIAN).getLong();
+                buffer.order(order);
+            } else {
+                word = 0;
+                for (int i = 0; i < bytes; i++) word |= (buffer.get() & 0xffL) << (8 * i);
+            }
+            position += bytes;
+            available = bytes << 3;
         }
-        Log.d(TAG, "OUD: " + s);
     }
 }
@@ -0,0 +1,31 @@
+package it.sapienza.netlab.airmon.common;
+
+/**
+ * Monotonic time source, injectable so that time based logic can be tested with a fake clock.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+
+        @Override
+        public long nowNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return milliseconds from an arbitrary origin, never going backwards
+     */
+    long nowMillis();
+
+    /**
+     * @return nanoseconds from the same origin, to measure short intervals
+     */
+    default long nowNanos() {
+        return nowMillis() * 1000000L;
+    }
+}
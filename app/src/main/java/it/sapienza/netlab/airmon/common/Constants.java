@@ -1,7 +1,5 @@
 package it.sapienza.netlab.airmon.common;
 
-import android.os.ParcelUuid;
-
 import java.util.UUID;
 
 //Constants for use in the Bluetooth Advertisements sample
@@ -22,15 +20,42 @@ public class Constants {
 //    public static final UUID CharacteristicTimestampUUID = UUID.fromString("00002a08-0000-1000-8000-00805f9b34fb");         //This is the TimeStampUUID for nRF Connection
     public static final UUID CharacteristicTimestampUUID = UUID.fromString("00002a2b-0000-1000-8000-00805f9b34fb");         //This is the TimeStampUUID for ESP
 
+    //Batched upload, see BatchFrameCodec. Only exposed by firmware supporting it.
+    public static final UUID CharacteristicBatchUUID = UUID.fromString("8e4a0001-5c2b-4d3e-9f10-6a7b8c9d0e1f");
+    public static final UUID CharacteristicBatchAckUUID = UUID.fromString("8e4a0002-5c2b-4d3e-9f10-6a7b8c9d0e1f");
+
+    //Indicated by the server when its services change, invalidates the cached layout
+    public static final UUID GenericAttributeServiceUUID = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID CharacteristicServiceChangedUUID = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
     public static final UUID NotificationDescriptor = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     public static final UUID LocationServiceUUID = UUID.fromString("00001819-0000-1000-8000-00805f9b34fb");
     public static final UUID TimeServiceUUID = UUID.fromString("00001805-0000-1000-8000-00805f9b34fb");
-    public static final ParcelUuid LocationServiceParcelUUID = ParcelUuid.fromString("00001819-0000-1000-8000-00805f9b34fb");
-    public static final ParcelUuid TimeServiceParcelUUID = ParcelUuid.fromString("00001805-0000-1000-8000-00805f9b34fb");
 
 
     public static final int MAX_ATTEMPTS_RETRY = 5;
+    public static final int REQUESTED_MTU = 247;                            //Largest MTU fitting a single LE data packet with DLE
+    public static final int MAX_CONCURRENT_CONNECTIONS = 4;                 //Android stacks usually cap LE links at 4-7
+
+    public static final String OUTBOX_FILE_NAME = "outbox.bin";
+    public static final int OUTBOX_CAPACITY = 8192;                         //Records, 24 bytes each on disk
+    public static final int OUTBOX_DRAIN_BATCH = 32;                        //Records in flight while draining
+    public static final long UPDATE_INTERVAL_IN_MILLISECONDS = 10000;                                  //Interval for Location updates
+    public static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = UPDATE_INTERVAL_IN_MILLISECONDS / 2;     //Fastest rate for active location updates
+    public static final boolean BATCH_LOCATION_UPDATES = true;              //Let the provider deliver the fixes in batches, waking the app less often
+    public static final long MAX_WAIT_TIME_IN_MILLISECONDS = 6 * UPDATE_INTERVAL_IN_MILLISECONDS;      //Longest delay of a batched fix
+    public static final float ACCURATE_FIX_METERS = 20f;
+    public static final double TRACK_TOLERANCE_METERS = 10;                 //Largest error of the simplified track
+    public static final double TRACK_MIN_DISTANCE_METERS = 10;              //Dead-band, about the GPS error
+    public static final long TRACK_MIN_INTERVAL_SECONDS = 1;
+    public static final long TRACK_MAX_INTERVAL_SECONDS = 60;               //A fix is stored at least this often
+    public static final long SCAN_REPORT_DELAY_MS = 1000;                   //Hardware batching of scan results, when supported
+    public static final long SCAN_FLUSH_TIMEOUT_MS = 500;                   //Wait for the batch flushed when a scan stops
+    public static final long EVENT_FRAME_MS = 16;                           //Events to the service are delivered at most once per frame
+    public static final String LATENCY_FILE_NAME = "latency.csv";
+    public static final String LATENCY_TAG = "default";                   //Written on every row, set to the server firmware under test
+    public static final long LATENCY_DUMP_INTERVAL_MS = 60000;
 
 
 }
\ No newline at end of file
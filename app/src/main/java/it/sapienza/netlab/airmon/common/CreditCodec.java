@@ -0,0 +1,63 @@
+package it.sapienza.netlab.airmon.common;
+
+/**
+ * Flow control notifications of the Location characteristic, shared with the ESP32 firmware.
+ * <p>
+ * The firmware advertises the records it can still store, notifying the Location characteristic
+ * when the client subscribes, when its storage is freed and when it has to discard a record.
+ * The same value is returned by a read of the characteristic. Credit value (little-endian):
+ * <pre>
+ * offset  size  field
+ * 0       1     version (high nibble) | {@link #TYPE_CREDIT} (low nibble)
+ * 1       2     free record slots, uint16, saturated
+ * 3       4     records stored from this connection, uint32
+ * </pre>
+ * The client may have sent up to stored + free records on the connection when the value is
+ * received: the count makes the value independent of the records still in flight, and a stale or
+ * repeated value harmless. Older firmware only notifies a single byte when its memory is full:
+ * any value that is not a credit has that meaning.
+ */
+public class CreditCodec {
+
+    public static final int VERSION = 1;
+    public static final int TYPE_CREDIT = 2;
+    public static final int CREDIT_SIZE = 7;
+    public static final int MAX_FREE_SLOTS = 0xFFFF;
+
+    /**
+     * @param freeSlots records the server can still store, saturated to {@link #MAX_FREE_SLOTS}
+     * @param stored    records stored from the connection, only the low 32 bits are written
+     */
+    public static void writeCredit(byte[] value, int freeSlots, long stored) {
+        int free = Math.max(0, Math.min(MAX_FREE_SLOTS, freeSlots));
+        value[0] = (byte) (VERSION << 4 | TYPE_CREDIT);
+        value[1] = (byte) free;
+        value[2] = (byte) (free >>> 8);
+        value[3] = (byte) stored;
+        value[4] = (byte) (stored >>> 8);
+        value[5] = (byte) (stored >>> 16);
+        value[6] = (byte) (stored >>> 24);
+    }
+
+    public static boolean isCredit(byte[] value) {
+        return value != null && value.length >= CREDIT_SIZE && (value[0] & 0x0F) == TYPE_CREDIT && (value[0] & 0xFF) >>> 4 == VERSION;
+    }
+
+    /**
+     * @return true if the notification means the memory of the server is full: a legacy notification or no free slot
+     */
+    public static boolean isMemoryFull(byte[] value) {
+        return !isCredit(value) || getFreeSlots(value) == 0;
+    }
+
+    public static int getFreeSlots(byte[] value) {
+        return (value[1] & 0xFF) | (value[2] & 0xFF) << 8;
+    }
+
+    /**
+     * @return the low 32 bits of the records stored
+     */
+    public static long getStored(byte[] value) {
+        return (value[3] & 0xFFL) | (value[4] & 0xFFL) << 8 | (value[5] & 0xFFL) << 16 | (value[6] & 0xFFL) << 24;
+    }
+}
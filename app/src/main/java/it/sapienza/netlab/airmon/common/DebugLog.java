@@ -0,0 +1,130 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded log shown on screen.
+ * <p>
+ * Lines are appended without locks from any thread into a ring of fixed capacity, overwriting
+ * the oldest ones. A single thread, normally the UI thread, renders the tail of the log at most
+ * every {@link #REFRESH_INTERVAL_MS}: lines appended in between that do not fit the visible tail
+ * are counted as skipped instead of being drawn.
+ * <p>
+ * If writers lap the whole ring while a line is being rendered, that line may be shown out of
+ * place: this is a debug view, lines are meant to go to the system log as well.
+ */
+public class DebugLog {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long REFRESH_INTERVAL_MS = 100;
+
+    private final int mask;
+    private final AtomicReferenceArray<String> lines;
+    private final AtomicLongArray published;                //Sequence + 1 of the line in each slot, 0 while written
+    private final AtomicLong writeSeq = new AtomicLong();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile long clearedSeq;
+    private long renderedSeq;                               //Only used by the rendering thread
+
+    public DebugLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of lines kept, rounded up to a power of two
+     */
+    public DebugLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        lines = new AtomicReferenceArray<>(size);
+        published = new AtomicLongArray(size);
+    }
+
+    /**
+     * Append a line from any thread.
+     *
+     * @return true if the caller should schedule a refresh, i.e. the log was clean until now
+     */
+    public boolean append(String line) {
+        long seq = writeSeq.getAndIncrement();
+        int slot = (int) (seq & mask);
+        published.set(slot, 0);
+        lines.set(slot, line);
+        published.set(slot, seq + 1);
+        // Read first: under load the flag is already set and stays in every core's cache
+        return !dirty.get() && dirty.compareAndSet(false, true);
+    }
+
+    /**
+     * Forget every line appended so far.
+     *
+     * @return true if the caller should schedule a refresh
+     */
+    public boolean clear() {
+        clearedSeq = writeSeq.get();
+        return dirty.compareAndSet(false, true);
+    }
+
+    /**
+     * Write the last lines into dst, replacing its content. Only one thread may render.
+     *
+     * @param maxLines number of visible lines, including the line reporting skipped lines
+     * @return the number of lines appended since the last render
+     */
+    public int render(StringBuilder dst, int maxLines) {
+        // Appends from now on must schedule another refresh
+        dirty.set(false);
+        long end = writeSeq.get();
+        long from = Math.max(renderedSeq, clearedSeq);
+        long total = skipped.get();
+        int visible = Math.min(maxLines, mask + 1);
+        if (total > 0 || end - from > visible) {
+            visible--;
+        }
+        long start = Math.max(Math.max(clearedSeq, end - visible), 0);
+        if (start > from) {
+            total = skipped.addAndGet(start - from);
+        }
+        dst.setLength(0);
+        if (total > 0) {
+            dst.append("[").append(total).append(" lines skipped]\n");
+        }
+        long seq = start;
+        for (; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq + 1) {
+                // Still being written: its writer schedules another refresh
+                break;
+            }
+            String line = lines.get(slot);
+            if (published.get(slot) == seq + 1) {
+                dst.append(line).append('\n');
+            }
+        }
+        int appended = (int) Math.max(seq - from, 0);
+        renderedSeq = seq;
+        return appended;
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    /**
+     * @return number of lines appended since the log was created
+     */
+    public long getWriteSequence() {
+        return writeSeq.get();
+    }
+
+    /**
+     * @return number of lines never shown because newer lines filled the visible tail
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+}
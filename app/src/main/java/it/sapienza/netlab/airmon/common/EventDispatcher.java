@@ -0,0 +1,168 @@
+package it.sapienza.netlab.airmon.common;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers typed events from any thread to subscribers running on their own executor.
+ * <p>
+ * {@link #post(Object)} never blocks and never runs a subscriber: each subscription has a
+ * lock-free queue, drained by a single task on its executor, so a slow subscriber only delays
+ * itself and its events keep their order. GATT and scan callbacks can post on the binder thread.
+ * <p>
+ * Events implementing {@link Coalescing} are state updates: while one is waiting for a
+ * subscriber, a newer event of the same class replaces it in place. With an executor that runs
+ * once per frame, thousands of scan hits reach the subscriber as a single event.
+ */
+public class EventDispatcher {
+
+    private static final String TAG = EventDispatcher.class.getSimpleName();
+    private final CopyOnWriteArrayList<Subscription<?>> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Marker of the events that only matter as the latest value, e.g. the number of servers found.
+     */
+    public interface Coalescing {
+    }
+
+    public interface Subscriber<E> {
+        void OnEvent(E event);
+    }
+
+    /**
+     * @param type     class of the events, subclasses included
+     * @param executor runs the subscriber, one event at a time; a direct executor runs it on the posting thread
+     * @return the subscription, to unsubscribe
+     */
+    public <E> Subscription<E> subscribe(Class<E> type, Executor executor, Subscriber<? super E> subscriber) {
+        Subscription<E> subscription = new Subscription<>(this, type, executor, subscriber);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stop the deliveries, the events already queued are dropped.
+     */
+    public void unsubscribe(Subscription<?> subscription) {
+        subscription.cancelled = true;
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Queue the event for every subscriber of its class, from any thread.
+     */
+    public void post(Object event) {
+        posted.incrementAndGet();
+        for (Subscription<?> subscription : subscriptions) {
+            if (subscription.type.isInstance(event)) subscription.offer(event);
+        }
+    }
+
+    public long getPosted() {
+        return posted.get();
+    }
+
+    /**
+     * @return the events run by the subscribers, counted once for each of them
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the events replaced by a newer one before a subscriber got them
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the events whose subscriber threw, the next events are still delivered
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public static final class Subscription<E> implements Runnable {
+        private final EventDispatcher dispatcher;
+        private final Class<E> type;
+        private final Executor executor;
+        private final Subscriber<? super E> subscriber;
+        private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();     //Events, or the Slot of a coalescing class
+        private final ConcurrentHashMap<Class<?>, Slot> slots = new ConcurrentHashMap<>();
+        private final AtomicInteger pending = new AtomicInteger();                             //Offers not drained yet, the drain task runs while > 0
+        private volatile boolean cancelled = false;
+
+        private Subscription(EventDispatcher dispatcher, Class<E> type, Executor executor, Subscriber<? super E> subscriber) {
+            this.dispatcher = dispatcher;
+            this.type = type;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        // Latest event of a coalescing class, queued once until the drain takes it
+        private static final class Slot {
+            final AtomicReference<Object> latest = new AtomicReference<>();
+        }
+
+        private void offer(Object event) {
+            if (cancelled) return;
+            if (event instanceof Coalescing) {
+                Slot slot = slots.get(event.getClass());
+                if (slot == null) {
+                    Slot created = new Slot();
+                    slot = slots.putIfAbsent(event.getClass(), created);
+                    if (slot == null) slot = created;
+                }
+                if (slot.latest.getAndSet(event) != null) {
+                    // Already queued, the drain will deliver this one instead
+                    dispatcher.coalesced.incrementAndGet();
+                    return;
+                }
+                queue.offer(slot);
+            } else {
+                queue.offer(event);
+            }
+            if (pending.getAndIncrement() == 0) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = pending.get();
+            while (true) {
+                for (int i = 0; i < missed; i++) {
+                    Object item = queue.poll();
+                    if (item instanceof Slot) item = ((Slot) item).latest.getAndSet(null);
+                    if (item != null && !cancelled) deliver(item);
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private void deliver(Object event) {
+            try {
+                subscriber.OnEvent(type.cast(event));
+                dispatcher.delivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                dispatcher.failed.incrementAndGet();
+                Log.e(TAG, "Subscriber of " + type.getSimpleName() + " failed on " + event.getClass().getSimpleName(), e);
+            }
+        }
+
+        public Class<E> getType() {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed, log-scaled buckets.
+ * <p>
+ * Values are recorded in microseconds: below 16 us each value has its own bucket, above it
+ * every power of two is split in {@link #SUB_BUCKETS} buckets, so a percentile is off by less
+ * than 1/16 of its value. Recording is lock-free and does not allocate, and may be called from
+ * any thread; a snapshot taken while recording may miss the values being recorded.
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKETS = 8;
+
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = 4;                   //log2(LINEAR_LIMIT)
+    private static final int SUB_BITS = 3;                      //log2(SUB_BUCKETS)
+    private static final int MAX_EXPONENT = 40;                 //2^40 us, about 12 days
+    private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    // Slot BUCKETS holds the total, BUCKETS + 1 the maximum
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 2);
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(bucketOf(micros));
+        counts.addAndGet(BUCKETS, micros);
+        long max;
+        while ((max = counts.get(BUCKETS + 1)) < micros && !counts.compareAndSet(BUCKETS + 1, max, micros)) {
+            // Another thread raised the maximum, check again
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest value falling in the bucket
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, counts.get(BUCKETS), counts.get(BUCKETS + 1));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS + 2; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the largest value recorded, in microseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean value, in microseconds, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the middle of the bucket holding the percentile, in microseconds, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long low = lowerBound(i);
+                    long high = i + 1 < BUCKETS ? lowerBound(i + 1) : low;
+                    return Math.min(max, low + (high - low) / 2);
+                }
+            }
+            return max;
+        }
+    }
+}
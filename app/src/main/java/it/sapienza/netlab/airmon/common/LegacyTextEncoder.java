@@ -0,0 +1,148 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes fixes in the text format of the firmware without the Batch characteristic: coordinates
+ * as String.valueOf(double) prints them, the time as SimpleDateFormat prints {@link #PATTERN_12H}
+ * (or {@link #PATTERN_24H}) in Locale.ITALY.
+ * <p>
+ * Output goes straight into the caller's buffers. Coordinates are formatted from micro-degrees in
+ * fixed point; the date and hour fields are cached and only computed again when the local hour
+ * changes, so no String, Date or formatter is created per fix. Not thread safe.
+ */
+public class LegacyTextEncoder {
+
+    public static final String PATTERN_12H = "dd-MM-yyyy hh:mm:ss";     //Expected by the deployed firmware
+    public static final String PATTERN_24H = "dd-MM-yyyy HH:mm:ss";
+    public static final int TIMESTAMP_LENGTH = 19;
+    public static final int MAX_COORDINATE_LENGTH = 12;                 //"-2147.483648", the largest micro-degrees
+
+    private static final long HOUR_MS = 3600000;
+
+    private final boolean twelveHour;
+    private final Calendar calendar;
+    private final byte[] prefix = new byte[14];         //"dd-MM-yyyy hh:" of the cached hour
+    private long hourStart = Long.MAX_VALUE;            //Local hour the prefix is valid for
+    private long hourEnd = Long.MIN_VALUE;
+
+    /**
+     * @param twelveHour true for {@link #PATTERN_12H}, false for {@link #PATTERN_24H}
+     */
+    public LegacyTextEncoder(boolean twelveHour) {
+        this(twelveHour, TimeZone.getDefault());
+    }
+
+    public LegacyTextEncoder(boolean twelveHour, TimeZone timeZone) {
+        this.twelveHour = twelveHour;
+        this.calendar = Calendar.getInstance(timeZone, Locale.ITALY);
+    }
+
+    /**
+     * @return the number of bytes written, {@link #TIMESTAMP_LENGTH}
+     */
+    public int encodeTimestamp(long epochMillis, byte[] dst, int offset) {
+        if (epochMillis < hourStart || epochMillis >= hourEnd) {
+            cacheHour(epochMillis);
+        }
+        System.arraycopy(prefix, 0, dst, offset, prefix.length);
+        // Offsets from UTC are whole minutes since 1970, so minutes and seconds follow from the start of the hour
+        int secondOfHour = (int) ((epochMillis - hourStart) / 1000);
+        int position = offset + prefix.length;
+        position = writeTwoDigits(secondOfHour / 60, dst, position);
+        dst[position++] = ':';
+        writeTwoDigits(secondOfHour % 60, dst, position);
+        return TIMESTAMP_LENGTH;
+    }
+
+    private void cacheHour(long epochMillis) {
+        calendar.setTimeInMillis(epochMillis);
+        int hour = twelveHour ? calendar.get(Calendar.HOUR) : calendar.get(Calendar.HOUR_OF_DAY);
+        if (twelveHour && hour == 0) hour = 12;
+        int year = calendar.get(Calendar.YEAR);
+        int position = writeTwoDigits(calendar.get(Calendar.DAY_OF_MONTH), prefix, 0);
+        prefix[position++] = '-';
+        position = writeTwoDigits(calendar.get(Calendar.MONTH) + 1, prefix, position);
+        prefix[position++] = '-';
+        position = writeTwoDigits(year / 100 % 100, prefix, position);
+        position = writeTwoDigits(year % 100, prefix, position);
+        prefix[position++] = ' ';
+        position = writeTwoDigits(hour, prefix, position);
+        prefix[position] = ':';
+        hourStart = epochMillis - calendar.get(Calendar.MINUTE) * 60000L - calendar.get(Calendar.SECOND) * 1000L
+                - calendar.get(Calendar.MILLISECOND);
+        hourEnd = hourStart + HOUR_MS;
+    }
+
+    private static int writeTwoDigits(int value, byte[] dst, int offset) {
+        dst[offset] = (byte) ('0' + value / 10);
+        dst[offset + 1] = (byte) ('0' + value % 10);
+        return offset + 2;
+    }
+
+    /**
+     * Write the coordinate as String.valueOf(microDegrees / 1e6) does: plain decimal with at least
+     * one fractional digit, or computerized scientific notation below 10^-3.
+     *
+     * @return the number of bytes written, at most {@link #MAX_COORDINATE_LENGTH}
+     */
+    public static int encodeCoordinate(int microDegrees, byte[] dst, int offset) {
+        int position = offset;
+        long value = microDegrees;
+        if (value < 0) {
+            dst[position++] = '-';
+            value = -value;
+        }
+        if (value == 0) {
+            dst[position++] = '0';
+            dst[position++] = '.';
+            dst[position++] = '0';
+            return position - offset;
+        }
+        if (value < 1000) {
+            // Below 10^-3: d.dddE-n
+            int digits = value >= 100 ? 3 : value >= 10 ? 2 : 1;
+            long divisor = digits == 3 ? 100 : digits == 2 ? 10 : 1;
+            dst[position++] = (byte) ('0' + value / divisor);
+            dst[position++] = '.';
+            long rest = value % divisor;
+            if (rest == 0) {
+                dst[position++] = '0';
+            } else {
+                while (rest != 0) {
+                    divisor /= 10;
+                    dst[position++] = (byte) ('0' + rest / divisor);
+                    rest %= divisor;
+                }
+            }
+            dst[position++] = 'E';
+            dst[position++] = '-';
+            dst[position++] = (byte) ('0' + (7 - digits));
+            return position - offset;
+        }
+        position = writeInteger(value / 1000000, dst, position);
+        dst[position++] = '.';
+        int fraction = (int) (value % 1000000);
+        if (fraction == 0) {
+            dst[position++] = '0';
+            return position - offset;
+        }
+        for (int divisor = 100000; fraction != 0; divisor /= 10) {
+            dst[position++] = (byte) ('0' + fraction / divisor);
+            fraction %= divisor;
+        }
+        return position - offset;
+    }
+
+    private static int writeInteger(long value, byte[] dst, int offset) {
+        long divisor = 1;
+        while (divisor * 10 <= value) divisor *= 10;
+        int position = offset;
+        for (; divisor > 0; divisor /= 10) {
+            dst[position++] = (byte) ('0' + value / divisor % 10);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,61 @@
+package it.sapienza.netlab.airmon.common;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Stores the significant fixes of each location batch in the outbox, through a
+ * {@link TrajectoryFilter}, and requests a single drain per batch instead of one per fix.
+ * Used on the location thread only, not thread safe.
+ */
+public class LocationIntake {
+
+    private final LocationOutbox outbox;
+    private final Runnable drain;
+    private final TrajectoryFilter filter;
+    private int appended = 0;                   //Appended to the outbox since the last drain was requested
+
+    /**
+     * @param drain run once at the end of every batch that appended a fix to the outbox
+     */
+    public LocationIntake(LocationOutbox outbox, Runnable drain) {
+        this.outbox = outbox;
+        this.drain = drain;
+        this.filter = new TrajectoryFilter(new TrajectoryFilter.PointSink() {
+            @Override
+            public void accept(LocationRecord record) {
+                LocationIntake.this.outbox.append(record);
+                appended++;
+            }
+        }, Constants.TRACK_TOLERANCE_METERS, Constants.TRACK_MIN_DISTANCE_METERS,
+                Constants.TRACK_MIN_INTERVAL_SECONDS, Constants.TRACK_MAX_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Offer a fix of the current batch, oldest first.
+     */
+    public void offer(LocationRecord fix) {
+        filter.offer(fix);
+    }
+
+    /**
+     * End the current batch, requesting a drain if it appended any fix.
+     *
+     * @return true if a drain was requested
+     */
+    public boolean endBatch() {
+        if (appended == 0) return false;
+        appended = 0;
+        drain.run();
+        return true;
+    }
+
+    /**
+     * Store the last significant fix held back by the filter, when the updates stop.
+     *
+     * @return true if a drain was requested
+     */
+    public boolean flush() {
+        filter.flush();
+        return endBatch();
+    }
+}
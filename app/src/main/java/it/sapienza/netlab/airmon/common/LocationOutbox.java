@@ -0,0 +1,278 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Persistent store-and-forward queue of location fixes.
+ * <p>
+ * The file is memory-mapped and used as a ring of fixed-size slots, each holding a
+ * {@link LocationRecordCodec} record followed by its sequence number. The sequence number is
+ * written last and acts as the commit marker, so a record torn by a crash is simply ignored.
+ * The read cursor is kept in the header and only moves when records are committed as delivered.
+ * <p>
+ * Appends do not allocate and do not force the file: dirty pages survive the death of the
+ * process, {@link #flush()} must be called to survive a power loss. Every
+ * {@link #CHECKPOINT_INTERVAL} appends the write position is stored in the header, so that
+ * recovery only scans the records appended after the last checkpoint.
+ * <p>
+ * When the ring is full the oldest records are overwritten and counted as dropped.
+ * <p>
+ * Each file gets a random session id, so the servers tell its sequence numbers apart from the
+ * ones of another phone or of a previous file.
+ */
+public class LocationOutbox {
+
+    public static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final int MAGIC = 0x424F4D41;                    //"AMOB"
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_SLOT_SIZE = 12;
+    private static final int OFFSET_READ_SEQ = 16;
+    private static final int OFFSET_WRITE_CHECKPOINT = 24;
+    private static final int OFFSET_DROPPED = 32;
+    private static final int OFFSET_SESSION = 40;
+
+    private static final int SLOT_SIZE = 24;                        //record + padding + 8 byte sequence
+    private static final int SLOT_SEQ_OFFSET = SLOT_SIZE - 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int checkpointInterval;
+    private long readSeq;                                           //First record not yet delivered
+    private long writeSeq;                                          //Sequence of the next record, sequences start from 1
+    private long dropped;
+    private int session;
+
+    private LocationOutbox(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        // The unsaved tail must never wrap around the ring, or recovery could not find it
+        this.checkpointInterval = Math.min(CHECKPOINT_INTERVAL, capacity);
+    }
+
+    /**
+     * Open the outbox stored in the file, creating it if needed.
+     *
+     * @param capacity number of records of a new file, ignored if the file already exists
+     * @throws IOException if the file cannot be mapped or is not an outbox
+     */
+    public static LocationOutbox open(File path, int capacity) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            boolean exists = file.length() >= HEADER_SIZE;
+            if (exists) {
+                file.seek(OFFSET_CAPACITY);
+                capacity = Integer.reverseBytes(file.readInt());
+            }
+            if (capacity <= 0) {
+                throw new IOException("Invalid outbox capacity " + capacity);
+            }
+            long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            LocationOutbox outbox = new LocationOutbox(file, buffer, capacity);
+            if (exists) {
+                outbox.recover();
+            } else {
+                outbox.format();
+            }
+            return outbox;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void format() {
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_VERSION, FILE_VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_SLOT_SIZE, SLOT_SIZE);
+        readSeq = 1;
+        writeSeq = 1;
+        dropped = 0;
+        buffer.putLong(OFFSET_READ_SEQ, readSeq);
+        buffer.putLong(OFFSET_WRITE_CHECKPOINT, writeSeq);
+        buffer.putLong(OFFSET_DROPPED, dropped);
+        newSession();
+    }
+
+    private void newSession() {
+        Random random = new Random();
+        do {
+            session = random.nextInt();
+        } while (session == 0);
+        buffer.putInt(OFFSET_SESSION, session);
+    }
+
+    private void recover() throws IOException {
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != FILE_VERSION
+                || buffer.getInt(OFFSET_SLOT_SIZE) != SLOT_SIZE) {
+            throw new IOException("Not an outbox file or unsupported version");
+        }
+        readSeq = buffer.getLong(OFFSET_READ_SEQ);
+        dropped = buffer.getLong(OFFSET_DROPPED);
+        session = buffer.getInt(OFFSET_SESSION);
+        // Files written before the session id have zeros there
+        if (session == 0) newSession();
+        long seq = Math.max(buffer.getLong(OFFSET_WRITE_CHECKPOINT), readSeq);
+        // Only the records appended after the last checkpoint need to be scanned
+        long limit = seq + capacity;
+        while (seq < limit && isCommitted(seq)) {
+            seq++;
+        }
+        writeSeq = seq;
+        if (writeSeq - readSeq > capacity) {
+            readSeq = writeSeq - capacity;
+        }
+        buffer.putLong(OFFSET_READ_SEQ, readSeq);
+        buffer.putLong(OFFSET_WRITE_CHECKPOINT, writeSeq);
+    }
+
+    private int slotOffset(long seq) {
+        return HEADER_SIZE + (int) (seq % capacity) * SLOT_SIZE;
+    }
+
+    private boolean isCommitted(long seq) {
+        return buffer.getLong(slotOffset(seq) + SLOT_SEQ_OFFSET) == seq;
+    }
+
+    /**
+     * @return the sequence number of the appended record
+     */
+    public synchronized long append(LocationRecord record) {
+        long seq = writeSeq;
+        int offset = slotOffset(seq);
+        // Invalidate the slot first, then write the record and finally commit the sequence
+        buffer.putLong(offset + SLOT_SEQ_OFFSET, 0);
+        buffer.position(offset);
+        LocationRecordCodec.encode(record, buffer);
+        buffer.putLong(offset + SLOT_SEQ_OFFSET, seq);
+        writeSeq = seq + 1;
+        if (writeSeq - readSeq > capacity) {
+            readSeq = writeSeq - capacity;
+            dropped++;
+            buffer.putLong(OFFSET_READ_SEQ, readSeq);
+            buffer.putLong(OFFSET_DROPPED, dropped);
+        }
+        if (writeSeq % checkpointInterval == 0) {
+            buffer.putLong(OFFSET_WRITE_CHECKPOINT, writeSeq);
+        }
+        return seq;
+    }
+
+    /**
+     * Read a record still in the outbox, delivered or not.
+     *
+     * @return false if the record has been overwritten or was never written
+     */
+    public synchronized boolean read(long seq, LocationRecord dst) {
+        if (seq < writeSeq - capacity || seq >= writeSeq || !isCommitted(seq)) {
+            return false;
+        }
+        buffer.position(slotOffset(seq));
+        LocationRecordCodec.decode(buffer, dst);
+        return true;
+    }
+
+    /**
+     * Copy the encoded records starting from fromSeq, in order, into dst.
+     *
+     * @return the number of records copied
+     */
+    public synchronized int read(long fromSeq, byte[] dst, int offset, int maxRecords) {
+        long seq = Math.max(fromSeq, readSeq);
+        int count = 0;
+        while (count < maxRecords && seq < writeSeq && dst.length - offset >= LocationRecordCodec.RECORD_SIZE) {
+            buffer.position(slotOffset(seq));
+            buffer.get(dst, offset, LocationRecordCodec.RECORD_SIZE);
+            offset += LocationRecordCodec.RECORD_SIZE;
+            seq++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Mark every record before toSeq (exclusive) as delivered.
+     */
+    public synchronized void commit(long toSeq) {
+        if (toSeq <= readSeq) return;
+        readSeq = Math.min(toSeq, writeSeq);
+        buffer.putLong(OFFSET_READ_SEQ, readSeq);
+    }
+
+    /**
+     * Move the read cursor back, to deliver again records that turned out to be lost.
+     *
+     * @return false if the records have already been overwritten
+     */
+    public synchronized boolean rewind(long toSeq) {
+        if (toSeq >= readSeq) return true;
+        if (toSeq < writeSeq - capacity || toSeq < 1) return false;
+        readSeq = toSeq;
+        buffer.putLong(OFFSET_READ_SEQ, readSeq);
+        return true;
+    }
+
+    /**
+     * Write the header and force the mapped pages to the storage device.
+     */
+    public synchronized void flush() {
+        buffer.putLong(OFFSET_WRITE_CHECKPOINT, writeSeq);
+        buffer.force();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        file.close();
+    }
+
+    public synchronized long getReadSequence() {
+        return readSeq;
+    }
+
+    public synchronized long getWriteSequence() {
+        return writeSeq;
+    }
+
+    public synchronized int size() {
+        return (int) (writeSeq - readSeq);
+    }
+
+    public synchronized boolean isEmpty() {
+        return writeSeq == readSeq;
+    }
+
+    /**
+     * @return the session id of the file, never 0
+     */
+    public int getSessionId() {
+        return session;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of undelivered records overwritten because the outbox was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,153 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.nio.ByteBuffer;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Binary codec for {@link LocationRecord}.
+ * <p>
+ * Wire format (version 1, little-endian, {@link #RECORD_SIZE} bytes):
+ * <pre>
+ * offset  size  field
+ * 0       1     version
+ * 1       1     flags
+ * 2       4     latitude, int32 micro-degrees
+ * 6       4     longitude, int32 micro-degrees
+ * 10      4     time, uint32 epoch seconds
+ * </pre>
+ * Encoding and decoding never allocate: callers supply the destination buffer or record.
+ */
+public class LocationRecordCodec {
+
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 14;
+
+    private static final int OFFSET_VERSION = 0;
+    private static final int OFFSET_FLAGS = 1;
+    private static final int OFFSET_LATITUDE = 2;
+    private static final int OFFSET_LONGITUDE = 6;
+    private static final int OFFSET_TIME = 10;
+
+    private static final long MAX_UINT32 = 0xFFFFFFFFL;
+
+    /**
+     * @param record the record to encode
+     * @param dst    destination array
+     * @param offset position of the first byte written
+     * @return the number of bytes written
+     */
+    public static int encode(LocationRecord record, byte[] dst, int offset) {
+        return encode(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags(), dst, offset);
+    }
+
+    /**
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the time does not fit in an unsigned 32 bit field
+     */
+    public static int encode(int latitudeE6, int longitudeE6, long epochSeconds, int flags, byte[] dst, int offset) {
+        checkTime(epochSeconds);
+        if (offset < 0 || dst.length - offset < RECORD_SIZE) {
+            throw new IndexOutOfBoundsException("Record needs " + RECORD_SIZE + " bytes at offset " + offset);
+        }
+        dst[offset + OFFSET_VERSION] = (byte) VERSION;
+        dst[offset + OFFSET_FLAGS] = (byte) flags;
+        putInt(dst, offset + OFFSET_LATITUDE, latitudeE6);
+        putInt(dst, offset + OFFSET_LONGITUDE, longitudeE6);
+        putInt(dst, offset + OFFSET_TIME, (int) epochSeconds);
+        return RECORD_SIZE;
+    }
+
+    /**
+     * Writes the record at the buffer position and advances it, whatever the buffer byte order.
+     *
+     * @return the number of bytes written
+     */
+    public static int encode(LocationRecord record, ByteBuffer dst) {
+        checkTime(record.getEpochSeconds());
+        if (dst.remaining() < RECORD_SIZE) {
+            throw new IndexOutOfBoundsException("Record needs " + RECORD_SIZE + " bytes, " + dst.remaining() + " remaining");
+        }
+        dst.put((byte) VERSION);
+        dst.put((byte) record.getFlags());
+        putInt(dst, record.getLatitudeE6());
+        putInt(dst, record.getLongitudeE6());
+        putInt(dst, (int) record.getEpochSeconds());
+        return RECORD_SIZE;
+    }
+
+    /**
+     * @param src    source array
+     * @param offset position of the first byte of the record
+     * @param dst    record overwritten with the decoded values
+     * @return dst
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    public static LocationRecord decode(byte[] src, int offset, LocationRecord dst) {
+        if (offset < 0 || src.length - offset < RECORD_SIZE) {
+            throw new IndexOutOfBoundsException("Record needs " + RECORD_SIZE + " bytes at offset " + offset);
+        }
+        checkVersion(src[offset + OFFSET_VERSION]);
+        return dst.set(getInt(src, offset + OFFSET_LATITUDE),
+                getInt(src, offset + OFFSET_LONGITUDE),
+                getInt(src, offset + OFFSET_TIME) & MAX_UINT32,
+                src[offset + OFFSET_FLAGS]);
+    }
+
+    /**
+     * Reads the record at the buffer position and advances it, whatever the buffer byte order.
+     *
+     * @return dst
+     */
+    public static LocationRecord decode(ByteBuffer src, LocationRecord dst) {
+        if (src.remaining() < RECORD_SIZE) {
+            throw new IndexOutOfBoundsException("Record needs " + RECORD_SIZE + " bytes, " + src.remaining() + " remaining");
+        }
+        checkVersion(src.get());
+        int flags = src.get();
+        int latitudeE6 = getInt(src);
+        int longitudeE6 = getInt(src);
+        long epochSeconds = getInt(src) & MAX_UINT32;
+        return dst.set(latitudeE6, longitudeE6, epochSeconds, flags);
+    }
+
+    private static void checkVersion(byte version) {
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported record version " + (version & 0xFF));
+        }
+    }
+
+    private static void checkTime(long epochSeconds) {
+        if (epochSeconds < 0 || epochSeconds > MAX_UINT32) {
+            throw new IllegalArgumentException("Time out of range: " + epochSeconds);
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+        dst[offset + 2] = (byte) (value >>> 16);
+        dst[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putInt(ByteBuffer dst, int value) {
+        dst.put((byte) value);
+        dst.put((byte) (value >>> 8));
+        dst.put((byte) (value >>> 16));
+        dst.put((byte) (value >>> 24));
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF)
+                | (src[offset + 1] & 0xFF) << 8
+                | (src[offset + 2] & 0xFF) << 16
+                | (src[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int getInt(ByteBuffer src) {
+        return (src.get() & 0xFF)
+                | (src.get() & 0xFF) << 8
+                | (src.get() & 0xFF) << 16
+                | (src.get() & 0xFF) << 24;
+    }
+}
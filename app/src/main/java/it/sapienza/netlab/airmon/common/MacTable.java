@@ -0,0 +1,211 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table keyed by a Bluetooth MAC address packed into a long, keeping the
+ * latest RSSI and timestamp seen for each device next to a value.
+ * <p>
+ * Keys and per-device data live in parallel primitive arrays, so lookups and updates of a known
+ * device do not allocate. A device can also keep an int instead of the value, see
+ * {@link #putInt}, so that e.g. an index is not boxed. Slots are probed linearly and the table
+ * doubles when it is 3/4 full. Not thread safe.
+ */
+public class MacTable<V> {
+
+    public static final long INVALID_ADDRESS = -1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+    // MACs use 48 bits: the bit above marks a used slot, so that 00:00:00:00:00:00 is still a key
+    private static final long USED = 1L << 48;
+
+    private long[] keys;
+    private int[] rssi;
+    private long[] timestamps;
+    private Object[] values;
+    private int[] ints;
+    private int size;
+
+    public MacTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedDevices number of devices the table holds without growing
+     */
+    public MacTable(int expectedDevices) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedDevices * 4 / 3) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        rssi = new int[capacity];
+        timestamps = new long[capacity];
+        values = new Object[capacity];
+        ints = new int[capacity];
+    }
+
+    /**
+     * Parse an address in the "AA:BB:CC:DD:EE:FF" form returned by BluetoothDevice.getAddress(),
+     * without allocating.
+     *
+     * @return the address as a 48 bit number, or {@link #INVALID_ADDRESS} if it is malformed
+     */
+    public static long toKey(String address) {
+        if (address == null || address.length() != 17) {
+            return INVALID_ADDRESS;
+        }
+        long key = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return INVALID_ADDRESS;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) return INVALID_ADDRESS;
+            key = key << 4 | digit;
+        }
+        return key;
+    }
+
+    /**
+     * @return the address in the "AA:BB:CC:DD:EE:FF" form
+     */
+    public static String toAddress(long key) {
+        char[] chars = new char[17];
+        for (int i = 0, shift = 40; i < 6; i++, shift -= 8) {
+            int b = (int) (key >>> shift) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(b >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(b & 0xF, 16));
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & (keys.length - 1);
+    }
+
+    private int find(long key) {
+        long stored = key | USED;
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (keys[i] == stored) return i;
+            if (keys[i] == 0) return -1 - i;
+        }
+    }
+
+    /**
+     * Store the latest sighting of a device.
+     *
+     * @return true if the device was not in the table
+     */
+    public boolean put(long key, int rssi, long timestampNanos, V value) {
+        int i = store(key, rssi, timestampNanos);
+        values[i < 0 ? -1 - i : i] = value;
+        return i < 0;
+    }
+
+    /**
+     * Store the latest sighting of a device, with an int in place of the value.
+     *
+     * @return true if the device was not in the table
+     */
+    public boolean putInt(long key, int rssi, long timestampNanos, int value) {
+        int i = store(key, rssi, timestampNanos);
+        ints[i < 0 ? -1 - i : i] = value;
+        return i < 0;
+    }
+
+    /**
+     * @return the slot of the device, or -1 - slot if it was added
+     */
+    private int store(long key, int rssi, long timestampNanos) {
+        int i = find(key);
+        int slot = i;
+        if (i < 0) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                i = find(key);
+            }
+            slot = -1 - i;
+            keys[slot] = key | USED;
+            size++;
+        }
+        this.rssi[slot] = rssi;
+        timestamps[slot] = timestampNanos;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldRssi = rssi;
+        long[] oldTimestamps = timestamps;
+        Object[] oldValues = values;
+        int[] oldInts = ints;
+        allocate(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0) continue;
+            int i = slot(oldKeys[j] & ~USED);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            rssi[i] = oldRssi[j];
+            timestamps[i] = oldTimestamps[j];
+            values[i] = oldValues[j];
+            ints[i] = oldInts[j];
+        }
+    }
+
+    public boolean contains(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return the value of the device, or null if it is not in the table
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = find(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * @return the int of the device, see {@link #putInt}, or missing if it is not in the table
+     */
+    public int getInt(long key, int missing) {
+        int i = find(key);
+        return i < 0 ? missing : ints[i];
+    }
+
+    /**
+     * @return the latest RSSI of the device, or Integer.MIN_VALUE if it is not in the table
+     */
+    public int getRssi(long key) {
+        int i = find(key);
+        return i < 0 ? Integer.MIN_VALUE : rssi[i];
+    }
+
+    /**
+     * @return the timestamp of the latest sighting of the device, or Long.MIN_VALUE if it is not in the table
+     */
+    public long getTimestampNanos(long key) {
+        int i = find(key);
+        return i < 0 ? Long.MIN_VALUE : timestamps[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+}
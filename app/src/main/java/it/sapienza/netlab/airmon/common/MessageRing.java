@@ -0,0 +1,178 @@
+package it.sapienza.netlab.airmon.common;
+
+/**
+ * Fixed-capacity history of byte messages.
+ * <p>
+ * Messages are stored back to back in a byte ring, each preceded by its length on two bytes,
+ * and the oldest ones are evicted to make room for new ones. Writing and reading copy straight
+ * between the ring and the caller arrays, so no memory is allocated after construction.
+ * Counters keep the totals since the ring was created, evicted messages included.
+ */
+public class MessageRing {
+
+    public static final int MAX_MESSAGE_SIZE = 0xFFFF;
+
+    private static final int LENGTH_SIZE = 2;
+
+    private final byte[] buffer;
+    private long head;                  //Position of the oldest message
+    private long tail;                  //Position after the newest message
+    private long lastStart;             //Position of the newest message
+    private int messages;
+    private long totalBytes;
+    private long totalMessages;
+    private long evicted;
+    private long rejected;
+
+    /**
+     * @param capacity bytes of history, two of which are used by the length of each message
+     */
+    public MessageRing(int capacity) {
+        if (capacity < LENGTH_SIZE) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        buffer = new byte[capacity];
+    }
+
+    public synchronized boolean write(byte[] src) {
+        return write(src, 0, src.length);
+    }
+
+    /**
+     * Append a message, evicting the oldest ones if needed.
+     *
+     * @return false if the message is larger than the whole ring, in which case it is not stored
+     */
+    public synchronized boolean write(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || src.length - offset < length) {
+            throw new IndexOutOfBoundsException("Message of " + length + " bytes at offset " + offset);
+        }
+        int needed = LENGTH_SIZE + length;
+        if (length > MAX_MESSAGE_SIZE || needed > buffer.length) {
+            rejected++;
+            return false;
+        }
+        while (buffer.length - (tail - head) < needed) {
+            head += LENGTH_SIZE + lengthAt(head);
+            messages--;
+            evicted++;
+        }
+        buffer[index(tail)] = (byte) length;
+        buffer[index(tail + 1)] = (byte) (length >>> 8);
+        copyIn(tail + LENGTH_SIZE, src, offset, length);
+        lastStart = tail;
+        tail += needed;
+        messages++;
+        totalBytes += length;
+        totalMessages++;
+        return true;
+    }
+
+    /**
+     * Copy a message into dst.
+     *
+     * @param message 0 for the oldest message kept, {@link #size()} - 1 for the newest
+     * @return the length of the message, or -1 if there is no such message
+     * @throws IndexOutOfBoundsException if the message does not fit in dst
+     */
+    public synchronized int read(int message, byte[] dst, int offset) {
+        if (message < 0 || message >= messages) {
+            return -1;
+        }
+        if (message == messages - 1) {
+            return copyOut(lastStart, dst, offset);
+        }
+        long position = head;
+        for (int i = 0; i < message; i++) {
+            position += LENGTH_SIZE + lengthAt(position);
+        }
+        return copyOut(position, dst, offset);
+    }
+
+    /**
+     * Copy the newest message into dst.
+     *
+     * @return the length of the message, or -1 if the ring is empty
+     */
+    public synchronized int readLast(byte[] dst, int offset) {
+        return messages == 0 ? -1 : copyOut(lastStart, dst, offset);
+    }
+
+    /**
+     * @return the length of the newest message, or -1 if the ring is empty
+     */
+    public synchronized int lastLength() {
+        return messages == 0 ? -1 : lengthAt(lastStart);
+    }
+
+    private int copyOut(long position, byte[] dst, int offset) {
+        int length = lengthAt(position);
+        if (offset < 0 || dst.length - offset < length) {
+            throw new IndexOutOfBoundsException("Message of " + length + " bytes does not fit at offset " + offset);
+        }
+        int start = index(position + LENGTH_SIZE);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, length - first);
+        return length;
+    }
+
+    private void copyIn(long position, byte[] src, int offset, int length) {
+        int start = index(position);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        System.arraycopy(src, offset + first, buffer, 0, length - first);
+    }
+
+    private int lengthAt(long position) {
+        return (buffer[index(position)] & 0xFF) | (buffer[index(position + 1)] & 0xFF) << 8;
+    }
+
+    private int index(long position) {
+        return (int) (position % buffer.length);
+    }
+
+    public synchronized void clear() {
+        head = tail;
+        messages = 0;
+    }
+
+    /**
+     * @return number of messages kept
+     */
+    public synchronized int size() {
+        return messages;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return bytes of payload written since the ring was created
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return messages written since the ring was created
+     */
+    public synchronized long getTotalMessages() {
+        return totalMessages;
+    }
+
+    /**
+     * @return messages evicted to make room for newer ones
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return messages not stored because larger than the ring
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
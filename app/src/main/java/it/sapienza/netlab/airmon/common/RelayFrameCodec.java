@@ -0,0 +1,148 @@
+package it.sapienza.netlab.airmon.common;
+
+/**
+ * Framing of the fixes relayed from phone to phone towards a collector, a phone in range of a server.
+ * <p>
+ * Relay frame, written with response on the Relay characteristic of a neighbour (little-endian):
+ * <pre>
+ * offset  size      field
+ * 0       1         version (high nibble)
+ * 1       1         hops left: the frame is dropped instead of forwarded when it reaches 0
+ * 2       1         record count N
+ * 3       4         id of the phone that produced the records, uint32
+ * 7       4         sequence number of the first record at that phone, uint32
+ * 11      N * 14    N LocationRecordCodec records, with consecutive sequence numbers
+ * </pre>
+ * The write response is the hop-by-hop ack: a failed write is retried, possibly through
+ * another neighbour. Origin and sequence number identify a record along every path.
+ * <p>
+ * Each phone periodically advertises its route towards a collector in a beacon. The beacon
+ * counter lets the neighbours measure how many beacons they miss, i.e. the quality of the link.
+ * The next hop lets the neighbour the route goes through ignore it, instead of sending records back:
+ * <pre>
+ * offset  size  field
+ * 0       1     version (high nibble)
+ * 1       4     id of the phone, uint32
+ * 5       1     beacon counter, wrapping
+ * 6       1     hops to a collector, {@link #NO_ROUTE} if none
+ * 7       2     cost of the route, uint16 in 1/{@link #COST_SCALE} of the expected transmissions
+ * 9       4     id of the next hop of the route, uint32, the id of the phone itself if none
+ * </pre>
+ */
+public class RelayFrameCodec {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 11;
+    public static final int BEACON_SIZE = 13;
+    public static final int MAX_RECORDS_PER_FRAME = 255;
+    public static final int NO_ROUTE = 0xFF;
+    public static final int COST_SCALE = 16;
+    public static final int MAX_COST = 0xFFFF;
+
+    private static final int ATT_HEADER_SIZE = 3;
+
+    /**
+     * @return the number of records that fit in a single write with the given ATT MTU
+     */
+    public static int recordsPerFrame(int mtu) {
+        int records = (mtu - ATT_HEADER_SIZE - HEADER_SIZE) / LocationRecordCodec.RECORD_SIZE;
+        return Math.max(0, Math.min(MAX_RECORDS_PER_FRAME, records));
+    }
+
+    public static int frameSize(int records) {
+        return HEADER_SIZE + records * LocationRecordCodec.RECORD_SIZE;
+    }
+
+    /**
+     * Write the header of a frame whose records are already at {@link #HEADER_SIZE}.
+     */
+    public static void writeHeader(byte[] frame, int hopsLeft, int count, int origin, long firstSeq) {
+        frame[0] = (byte) (VERSION << 4);
+        frame[1] = (byte) hopsLeft;
+        frame[2] = (byte) count;
+        putUInt32(frame, 3, origin);
+        putUInt32(frame, 7, firstSeq);
+    }
+
+    /**
+     * @return true if the frame has a known version and holds the records it announces
+     */
+    public static boolean isValidFrame(byte[] frame, int length) {
+        return frame != null && length >= HEADER_SIZE && length <= frame.length
+                && (frame[0] & 0xF0) >> 4 == VERSION && length >= frameSize(getCount(frame));
+    }
+
+    public static int getHopsLeft(byte[] frame) {
+        return frame[1] & 0xFF;
+    }
+
+    public static int getCount(byte[] frame) {
+        return frame[2] & 0xFF;
+    }
+
+    public static int getOrigin(byte[] frame) {
+        return (int) getUInt32(frame, 3);
+    }
+
+    /**
+     * @return the low 32 bits of the first sequence number
+     */
+    public static long getFirstSeq(byte[] frame) {
+        return getUInt32(frame, 7);
+    }
+
+    /**
+     * @param cost cost of the route in expected transmissions, saturated to {@link #MAX_COST}
+     */
+    public static void writeBeacon(byte[] beacon, int node, int counter, int hops, double cost, int nextHop) {
+        beacon[0] = (byte) (VERSION << 4);
+        putUInt32(beacon, 1, node);
+        beacon[5] = (byte) counter;
+        beacon[6] = (byte) Math.min(NO_ROUTE, hops);
+        int scaled = (int) Math.min(MAX_COST, Math.round(cost * COST_SCALE));
+        beacon[7] = (byte) scaled;
+        beacon[8] = (byte) (scaled >>> 8);
+        putUInt32(beacon, 9, nextHop);
+    }
+
+    public static boolean isValidBeacon(byte[] beacon) {
+        return beacon != null && beacon.length >= BEACON_SIZE && (beacon[0] & 0xF0) >> 4 == VERSION;
+    }
+
+    public static int getBeaconNode(byte[] beacon) {
+        return (int) getUInt32(beacon, 1);
+    }
+
+    public static int getBeaconCounter(byte[] beacon) {
+        return beacon[5] & 0xFF;
+    }
+
+    public static int getBeaconHops(byte[] beacon) {
+        return beacon[6] & 0xFF;
+    }
+
+    /**
+     * @return the cost of the route in expected transmissions
+     */
+    public static double getBeaconCost(byte[] beacon) {
+        return ((beacon[7] & 0xFF) | (beacon[8] & 0xFF) << 8) / (double) COST_SCALE;
+    }
+
+    public static int getBeaconNextHop(byte[] beacon) {
+        return (int) getUInt32(beacon, 9);
+    }
+
+    private static void putUInt32(byte[] dst, int offset, long value) {
+        dst[offset] = (byte) value;
+        dst[offset + 1] = (byte) (value >>> 8);
+        dst[offset + 2] = (byte) (value >>> 16);
+        dst[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static long getUInt32(byte[] src, int offset) {
+        return (src[offset] & 0xFFL)
+                | (src[offset + 1] & 0xFFL) << 8
+                | (src[offset + 2] & 0xFFL) << 16
+                | (src[offset + 3] & 0xFFL) << 24;
+    }
+}
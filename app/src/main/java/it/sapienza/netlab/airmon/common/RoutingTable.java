@@ -1,61 +1,70 @@
 package it.sapienza.netlab.airmon.common;
 
-import android.util.Log;
-
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import it.sapienza.netlab.airmon.models.Device;
 
 /**
- * This class represents the routing table
+ * This class represents the routing table.
+ * <p>
+ * Devices are indexed by the id they have when added, so every operation is O(1) and safe
+ * from any thread, e.g. GATT callbacks running on binder threads.
  */
 public class RoutingTable {
 
-    private final static String TAG = RoutingTable.class.getSimpleName();
-    private static RoutingTable singleton;
-    private LinkedList<OnRoutingTableUpdateListener> listeners;
-    private ArrayList<Device> routingTable;
+    private final ConcurrentHashMap<String, Device> routingTable;
+
+    /**
+     * A table of its own, e.g. of a simulated phone: the app shares the one of {@link #getInstance()}.
+     */
+    public RoutingTable() {
+        this.routingTable = new ConcurrentHashMap<>();
+    }
 
-    private RoutingTable() {
-        this.routingTable = new ArrayList<>();
-        this.listeners = new LinkedList<>();
+    // Initialized by the class loader the first time getInstance() is called
+    private static class SingletonHolder {
+        private static final RoutingTable INSTANCE = new RoutingTable();
     }
 
     public static RoutingTable getInstance() {
-        if (singleton == null)
-            singleton = new RoutingTable();
-        return singleton;
+        return SingletonHolder.INSTANCE;
     }
 
+    /**
+     * @return a snapshot of the devices, not updated by later changes of the table
+     */
     public ArrayList<Device> getDeviceList() {
-        return this.routingTable;
+        return new ArrayList<>(this.routingTable.values());
     }
 
-    public void addDevice(Device device) {
-        if (routingTable.contains(device)) return;
-        this.routingTable.add(device);
-        for (OnRoutingTableUpdateListener listener : listeners)
-            listener.OnDeviceAdded(device);
+    /**
+     * @return the device with the id, or null if it is not in the table
+     */
+    public Device getDevice(String id) {
+        return this.routingTable.get(id);
     }
 
-    public boolean removeDevice(Device device) {
-        boolean removed = this.routingTable.remove(device);
-        if (removed) {
-            for (OnRoutingTableUpdateListener listener : listeners)
-                listener.OnDeviceRemoved(device);
-        } else {
-            Log.e(TAG, "removeDevice: Failed");
-        }
-        return removed;
+    public boolean contains(String id) {
+        return this.routingTable.containsKey(id);
+    }
+
+    public int size() {
+        return this.routingTable.size();
     }
 
-    public void subscribeToUpdates(OnRoutingTableUpdateListener listener) {
-        this.listeners.add(listener);
+    /**
+     * @return false if a device with the same id was already in the table
+     */
+    public boolean addDevice(Device device) {
+        return routingTable.putIfAbsent(device.getId(), device) == null;
     }
 
-    public void unsubscribeToUpdates(OnRoutingTableUpdateListener listener) {
-        this.listeners.remove(listener);
+    /**
+     * @return false if the device was not in the table
+     */
+    public boolean removeDevice(Device device) {
+        return this.routingTable.remove(device.getId(), device);
     }
 
     public void addDevice(int serverId, int clientId) {
@@ -65,10 +74,4 @@ public class RoutingTable {
     public void cleanRoutingTable() {
         routingTable.clear();
     }
-
-    public interface OnRoutingTableUpdateListener {
-        void OnDeviceAdded(Device device);
-
-        void OnDeviceRemoved(Device device);
-    }
 }
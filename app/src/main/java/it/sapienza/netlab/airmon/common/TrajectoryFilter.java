@@ -0,0 +1,207 @@
+package it.sapienza.netlab.airmon.common;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Streaming filter keeping only the significant fixes of a track, before they are stored for upload.
+ * <p>
+ * A fix is dropped by the dead-band when it is closer than the minimum distance to the last fix
+ * kept, or comes before the minimum interval. The fixes passing it are simplified with the sleeve
+ * algorithm: the directions from the last fix sent that keep every fix since then within the
+ * tolerance are narrowed at each fix, and a fix is sent only when the track leaves them or turns
+ * back. Every fix dropped is then within the tolerance of the line through the fixes sent around
+ * it, and at most the tolerance past them. A fix is sent anyway once the maximum interval has
+ * elapsed since the last one.
+ * <p>
+ * Since a turn is only seen at the next fix, a significant fix is sent one fix late, or by
+ * {@link #flush()}. Memory use is constant and nothing is allocated. Not thread safe.
+ */
+public class TrajectoryFilter {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_E6 = EARTH_RADIUS_METERS * Math.PI / 180 / 1e6;
+
+    private final PointSink sink;
+    private final double toleranceMeters;
+    private final double minDistanceMeters;
+    private final long minIntervalSeconds;
+    private final long maxIntervalSeconds;
+    private final LocationRecord out = new LocationRecord();
+
+    // Last fix sent, start of the current segment
+    private boolean hasAnchor = false;
+    private int anchorLat;
+    private int anchorLon;
+    private long anchorTime;
+    private double lonScale;                    //Meters per micro-degree of longitude at the anchor
+
+    // Last fix accepted by the dead-band and not sent yet
+    private boolean hasHeld = false;
+    private int heldLat;
+    private int heldLon;
+    private long heldTime;
+    private int heldFlags;
+
+    // Directions from the anchor, relative to coneBase, keeping the held fixes within tolerance
+    private boolean hasCone = false;
+    private double coneBase;
+    private double coneLow;
+    private double coneHigh;
+    private double reach;                       //Farthest held fix from the anchor
+
+    private long offered = 0;
+    private long dropped = 0;
+    private long sent = 0;
+
+    /**
+     * @param toleranceMeters    largest distance of a fix dropped by the simplification from the track sent
+     * @param minDistanceMeters  fixes closer than this to the last one kept are dropped
+     * @param minIntervalSeconds fixes closer in time than this to the last one kept are dropped
+     * @param maxIntervalSeconds a fix is sent at least this often, whatever the filter says
+     */
+    public TrajectoryFilter(PointSink sink, double toleranceMeters, double minDistanceMeters,
+                            long minIntervalSeconds, long maxIntervalSeconds) {
+        this.sink = sink;
+        this.toleranceMeters = toleranceMeters;
+        this.minDistanceMeters = minDistanceMeters;
+        this.minIntervalSeconds = minIntervalSeconds;
+        this.maxIntervalSeconds = maxIntervalSeconds;
+    }
+
+    public void offer(LocationRecord fix) {
+        offer(fix.getLatitudeE6(), fix.getLongitudeE6(), fix.getEpochSeconds(), fix.getFlags());
+    }
+
+    public void offer(int latitudeE6, int longitudeE6, long epochSeconds, int flags) {
+        offered++;
+        if (!hasAnchor) {
+            send(latitudeE6, longitudeE6, epochSeconds, flags);
+            return;
+        }
+        boolean due = epochSeconds - anchorTime >= maxIntervalSeconds;
+        int lastLat = hasHeld ? heldLat : anchorLat;
+        int lastLon = hasHeld ? heldLon : anchorLon;
+        long lastTime = hasHeld ? heldTime : anchorTime;
+        if (!due && (epochSeconds - lastTime < minIntervalSeconds
+                || distance(lastLat, lastLon, latitudeE6, longitudeE6) < minDistanceMeters)) {
+            dropped++;
+            return;
+        }
+        if (hasHeld && leavesSleeve(latitudeE6, longitudeE6)) {
+            // The track turned at the held fix: it starts the next segment
+            send(heldLat, heldLon, heldTime, heldFlags);
+            leavesSleeve(latitudeE6, longitudeE6);
+        }
+        hasHeld = true;
+        heldLat = latitudeE6;
+        heldLon = longitudeE6;
+        heldTime = epochSeconds;
+        heldFlags = flags;
+        if (epochSeconds - anchorTime >= maxIntervalSeconds) {
+            send(heldLat, heldLon, heldTime, heldFlags);
+        }
+    }
+
+    /**
+     * Check the fix against the sleeve of the current segment, narrowing it if the fix is inside.
+     *
+     * @return true if the segment cannot be extended to the fix
+     */
+    private boolean leavesSleeve(int latitudeE6, int longitudeE6) {
+        double dx = (longitudeE6 - anchorLon) * lonScale;
+        double dy = (latitudeE6 - anchorLat) * METERS_PER_E6;
+        double r = Math.sqrt(dx * dx + dy * dy);
+        if (r < reach - toleranceMeters) {
+            // Going back along the segment would leave the farthest fix past its end
+            return true;
+        }
+        reach = Math.max(reach, r);
+        if (r <= toleranceMeters) {
+            // Within tolerance of the anchor, whatever the direction
+            return false;
+        }
+        double half = Math.asin(toleranceMeters / r);
+        double direction = Math.atan2(dy, dx);
+        if (!hasCone) {
+            hasCone = true;
+            coneBase = direction;
+            coneLow = -half;
+            coneHigh = half;
+            return false;
+        }
+        double relative = direction - coneBase;
+        if (relative > Math.PI) relative -= 2 * Math.PI;
+        else if (relative < -Math.PI) relative += 2 * Math.PI;
+        if (relative < coneLow || relative > coneHigh) {
+            return true;
+        }
+        coneLow = Math.max(coneLow, relative - half);
+        coneHigh = Math.min(coneHigh, relative + half);
+        return false;
+    }
+
+    private void send(int latitudeE6, int longitudeE6, long epochSeconds, int flags) {
+        sent++;
+        hasAnchor = true;
+        anchorLat = latitudeE6;
+        anchorLon = longitudeE6;
+        anchorTime = epochSeconds;
+        lonScale = METERS_PER_E6 * Math.cos(latitudeE6 * 1e-6 * Math.PI / 180);
+        hasHeld = false;
+        hasCone = false;
+        reach = 0;
+        sink.accept(out.set(latitudeE6, longitudeE6, epochSeconds, flags));
+    }
+
+    /**
+     * Send the fix held back waiting for the next one, e.g. when location updates stop.
+     *
+     * @return true if a fix was sent
+     */
+    public boolean flush() {
+        if (!hasHeld) return false;
+        send(heldLat, heldLon, heldTime, heldFlags);
+        return true;
+    }
+
+    /**
+     * Forget the track, the next fix is sent right away.
+     */
+    public void reset() {
+        hasAnchor = false;
+        hasHeld = false;
+        hasCone = false;
+        reach = 0;
+    }
+
+    /**
+     * @return meters between two points, on the plane tangent at the first one
+     */
+    public static double distance(int latitudeE6, int longitudeE6, int toLatitudeE6, int toLongitudeE6) {
+        double dx = (toLongitudeE6 - longitudeE6) * METERS_PER_E6 * Math.cos(latitudeE6 * 1e-6 * Math.PI / 180);
+        double dy = (toLatitudeE6 - latitudeE6) * METERS_PER_E6;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public long getOffered() {
+        return offered;
+    }
+
+    /**
+     * @return fixes dropped by the dead-band
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public interface PointSink {
+        /**
+         * @param record the fix to keep, reused by the filter after the call returns
+         */
+        void accept(LocationRecord record);
+    }
+}
@@ -1,14 +1,22 @@
 package it.sapienza.netlab.airmon.common;
 
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.ParcelUuid;
 import android.util.Log;
+
+import com.google.android.gms.location.LocationRequest;
+
 import java.util.ArrayList;
 import java.util.List;
 
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
 
 public class Utility {
 
@@ -26,9 +34,9 @@ public class Utility {
 
         ScanFilter.Builder builder = new ScanFilter.Builder();
         // Comment out the below lines to see all BLE devices around you
-        builder.setServiceUuid(Constants.LocationServiceParcelUUID);
+        builder.setServiceUuid(new ParcelUuid(Constants.LocationServiceUUID));
         scanFilters.add(builder.build());
-        builder.setServiceUuid(Constants.TimeServiceParcelUUID);
+        builder.setServiceUuid(new ParcelUuid(Constants.TimeServiceUUID));
         scanFilters.add(builder.build());
         Log.d(TAG, "buildScanFilters: "+scanFilters);
         return scanFilters;
@@ -36,9 +44,49 @@ public class Utility {
 
     //Return a ScanSettings object set to use low power (to preserve battery life).
     public static ScanSettings buildScanSettings() {
+        return buildScanSettings(null, ScanSettings.SCAN_MODE_LOW_POWER);
+    }
+
+    //Return a ScanSettings object with the given scan mode, letting the controller batch the
+    //results when the adapter supports it, unless the scan must report as soon as possible.
+    public static ScanSettings buildScanSettings(BluetoothAdapter adapter, int scanMode) {
         ScanSettings.Builder builder = new ScanSettings.Builder();
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        builder.setScanMode(scanMode);
+        if (scanMode != ScanSettings.SCAN_MODE_LOW_LATENCY && adapter != null && adapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(Constants.SCAN_REPORT_DELAY_MS);
+        }
         return builder.build();
     }
 
-}
\ No newline at end of file
+    /**
+     * Return the LocationRequest used to collect the fixes, also checked against the location settings.
+     *
+     * @param batched true to let the provider hold the fixes for up to
+     *                {@link Constants#MAX_WAIT_TIME_IN_MILLISECONDS} and deliver them together,
+     *                every one of them in {@link com.google.android.gms.location.LocationResult#getLocations()}
+     */
+    public static LocationRequest buildLocationRequest(boolean batched) {
+        LocationRequest request = new LocationRequest();
+        // You may not receive updates at all if no location sources are available, or you may receive them slower/faster than requested.
+        request.setInterval(Constants.UPDATE_INTERVAL_IN_MILLISECONDS);
+        request.setFastestInterval(Constants.FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
+        request.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        if (batched) {
+            request.setMaxWaitTime(Constants.MAX_WAIT_TIME_IN_MILLISECONDS);
+        }
+        return request;
+    }
+
+    //Fill the record with the fix, flagging accurate and mock fixes.
+    public static LocationRecord toLocationRecord(Location location, LocationRecord dst) {
+        int flags = 0;
+        if (location.hasAccuracy() && location.getAccuracy() <= Constants.ACCURATE_FIX_METERS) {
+            flags |= LocationRecord.FLAG_ACCURATE;
+        }
+        if (location.isFromMockProvider()) {
+            flags |= LocationRecord.FLAG_MOCK;
+        }
+        return dst.set(location.getLatitude(), location.getLongitude(), location.getTime(), flags);
+    }
+
+}
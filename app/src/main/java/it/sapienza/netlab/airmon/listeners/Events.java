@@ -0,0 +1,219 @@
+package it.sapienza.netlab.airmon.listeners;
+
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+
+/**
+ * Events posted on the {@link EventDispatcher} of the service.
+ */
+public class Events {
+
+    /**
+     * A scan found a server it had not seen before.
+     */
+    public static final class ServerFound {
+        private final String address;
+
+        public ServerFound(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    /**
+     * Posted when the scan sees a server for the first time in the session or in the window,
+     * only the latest one is delivered.
+     */
+    public static final class ServersUpdated implements EventDispatcher.Coalescing {
+        private final int count;
+        private final int windowCount;
+        private final long timestampNanos;
+
+        public ServersUpdated(int count, int windowCount, long timestampNanos) {
+            this.count = count;
+            this.windowCount = windowCount;
+            this.timestampNanos = timestampNanos;
+        }
+
+        /**
+         * @return the servers found so far by the scan
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the servers seen since the scan window started
+         */
+        public int getWindowCount() {
+            return windowCount;
+        }
+
+        /**
+         * @return the time of the advertisement that changed the counts
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+    }
+
+    /**
+     * An advertisement of a server, for every one the scan delivers.
+     */
+    public static final class AdvertisementReceived {
+        private final String address;
+        private final int rssi;
+        private final long timestampNanos;
+
+        public AdvertisementReceived(String address, int rssi, long timestampNanos) {
+            this.address = address;
+            this.rssi = rssi;
+            this.timestampNanos = timestampNanos;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+    }
+
+    public static final class ScanFailed {
+        private final String message;
+        private final int errorCode;
+
+        public ScanFailed(String message, int errorCode) {
+            this.message = message;
+            this.errorCode = errorCode;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public int getErrorCode() {
+            return errorCode;
+        }
+    }
+
+    /**
+     * A scan stopped, after delivering the advertisements it still held.
+     */
+    public static final class ScanStopped {
+    }
+
+    /**
+     * The services of a server are known and its credits read: records can be sent to it.
+     */
+    public static final class ServerReady {
+        private final String address;
+
+        public ServerReady(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    /**
+     * A notification of the Location characteristic: the credits of the server, or its memory
+     * full on a firmware without credits.
+     */
+    public static final class NotificationReceived {
+        private final String address;
+        private final byte[] value;
+
+        public NotificationReceived(String address, byte[] value) {
+            this.address = address;
+            this.value = value;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * The outcome of a message sent to a server: success after its last write, failure at the
+     * first one that failed.
+     */
+    public static final class MessageSent {
+        private final String address;
+        private final Object tag;
+        private final boolean success;
+        private final long elapsedNanos;
+
+        public MessageSent(String address, Object tag, boolean success, long elapsedNanos) {
+            this.address = address;
+            this.tag = tag;
+            this.success = success;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the tag given with the message, to tell it apart from the others, may be null
+         */
+        public Object getTag() {
+            return tag;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return time from the request to the last write callback
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * A ready connection was lost, the task reconnects by itself.
+     */
+    public static final class ConnectionLost {
+        private final String address;
+
+        public ConnectionLost(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+    }
+
+    /**
+     * The task of the server was stopped for good.
+     */
+    public static final class JobDone {
+        private final String address;
+
+        public JobDone(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+    }
+}
@@ -1,78 +1,151 @@
 package it.sapienza.netlab.airmon.listeners;
 
 import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+import it.sapienza.netlab.airmon.common.MacTable;
+import it.sapienza.netlab.airmon.transport.BleTransport;
 
-//Custom ScanCallback object
-public class ServerScanCallback extends ScanCallback {
+
+//Collects the servers found by a scan of the BleTransport
+public class ServerScanCallback implements BleTransport.ScanListener {
 
     private final static String TAG = ServerScanCallback.class.getName();
-    private OnServerFoundMessageListener listener;
-    private List<ScanResult> results;
+    private static final int SEEN = 0;                  //Already seen in this window
+    private static final int NEW_IN_WINDOW = 1;         //Found in a previous window of the session
+    private static final int NEW_SERVER = 2;
+    private static final int INVALID = -1;              //Not a MAC address
+    private final EventDispatcher events;
+    private List<String> results;
+    // Index of each device in results, as its int, with its latest RSSI and timestamp
+    private MacTable<Void> devices;
+    // Servers seen since the window started, in order
+    private List<String> windowResults;
+    private MacTable<Void> windowDevices;
 
-    public ServerScanCallback(OnServerFoundMessageListener listener) {
-        this.listener = listener;
+    /**
+     * @param events where {@link Events.AdvertisementReceived}, {@link Events.ServerFound},
+     *               {@link Events.ServersUpdated}, {@link Events.ScanFailed} and {@link Events.ScanStopped}
+     *               are posted
+     */
+    public ServerScanCallback(EventDispatcher events) {
+        this.events = events;
         results = new ArrayList<>();
+        devices = new MacTable<>();
+        windowResults = new ArrayList<>();
+        windowDevices = new MacTable<>();
     }
 
     @Override
-    public void onBatchScanResults(List<ScanResult> results) {
-        super.onBatchScanResults(results);
+    public void OnAdvertisement(String address, int rssi, long timestampNanos) {
+        int added = addResult(address, rssi, timestampNanos);
+        if (added == INVALID) {
+            return;
+        }
+        events.post(new Events.AdvertisementReceived(address, rssi, timestampNanos));
+        if (added == NEW_SERVER) {
+            events.post(new Events.ServerFound(address));
+            Log.d(TAG, "OnAdvertisement: " + address + ", RSSI " + rssi);
+        }
+        if (added != SEEN) {
+            // Coalesced: the subscribers get the latest counts, not every change
+            Events.ServersUpdated updated;
+            synchronized (this) {
+                updated = new Events.ServersUpdated(results.size(), windowResults.size(), timestampNanos);
+            }
+            events.post(updated);
+        }
     }
 
-    @Override
-    public void onScanResult(int callbackType, ScanResult result) {
-        super.onScanResult(callbackType, result);
-
-        for (ScanResult scanResult : this.getResults()) {
-            if (scanResult.getDevice().getAddress().equals(result.getDevice().getAddress())) {
-                Log.d(TAG, "Scan discarded " + result);
-                return;
-            }
+    /**
+     * @return whether the advertisement comes from a server not seen before, one of the constants above
+     */
+    private synchronized int addResult(String address, int rssi, long timestampNanos) {
+        long key = MacTable.toKey(address);
+        if (key == MacTable.INVALID_ADDRESS) {
+            return INVALID;
+        }
+        int added = SEEN;
+        if (windowDevices.put(key, rssi, timestampNanos, null)) {
+            windowResults.add(address);
+            added = NEW_IN_WINDOW;
+        }
+        // Keeps the index of a known server and only updates its latest advertisement
+        if (!devices.putInt(key, rssi, timestampNanos, devices.getInt(key, results.size()))) {
+            return added;
         }
+        results.add(address);
+        return NEW_SERVER;
+    }
+
+    /**
+     * Call when a scan window starts, to count again the servers seen in it.
+     */
+    public synchronized void startWindow() {
+        windowResults.clear();
+        windowDevices.clear();
+    }
+
+    /**
+     * @param from number of servers of the window already taken
+     * @return a copy of the addresses of the servers seen in the window after the first from, in order
+     */
+    public synchronized List<String> getWindowResults(int from) {
+        return new ArrayList<>(windowResults.subList(Math.min(from, windowResults.size()), windowResults.size()));
+    }
 
-        this.results.add(result);
-        listener.OnServerFound("New server found");
-        Log.d(TAG, "onScanResult: " + result);
+    /**
+     * @return the RSSI of the latest advertisement of the server, or Integer.MIN_VALUE if it was not found
+     */
+    public synchronized int getRssi(String address) {
+        return devices.getRssi(MacTable.toKey(address));
     }
 
-    public List<ScanResult> getResults() {
-        return results;
+    /**
+     * @return a copy of the addresses of the servers found, in order of discovery
+     */
+    public synchronized List<String> getResults() {
+        return new ArrayList<>(results);
     }
 
     @Override
-    public void onScanFailed(int errorCode) {
-        super.onScanFailed(errorCode);
+    public void OnScanFailed(int errorCode) {
+        String message;
         switch (errorCode) {
-            case SCAN_FAILED_ALREADY_STARTED:
-                listener.OnErrorScan("Scan already started", errorCode);
+            case ScanCallback.SCAN_FAILED_ALREADY_STARTED:
+                message = "Scan already started";
                 break;
-            case SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
-                listener.OnErrorScan("Scan failed application registration failed", errorCode);
+            case ScanCallback.SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
+                message = "Scan failed application registration failed";
                 break;
-            case SCAN_FAILED_FEATURE_UNSUPPORTED:
-                listener.OnErrorScan("Scan failed,this feature is unsupported", errorCode);
+            case ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED:
+                message = "Scan failed,this feature is unsupported";
                 break;
-            case SCAN_FAILED_INTERNAL_ERROR:
-                listener.OnErrorScan("Scan failed internal error", errorCode);
+            case ScanCallback.SCAN_FAILED_INTERNAL_ERROR:
+                message = "Scan failed internal error";
                 break;
             default:
-                listener.OnErrorScan("Scan failed unidentified errorCode " + errorCode, errorCode);
+                message = "Scan failed unidentified errorCode " + errorCode;
         }
+        events.post(new Events.ScanFailed(message, errorCode));
     }
 
-    public void clearResults() {
-        results.clear();
+    @Override
+    public void OnScanStopped() {
+        events.post(new Events.ScanStopped());
     }
 
-    public interface OnServerFoundMessageListener {
-        void OnServerFound(String message);
+    public synchronized int size() {
+        return results.size();
+    }
 
-        void OnErrorScan(String message, int errorCodeCallback);
+    public synchronized void clearResults() {
+        results.clear();
+        devices.clear();
+        startWindow();
     }
-}
\ No newline at end of file
+}
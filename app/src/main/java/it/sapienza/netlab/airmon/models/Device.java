@@ -1,18 +1,44 @@
 package it.sapienza.netlab.airmon.models;
 
+import java.nio.charset.Charset;
 import java.util.Objects;
 
+import it.sapienza.netlab.airmon.common.MessageRing;
+import it.sapienza.netlab.airmon.common.RelayFrameCodec;
+
 public class Device {
 
-    private String id;
-    private StringBuffer input;
-    private StringBuffer output;
+    public static final int DEFAULT_HISTORY_BYTES = 1024;
+    public static final double INITIAL_DELIVERY_RATIO = 0.5;
+    private static final double DELIVERY_ALPHA = 0.1;
+    private static final double MIN_DELIVERY_RATIO = 0.05;
+    private static final int MAX_MISSED_BEACONS = 8;       //A larger gap is most likely a restart of the device
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
+    private final String id;                                //Key of the device in the RoutingTable, never changes
+    private final MessageRing input;
+    private final MessageRing output;
+
+    // Route of the device towards a collector, as of its last beacon
+    private int hops = RelayFrameCodec.NO_ROUTE;
+    private double routeCost;
+    private int nextHop;
+    private long routeUpdatedAt;
+    private int beaconCounter = -1;
+    private double deliveryRatio = INITIAL_DELIVERY_RATIO;    //Moving average of the beacons and writes that got through
 
     public Device(String id) {
+        this(id, DEFAULT_HISTORY_BYTES);
+    }
+
+    /**
+     * @param historyBytes bytes of inbound and of outbound messages kept for the device
+     */
+    public Device(String id, int historyBytes) {
         this.id = id;
-        this.input = new StringBuffer();
-        this.output = new StringBuffer();
+        this.input = new MessageRing(historyBytes);
+        this.output = new MessageRing(historyBytes);
     }
 
 
@@ -20,29 +46,101 @@ public class Device {
         return id;
     }
 
-    public void setId(String id) {
-        this.id = id;
-    }
-
-    public StringBuffer getInput() {
+    /**
+     * @return the messages received from the device, with their byte and message counters
+     */
+    public MessageRing getInput() {
         return input;
     }
 
     public void writeInput(String input) {
-        // comment if you want full input
-        this.input.setLength(0);
-        this.input.append(input).append("\n");
+        writeInput(input.getBytes(UTF_8));
     }
 
-    public StringBuffer getOutput() {
+    public void writeInput(byte[] message) {
+        this.input.write(message, 0, message.length);
+    }
+
+    public void writeInput(byte[] message, int offset, int length) {
+        this.input.write(message, offset, length);
+    }
+
+    /**
+     * @return the messages sent to the device, with their byte and message counters
+     */
+    public MessageRing getOutput() {
         return output;
     }
 
     public void writeOutput(String output) {
-        // comment if you want full output
-        this.output.setLength(0);
-        this.output.append(output).append("\n");
+        writeOutput(output.getBytes(UTF_8));
+    }
+
+    public void writeOutput(byte[] message) {
+        this.output.write(message, 0, message.length);
+    }
+
+    public void writeOutput(byte[] message, int offset, int length) {
+        this.output.write(message, offset, length);
+    }
+
+    /**
+     * Update the route of the device from one of its beacons, see {@link RelayFrameCodec}.
+     * The beacons missed since the previous one count as failed deliveries.
+     */
+    public synchronized void onBeacon(int counter, int hops, double cost, int nextHop, long nowMillis) {
+        if (beaconCounter >= 0) {
+            int missed = (counter - beaconCounter - 1) & 0xFF;
+            if (missed <= MAX_MISSED_BEACONS) {
+                for (int i = 0; i < missed; i++) onDelivery(false);
+            }
+        }
+        onDelivery(true);
+        beaconCounter = counter;
+        this.hops = hops;
+        this.routeCost = cost;
+        this.nextHop = nextHop;
+        this.routeUpdatedAt = nowMillis;
+    }
+
+    /**
+     * @param delivered true if a packet sent to the device, or by it, got through
+     */
+    public synchronized void onDelivery(boolean delivered) {
+        deliveryRatio += DELIVERY_ALPHA * ((delivered ? 1 : 0) - deliveryRatio);
+    }
+
+    /**
+     * @return hops from the device to a collector, RelayFrameCodec.NO_ROUTE if it has no route
+     */
+    public synchronized int getHops() {
+        return hops;
+    }
+
+    public synchronized double getRouteCost() {
+        return routeCost;
+    }
+
+    /**
+     * @return id of the neighbour the route of the device goes through
+     */
+    public synchronized int getNextHop() {
+        return nextHop;
+    }
+
+    public synchronized long getRouteUpdatedAt() {
+        return routeUpdatedAt;
+    }
+
+    public synchronized double getDeliveryRatio() {
+        return deliveryRatio;
+    }
 
+    /**
+     * @return expected transmissions to deliver a packet through the device: its route plus the link to it
+     */
+    public synchronized double getPathCost() {
+        return routeCost + 1 / Math.max(MIN_DELIVERY_RATIO, deliveryRatio);
     }
 
     @Override
@@ -0,0 +1,103 @@
+package it.sapienza.netlab.airmon.models;
+
+/**
+ * Mutable fixed-point representation of a location fix.
+ * Latitude and longitude are stored in micro-degrees, the time in epoch seconds.
+ * Instances are meant to be reused by the encoder/decoder to avoid allocating on every fix.
+ */
+public class LocationRecord {
+
+    public static final int FLAG_ACCURATE = 1;          //Horizontal accuracy under the configured threshold
+    public static final int FLAG_MOCK = 1 << 1;         //Fix produced by a mock provider
+    public static final int FLAG_BUFFERED = 1 << 2;     //Fix replayed from a local buffer, not live
+
+    private int latitudeE6;
+    private int longitudeE6;
+    private long epochSeconds;
+    private int flags;
+
+    public LocationRecord() {
+    }
+
+    public LocationRecord(int latitudeE6, int longitudeE6, long epochSeconds, int flags) {
+        set(latitudeE6, longitudeE6, epochSeconds, flags);
+    }
+
+    public LocationRecord set(int latitudeE6, int longitudeE6, long epochSeconds, int flags) {
+        this.latitudeE6 = latitudeE6;
+        this.longitudeE6 = longitudeE6;
+        this.epochSeconds = epochSeconds;
+        this.flags = flags & 0xFF;
+        return this;
+    }
+
+    public LocationRecord set(double latitude, double longitude, long epochMillis, int flags) {
+        return set(toMicroDegrees(latitude), toMicroDegrees(longitude), epochMillis / 1000, flags);
+    }
+
+    public static int toMicroDegrees(double degrees) {
+        return (int) Math.round(degrees * 1e6);
+    }
+
+    public static double fromMicroDegrees(int microDegrees) {
+        return microDegrees / 1e6;
+    }
+
+    public int getLatitudeE6() {
+        return latitudeE6;
+    }
+
+    public int getLongitudeE6() {
+        return longitudeE6;
+    }
+
+    public double getLatitude() {
+        return fromMicroDegrees(latitudeE6);
+    }
+
+    public double getLongitude() {
+        return fromMicroDegrees(longitudeE6);
+    }
+
+    public long getEpochSeconds() {
+        return epochSeconds;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LocationRecord that = (LocationRecord) o;
+        return latitudeE6 == that.latitudeE6
+                && longitudeE6 == that.longitudeE6
+                && epochSeconds == that.epochSeconds
+                && flags == that.flags;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = latitudeE6;
+        result = 31 * result + longitudeE6;
+        result = 31 * result + (int) (epochSeconds ^ (epochSeconds >>> 32));
+        result = 31 * result + flags;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationRecord{" +
+                "latitudeE6=" + latitudeE6 +
+                ", longitudeE6=" + longitudeE6 +
+                ", epochSeconds=" + epochSeconds +
+                ", flags=" + flags +
+                '}';
+    }
+}
@@ -0,0 +1,70 @@
+package it.sapienza.netlab.airmon.models;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * The services and characteristics exposed by a GATT server, compared to tell whether a
+ * server still has the layout found the last time it was discovered.
+ */
+public class ServiceLayout {
+
+    private final Set<String> entries;
+
+    private ServiceLayout(Set<String> entries) {
+        this.entries = Collections.unmodifiableSet(entries);
+    }
+
+    public boolean hasService(UUID service) {
+        return entries.contains(service.toString());
+    }
+
+    public boolean hasCharacteristic(UUID service, UUID characteristic) {
+        return entries.contains(service + "/" + characteristic);
+    }
+
+    /**
+     * @return number of services plus number of characteristics
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return entries.equals(((ServiceLayout) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return entries.toString();
+    }
+
+    public static class Builder {
+        private final Set<String> entries = new TreeSet<>();
+
+        public Builder addService(UUID service) {
+            entries.add(service.toString());
+            return this;
+        }
+
+        public Builder addCharacteristic(UUID service, UUID characteristic) {
+            addService(service);
+            entries.add(service + "/" + characteristic);
+            return this;
+        }
+
+        public ServiceLayout build() {
+            return new ServiceLayout(new TreeSet<>(entries));
+        }
+    }
+}
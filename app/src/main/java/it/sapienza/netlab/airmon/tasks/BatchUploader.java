@@ -0,0 +1,293 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+
+/**
+ * Drains a {@link LocationOutbox} to a single server using {@link BatchFrameCodec} frames:
+ * as many records as the negotiated MTU allows in each write, written without response.
+ * Every {@link #CHECKPOINT_FRAMES} frames, and on the last frame of a burst, the server is asked
+ * for an ack. The uploader keeps its own cursor of the acked records and reports it to its
+ * {@link OnAckListener}, which commits the outbox once every server has the records. At most {@link #MAX_FRAMES_IN_FLIGHT}
+ * frames are sent past the last ack. An ack short of its checkpoint means a frame was lost: the
+ * records from the acked sequence are sent again, as they are if the ack does not arrive in time.
+ * <p>
+ * Each connection starts with a sync frame carrying the session id of the outbox: its ack tells the
+ * next record the server expects from this outbox, which may be past the records this phone has
+ * committed, and no record is sent before it arrives.
+ * <p>
+ * With a {@link CreditWindow}, frames only carry the records the server advertised it can store.
+ */
+public class BatchUploader {
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int CHECKPOINT_FRAMES = 8;
+    public static final int MAX_FRAMES_IN_FLIGHT = 32;
+    public static final long ACK_TIMEOUT_MS = 3000;
+    public static final long FULL_RETRY_MS = 10000;
+
+    private final LocationOutbox outbox;
+    private final FrameSink sink;
+    private final Clock clock;
+    private final byte[] frame = new byte[BatchFrameCodec.frameSize(BatchFrameCodec.MAX_RECORDS_PER_FRAME)];
+    private int recordsPerFrame = BatchFrameCodec.recordsPerFrame(DEFAULT_MTU);
+    private long sendSeq = 0;                   //Next record to send
+    private long ackedSeq = 0;                  //Next record the server expects, it stored every record before it
+    private int framesInFlight = 0;             //Frames sent and not acked yet
+    private int framesSinceCheckpoint = 0;
+    private boolean serverFull = false;
+    private long fullSince;
+
+    // Unanswered checkpoints, oldest first: acks arrive in the same order
+    private final long[] checkpointEnd = new long[MAX_FRAMES_IN_FLIGHT];
+    private final int[] checkpointFrames = new int[MAX_FRAMES_IN_FLIGHT];
+    private final long[] checkpointSentAt = new long[MAX_FRAMES_IN_FLIGHT];
+    private int checkpointHead = 0;
+    private int checkpoints = 0;
+    private long lastLossSeq = 0;               //Sequence of the last loss already handled
+    private boolean synced = false;             //The server answered the sync frame of this connection
+    private boolean syncPending = false;
+    private long syncSentAt;
+    private long syncSeq;                       //Oldest record held when the sync frame was sent
+    private CreditWindow credits;
+    private OnAckListener onAckListener;
+
+    public BatchUploader(LocationOutbox outbox, FrameSink sink) {
+        this(outbox, sink, Clock.SYSTEM);
+    }
+
+    public BatchUploader(LocationOutbox outbox, FrameSink sink, Clock clock) {
+        this.outbox = outbox;
+        this.sink = sink;
+        this.clock = clock;
+    }
+
+    /**
+     * @param mtu the ATT MTU negotiated with the server
+     */
+    public synchronized void setMtu(int mtu) {
+        recordsPerFrame = Math.max(1, BatchFrameCodec.recordsPerFrame(mtu));
+    }
+
+    /**
+     * @param credits the flow control of the connection, may be null to send whatever the outbox holds
+     */
+    public synchronized void setCreditWindow(CreditWindow credits) {
+        this.credits = credits;
+    }
+
+    public synchronized void setOnAckListener(OnAckListener l) {
+        this.onAckListener = l;
+    }
+
+    public synchronized int getRecordsPerFrame() {
+        return recordsPerFrame;
+    }
+
+    /**
+     * Send frames until the outbox is empty, the window is full or the credits are used up.
+     *
+     * @return the number of frames sent
+     */
+    public synchronized int pump() {
+        if (!synced) {
+            return sync();
+        }
+        if (ackedSeq < outbox.getReadSequence()) {
+            // The records the server expects left the outbox, committed while it was away or
+            // overwritten: tell it where the outbox starts now
+            restart();
+            return sync();
+        }
+        if (checkpoints > 0 && clock.nowMillis() - checkpointSentAt[checkpointHead] > ACK_TIMEOUT_MS) {
+            // The ack got lost or the server restarted: go back to the last acked record
+            rewind();
+            lastLossSeq = 0;
+        }
+        if (serverFull) {
+            if (clock.nowMillis() - fullSince < FULL_RETRY_MS) return 0;
+            serverFull = false;
+        }
+        sendSeq = Math.max(sendSeq, outbox.getReadSequence());
+        int sent = 0;
+        while (framesInFlight < MAX_FRAMES_IN_FLIGHT) {
+            long writeSeq = outbox.getWriteSequence();
+            int allowed = credits == null ? recordsPerFrame : Math.min(recordsPerFrame, credits.available());
+            int count = allowed == 0 ? 0 : outbox.read(sendSeq, frame, BatchFrameCodec.HEADER_SIZE, allowed);
+            if (count == 0) {
+                break;
+            }
+            // The last frame the credits allow asks for an ack as well, so its records are committed
+            boolean checkpoint = framesSinceCheckpoint + 1 >= CHECKPOINT_FRAMES
+                    || sendSeq + count >= writeSeq
+                    || framesInFlight + 1 >= MAX_FRAMES_IN_FLIGHT
+                    || count < recordsPerFrame && count == allowed;
+            BatchFrameCodec.writeHeader(frame, checkpoint ? BatchFrameCodec.FLAG_ACK_REQUESTED : 0, count, sendSeq);
+            if (!sink.sendFrame(frame, BatchFrameCodec.frameSize(count), checkpoint)) {
+                break;
+            }
+            sendSeq += count;
+            if (credits != null) credits.onSent(count);
+            framesInFlight++;
+            framesSinceCheckpoint++;
+            sent++;
+            if (checkpoint) {
+                int tail = (checkpointHead + checkpoints) % MAX_FRAMES_IN_FLIGHT;
+                checkpointEnd[tail] = sendSeq;
+                checkpointFrames[tail] = framesSinceCheckpoint;
+                checkpointSentAt[tail] = clock.nowMillis();
+                checkpoints++;
+                framesSinceCheckpoint = 0;
+            }
+        }
+        return sent;
+    }
+
+    private int sync() {
+        long now = clock.nowMillis();
+        if (syncPending && now - syncSentAt <= ACK_TIMEOUT_MS) {
+            return 0;
+        }
+        syncSeq = outbox.getReadSequence();
+        BatchFrameCodec.writeSync(frame, outbox.getSessionId(), syncSeq);
+        if (!sink.sendFrame(frame, BatchFrameCodec.SYNC_SIZE, true)) {
+            return 0;
+        }
+        syncPending = true;
+        syncSentAt = now;
+        return 1;
+    }
+
+    /**
+     * Handle a notification of the Batch Ack characteristic and send what the window now allows.
+     *
+     * @return false if the value is not a valid ack
+     */
+    public boolean onAck(byte[] value) {
+        if (!BatchFrameCodec.isValidAck(value)) {
+            return false;
+        }
+        OnAckListener l;
+        long acked;
+        synchronized (this) {
+            if (!synced) {
+                onSyncAck(value);
+            } else if (BatchFrameCodec.getAckStatus(value) == BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION) {
+                // The server lost the session of the connection, e.g. it restarted
+                restart();
+            } else {
+                onFrameAck(value);
+            }
+            l = synced ? onAckListener : null;
+            acked = ackedSeq;
+        }
+        if (l != null) l.OnAck(acked);
+        pump();
+        return true;
+    }
+
+    private void onSyncAck(byte[] value) {
+        if (!syncPending || BatchFrameCodec.getAckStatus(value) == BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION) {
+            return;
+        }
+        long nextSeq = BatchFrameCodec.expandSeq(BatchFrameCodec.getAckNextSeq(value), syncSeq);
+        // The server never answers a sync frame before its first record: this answers an older frame
+        if (nextSeq < syncSeq) {
+            return;
+        }
+        // The server may already have records whose ack was lost
+        ackedSeq = Math.min(nextSeq, outbox.getWriteSequence());
+        sendSeq = Math.max(ackedSeq, outbox.getReadSequence());
+        synced = true;
+        syncPending = false;
+        serverFull = BatchFrameCodec.getAckStatus(value) == BatchFrameCodec.ACK_STATUS_FULL;
+        if (serverFull) fullSince = clock.nowMillis();
+    }
+
+    private void onFrameAck(byte[] value) {
+        long nextSeq = BatchFrameCodec.expandSeq(BatchFrameCodec.getAckNextSeq(value), sendSeq);
+        ackedSeq = Math.max(ackedSeq, nextSeq);
+        // Every checkpoint up to the acked sequence is answered
+        boolean answered = false;
+        while (checkpoints > 0 && checkpointEnd[checkpointHead] <= nextSeq) {
+            answered = checkpointEnd[checkpointHead] == nextSeq;
+            framesInFlight -= checkpointFrames[checkpointHead];
+            checkpointHead = (checkpointHead + 1) % MAX_FRAMES_IN_FLIGHT;
+            checkpoints--;
+        }
+        serverFull = BatchFrameCodec.getAckStatus(value) == BatchFrameCodec.ACK_STATUS_FULL;
+        if (serverFull) {
+            fullSince = clock.nowMillis();
+            rewind();
+        } else if (!answered && checkpoints > 0 && nextSeq > lastLossSeq) {
+            // The server expects a record before the checkpoint end: a frame was lost and the
+            // following ones discarded. Acks still in flight will report the same sequence.
+            lastLossSeq = nextSeq;
+            rewind();
+        }
+    }
+
+    /**
+     * Forget the frames in flight, e.g. when the server ran out of storage: the next pump
+     * restarts from the last acked record.
+     */
+    public synchronized void rewind() {
+        long restartSeq = Math.max(ackedSeq, outbox.getReadSequence());
+        // The records after the last ack will be sent again
+        if (credits != null && sendSeq > restartSeq) credits.onAbandoned((int) (sendSeq - restartSeq));
+        sendSeq = restartSeq;
+        framesInFlight = 0;
+        framesSinceCheckpoint = 0;
+        checkpoints = 0;
+    }
+
+    /**
+     * Forget the frames in flight and the position of the server, on a new connection: the next
+     * pump sends a sync frame.
+     */
+    public synchronized void restart() {
+        rewind();
+        synced = false;
+        syncPending = false;
+    }
+
+    /**
+     * Allow sending again after the server reported it was full, without waiting {@link #FULL_RETRY_MS}.
+     */
+    public synchronized void resume() {
+        serverFull = false;
+    }
+
+    public synchronized boolean isServerFull() {
+        return serverFull;
+    }
+
+    public synchronized long getSendSequence() {
+        return sendSeq;
+    }
+
+    /**
+     * @return the next record the server expects, 0 until it answers the sync frame of the connection
+     */
+    public synchronized long getAckedSequence() {
+        return synced ? ackedSeq : 0;
+    }
+
+    public interface FrameSink {
+        /**
+         * @param frame      the frame, reused after the call returns: copy it if it is sent later
+         * @param length     number of bytes of the frame
+         * @param checkpoint true if the frame asks for an ack
+         * @return false if the frame could not be sent
+         */
+        boolean sendFrame(byte[] frame, int length, boolean checkpoint);
+    }
+
+    public interface OnAckListener {
+        /**
+         * @param nextSeq the next record the server expects, it stored every record before it
+         */
+        void OnAck(long nextSeq);
+    }
+}
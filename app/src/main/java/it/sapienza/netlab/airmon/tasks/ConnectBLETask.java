@@ -1,138 +1,477 @@
 package it.sapienza.netlab.airmon.tasks;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.content.Context;
 import android.util.Log;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Calendar;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import it.sapienza.netlab.airmon.common.Clock;
 import it.sapienza.netlab.airmon.common.Constants;
-import it.sapienza.netlab.airmon.listeners.Listeners;
-import it.sapienza.netlab.airmon.models.Server;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.listeners.Events;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.BleLink;
+import it.sapienza.netlab.airmon.transport.BleTransport;
 
 
 public class ConnectBLETask {
     private final static String TAG = ConnectBLETask.class.getName();
-    private Server server;
-    private BluetoothGattCallback mGattCallback;
-    private BluetoothGatt mGatt;
-    private Context context;
-    private String id;
-    private boolean temporaryClient;
-    private Listeners.OnJobDoneListener onJobDoneListener;
+    private final String address;
+    private final BleTransport transport;
+    private final BleLink.Callback linkCallback;
+    private volatile BleLink link;
+    private volatile boolean servicesReused = false;     //Services kept by the link from its previous connection, not discovered again
     private boolean jobDone = false;
-    private Listeners.OnConnectionLost OnConnectionLostListener;
-    private int maxAttempt;
-    private byte[] latitude = null, longitude = null, timestamp = null;
+    private EventDispatcher events;
+    private final ConnectionStateMachine connection;
+    private final ScheduledExecutorService scheduler;   //Runs the reconnections, the priority checks and the operation timeouts
+    private final Clock clock;
+    private final Runnable reconnectRunnable = this::reconnect;
+    private ScheduledFuture<?> reconnectFuture;
+    private final ConnectionPriorityPolicy priorityPolicy;
+    private final Runnable priorityRunnable = this::updatePriority;     //Lowers the priority of the idle link
+    private ScheduledFuture<?> priorityFuture;
     private boolean isConnected = false;
-
-    public ConnectBLETask(Server server, final Context context) {
-        // GATT OBJECT TO CONNECT TO A GATT SERVER
-        maxAttempt = 0;
-        this.context = context;
-        this.server = server;
-        this.id = null;
-
-        mGattCallback = new BluetoothGattCallback() {
+    private volatile boolean isReady = false;
+    private GattOperationQueue operationQueue;
+    private int mtu = BatchUploader.DEFAULT_MTU;
+    private boolean batchSupported = false;
+    private BatchUploader batchUploader;
+    private final CreditWindow credits;
+    private LatencyMetrics metrics;
+    private ServerRanking ranking;
+    private volatile long connectStartNanos;
+    private volatile long discoverStartNanos;
+    private volatile long readyNanos;                  //When the server became ready, 0 once the first write is recorded
+
+    /**
+     * @param transport opens the link to the server
+     * @param scheduler runs the reconnections and the timers, on the thread of the GATT callbacks
+     * @param clock     times the backoff, the credits and the latencies, in the time of the scheduler
+     */
+    public ConnectBLETask(String address, BleTransport transport, ScheduledExecutorService scheduler, Clock clock) {
+        this.address = address;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.priorityPolicy = new ConnectionPriorityPolicy(clock);
+        this.credits = new CreditWindow(clock);
+
+        linkCallback = new BleLink.Callback() {
             @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
+            public void OnConnectionStateChange(BleLink link, int status, boolean connected) {
+                ServerRanking r = ranking;
+                if (connected) {
                     isConnected = true;
-                    Log.d(TAG, "Connected to GATT client. Attempting to start service discovery from " + gatt.getDevice().getName());
-                    boolean res = gatt.discoverServices();
-                    Log.d(TAG, "onConnectionStateChange: discover services :" + res);
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    credits.reset();
+                    if (r != null) r.onOperation(address, true);
+                    requestPriority(link, priorityPolicy.onConnected());
+                    connection.onConnected();
+                    recordSince(LatencyMetrics.Phase.CONNECT, connectStartNanos);
+                    if (link.getLayout().size() > 0) {
+                        // Same link as before the disconnection: its services are still there. A
+                        // rejected request or Service Changed means they are out of date, see rediscover
+                        Log.d(TAG, "OnConnectionStateChange: reusing the services of " + address);
+                        servicesReused = true;
+                        onServicesReady(link);
+                    } else {
+                        Log.d(TAG, "Connected to GATT server " + address + ". Attempting to start service discovery");
+                        discoverServices(link);
+                    }
+                } else {
+                    // Failed attempts (e.g. status 133) end here as well
+                    boolean wasReady = connection.getState() == ConnectionStateMachine.State.READY;
+                    // A failed attempt counts against the server, a link lost while working does not
+                    if (r != null && !wasReady) r.onOperation(address, false);
                     isConnected = false;
-                    Log.d(TAG, "onConnectionStateChange: disconnected");
+                    isReady = false;
+                    cancelPriorityCheck();
+                    operationQueue.reset();
+                    if (batchUploader != null) batchUploader.restart();
+                    Log.d(TAG, "OnConnectionStateChange: disconnected, status " + status);
+                    long delay = connection.onDisconnected();
+                    // A link lost while working is kept, so the next connection can reuse its services
+                    if (!wasReady || status == BleLink.GATT_ERROR
+                            || connection.getState() != ConnectionStateMachine.State.BACKING_OFF) {
+                        closeLink(link);
+                    }
+                    scheduleReconnect(delay);
                 }
-                super.onConnectionStateChange(gatt, status, newState);
             }
 
+            @Override
+            public void OnServicesDiscovered(BleLink link, int status) {
+                Log.d(TAG, "Services discovered on " + address + ", status " + status);
+                if (status == BleLink.GATT_SUCCESS) {
+                    recordSince(LatencyMetrics.Phase.DISCOVER, discoverStartNanos);
+                    servicesReused = false;
+                    // Discovery replaces the service objects of the link
+                    link.clearHandles();
+                    onServicesReady(link);
+                } else {
+                    // Retry from scratch, through the backoff
+                    link.disconnect();
+                }
+            }
 
             @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                Log.d(TAG, "GATT: " + gatt.toString());
-                Log.d(TAG, "Service discovered");
+            public void OnCharacteristicWrite(BleLink link, UUID characteristicUUID, int status) {
+                if (status == BleLink.GATT_SUCCESS) {
+                    long ready = readyNanos;
+                    if (ready != 0) {
+                        readyNanos = 0;
+                        recordSince(LatencyMetrics.Phase.FIRST_WRITE, ready);
+                    }
+                    Log.d(TAG, "Characteristic " + characteristicUUID + " value has been written");
+                } else {
+                    Log.e(TAG, "Error writing characteristic " + characteristicUUID + ", status " + status);
+                }
+                operationQueue.onOperationComplete(GattOperation.Type.WRITE, characteristicUUID, status);
+            }
 
-                super.onServicesDiscovered(gatt, status);
+            @Override
+            public void OnCharacteristicRead(BleLink link, UUID characteristicUUID, byte[] value, int status) {
+                if (status == BleLink.GATT_SUCCESS && characteristicUUID.equals(Constants.CharacteristicLocationUUID)
+                        && CreditCodec.isCredit(value)) {
+                    // Credits read when ready or probed, handled as a notification would be
+                    onLocationNotification(value);
+                }
+                operationQueue.onOperationComplete(GattOperation.Type.READ, characteristicUUID, status);
             }
 
             @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-
-                    if (characteristic.getUuid().equals(Constants.CharacteristicLatitudeUUID)) {
-
-                        Log.d(TAG, "Latitude characteristic value has been written");
-                        BluetoothGattService service = gatt.getService(Constants.LocationServiceUUID);
-                        if (service == null) {
-                            return;
-                        }
-                        Log.d(TAG, "Service : " + service.getUuid().toString());
-                        BluetoothGattCharacteristic charact = service.getCharacteristic(Constants.CharacteristicLongitudeUUID);
-                        if (charact == null) {
-                            return;
-                        }
-                        charact.setValue(longitude);
-                        gatt.writeCharacteristic(charact);
-                        longitude = null;
-                    } else if (characteristic.getUuid().equals(Constants.CharacteristicLongitudeUUID)){
-                        Log.d(TAG, "Longitude characteristic value has been written");
-                        BluetoothGattService service = gatt.getService(Constants.TimeServiceUUID);
-                        if (service == null) {
-                            return;
-                        }
-                        Log.d(TAG, "Service : " + service.getUuid().toString());
-                        BluetoothGattCharacteristic charact = service.getCharacteristic(Constants.CharacteristicTimestampUUID);
-                        if (charact == null) {
-                            return;
-                        }
-                        Date currentTime = Calendar.getInstance().getTime();
-                        DateFormat dateformat = new SimpleDateFormat("dd-MM-yyyy hh:mm:ss", Locale.ITALY);
-                        timestamp = dateformat.format(currentTime).getBytes();
-
-                        charact.setValue(timestamp);
-                        gatt.writeCharacteristic(charact);
-                        timestamp = null;
-                    } else {
-                        Log.d(TAG, "All characteristics values has been written");
-                    }
+            public void OnDescriptorWrite(BleLink link, UUID descriptorUUID, int status) {
+                operationQueue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR, descriptorUUID, status);
+            }
+
+            @Override
+            public void OnCharacteristicChanged(BleLink link, UUID characteristicUUID, byte[] value) {
+                Log.d(TAG, "OnCharacteristicChanged: " + characteristicUUID);
+                if (characteristicUUID.equals(Constants.CharacteristicServiceChangedUUID)) {
+                    Log.d(TAG, "OnCharacteristicChanged: services of " + address + " changed");
+                    rediscover(link);
+                    return;
+                }
+                if (characteristicUUID.equals(Constants.CharacteristicBatchAckUUID)) {
+                    if (batchUploader != null) batchUploader.onAck(value);
+                    return;
+                }
+                if (characteristicUUID.equals(Constants.CharacteristicLocationUUID)) {
+                    onLocationNotification(value);
+                }
+            }
+
+            @Override
+            public void OnMtuChanged(BleLink link, int mtu, int status) {
+                Log.d(TAG, "OnMtuChanged: " + mtu);
+                if (status == BleLink.GATT_SUCCESS) {
+                    ConnectBLETask.this.mtu = mtu;
+                    if (batchUploader != null) batchUploader.setMtu(mtu);
                 }
-                super.onCharacteristicWrite(gatt, characteristic, status);
+                operationQueue.onOperationComplete(GattOperation.Type.REQUEST_MTU, null, status);
             }
         };
+
+        connection = new ConnectionStateMachine(Constants.MAX_ATTEMPTS_RETRY, clock, new Random());
+        connection.setOnStateChangedListener(new ConnectionStateMachine.OnStateChangedListener() {
+            @Override
+            public void OnStateChanged(ConnectionStateMachine.State from, ConnectionStateMachine.State to) {
+                Log.d(TAG, address + ": " + from + " -> " + to);
+            }
+
+            @Override
+            public void OnConnectionLost() {
+                EventDispatcher e = events;
+                if (e != null) e.post(new Events.ConnectionLost(address));
+            }
+        });
+
+        operationQueue = new GattOperationQueue(scheduler, clock);
+        operationQueue.setOnQueueListener(new GattOperationQueue.OnQueueListener() {
+            @Override
+            public void OnQueueEmpty() {
+                Log.d(TAG, "All characteristics values has been written");
+                updatePriority();
+            }
+
+            @Override
+            public void OnOperationDone(GattOperation operation, int status) {
+                ServerRanking r = ranking;
+                if (r != null && status != GattOperationQueue.STATUS_CANCELLED) {
+                    r.onOperation(address, status == GattOperationQueue.STATUS_SUCCESS);
+                }
+                if (status != GattOperationQueue.STATUS_SUCCESS) {
+                    Log.e(TAG, "Operation " + operation + " failed with status " + status);
+                    BleLink l = link;
+                    if (servicesReused && status > GattOperationQueue.STATUS_SUCCESS && l != null) {
+                        // The server rejected a kept handle: its services changed while disconnected
+                        rediscover(l);
+                    }
+                } else if (operation.getStartNanos() != 0) {
+                    long elapsed = clock.nowNanos() - operation.getStartNanos();
+                    priorityPolicy.onOperationDone(elapsed);
+                    if (metrics != null) metrics.record(address, operation.getType(), elapsed);
+                }
+                updatePriority();
+            }
+        });
+    }
+
+
+    /**
+     * Update the credits from the Location characteristic, see {@link CreditCodec}, and resume
+     * the batch upload if they allow more records.
+     */
+    private void onLocationNotification(byte[] value) {
+        boolean opened = credits.onNotification(value);
+        Log.d(TAG, "Credits of " + address + ": " + (CreditCodec.isCredit(value) ? CreditCodec.getFreeSlots(value) + " free slots" : "memory full"));
+        if (opened) pumpBatch();
+        EventDispatcher e = events;
+        if (e != null) e.post(new Events.NotificationReceived(address, value));
+    }
+
+    private void discoverServices(BleLink link) {
+        discoverStartNanos = clock.nowNanos();
+        boolean res = link.discoverServices();
+        Log.d(TAG, "discoverServices: " + res);
+        if (!res) link.disconnect();
+    }
+
+    /**
+     * Forget the services known for the server and discover them again on the current link.
+     */
+    private void rediscover(BleLink link) {
+        servicesReused = false;
+        isReady = false;
+        link.clearHandles();
+        operationQueue.clear();
+        if (batchUploader != null) batchUploader.restart();
+        discoverServices(link);
     }
 
+    /**
+     * Negotiate the MTU and enable the notifications, once the services are known.
+     */
+    private void onServicesReady(BleLink link) {
+        batchSupported = link.hasCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID);
+        operationQueue.enqueue(GattOperations.requestMtu(link, Constants.REQUESTED_MTU));
+        // The server advertises its free slots, or only reports a full buffer, through notifications on the Location characteristic
+        operationQueue.enqueue(GattOperations.enableNotification(link, Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID));
+        if (batchSupported) {
+            operationQueue.enqueue(GattOperations.enableNotification(link, Constants.LocationServiceUUID, Constants.CharacteristicBatchAckUUID));
+        }
+        if (link.hasCharacteristic(Constants.GenericAttributeServiceUUID, Constants.CharacteristicServiceChangedUUID)) {
+            operationQueue.enqueue(GattOperations.enableIndication(link, Constants.GenericAttributeServiceUUID, Constants.CharacteristicServiceChangedUUID));
+        }
+        // The server is ready once its credits are read, whatever the outcome: nothing is sent
+        // before the window is known, and a firmware without credits leaves it unlimited
+        operationQueue.enqueue(GattOperations.read(link, Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID)
+                .setOnOperationDoneListener(new GattOperation.OnOperationDoneListener() {
+                    @Override
+                    public void OnOperationDone(GattOperation operation, int status) {
+                        if (status == GattOperationQueue.STATUS_CANCELLED) return;
+                        isReady = true;
+                        connection.onReady();
+                        recordSince(LatencyMetrics.Phase.READY, connectStartNanos);
+                        readyNanos = clock.nowNanos();
+                        EventDispatcher e = events;
+                        if (e != null) e.post(new Events.ServerReady(address));
+                    }
+                }));
+    }
 
     public boolean IsDeviceConnected(){
         return this.isConnected;
     }
 
-    public void sendMessage(byte[] latitude, byte[] longitude, byte[] timestamp) {
+    /**
+     * @return true once connected and the services have been discovered
+     */
+    public boolean isReady() {
+        return isReady;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * @return true if the server exposes the Batch characteristic, known once the services are discovered
+     */
+    public boolean isBatchSupported() {
+        return batchSupported;
+    }
 
-        BluetoothGattService service = mGatt.getService(Constants.LocationServiceUUID);
-        if (service == null) {
+    /**
+     * Upload the outbox in batches when the server supports them, see {@link BatchUploader}.
+     *
+     * @param listener notified of the records the server acked, it commits the outbox
+     */
+    public void setBatchOutbox(LocationOutbox outbox, BatchUploader.OnAckListener listener) {
+        if (outbox == null) {
+            batchUploader = null;
             return;
         }
-        Log.d(TAG, "Service : " + service.getUuid().toString());
+        batchUploader = new BatchUploader(outbox, new BatchUploader.FrameSink() {
+            @Override
+            public boolean sendFrame(byte[] frame, int length, boolean checkpoint) {
+                BleLink l = link;
+                if (l == null) return false;
+                // The frame buffer is reused by the uploader while this write waits in the queue
+                operationQueue.enqueue(GattOperations.write(l, Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID,
+                        Arrays.copyOf(frame, length), false));
+                return true;
+            }
+        }, clock);
+        batchUploader.setMtu(mtu);
+        batchUploader.setCreditWindow(credits);
+        batchUploader.setOnAckListener(listener);
+    }
+
+    /**
+     * @return the next outbox record the server expects, 0 if it is not known yet or batches are not used
+     */
+    public long getBatchAckedSequence() {
+        BatchUploader uploader = batchUploader;
+        if (!isReady || !batchSupported || uploader == null) {
+            return 0;
+        }
+        return uploader.getAckedSequence();
+    }
+
+    /**
+     * Send the pending outbox records in batch frames.
+     *
+     * @return the number of frames sent, 0 if batches are not supported or the server is not ready
+     */
+    public int pumpBatch() {
+        BatchUploader uploader = batchUploader;
+        if (!isReady || !batchSupported || uploader == null) {
+            return 0;
+        }
+        int sent = uploader.pump();
+        if (sent == 0) {
+            probeCredits();
+        } else {
+            updatePriority();
+        }
+        return sent;
+    }
+
+    /**
+     * @return the records the server can take now, see {@link CreditWindow#available()}
+     */
+    public int getAvailableCredits() {
+        int available = credits.available();
+        if (available == 0) probeCredits();
+        return available;
+    }
+
+    public CreditWindow getCreditWindow() {
+        return credits;
+    }
+
+    /**
+     * Read the credits of the server if none arrived for a while, in case a notification was lost.
+     */
+    private void probeCredits() {
+        BleLink l = link;
+        if (l == null || !isReady || !credits.shouldProbe()) return;
+        Log.d(TAG, "No credits from " + address + " since " + CreditWindow.PROBE_INTERVAL_MS + " ms, reading them");
+        operationQueue.enqueue(GattOperations.read(l, Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID));
+    }
 
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(Constants.CharacteristicLatitudeUUID);
-        if (characteristic == null) {
+    /**
+     * @param metrics where the latency of the connection phases and of the operations is recorded, may be null
+     */
+    public void setLatencyMetrics(LatencyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param ranking updated with the outcome of every connection attempt and operation, may be null
+     */
+    public void setServerRanking(ServerRanking ranking) {
+        this.ranking = ranking;
+    }
+
+    /**
+     * Raise the connection priority while a backlog drains and lower it once the link idles,
+     * see {@link ConnectionPriorityPolicy}.
+     */
+    private void updatePriority() {
+        BleLink l = link;
+        if (l == null || !isConnected) return;
+        int priority = priorityPolicy.update(operationQueue.size());
+        if (priority != ConnectionPriorityPolicy.NO_CHANGE) requestPriority(l, priority);
+        long next = priorityPolicy.getNextCheckMillis();
+        synchronized (this) {
+            if (priorityFuture != null) priorityFuture.cancel(false);
+            priorityFuture = next >= 0 ? scheduler.schedule(priorityRunnable, next, TimeUnit.MILLISECONDS) : null;
+        }
+    }
+
+    private synchronized void cancelPriorityCheck() {
+        if (priorityFuture != null) priorityFuture.cancel(false);
+        priorityFuture = null;
+    }
+
+    private void requestPriority(BleLink l, int priority) {
+        Log.d(TAG, "Connection priority of " + address + " set to " + priority);
+        l.requestConnectionPriority(priority);
+        // The 2M PHY halves the air time of a burst, the 1M one reaches further while idle
+        if (priority != BleLink.CONNECTION_PRIORITY_BALANCED) {
+            l.setPreferredPhy(priority == BleLink.CONNECTION_PRIORITY_HIGH);
+        }
+    }
+
+    public ConnectionPriorityPolicy getPriorityPolicy() {
+        return priorityPolicy;
+    }
+
+    private void recordSince(LatencyMetrics.Phase phase, long startNanos) {
+        LatencyMetrics m = metrics;
+        if (m != null && startNanos != 0) m.record(address, phase, clock.nowNanos() - startNanos);
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    public void sendMessage(byte[] latitude, byte[] longitude, byte[] timestamp) {
+        sendMessage(latitude, longitude, timestamp, null);
+    }
+
+    /**
+     * @param tag identifies the message in the {@link Events.MessageSent} posted once, after the
+     *            last write or at the first failure, may be null
+     */
+    public void sendMessage(byte[] latitude, byte[] longitude, byte[] timestamp, Object tag) {
+        BleLink l = link;
+        if (l == null || !credits.tryAcquire()) {
+            // Not connected, or the server has no room for the fix
+            new MessageTracker(address, 3, tag, events, metrics, null, clock).OnOperationDone(null, GattOperationQueue.STATUS_NOT_STARTED);
             return;
         }
-        this.longitude = longitude;
-        this.timestamp = timestamp;
-        characteristic.setValue(latitude);
-        mGatt.writeCharacteristic(characteristic);
+        MessageTracker tracker = new MessageTracker(address, 3, tag, events, metrics, credits, clock);
+        operationQueue.enqueue(GattOperations.write(l, Constants.LocationServiceUUID, Constants.CharacteristicLatitudeUUID, latitude)
+                .setOnOperationDoneListener(tracker));
+        operationQueue.enqueue(GattOperations.write(l, Constants.LocationServiceUUID, Constants.CharacteristicLongitudeUUID, longitude)
+                .setOnOperationDoneListener(tracker));
+        operationQueue.enqueue(GattOperations.write(l, Constants.TimeServiceUUID, Constants.CharacteristicTimestampUUID, timestamp)
+                .setOnOperationDoneListener(tracker));
+        updatePriority();
     }
 
     public void sendMessage(String latitude, String longitude, String timestamp) {
@@ -140,59 +479,172 @@ public class ConnectBLETask {
         sendMessage(latitude.getBytes(), longitude.getBytes(), timestamp.getBytes());
     }
 
+    /**
+     * Send the whole fix as a single binary record on the Location characteristic.
+     *
+     * @param locationRecord the fix to send, encoded with {@link LocationRecordCodec}
+     */
+    public void sendMessage(LocationRecord locationRecord) {
+        sendMessage(locationRecord, null);
+    }
+
+    public void sendMessage(LocationRecord locationRecord, Object tag) {
+        // The write may wait in the queue, so each record gets its own buffer
+        byte[] record = new byte[LocationRecordCodec.RECORD_SIZE];
+        LocationRecordCodec.encode(locationRecord, record, 0);
+        BleLink l = link;
+        if (l == null || !credits.tryAcquire()) {
+            new MessageTracker(address, 1, tag, events, metrics, null, clock).OnOperationDone(null, GattOperationQueue.STATUS_NOT_STARTED);
+            return;
+        }
+        MessageTracker tracker = new MessageTracker(address, 1, tag, events, metrics, credits, clock);
+        operationQueue.enqueue(GattOperations.write(l, Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, record)
+                .setOnOperationDoneListener(tracker));
+        updatePriority();
+    }
+
     public void startClient() {
-        this.mGatt = server.getBluetoothDevice().connectGatt(context, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
-        server.setBluetoothGatt(this.mGatt);
-        server.getBluetoothGatt().requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-        server.getBluetoothGatt().connect();
+        if (connection.connect()) openLink();
+    }
 
+    private synchronized void openLink() {
+        connectStartNanos = clock.nowNanos();
+        if (link != null && link.connect()) {
+            // Kept from the previous connection, see OnConnectionStateChange
+            return;
+        }
+        if (link != null) closeLink(link);
+        link = transport.connect(address, linkCallback);
+        if (link == null) {
+            Log.e(TAG, "openLink: cannot connect to " + address);
+            scheduleReconnect(connection.onDisconnected());
+        }
     }
 
-    public void stopClient() {
-                    mGatt.close();
-                    mGatt = null;
+    private synchronized void closeLink(BleLink l) {
+        l.close();
+        if (link == l) {
+            link = null;
+        }
+    }
+
+    private synchronized void scheduleReconnect(long delay) {
+        cancelReconnect();
+        if (delay != ConnectionStateMachine.NO_POLL) {
+            Log.d(TAG, "Reconnecting to " + getAddress() + " in " + delay + " ms");
+            reconnectFuture = scheduler.schedule(reconnectRunnable, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelReconnect() {
+        if (reconnectFuture != null) reconnectFuture.cancel(false);
+        reconnectFuture = null;
+    }
+
+    private void reconnect() {
+        if (connection.poll()) {
+            openLink();
+        } else {
+            scheduleReconnect(connection.getPollDelay());
+        }
     }
 
-    public void setCallback(BluetoothGattCallback callback) {
-        this.temporaryClient = true;
-        this.mGattCallback = callback;
+    public void stopClient() {
+        connection.stop();
+        cancelReconnect();
+        operationQueue.reset();
+        BleLink l = link;
+        if (l != null) closeLink(l);
+        cancelPriorityCheck();
     }
 
     public void setJobDone() {
         jobDone = true;
         stopClient();
-        if (this.onJobDoneListener != null) onJobDoneListener.OnJobDone();
+        EventDispatcher e = events;
+        if (e != null) e.post(new Events.JobDone(address));
     }
 
     public boolean getJobDone() {
         return jobDone;
     }
 
-    public BluetoothGatt getmGatt() {
-        return mGatt;
-    }
-
-    public void setOnJobDoneListener(Listeners.OnJobDoneListener l) {
-        this.onJobDoneListener = l;
+    /**
+     * @return the current link, null while disconnected
+     */
+    public BleLink getLink() {
+        return link;
     }
 
-    public void setOnConnectionLostListener(Listeners.OnConnectionLost l) {
-        this.OnConnectionLostListener = l;
+    /**
+     * @param events where {@link Events.ServerReady}, {@link Events.NotificationReceived},
+     *               {@link Events.MessageSent}, {@link Events.ConnectionLost} and {@link Events.JobDone}
+     *               are posted, may be null
+     */
+    public void setEventDispatcher(EventDispatcher events) {
+        this.events = events;
     }
 
+    /**
+     * Drop the current connection and connect again after the backoff.
+     */
     public void restartClient() {
         Log.d(TAG, "RestartClient");
-        stopClient();
-        maxAttempt++;
-        if (maxAttempt == Constants.MAX_ATTEMPTS_RETRY) {
-            Log.d(TAG, "RestartClient: stop");
-            return;
-        }
-        startClient();
+        BleLink l = link;
+        if (l != null) l.disconnect();
     }
 
     public int getMaxAttempt() {
-        return maxAttempt;
+        return connection.getFailures();
     }
-}
 
+    public ConnectionStateMachine getConnection() {
+        return connection;
+    }
+
+    /**
+     * Reports the outcome of a message made of several writes: success after the last one,
+     * failure as soon as one of them fails. A failed message gives its record back to the credits.
+     */
+    private static class MessageTracker implements GattOperation.OnOperationDoneListener {
+        private final String address;
+        private final Object tag;
+        private final EventDispatcher events;
+        private final LatencyMetrics metrics;
+        private final CreditWindow credits;
+        private final Clock clock;
+        private final long start;
+        private int remaining;
+        private boolean reported = false;
+
+        /**
+         * @param credits the window the record was taken from, null if it was not
+         */
+        MessageTracker(String address, int writes, Object tag, EventDispatcher events, LatencyMetrics metrics,
+                       CreditWindow credits, Clock clock) {
+            this.address = address;
+            this.remaining = writes;
+            this.tag = tag;
+            this.events = events;
+            this.metrics = metrics;
+            this.credits = credits;
+            this.clock = clock;
+            this.start = clock.nowNanos();
+        }
+
+        @Override
+        public void OnOperationDone(GattOperation operation, int status) {
+            boolean success = status == GattOperationQueue.STATUS_SUCCESS;
+            synchronized (this) {
+                if (reported) return;
+                remaining--;
+                if (success && remaining > 0) return;
+                reported = true;
+            }
+            long elapsed = clock.nowNanos() - start;
+            if (!success && credits != null) credits.onAbandoned(1);
+            if (success && metrics != null) metrics.record(address, LatencyMetrics.Phase.MESSAGE, elapsed);
+            if (events != null) events.post(new Events.MessageSent(address, tag, success, elapsed));
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+import it.sapienza.netlab.airmon.common.LegacyTextEncoder;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.listeners.Events;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.BleTransport;
+
+/**
+ * Owns one {@link ConnectBLETask} per server, keyed by device address, and fans every fix out
+ * to all the ready servers at once. Each task has its own operation queue, so the uploads to
+ * different servers run in parallel instead of one after the other.
+ */
+public class ConnectionManager {
+
+    private final static String TAG = ConnectionManager.class.getSimpleName();
+
+    private final BleTransport transport;
+    private final int maxConnections;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, ConnectBLETask> tasks = new ConcurrentHashMap<>();
+    private final LatencyMetrics metrics = new LatencyMetrics();
+    private final ServerRanking ranking = new ServerRanking();
+    private final EventDispatcher events;
+
+    private LocationOutbox outbox;
+    private OnFanOutListener drainListener;
+    private final LocationRecord drainRecord = new LocationRecord();
+    private final LegacyTextEncoder textEncoder = new LegacyTextEncoder(true);
+    private final byte[] textBuffer = new byte[LegacyTextEncoder.TIMESTAMP_LENGTH];
+    private long nextToSend = 0;                //First outbox record not sent yet
+    private long firstFailed = Long.MAX_VALUE;  //First record of the current drain that no server accepted
+    private long lastDelivered = 0;             //Last record accepted by at least one server
+    private long textDelivered = 0;             //Records before it were accepted as text by at least one server
+    private final BatchUploader.OnAckListener batchAckListener = new BatchUploader.OnAckListener() {
+        @Override
+        public void OnAck(long nextSeq) {
+            commitDelivered();
+        }
+    };
+    private String lastReplaced;                //Server dropped by the last connectBest, if any
+
+    /**
+     * @param transport opens the links to the servers
+     * @param scheduler runs the reconnections and the timers of every task, on the thread of the GATT callbacks
+     * @param clock     the time of the scheduler
+     */
+    public ConnectionManager(BleTransport transport, int maxConnections, ScheduledExecutorService scheduler, Clock clock) {
+        this(transport, maxConnections, scheduler, clock, new EventDispatcher());
+    }
+
+    /**
+     * @param events where the tasks post their events, see {@link ConnectBLETask#setEventDispatcher}:
+     *               the manager handles the ones it needs on the scheduler
+     */
+    public ConnectionManager(BleTransport transport, int maxConnections, ScheduledExecutorService scheduler, Clock clock,
+                             EventDispatcher events) {
+        this.transport = transport;
+        this.maxConnections = maxConnections;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.events = events;
+        events.subscribe(Events.ServerReady.class, scheduler, new EventDispatcher.Subscriber<Events.ServerReady>() {
+            @Override
+            public void OnEvent(Events.ServerReady event) {
+                // Deliver what was stored while no server was connected
+                drain();
+            }
+        });
+        events.subscribe(Events.NotificationReceived.class, scheduler, new EventDispatcher.Subscriber<Events.NotificationReceived>() {
+            @Override
+            public void OnEvent(Events.NotificationReceived event) {
+                byte[] value = event.getValue();
+                if (!CreditCodec.isCredit(value)) {
+                    // The server could not store the last record: deliver it again
+                    onMemoryFull();
+                } else if (CreditCodec.getFreeSlots(value) > 0) {
+                    // The credits may have opened, e.g. after the server freed its storage
+                    drain();
+                }
+            }
+        });
+        events.subscribe(Events.MessageSent.class, scheduler, new EventDispatcher.Subscriber<Events.MessageSent>() {
+            @Override
+            public void OnEvent(Events.MessageSent event) {
+                // Other managers may share the dispatcher
+                if (event.getTag() instanceof FanOut && ((FanOut) event.getTag()).isOwnedBy(ConnectionManager.this)) {
+                    ((FanOut) event.getTag()).onMessageSent(event.getAddress(), event.isSuccess(), event.getElapsedNanos());
+                }
+            }
+        });
+    }
+
+    /**
+     * Open a connection to the server, unless one is already open or the pool is full.
+     *
+     * @return the task handling the server, or null if the pool is full
+     */
+    public synchronized ConnectBLETask connect(String address) {
+        ConnectBLETask task = tasks.get(address);
+        if (task != null) {
+            return task;
+        }
+        if (tasks.size() >= maxConnections) {
+            Log.d(TAG, "connect: pool full, skipping " + address);
+            return null;
+        }
+        task = new ConnectBLETask(address, transport, scheduler, clock);
+        task.setBatchOutbox(outbox, batchAckListener);
+        task.setLatencyMetrics(metrics);
+        task.setServerRanking(ranking);
+        // The task reconnects by itself after a loss, records wait in the outbox meanwhile
+        task.setEventDispatcher(events);
+        tasks.put(address, task);
+        ranking.onSelected(address);
+        task.startClient();
+        return task;
+    }
+
+    /**
+     * Connect to the best servers among the candidates, in the order of the {@link ServerRanking},
+     * until the pool is full. When it is full, the connected server ranked last is replaced by
+     * the best one not connected if {@link ServerRanking#shouldSwitch} allows it, see
+     * {@link #getLastReplaced()}.
+     *
+     * @return the number of servers connected to, in free slots or in place of a worse one
+     */
+    public synchronized int connectBest(Collection<String> candidates) {
+        int connected = 0;
+        lastReplaced = null;
+        List<String> ranked = ranking.rank(candidates);
+        for (String address : ranked) {
+            if (tasks.containsKey(address)) continue;
+            if (tasks.size() < maxConnections) {
+                if (connect(address) != null) connected++;
+                continue;
+            }
+            // The best server not connected yet against the worst one connected
+            List<String> current = ranking.rank(tasks.keySet());
+            String worst = current.get(current.size() - 1);
+            if (ranking.shouldSwitch(worst, address)) {
+                Log.d(TAG, "connectBest: replacing " + worst + " with " + address);
+                disconnect(worst);
+                lastReplaced = worst;
+                if (connect(address) != null) connected++;
+            }
+            break;
+        }
+        return connected;
+    }
+
+    /**
+     * @return the server disconnected by the last {@link #connectBest} to make room for a better
+     * one, null if it only filled free slots
+     */
+    public synchronized String getLastReplaced() {
+        return lastReplaced;
+    }
+
+    public synchronized void disconnect(String address) {
+        ConnectBLETask task = tasks.remove(address);
+        if (task != null) {
+            // Also cancels a pending reconnection
+            task.stopClient();
+        }
+    }
+
+    public synchronized void disconnectAll() {
+        for (String address : new ArrayList<>(tasks.keySet())) {
+            disconnect(address);
+        }
+    }
+
+    public ConnectBLETask getTask(String address) {
+        return tasks.get(address);
+    }
+
+    public int size() {
+        return tasks.size();
+    }
+
+    /**
+     * @return the latency histograms of every server connected so far
+     */
+    public LatencyMetrics getLatencyMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the ranking of the servers, fed with the outcome of every operation of the tasks
+     */
+    public ServerRanking getServerRanking() {
+        return ranking;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public List<ConnectBLETask> getReadyTasks() {
+        List<ConnectBLETask> ready = new ArrayList<>();
+        for (ConnectBLETask task : tasks.values()) {
+            if (task.isReady()) ready.add(task);
+        }
+        return ready;
+    }
+
+    /**
+     * @return where the tasks post their events, e.g. {@link Events.ServerReady}
+     */
+    public EventDispatcher getEventDispatcher() {
+        return events;
+    }
+
+    /**
+     * @param outbox   the fixes to deliver, a record is committed once every ready server has it,
+     *                 see {@link #commitDelivered()}
+     * @param listener notified of the outcome of every record sent by {@link #drain()}, may be null
+     */
+    public synchronized void setOutbox(LocationOutbox outbox, OnFanOutListener listener) {
+        this.outbox = outbox;
+        this.drainListener = listener;
+        this.nextToSend = 0;
+        this.textDelivered = 0;
+        for (ConnectBLETask task : tasks.values()) task.setBatchOutbox(outbox, batchAckListener);
+    }
+
+    /**
+     * Send the outbox records not sent yet to every ready server. Servers supporting batches get
+     * them in batch frames, see {@link ConnectBLETask#pumpBatch()}. The others get them as text,
+     * at most Constants.OUTBOX_DRAIN_BATCH at a time: the next batch follows as soon as the last
+     * one is delivered. Only the records the credits of a server allow are sent to it, see {@link CreditWindow}.
+     *
+     * @return the number of text records and batch frames sent
+     */
+    public synchronized int drain() {
+        if (outbox == null) {
+            return 0;
+        }
+        int sent = 0;
+        List<ConnectBLETask> legacy = new ArrayList<>();
+        int credits = 0;
+        for (ConnectBLETask task : getReadyTasks()) {
+            if (task.isBatchSupported()) {
+                sent += task.pumpBatch();
+                continue;
+            }
+            int available = task.getAvailableCredits();
+            if (available > 0) {
+                legacy.add(task);
+                credits = Math.max(credits, available);
+            }
+        }
+        if (legacy.isEmpty()) {
+            return sent;
+        }
+        // Records beyond the credits of every server would only be discarded
+        int batch = Math.min(Constants.OUTBOX_DRAIN_BATCH, credits);
+        long textSeq = Math.max(textDelivered, outbox.getReadSequence());
+        long seq = Math.max(nextToSend, textSeq);
+        if (seq == textSeq) {
+            firstFailed = Long.MAX_VALUE;
+        }
+        int records = 0;
+        while (records < batch && seq < outbox.getWriteSequence() && outbox.read(seq, drainRecord)) {
+            final long recordSeq = seq;
+            final boolean last = records == batch - 1 || seq == outbox.getWriteSequence() - 1;
+            nextToSend = seq + 1;
+            // The writes wait in the queues, so each field gets its own array
+            byte[] latitude = Arrays.copyOf(textBuffer, LegacyTextEncoder.encodeCoordinate(drainRecord.getLatitudeE6(), textBuffer, 0));
+            byte[] longitude = Arrays.copyOf(textBuffer, LegacyTextEncoder.encodeCoordinate(drainRecord.getLongitudeE6(), textBuffer, 0));
+            byte[] timestamp = Arrays.copyOf(textBuffer, textEncoder.encodeTimestamp(drainRecord.getEpochSeconds() * 1000, textBuffer, 0));
+            sendTo(legacy, latitude, longitude, timestamp,
+                    new OnFanOutListener() {
+                        @Override
+                        public void OnServerResult(String address, boolean success, long elapsedNanos) {
+                            if (drainListener != null) drainListener.OnServerResult(address, success, elapsedNanos);
+                        }
+
+                        @Override
+                        public void OnFanOutDone(int succeeded, int total) {
+                            onDrained(recordSeq, succeeded > 0, last);
+                            if (drainListener != null) drainListener.OnFanOutDone(succeeded, total);
+                        }
+                    });
+            records++;
+            if (firstFailed <= seq) {
+                // Failed right away, e.g. the link dropped: retry at the next drain
+                break;
+            }
+            seq++;
+        }
+        return sent + records;
+    }
+
+    private void onDrained(long seq, boolean delivered, boolean lastOfBatch) {
+        synchronized (this) {
+            if (outbox == null) return;
+            if (!delivered) {
+                // Send it again at the next drain, and do not commit past it in the meantime
+                firstFailed = Math.min(firstFailed, seq);
+                nextToSend = Math.min(nextToSend, seq);
+                return;
+            }
+            if (seq < firstFailed) {
+                textDelivered = Math.max(textDelivered, seq + 1);
+                lastDelivered = seq;
+                commitDelivered();
+            }
+        }
+        if (lastOfBatch) drain();
+    }
+
+    private synchronized void onMemoryFull() {
+        if (outbox == null || lastDelivered == 0) return;
+        if (outbox.rewind(lastDelivered)) {
+            nextToSend = Math.min(nextToSend, lastDelivered);
+            textDelivered = Math.min(textDelivered, lastDelivered);
+        }
+    }
+
+    /**
+     * Commit the outbox records every ready server has: the ones each batch server acked and,
+     * if a text server is ready, the ones accepted as text. A server that is not ready does not
+     * hold the others back: once ready again it resumes from the oldest record left.
+     */
+    private synchronized void commitDelivered() {
+        if (outbox == null) return;
+        long to = Long.MAX_VALUE;
+        for (ConnectBLETask task : tasks.values()) {
+            if (!task.isReady()) continue;
+            if (task.isBatchSupported()) {
+                long acked = task.getBatchAckedSequence();
+                // 0 until the server answers the sync frame of the connection
+                if (acked > 0) to = Math.min(to, acked);
+            } else {
+                to = Math.min(to, Math.max(textDelivered, outbox.getReadSequence()));
+            }
+        }
+        if (to != Long.MAX_VALUE) outbox.commit(to);
+    }
+
+    /**
+     * Send the fix as text to every ready server.
+     *
+     * @return the number of servers the fix was sent to
+     */
+    public int sendToAll(byte[] latitude, byte[] longitude, byte[] timestamp, OnFanOutListener listener) {
+        return sendTo(getReadyTasks(), latitude, longitude, timestamp, listener);
+    }
+
+    private int sendTo(List<ConnectBLETask> servers, byte[] latitude, byte[] longitude, byte[] timestamp, OnFanOutListener listener) {
+        FanOut fanOut = new FanOut(servers.size(), listener);
+        for (ConnectBLETask task : servers) {
+            task.sendMessage(latitude, longitude, timestamp, fanOut);
+        }
+        return servers.size();
+    }
+
+    /**
+     * Send the fix as a binary record to every ready server.
+     *
+     * @return the number of servers the fix was sent to
+     */
+    public int sendToAll(LocationRecord record, OnFanOutListener listener) {
+        List<ConnectBLETask> ready = getReadyTasks();
+        FanOut fanOut = new FanOut(ready.size(), listener);
+        for (ConnectBLETask task : ready) {
+            task.sendMessage(record, fanOut);
+        }
+        return ready.size();
+    }
+
+    /**
+     * Collects the per-server outcomes of a single fan-out.
+     */
+    private class FanOut {
+        private final OnFanOutListener listener;
+        private final int total;
+        private final AtomicInteger remaining;
+        private final AtomicInteger succeeded = new AtomicInteger();
+
+        FanOut(int total, OnFanOutListener listener) {
+            this.total = total;
+            this.remaining = new AtomicInteger(total);
+            this.listener = listener;
+            if (total == 0 && listener != null) listener.OnFanOutDone(0, 0);
+        }
+
+        boolean isOwnedBy(ConnectionManager manager) {
+            return manager == ConnectionManager.this;
+        }
+
+        void onMessageSent(String address, boolean success, long elapsedNanos) {
+            if (success) succeeded.incrementAndGet();
+            if (listener == null) return;
+            listener.OnServerResult(address, success, elapsedNanos);
+            if (remaining.decrementAndGet() == 0) listener.OnFanOutDone(succeeded.get(), total);
+        }
+    }
+
+    public interface OnFanOutListener {
+        void OnServerResult(String address, boolean success, long elapsedNanos);
+
+        void OnFanOutDone(int succeeded, int total);
+    }
+}
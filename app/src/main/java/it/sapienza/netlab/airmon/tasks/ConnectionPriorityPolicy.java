@@ -0,0 +1,123 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.transport.BleLink;
+
+/**
+ * Chooses the connection priority of a link from its backlog: short connection intervals only
+ * while a burst of operations is draining, long ones while the link idles between fixes.
+ * <p>
+ * The time to drain the queue is estimated as its depth times the round-trip time observed for
+ * the operations at the current priority. Above {@link #RAISE_DRAIN_MS} the priority is raised
+ * to high. Once the queue is empty it drops back to balanced after {@link #BALANCED_AFTER_MS},
+ * then to low power after {@link #LOW_POWER_AFTER_MS}, so that a fix arriving right after a
+ * burst does not pay for two parameter updates.
+ * <p>
+ * The methods return the priority to request on the link, or {@link #NO_CHANGE}. Thread safe.
+ */
+public class ConnectionPriorityPolicy {
+
+    public static final int NO_CHANGE = -1;
+    public static final long RAISE_DRAIN_MS = 250;
+    public static final long BALANCED_AFTER_MS = 1000;
+    public static final long LOW_POWER_AFTER_MS = 3000;
+    public static final double RTT_ALPHA = 0.2;
+
+    // Longest connection interval of each priority on Android, the round-trip time before any is observed
+    private static final double[] NOMINAL_RTT_MS = {50, 15, 125};
+
+    private final Clock clock;
+    private final double[] rttMillis = NOMINAL_RTT_MS.clone();     //Smoothed, by priority
+    private int priority = BleLink.CONNECTION_PRIORITY_BALANCED;
+    private long idleSince = -1;                                    //When the queue emptied, -1 while busy
+    private long raised = 0;
+
+    public ConnectionPriorityPolicy() {
+        this(Clock.SYSTEM);
+    }
+
+    public ConnectionPriorityPolicy(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * A new connection starts with the discovery and the subscriptions, a burst of its own.
+     *
+     * @return the priority to request
+     */
+    public synchronized int onConnected() {
+        priority = BleLink.CONNECTION_PRIORITY_HIGH;
+        idleSince = -1;
+        raised++;
+        return priority;
+    }
+
+    /**
+     * Update the round-trip time of the current priority with a completed operation.
+     */
+    public synchronized void onOperationDone(long elapsedNanos) {
+        double millis = elapsedNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        rttMillis[priority] += RTT_ALPHA * (millis - rttMillis[priority]);
+    }
+
+    /**
+     * To be called when the depth of the queue changes, and after {@link #getNextCheckMillis()} while it is empty.
+     *
+     * @param depth operations queued or running
+     * @return the priority to request, or {@link #NO_CHANGE}
+     */
+    public synchronized int update(int depth) {
+        if (depth > 0) {
+            idleSince = -1;
+            if (priority != BleLink.CONNECTION_PRIORITY_HIGH && getDrainMillis(depth) > RAISE_DRAIN_MS) {
+                raised++;
+                return set(BleLink.CONNECTION_PRIORITY_HIGH);
+            }
+            return NO_CHANGE;
+        }
+        long now = clock.nowMillis();
+        if (idleSince < 0) idleSince = now;
+        long idle = now - idleSince;
+        if (idle >= LOW_POWER_AFTER_MS) return set(BleLink.CONNECTION_PRIORITY_LOW_POWER);
+        if (idle >= BALANCED_AFTER_MS && priority == BleLink.CONNECTION_PRIORITY_HIGH) {
+            return set(BleLink.CONNECTION_PRIORITY_BALANCED);
+        }
+        return NO_CHANGE;
+    }
+
+    private int set(int priority) {
+        if (this.priority == priority) return NO_CHANGE;
+        this.priority = priority;
+        return priority;
+    }
+
+    /**
+     * @return the delay after which {@link #update(int)} may lower the priority of the idle link, -1 if it will not
+     */
+    public synchronized long getNextCheckMillis() {
+        if (idleSince < 0 || priority == BleLink.CONNECTION_PRIORITY_LOW_POWER) return -1;
+        long idle = clock.nowMillis() - idleSince;
+        long next = priority == BleLink.CONNECTION_PRIORITY_HIGH ? BALANCED_AFTER_MS : LOW_POWER_AFTER_MS;
+        return Math.max(0, next - idle);
+    }
+
+    /**
+     * @return the estimated time to complete the operations at the current priority
+     */
+    public synchronized long getDrainMillis(int depth) {
+        return Math.round(depth * rttMillis[priority]);
+    }
+
+    public synchronized int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the times the priority was raised to high
+     */
+    public synchronized long getRaised() {
+        return raised;
+    }
+}
@@ -0,0 +1,219 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.Random;
+
+import it.sapienza.netlab.airmon.common.Clock;
+
+/**
+ * Connection life cycle of a server, deciding when to reconnect.
+ * <p>
+ * Every failed attempt, or lost connection, is retried after an exponential backoff with
+ * jitter, so that the retries of several clients do not pile up on a busy radio. After
+ * {@code maxAttempts} consecutive failures the circuit opens and the machine stays
+ * {@link State#FAILED} for {@link #COOLDOWN_MS}; then a single attempt is allowed, and the
+ * circuit opens again at once if it fails.
+ * <p>
+ * The machine does not connect by itself nor keep timers: the owner reports GATT events, opens
+ * the connection when {@link #connect()} or {@link #poll()} say so, and calls {@link #poll()}
+ * again after the returned delays. Methods are synchronized, events may come from any thread.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {IDLE, CONNECTING, DISCOVERING, READY, BACKING_OFF, FAILED}
+
+    public static final long BASE_BACKOFF_MS = 500;
+    public static final long MAX_BACKOFF_MS = 30000;
+    public static final long COOLDOWN_MS = 60000;
+    public static final long NO_POLL = -1;
+
+    private final int maxAttempts;
+    private final Clock clock;
+    private final Random random;
+    private State state = State.IDLE;
+    private int failures;                       //Consecutive failed attempts
+    private long nextAttemptAt;
+    private long lostAt = -1;                   //When the last ready connection was lost, -1 if none
+    private OnStateChangedListener listener;
+
+    private int recoveries;
+    private long totalRecoveryMillis;
+    private long lastRecoveryMillis = -1;
+
+    public ConnectionStateMachine(int maxAttempts) {
+        this(maxAttempts, Clock.SYSTEM, new Random());
+    }
+
+    public ConnectionStateMachine(int maxAttempts, Clock clock, Random random) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.clock = clock;
+        this.random = random;
+    }
+
+    public synchronized void setOnStateChangedListener(OnStateChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Ask for a connection.
+     *
+     * @return true if the caller must open it now
+     */
+    public boolean connect() {
+        synchronized (this) {
+            if (state != State.IDLE) return false;
+            failures = 0;
+        }
+        return moveTo(State.CONNECTING, State.IDLE);
+    }
+
+    /**
+     * The link is up, services are being discovered.
+     */
+    public void onConnected() {
+        moveTo(State.DISCOVERING, State.CONNECTING);
+    }
+
+    /**
+     * Services are discovered and the server can be used.
+     */
+    public void onReady() {
+        synchronized (this) {
+            if (state != State.DISCOVERING) return;
+            failures = 0;
+            if (lostAt >= 0) {
+                lastRecoveryMillis = clock.nowMillis() - lostAt;
+                totalRecoveryMillis += lastRecoveryMillis;
+                recoveries++;
+                lostAt = -1;
+            }
+        }
+        moveTo(State.READY, State.DISCOVERING);
+    }
+
+    /**
+     * The attempt failed or the connection was lost.
+     *
+     * @return milliseconds until {@link #poll()} must be called, or {@link #NO_POLL}
+     */
+    public long onDisconnected() {
+        State from;
+        State to;
+        long delay;
+        synchronized (this) {
+            from = state;
+            if (from == State.IDLE || from == State.BACKING_OFF || from == State.FAILED) return NO_POLL;
+            if (from == State.READY) {
+                // A working connection dropped: start over from the first backoff step
+                lostAt = clock.nowMillis();
+                failures = 0;
+            }
+            failures++;
+            if (failures >= maxAttempts) {
+                to = State.FAILED;
+                delay = COOLDOWN_MS;
+            } else {
+                to = State.BACKING_OFF;
+                delay = backoff(failures);
+            }
+            nextAttemptAt = clock.nowMillis() + delay;
+        }
+        moveTo(to, from);
+        if (from == State.READY && listener != null) listener.OnConnectionLost();
+        return delay;
+    }
+
+    /**
+     * Jittered exponential backoff: a random delay between half and all of
+     * BASE_BACKOFF_MS * 2^(failures - 1), capped to MAX_BACKOFF_MS.
+     */
+    private long backoff(int failures) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(failures - 1, 30));
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Check whether the backoff or the cooldown is over.
+     *
+     * @return true if the caller must open the connection now
+     */
+    public boolean poll() {
+        State from;
+        synchronized (this) {
+            from = state;
+            if (from != State.BACKING_OFF && from != State.FAILED) return false;
+            if (clock.nowMillis() < nextAttemptAt) return false;
+            if (from == State.FAILED) {
+                // Half open: one more failure opens the circuit again
+                failures = maxAttempts - 1;
+            }
+        }
+        return moveTo(State.CONNECTING, from);
+    }
+
+    /**
+     * @return milliseconds until {@link #poll()} can connect, or {@link #NO_POLL} if not waiting
+     */
+    public synchronized long getPollDelay() {
+        if (state != State.BACKING_OFF && state != State.FAILED) return NO_POLL;
+        return Math.max(0, nextAttemptAt - clock.nowMillis());
+    }
+
+    /**
+     * The owner closed the connection on purpose: no reconnection.
+     */
+    public void stop() {
+        State from;
+        synchronized (this) {
+            from = state;
+            lostAt = -1;
+        }
+        moveTo(State.IDLE, from);
+    }
+
+    private boolean moveTo(State to, State expected) {
+        OnStateChangedListener l;
+        synchronized (this) {
+            if (state != expected || state == to) return false;
+            state = to;
+            l = listener;
+        }
+        if (l != null) l.OnStateChanged(expected, to);
+        return true;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return consecutive failed attempts
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return time from the last lost connection to the server being ready again, or -1
+     */
+    public synchronized long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /**
+     * @return mean time to recover over every lost connection recovered so far, or -1
+     */
+    public synchronized double getMeanRecoveryMillis() {
+        return recoveries == 0 ? -1 : (double) totalRecoveryMillis / recoveries;
+    }
+
+    public synchronized int getRecoveries() {
+        return recoveries;
+    }
+
+    public interface OnStateChangedListener {
+        void OnStateChanged(State from, State to);
+
+        void OnConnectionLost();
+    }
+}
@@ -0,0 +1,142 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+
+/**
+ * Sender side of the {@link CreditCodec} flow control of one connection: how many records can
+ * be written without the server discarding them.
+ * <p>
+ * Records are counted when sent and given back when they will be sent again, e.g. after a lost
+ * batch frame, so that the count matches the records the server will store. A credit from the
+ * server then opens the window up to the records it stored plus its free slots. Until the first
+ * credit the window is unlimited, as the firmware without flow control never sends one; its
+ * memory full notification closes the window for {@link BatchUploader#FULL_RETRY_MS} instead.
+ * <p>
+ * A credit may be lost as any notification: when the window stays closed for
+ * {@link #PROBE_INTERVAL_MS} the owner should read the Location characteristic, see {@link #shouldProbe()}.
+ */
+public class CreditWindow {
+
+    public static final long PROBE_INTERVAL_MS = 5000;
+
+    private final Clock clock;
+    private boolean known = false;          //A credit was received on this connection
+    private long sent = 0;                  //Records sent on this connection and not given back
+    private long stored = 0;                //Records stored by the server, as of the last credit
+    private long limit = 0;                 //Records that can be sent on this connection
+    private int freeSlots = -1;
+    private boolean full = false;           //Memory full notified by a server without credits
+    private long fullSince;
+    private long lastUpdate;                //Last credit or probe
+
+    public CreditWindow() {
+        this(Clock.SYSTEM);
+    }
+
+    public CreditWindow(Clock clock) {
+        this.clock = clock;
+        this.lastUpdate = clock.nowMillis();
+    }
+
+    /**
+     * Start counting a new connection: the server counts its records from zero as well.
+     */
+    public synchronized void reset() {
+        known = false;
+        sent = 0;
+        stored = 0;
+        limit = 0;
+        freeSlots = -1;
+        lastUpdate = clock.nowMillis();
+    }
+
+    /**
+     * @return the records that can be sent now, Integer.MAX_VALUE until the server sends a credit
+     */
+    public synchronized int available() {
+        if (full) {
+            if (clock.nowMillis() - fullSince < BatchUploader.FULL_RETRY_MS) return 0;
+            full = false;
+        }
+        if (!known) return Integer.MAX_VALUE;
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, limit - sent));
+    }
+
+    /**
+     * Take one record from the window.
+     *
+     * @return false if the window is closed, nothing is taken
+     */
+    public synchronized boolean tryAcquire() {
+        if (available() == 0) return false;
+        sent++;
+        return true;
+    }
+
+    /**
+     * @param records records just sent, at most {@link #available()}
+     */
+    public synchronized void onSent(int records) {
+        sent += records;
+    }
+
+    /**
+     * @param records records sent and not stored, that will be sent again or not at all
+     */
+    public synchronized void onAbandoned(int records) {
+        sent = Math.max(0, sent - records);
+    }
+
+    /**
+     * Handle a notification, or a read, of the Location characteristic.
+     *
+     * @return true if more records can be sent than before
+     */
+    public synchronized boolean onNotification(byte[] value) {
+        int before = available();
+        lastUpdate = clock.nowMillis();
+        if (!CreditCodec.isCredit(value)) {
+            full = true;
+            fullSince = lastUpdate;
+            return false;
+        }
+        // Credits of a connection come in order: the count only grows, modulo 2^32 on the air
+        stored += (CreditCodec.getStored(value) - stored) & 0xFFFFFFFFL;
+        freeSlots = CreditCodec.getFreeSlots(value);
+        limit = stored + freeSlots;
+        known = true;
+        full = false;
+        return available() > before;
+    }
+
+    /**
+     * @return true if the window is closed since {@link #PROBE_INTERVAL_MS}: the caller should read
+     * the credits of the server, and will be told again after another interval
+     */
+    public synchronized boolean shouldProbe() {
+        if (!known || available() > 0) return false;
+        long now = clock.nowMillis();
+        if (now - lastUpdate < PROBE_INTERVAL_MS) return false;
+        lastUpdate = now;
+        return true;
+    }
+
+    /**
+     * @return true once the server sent a credit on this connection
+     */
+    public synchronized boolean isKnown() {
+        return known;
+    }
+
+    /**
+     * @return the free slots of the last credit, -1 before the first one
+     */
+    public synchronized int getFreeSlots() {
+        return freeSlots;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+}
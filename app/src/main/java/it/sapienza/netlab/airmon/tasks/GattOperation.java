@@ -0,0 +1,106 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.UUID;
+
+/**
+ * A single GATT request executed by a {@link GattOperationQueue}.
+ * The operation is completed by the matching BluetoothGattCallback method or by its timeout.
+ */
+public abstract class GattOperation {
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    public enum Type {
+        WRITE,
+        READ,
+        WRITE_DESCRIPTOR,
+        REQUEST_MTU,
+        ENABLE_NOTIFICATION
+    }
+
+    private final Type type;
+    private final UUID uuid;
+    private final String name;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MS;
+    private OnOperationDoneListener listener;
+    private volatile long startNanos;
+
+    protected GattOperation(Type type, String name) {
+        this(type, null, name);
+    }
+
+    /**
+     * @param uuid characteristic or descriptor reported by the callback completing the operation,
+     *             null to complete it with any callback of its type
+     */
+    protected GattOperation(Type type, UUID uuid, String name) {
+        this.type = type;
+        this.uuid = uuid;
+        this.name = name;
+    }
+
+    /**
+     * Start the operation.
+     *
+     * @return false if the request could not be issued, the operation is then failed immediately
+     */
+    protected abstract boolean execute();
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the characteristic or descriptor reported by the callback completing the operation, may be null
+     */
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public GattOperation setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    void markStarted(long nanos) {
+        startNanos = nanos;
+    }
+
+    /**
+     * @return the time of the queue's clock, see Clock#nowNanos(), when the queue dispatched the
+     * operation, 0 if it never did
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public OnOperationDoneListener getListener() {
+        return listener;
+    }
+
+    public GattOperation setOnOperationDoneListener(OnOperationDoneListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + name;
+    }
+
+    public interface OnOperationDoneListener {
+        /**
+         * @param operation the completed operation
+         * @param status    the GATT status, or one of the GattOperationQueue.STATUS_* codes
+         */
+        void OnOperationDone(GattOperation operation, int status);
+    }
+}
@@ -0,0 +1,239 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Clock;
+
+/**
+ * Serialises GATT requests: Android allows a single outstanding request per connection,
+ * so the next operation is dispatched as soon as the callback of the previous one arrives.
+ * Each operation is bounded by its own timeout and failures are reported to the listeners.
+ * <p>
+ * The queue is thread safe: operations can be enqueued from any thread and completions are
+ * expected on the binder threads delivering the BluetoothGattCallback events.
+ * <p>
+ * A callback does not tell which request it answers, only its type and UUID. An operation that
+ * timed out or was cancelled while running may still be answered later, so it is kept as stale
+ * and the first matching callback is given to it instead of to the operation running then,
+ * which is often a write of the same characteristic. See {@link #reset()}.
+ */
+public class GattOperationQueue {
+
+    public static final int STATUS_SUCCESS = 0;             //Same value as BluetoothGatt.GATT_SUCCESS
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_STARTED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    private static ScheduledExecutorService sharedTimer;
+
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    private final ArrayDeque<GattOperation> stale = new ArrayDeque<>();     //Ended while their request was in flight, oldest first
+    private GattOperation current;
+    private ScheduledFuture<?> currentTimeout;
+    private boolean abortOnError = false;
+    private OnQueueListener listener;
+
+    public GattOperationQueue() {
+        this(getSharedTimer());
+    }
+
+    public GattOperationQueue(ScheduledExecutorService timer) {
+        this(timer, Clock.SYSTEM);
+    }
+
+    /**
+     * @param timer runs the timeouts
+     * @param clock stamps the operations when they start, see {@link GattOperation#getStartNanos()}
+     */
+    public GattOperationQueue(ScheduledExecutorService timer, Clock clock) {
+        this.timer = timer;
+        this.clock = clock;
+    }
+
+    private static synchronized ScheduledExecutorService getSharedTimer() {
+        if (sharedTimer == null) {
+            sharedTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GattOperationTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedTimer;
+    }
+
+    /**
+     * @param abortOnError if true, a failed operation cancels every operation still pending
+     */
+    public void setAbortOnError(boolean abortOnError) {
+        this.abortOnError = abortOnError;
+    }
+
+    public void setOnQueueListener(OnQueueListener listener) {
+        this.listener = listener;
+    }
+
+    public void enqueue(GattOperation operation) {
+        synchronized (this) {
+            pending.addLast(operation);
+            if (current != null) return;
+        }
+        dispatchNext();
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    /**
+     * To be called from the BluetoothGattCallback method matching the operation type.
+     * Completions that do not match the running operation are ignored, and so are the late
+     * callbacks of the stale operations, even when they match the running one.
+     *
+     * @param uuid the characteristic or descriptor of the callback, null for onMtuChanged
+     * @return true if the completion was consumed by the running operation
+     */
+    public boolean onOperationComplete(GattOperation.Type type, UUID uuid, int status) {
+        GattOperation done;
+        synchronized (this) {
+            // Requests are answered in order: the stale ones were issued before the running one
+            for (GattOperation operation : stale) {
+                if (matches(operation, type, uuid)) {
+                    stale.remove(operation);
+                    return false;
+                }
+            }
+            if (current == null || !matches(current, type, uuid)) return false;
+            done = finishCurrent();
+        }
+        complete(done, status);
+        dispatchNext();
+        return true;
+    }
+
+    /**
+     * Cancel the running and pending operations, e.g. to discover the services again. The
+     * request of the running one may still be answered: its callback is ignored.
+     */
+    public void clear() {
+        GattOperation running;
+        GattOperation[] cancelled;
+        synchronized (this) {
+            running = current == null ? null : finishCurrent();
+            if (running != null) stale.addLast(running);
+            cancelled = pending.toArray(new GattOperation[0]);
+            pending.clear();
+        }
+        if (running != null) notifyDone(running, STATUS_CANCELLED);
+        for (GattOperation operation : cancelled) notifyDone(operation, STATUS_CANCELLED);
+    }
+
+    /**
+     * Cancel every operation, when the connection is lost or closed: no request in flight will be
+     * answered, so the callbacks the stale operations waited for are not ignored any more.
+     */
+    public void reset() {
+        clear();
+        synchronized (this) {
+            stale.clear();
+        }
+    }
+
+    private static boolean matches(GattOperation running, GattOperation.Type completed, UUID uuid) {
+        GattOperation.Type type = running.getType();
+        // Enabling notifications completes with the write of the CCC descriptor
+        boolean sameType = type == completed
+                || (type == GattOperation.Type.ENABLE_NOTIFICATION && completed == GattOperation.Type.WRITE_DESCRIPTOR);
+        return sameType && (running.getUuid() == null || running.getUuid().equals(uuid));
+    }
+
+    private GattOperation finishCurrent() {
+        GattOperation done = current;
+        current = null;
+        if (currentTimeout != null) {
+            currentTimeout.cancel(false);
+            currentTimeout = null;
+        }
+        return done;
+    }
+
+    private void complete(GattOperation done, int status) {
+        notifyDone(done, status);
+        if (status != STATUS_SUCCESS && abortOnError) {
+            GattOperation[] cancelled;
+            synchronized (this) {
+                cancelled = pending.toArray(new GattOperation[0]);
+                pending.clear();
+            }
+            for (GattOperation operation : cancelled) notifyDone(operation, STATUS_CANCELLED);
+        }
+    }
+
+    private void dispatchNext() {
+        while (true) {
+            final GattOperation next;
+            synchronized (this) {
+                if (current != null) return;
+                next = pending.pollFirst();
+                if (next == null) break;
+                current = next;
+                currentTimeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(next);
+                    }
+                }, next.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
+            boolean started;
+            try {
+                next.markStarted(clock.nowNanos());
+                started = next.execute();
+            } catch (RuntimeException e) {
+                started = false;
+            }
+            synchronized (this) {
+                // If started, or if the callback already completed it on another thread, we are done here
+                if (started || current != next) return;
+                finishCurrent();
+            }
+            // Not started: fail it and loop to the next one instead of recursing
+            complete(next, STATUS_NOT_STARTED);
+        }
+        OnQueueListener l = listener;
+        if (l != null) l.OnQueueEmpty();
+    }
+
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation) return;
+            finishCurrent();
+            stale.addLast(operation);
+        }
+        complete(operation, STATUS_TIMEOUT);
+        dispatchNext();
+    }
+
+    private void notifyDone(GattOperation operation, int status) {
+        if (operation.getListener() != null) operation.getListener().OnOperationDone(operation, status);
+        OnQueueListener l = listener;
+        if (l != null) l.OnOperationDone(operation, status);
+    }
+
+    public interface OnQueueListener extends GattOperation.OnOperationDoneListener {
+        void OnQueueEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.transport.BleLink;
+
+/**
+ * Factory of the {@link GattOperation}s backed by a {@link BleLink}.
+ * Services and characteristics are resolved by the link when the operation runs, so operations
+ * can be enqueued before service discovery is complete.
+ */
+public class GattOperations {
+
+    public static GattOperation write(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID, final byte[] value) {
+        return write(link, serviceUUID, characteristicUUID, value, true);
+    }
+
+    /**
+     * @param withResponse false to write without response, completing once the packet is sent
+     */
+    public static GattOperation write(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID, final byte[] value,
+                                      final boolean withResponse) {
+        return new GattOperation(GattOperation.Type.WRITE, characteristicUUID, characteristicUUID.toString()) {
+            @Override
+            protected boolean execute() {
+                return link.write(serviceUUID, characteristicUUID, value, withResponse);
+            }
+        };
+    }
+
+    public static GattOperation read(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID) {
+        return new GattOperation(GattOperation.Type.READ, characteristicUUID, characteristicUUID.toString()) {
+            @Override
+            protected boolean execute() {
+                return link.read(serviceUUID, characteristicUUID);
+            }
+        };
+    }
+
+    public static GattOperation writeDescriptor(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID,
+                                                final UUID descriptorUUID, final byte[] value) {
+        return new GattOperation(GattOperation.Type.WRITE_DESCRIPTOR, descriptorUUID, descriptorUUID.toString()) {
+            @Override
+            protected boolean execute() {
+                return link.writeDescriptor(serviceUUID, characteristicUUID, descriptorUUID, value);
+            }
+        };
+    }
+
+    public static GattOperation requestMtu(final BleLink link, final int mtu) {
+        return new GattOperation(GattOperation.Type.REQUEST_MTU, "MTU " + mtu) {
+            @Override
+            protected boolean execute() {
+                return link.requestMtu(mtu);
+            }
+        };
+    }
+
+    /**
+     * Enable the notifications of the characteristic. Completes with onDescriptorWrite.
+     */
+    public static GattOperation enableNotification(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID) {
+        return subscribe(link, serviceUUID, characteristicUUID, false);
+    }
+
+    /**
+     * Same as {@link #enableNotification}, for characteristics that are indicated, e.g. Service Changed.
+     */
+    public static GattOperation enableIndication(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID) {
+        return subscribe(link, serviceUUID, characteristicUUID, true);
+    }
+
+    private static GattOperation subscribe(final BleLink link, final UUID serviceUUID, final UUID characteristicUUID, final boolean indication) {
+        // Completed by the write of the CCC descriptor
+        return new GattOperation(GattOperation.Type.ENABLE_NOTIFICATION, Constants.NotificationDescriptor, characteristicUUID.toString()) {
+            @Override
+            protected boolean execute() {
+                return link.subscribe(serviceUUID, characteristicUUID, indication);
+            }
+        };
+    }
+}
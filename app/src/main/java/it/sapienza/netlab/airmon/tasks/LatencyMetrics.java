@@ -0,0 +1,182 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LatencyHistogram;
+
+/**
+ * Latency histograms of the connection phases and of the GATT operations, one set per server.
+ * <p>
+ * Recording only looks up the server and adds to a {@link LatencyHistogram}, so it can be done
+ * from the GATT callbacks. Snapshots and the periodic dump to a CSV file run on other threads.
+ */
+public class LatencyMetrics {
+
+    public enum Phase {
+        CONNECT,            //connectGatt to connected
+        DISCOVER,           //discoverServices to services discovered
+        READY,              //connectGatt to ready to send, connect-to-ready
+        FIRST_WRITE,        //ready to the first write completed
+        MESSAGE             //message requested to its last write completed
+    }
+
+    public static final String CSV_HEADER = "time,tag,address,metric,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms";
+
+    private static final int PHASES = Phase.values().length;
+    private static final int METRICS = PHASES + GattOperation.Type.values().length;
+
+    private final ConcurrentHashMap<String, LatencyHistogram[]> servers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumpTimer;
+    private ScheduledFuture<?> dumpTask;
+
+    private LatencyHistogram[] histograms(String address) {
+        LatencyHistogram[] histograms = servers.get(address);
+        if (histograms == null) {
+            LatencyHistogram[] created = new LatencyHistogram[METRICS];
+            for (int i = 0; i < METRICS; i++) created[i] = new LatencyHistogram();
+            histograms = servers.putIfAbsent(address, created);
+            if (histograms == null) histograms = created;
+        }
+        return histograms;
+    }
+
+    public void record(String address, Phase phase, long nanos) {
+        histograms(address)[phase.ordinal()].recordNanos(nanos);
+    }
+
+    public void record(String address, GattOperation.Type type, long nanos) {
+        histograms(address)[PHASES + type.ordinal()].recordNanos(nanos);
+    }
+
+    /**
+     * @return the histogram of a phase, or null if nothing was recorded for the server
+     */
+    public LatencyHistogram.Snapshot snapshot(String address, Phase phase) {
+        LatencyHistogram[] histograms = servers.get(address);
+        return histograms == null ? null : histograms[phase.ordinal()].snapshot();
+    }
+
+    public LatencyHistogram.Snapshot snapshot(String address, GattOperation.Type type) {
+        LatencyHistogram[] histograms = servers.get(address);
+        return histograms == null ? null : histograms[PHASES + type.ordinal()].snapshot();
+    }
+
+    /**
+     * @return every non-empty histogram, one row per server and metric
+     */
+    public List<Row> snapshot() {
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram[]> entry : servers.entrySet()) {
+            LatencyHistogram[] histograms = entry.getValue();
+            for (int i = 0; i < METRICS; i++) {
+                LatencyHistogram.Snapshot snapshot = histograms[i].snapshot();
+                if (snapshot.getCount() > 0) rows.add(new Row(entry.getKey(), metricName(i), snapshot));
+            }
+        }
+        return rows;
+    }
+
+    private static String metricName(int metric) {
+        return metric < PHASES ? Phase.values()[metric].name() : "OP_" + GattOperation.Type.values()[metric - PHASES].name();
+    }
+
+    public void reset() {
+        servers.clear();
+    }
+
+    /**
+     * Append the current snapshot to a CSV file, writing the header if the file is new.
+     *
+     * @param tag written on every row, e.g. the firmware version of the servers
+     */
+    public void dump(File file, String tag) throws IOException {
+        boolean header = !file.exists() || file.length() == 0;
+        Writer writer = new FileWriter(file, true);
+        try {
+            if (header) writer.write(CSV_HEADER + "\n");
+            write(writer, tag, System.currentTimeMillis());
+        } finally {
+            writer.close();
+        }
+    }
+
+    void write(Writer writer, String tag, long timeMillis) throws IOException {
+        for (Row row : snapshot()) {
+            LatencyHistogram.Snapshot s = row.getSnapshot();
+            writer.write(String.format(Locale.ROOT, "%d,%s,%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                    timeMillis, tag, row.getAddress(), row.getMetric(), s.getCount(), s.getMean() / 1000,
+                    s.getPercentile(50) / 1000.0, s.getPercentile(90) / 1000.0, s.getPercentile(99) / 1000.0, s.getMax() / 1000.0));
+        }
+    }
+
+    /**
+     * Dump to the file every period, on a background thread, until {@link #stopPeriodicDump()}.
+     */
+    public synchronized void startPeriodicDump(final File file, final String tag, long periodMillis) {
+        stopPeriodicDump();
+        if (dumpTimer == null) {
+            dumpTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LatencyMetricsDump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        dumpTask = dumpTimer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dump(file, tag);
+                } catch (IOException e) {
+                    // Try again at the next period
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (dumpTask != null) {
+            dumpTask.cancel(false);
+            dumpTask = null;
+        }
+    }
+
+    public static class Row {
+        private final String address;
+        private final String metric;
+        private final LatencyHistogram.Snapshot snapshot;
+
+        Row(String address, String metric, LatencyHistogram.Snapshot snapshot) {
+            this.address = address;
+            this.metric = metric;
+            this.snapshot = snapshot;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getMetric() {
+            return metric;
+        }
+
+        public LatencyHistogram.Snapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+}
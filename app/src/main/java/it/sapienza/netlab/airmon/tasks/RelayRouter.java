@@ -0,0 +1,457 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.common.RelayFrameCodec;
+import it.sapienza.netlab.airmon.common.RoutingTable;
+import it.sapienza.netlab.airmon.models.Device;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Relay of the fixes of a phone out of range of any server, from phone to phone towards a
+ * collector: a phone that can upload them, see {@link RelayFrameCodec}.
+ * <p>
+ * The neighbours are the devices of the {@link RoutingTable}, updated by their beacons. A frame
+ * goes to the neighbour with the cheapest route: the route it advertises plus the expected
+ * transmissions over the link to it, measured from the beacons and writes that got through.
+ * Records are queued until the write to the next hop succeeds; a write failing
+ * Constants.MAX_ATTEMPTS_RETRY times drops its records. A record is never sent back to the
+ * neighbour it came from, nor to a neighbour whose route goes through this phone.
+ * <p>
+ * Each record carries its origin and sequence number: a record seen before is acked and
+ * dropped, so retransmissions and loops cannot duplicate it. Each record also carries the hops
+ * it may still travel, starting from {@link #MAX_HOPS}, and routes longer than that are not used.
+ */
+public class RelayRouter {
+
+    public static final int MAX_HOPS = 4;
+    public static final long ROUTE_TIMEOUT_MS = 30000;         //Routes of the neighbours not heard since are not used
+    public static final int QUEUE_CAPACITY = 1024;
+    public static final int DUPLICATE_WINDOW = 1024;            //Records of an origin remembered, see SequenceWindow
+
+    private final int node;
+    private final RoutingTable table;
+    private final FrameSink sink;
+    private final Clock clock;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final HashMap<Integer, SequenceWindow> seen = new HashMap<>();
+    private final byte[] frame = new byte[RelayFrameCodec.frameSize(RelayFrameCodec.MAX_RECORDS_PER_FRAME)];
+    private final LocationRecord record = new LocationRecord();
+    private int recordsPerFrame = Math.max(1, RelayFrameCodec.recordsPerFrame(Constants.REQUESTED_MTU));
+    private boolean collector = false;
+    private OnRecordDeliveredListener listener;
+    private long nextSeq = 0;
+    private int beaconCounter = 0;
+
+    // Frame being written, its records are the first ones of the queue
+    private Device inFlight;
+    private int inFlightRecords;
+    private int attempts = 0;
+
+    private long forwarded = 0;
+    private long delivered = 0;
+    private long duplicates = 0;
+    private long expired = 0;
+    private long dropped = 0;
+
+    /**
+     * @param node  id of the phone, random when the app starts so that its sequence numbers never repeat
+     * @param table the neighbours of the phone
+     */
+    public RelayRouter(int node, RoutingTable table, FrameSink sink) {
+        this(node, table, sink, Clock.SYSTEM);
+    }
+
+    public RelayRouter(int node, RoutingTable table, FrameSink sink, Clock clock) {
+        this.node = node;
+        this.table = table;
+        this.sink = sink;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the id of the node in the RoutingTable
+     */
+    public static String deviceId(int node) {
+        return Long.toString(node & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the node of a device added by {@link #onBeacon}
+     */
+    public static int nodeOf(String deviceId) {
+        return (int) Long.parseLong(deviceId);
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * @param mtu the ATT MTU negotiated with the neighbours
+     */
+    public synchronized void setMtu(int mtu) {
+        recordsPerFrame = Math.max(1, RelayFrameCodec.recordsPerFrame(mtu));
+    }
+
+    /**
+     * @param collector true while the phone is in range of a server: the records reaching it are
+     *                  delivered to the {@link OnRecordDeliveredListener} instead of forwarded
+     */
+    public void setCollector(boolean collector) {
+        synchronized (this) {
+            this.collector = collector;
+        }
+        if (collector) deliverQueued();
+    }
+
+    public synchronized boolean isCollector() {
+        return collector;
+    }
+
+    public synchronized void setOnRecordDeliveredListener(OnRecordDeliveredListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Relay a fix of this phone.
+     *
+     * @return false if the queue is full and the fix is dropped
+     */
+    public boolean originate(LocationRecord fix) {
+        synchronized (this) {
+            long seq = nextSeq++;
+            window(node).add(seq);
+            if (collector) {
+                deliver(node, seq, fix, 0);
+                return true;
+            }
+            if (queue.size() >= QUEUE_CAPACITY) {
+                dropped++;
+                return false;
+            }
+            queue.add(new Entry(node, seq, MAX_HOPS, node, fix));
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * Handle a frame written by a neighbour.
+     *
+     * @return false if the frame is invalid or does not fit the queue: the write should fail, so
+     * that the neighbour tries again later or elsewhere
+     */
+    public boolean onFrame(int from, byte[] value, int length) {
+        if (!RelayFrameCodec.isValidFrame(value, length)) {
+            return false;
+        }
+        int count = RelayFrameCodec.getCount(value);
+        int origin = RelayFrameCodec.getOrigin(value);
+        int hopsLeft = RelayFrameCodec.getHopsLeft(value);
+        synchronized (this) {
+            if (!collector && queue.size() + count > QUEUE_CAPACITY) {
+                return false;
+            }
+            SequenceWindow window = window(origin);
+            long first = window.expand(RelayFrameCodec.getFirstSeq(value));
+            for (int i = 0; i < count; i++) {
+                if (!window.add(first + i)) {
+                    duplicates++;
+                    continue;
+                }
+                LocationRecordCodec.decode(value, RelayFrameCodec.HEADER_SIZE + i * LocationRecordCodec.RECORD_SIZE, record);
+                if (collector) {
+                    deliver(origin, first + i, record, MAX_HOPS - hopsLeft);
+                } else if (hopsLeft == 0) {
+                    expired++;
+                } else {
+                    queue.add(new Entry(origin, first + i, hopsLeft, from, record));
+                }
+            }
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * Handle the beacon of a neighbour, adding it to the routing table the first time.
+     */
+    public void onBeacon(byte[] beacon) {
+        if (!RelayFrameCodec.isValidBeacon(beacon)) return;
+        int neighbour = RelayFrameCodec.getBeaconNode(beacon);
+        if (neighbour == node) return;
+        String id = deviceId(neighbour);
+        Device device = table.getDevice(id);
+        if (device == null) {
+            table.addDevice(new Device(id));
+            device = table.getDevice(id);
+        }
+        device.onBeacon(RelayFrameCodec.getBeaconCounter(beacon), RelayFrameCodec.getBeaconHops(beacon),
+                RelayFrameCodec.getBeaconCost(beacon), RelayFrameCodec.getBeaconNextHop(beacon), clock.nowMillis());
+        pump();
+    }
+
+    /**
+     * Write the beacon to advertise next: a collector has a route of 0 hops, the other phones
+     * the best route through their neighbours.
+     */
+    public synchronized void writeBeacon(byte[] beacon) {
+        int counter = beaconCounter++ & 0xFF;
+        if (collector) {
+            RelayFrameCodec.writeBeacon(beacon, node, counter, 0, 0, node);
+            return;
+        }
+        Device best = bestRoute(MAX_HOPS, node);
+        if (best == null) {
+            RelayFrameCodec.writeBeacon(beacon, node, counter, RelayFrameCodec.NO_ROUTE, RelayFrameCodec.MAX_COST, node);
+        } else {
+            RelayFrameCodec.writeBeacon(beacon, node, counter, best.getHops() + 1, best.getPathCost(),
+                    nodeOf(best.getId()));
+        }
+    }
+
+    /**
+     * Send the next frame if no write is in progress and a neighbour has a route for it.
+     *
+     * @return true if a frame was sent
+     */
+    public boolean pump() {
+        Device next;
+        int length;
+        synchronized (this) {
+            if (inFlight != null || collector || queue.isEmpty()) {
+                return false;
+            }
+            Entry head = queue.peek();
+            next = bestRoute(head.hopsLeft, head.from);
+            if (next == null) {
+                return false;
+            }
+            // Consecutive records of the same origin, along the same path, share the frame
+            int count = 0;
+            Iterator<Entry> it = queue.iterator();
+            while (it.hasNext() && count < recordsPerFrame) {
+                Entry entry = it.next();
+                if (entry.origin != head.origin || entry.seq != head.seq + count
+                        || entry.hopsLeft != head.hopsLeft || entry.from != head.from) {
+                    break;
+                }
+                LocationRecordCodec.encode(entry.record, frame, RelayFrameCodec.HEADER_SIZE + count * LocationRecordCodec.RECORD_SIZE);
+                count++;
+            }
+            RelayFrameCodec.writeHeader(frame, head.hopsLeft - 1, count, head.origin, head.seq);
+            length = RelayFrameCodec.frameSize(count);
+            inFlight = next;
+            inFlightRecords = count;
+        }
+        if (!sink.sendFrame(next.getId(), frame, length)) {
+            synchronized (this) {
+                inFlight = null;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Complete the frame sent by the last {@link #pump()} and send the next one.
+     *
+     * @param success true if the neighbour acked the write
+     */
+    public void onFrameSent(boolean success) {
+        synchronized (this) {
+            if (inFlight == null) return;
+            inFlight.onDelivery(success);
+            inFlight = null;
+            if (success || ++attempts >= Constants.MAX_ATTEMPTS_RETRY) {
+                for (int i = 0; i < inFlightRecords && !queue.isEmpty(); i++) queue.poll();
+                if (success) {
+                    forwarded += inFlightRecords;
+                } else {
+                    dropped += inFlightRecords;
+                }
+                attempts = 0;
+            }
+        }
+        if (isCollector()) deliverQueued();
+        pump();
+    }
+
+    /**
+     * @return the cheapest fresh route of a neighbour other than exclude that is at most maxHops long,
+     * counting the hop to the neighbour, and that does not go through this phone; null if there is none
+     */
+    private Device bestRoute(int maxHops, int exclude) {
+        long now = clock.nowMillis();
+        String excluded = deviceId(exclude);
+        Device best = null;
+        double bestCost = 0;
+        for (Device device : table.getDeviceList()) {
+            int hops = device.getHops();
+            if (hops == RelayFrameCodec.NO_ROUTE || hops + 1 > maxHops || device.getNextHop() == node
+                    || device.getId().equals(excluded) || now - device.getRouteUpdatedAt() > ROUTE_TIMEOUT_MS) {
+                continue;
+            }
+            double cost = device.getPathCost();
+            if (best == null || cost < bestCost || cost == bestCost && hops < best.getHops()) {
+                best = device;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private void deliverQueued() {
+        synchronized (this) {
+            if (inFlight != null) {
+                // The records in flight are delivered by the neighbour, or here once the write fails
+                return;
+            }
+            for (Entry entry : queue) deliver(entry.origin, entry.seq, entry.record, MAX_HOPS - entry.hopsLeft);
+            queue.clear();
+        }
+    }
+
+    private void deliver(int origin, long seq, LocationRecord fix, int hops) {
+        delivered++;
+        if (listener != null) listener.OnRecordDelivered(origin, seq, fix, hops);
+    }
+
+    private SequenceWindow window(int origin) {
+        SequenceWindow window = seen.get(origin);
+        if (window == null) {
+            window = new SequenceWindow();
+            seen.put(origin, window);
+        }
+        return window;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return records acked by a neighbour
+     */
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * @return records given to the listener as a collector
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return records received with no hop left while not a collector
+     */
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return records dropped because the queue was full or their writes kept failing
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private static class Entry {
+        final int origin;
+        final long seq;
+        final int hopsLeft;
+        final int from;
+        final LocationRecord record;
+
+        Entry(int origin, long seq, int hopsLeft, int from, LocationRecord record) {
+            this.origin = origin;
+            this.seq = seq;
+            this.hopsLeft = hopsLeft;
+            this.from = from;
+            this.record = new LocationRecord(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags());
+        }
+    }
+
+    /**
+     * Sequence numbers of an origin seen so far: the highest one and a bitmap of the
+     * {@link #DUPLICATE_WINDOW} before it. Older records are reported as seen.
+     */
+    static class SequenceWindow {
+        private final long[] bits = new long[DUPLICATE_WINDOW / 64];
+        private long highest = -1;
+
+        /**
+         * Rebuild a sequence number from its low 32 bits, see {@link BatchFrameCodec#expandSeq}.
+         */
+        long expand(long low32) {
+            return highest < 0 ? low32 : BatchFrameCodec.expandSeq(low32, highest);
+        }
+
+        /**
+         * @return false if the sequence number was seen before
+         */
+        boolean add(long seq) {
+            if (seq < 0 || highest >= 0 && seq <= highest - DUPLICATE_WINDOW) {
+                return false;
+            }
+            if (seq > highest) {
+                if (seq - highest >= DUPLICATE_WINDOW) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long s = highest + 1; s < seq; s++) clear(s);
+                }
+                highest = seq;
+            } else if (isSet(seq)) {
+                return false;
+            }
+            bits[index(seq)] |= 1L << seq;
+            return true;
+        }
+
+        private boolean isSet(long seq) {
+            return (bits[index(seq)] & 1L << seq) != 0;
+        }
+
+        private void clear(long seq) {
+            bits[index(seq)] &= ~(1L << seq);
+        }
+
+        private static int index(long seq) {
+            return (int) (seq / 64 % (DUPLICATE_WINDOW / 64));
+        }
+    }
+
+    public interface FrameSink {
+        /**
+         * Write the frame to the neighbour with response, then call {@link #onFrameSent}.
+         *
+         * @param frame  the frame, reused after {@link #onFrameSent}: copy it if it is sent later
+         * @param length number of bytes of the frame
+         * @return false if the frame could not be sent
+         */
+        boolean sendFrame(String device, byte[] frame, int length);
+    }
+
+    public interface OnRecordDeliveredListener {
+        /**
+         * @param origin id of the phone that produced the record
+         * @param seq    sequence number of the record at its origin
+         * @param hops   hops the record travelled, 0 for a record of this phone
+         */
+        void OnRecordDelivered(int origin, long seq, LocationRecord record, int hops);
+    }
+}
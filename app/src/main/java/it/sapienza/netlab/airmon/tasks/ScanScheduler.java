@@ -0,0 +1,232 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.Collection;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.MacTable;
+
+/**
+ * Chooses the scan mode and the length of each scan window from the recent discovery history.
+ * <p>
+ * A session starts with a low latency window. Windows that find nothing are retried at once
+ * in balanced mode and, after {@link #EMPTY_WINDOWS_BEFORE_BACKOFF} of them, in low power mode
+ * with a pause doubling up to {@link #MAX_PAUSE_MS}. When a server found in the previous window
+ * is missing, {@link #BURST_WINDOWS} short low latency windows follow. The session ends as soon
+ * as the target servers are found, or when a whole window finds the same servers as the previous one.
+ * <p>
+ * The scheduler does not touch the radio: the caller starts and stops the scan as told.
+ * Not thread safe.
+ */
+public class ScanScheduler {
+
+    // Same values as ScanSettings.SCAN_MODE_*
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final long STOP = -1;
+    public static final long WINDOW_MS = 5000;
+    public static final long BURST_WINDOW_MS = 2000;
+    public static final int BURST_WINDOWS = 2;
+    public static final int EMPTY_WINDOWS_BEFORE_BACKOFF = 3;
+    public static final long BASE_PAUSE_MS = 5000;
+    public static final long MAX_PAUSE_MS = 60000;
+
+    private final Clock clock;
+    private final int targetCount;
+    private final MacTable<Boolean> targets = new MacTable<>();
+    private MacTable<Boolean> found = new MacTable<>();             //Servers found in the current window
+    private MacTable<Boolean> previous = new MacTable<>();          //Servers found in the previous window
+    private int foundAgain;                                         //Servers of the previous window found again
+    private int targetsFound;
+
+    private boolean inSession;
+    private long sessionStart;
+    private boolean discovered;                                     //A server was found in this session
+    private int scanMode = MODE_LOW_LATENCY;
+    private long windowMillis = WINDOW_MS;
+    private long windowStart;
+    private int emptyWindows;
+    private int burstLeft;
+
+    private int windows;
+    private int sessions;
+    private int discoveries;
+    private long scanMillis;
+    private long lastTimeToFirstDiscovery = -1;
+    private long totalTimeToFirstDiscovery;
+
+    /**
+     * @param targetCount number of servers that ends the session when no target address is set
+     */
+    public ScanScheduler(int targetCount) {
+        this(targetCount, Clock.SYSTEM);
+    }
+
+    public ScanScheduler(int targetCount, Clock clock) {
+        this.targetCount = targetCount;
+        this.clock = clock;
+    }
+
+    /**
+     * @param addresses servers that end the session once all of them are found, or an empty
+     *                  collection to stop after the target count
+     */
+    public void setTargets(Collection<String> addresses) {
+        targets.clear();
+        for (String address : addresses) {
+            long key = MacTable.toKey(address);
+            if (key != MacTable.INVALID_ADDRESS) targets.put(key, 0, 0, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Start a new session from a low latency window, forgetting the back-off.
+     */
+    public void startSession() {
+        inSession = true;
+        sessionStart = clock.nowMillis();
+        discovered = false;
+        sessions++;
+        emptyWindows = 0;
+        burstLeft = 0;
+        scanMode = MODE_LOW_LATENCY;
+        windowMillis = WINDOW_MS;
+    }
+
+    /**
+     * Stop the session, e.g. when the user stops the scan.
+     */
+    public void stopSession() {
+        inSession = false;
+    }
+
+    public boolean isInSession() {
+        return inSession;
+    }
+
+    /**
+     * Call when the scan starts, then stop it after {@link #getWindowMillis()}.
+     */
+    public void startWindow() {
+        windowStart = clock.nowMillis();
+        found.clear();
+        foundAgain = 0;
+        targetsFound = 0;
+    }
+
+    /**
+     * Call for every server seen during the window, at least once.
+     *
+     * @return true if the target servers have all been found and the scan can stop
+     */
+    public boolean onServerFound(String address) {
+        long key = MacTable.toKey(address);
+        if (key == MacTable.INVALID_ADDRESS || !found.put(key, 0, 0, Boolean.TRUE)) {
+            return isTargetReached();
+        }
+        if (!discovered) {
+            discovered = true;
+            discoveries++;
+            lastTimeToFirstDiscovery = clock.nowMillis() - sessionStart;
+            totalTimeToFirstDiscovery += lastTimeToFirstDiscovery;
+        }
+        if (previous.contains(key)) foundAgain++;
+        if (targets.contains(key)) targetsFound++;
+        return isTargetReached();
+    }
+
+    private boolean isTargetReached() {
+        return targets.size() > 0 ? targetsFound == targets.size() : found.size() >= targetCount;
+    }
+
+    /**
+     * Call when the scan stops, early or not.
+     *
+     * @return milliseconds to wait before the next window, or {@link #STOP} if the session ended
+     */
+    public long endWindow() {
+        long now = clock.nowMillis();
+        windows++;
+        scanMillis += now - windowStart;
+        if (found.size() > 0) {
+            emptyWindows = 0;
+        } else {
+            emptyWindows++;
+        }
+        boolean lost = foundAgain < previous.size();
+        boolean stable = found.size() > 0 && !lost && foundAgain == found.size();
+        boolean reached = isTargetReached();
+        MacTable<Boolean> swap = previous;
+        previous = found;
+        found = swap;
+        if (!inSession || reached || stable) {
+            inSession = false;
+            return STOP;
+        }
+        if (lost) {
+            burstLeft = BURST_WINDOWS;
+        }
+        if (burstLeft > 0) {
+            burstLeft--;
+            scanMode = MODE_LOW_LATENCY;
+            windowMillis = BURST_WINDOW_MS;
+            return 0;
+        }
+        windowMillis = WINDOW_MS;
+        if (emptyWindows < EMPTY_WINDOWS_BEFORE_BACKOFF) {
+            scanMode = MODE_BALANCED;
+            return 0;
+        }
+        scanMode = MODE_LOW_POWER;
+        int shift = Math.min(emptyWindows - EMPTY_WINDOWS_BEFORE_BACKOFF, 30);
+        return Math.min(MAX_PAUSE_MS, BASE_PAUSE_MS << shift);
+    }
+
+    /**
+     * @return the scan mode of the next window, one of the MODE_ constants
+     */
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return total time spent scanning
+     */
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * @return time from the start of the last session that found a server to the first server found, or -1
+     */
+    public long getLastTimeToFirstDiscovery() {
+        return lastTimeToFirstDiscovery;
+    }
+
+    /**
+     * @return mean time to the first server over the sessions that found one, or -1
+     */
+    public double getMeanTimeToFirstDiscovery() {
+        return discoveries == 0 ? -1 : (double) totalTimeToFirstDiscovery / discoveries;
+    }
+
+    /**
+     * @return number of sessions that found at least a server
+     */
+    public int getDiscoveries() {
+        return discoveries;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+}
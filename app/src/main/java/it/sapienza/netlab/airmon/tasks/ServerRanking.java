@@ -0,0 +1,144 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.MacTable;
+
+/**
+ * Ranks the servers by how likely they are to complete an upload quickly, from the RSSI of
+ * every advertisement and the outcome of every GATT operation.
+ * <p>
+ * Both are smoothed with an exponentially weighted moving average, so a single weak
+ * advertisement or failed write does not reorder the servers. The score of a server is the
+ * share of packets its RSSI lets through, from 0 at {@link #RSSI_FLOOR} dBm to 1 at
+ * {@link #RSSI_GOOD} dBm, times the share of its operations that succeeded.
+ * <p>
+ * A server that is in use is only replaced by one scoring {@link #SWITCH_MARGIN} more, and not
+ * before {@link #MIN_DWELL_MS}: see {@link #shouldSwitch}. Thread safe.
+ */
+public class ServerRanking {
+
+    public static final int RSSI_FLOOR = -95;
+    public static final int RSSI_GOOD = -60;
+    public static final double RSSI_ALPHA = 0.05;
+    public static final double SUCCESS_ALPHA = 0.1;
+    public static final double SWITCH_MARGIN = 0.25;
+    public static final long MIN_DWELL_MS = 30000;
+    private static final double MIN_LINK = 0.05;                //Servers heard below the floor are still ranked among themselves
+
+    private final Clock clock;
+    private final MacTable<Link> links = new MacTable<>();
+
+    public ServerRanking() {
+        this(Clock.SYSTEM);
+    }
+
+    public ServerRanking(Clock clock) {
+        this.clock = clock;
+    }
+
+    private static class Link {
+        double rssi;
+        double success = 1;             //Servers never used are ranked by their RSSI alone
+        long selectedAt = -1;
+    }
+
+    /**
+     * Update the RSSI of the server from one of its advertisements.
+     */
+    public synchronized void onAdvertisement(String address, int rssi, long timestampNanos) {
+        long key = MacTable.toKey(address);
+        if (key == MacTable.INVALID_ADDRESS) return;
+        Link link = links.get(key);
+        if (link == null) {
+            link = new Link();
+            link.rssi = rssi;
+        } else {
+            link.rssi += RSSI_ALPHA * (rssi - link.rssi);
+        }
+        links.put(key, rssi, timestampNanos, link);
+    }
+
+    /**
+     * Update the success rate of the server from the outcome of a GATT operation or connection attempt.
+     */
+    public synchronized void onOperation(String address, boolean success) {
+        Link link = links.get(MacTable.toKey(address));
+        if (link == null) return;
+        link.success += SUCCESS_ALPHA * ((success ? 1 : 0) - link.success);
+    }
+
+    /**
+     * @return the score of the server between 0 and 1, 0 if it was never advertised
+     */
+    public synchronized double getScore(String address) {
+        Link link = links.get(MacTable.toKey(address));
+        return link == null ? 0 : score(link);
+    }
+
+    private static double score(Link link) {
+        double share = (link.rssi - RSSI_FLOOR) / (RSSI_GOOD - RSSI_FLOOR);
+        return Math.max(MIN_LINK, Math.min(1, share)) * link.success;
+    }
+
+    /**
+     * @return the smoothed RSSI of the server, or Integer.MIN_VALUE if it was never advertised
+     */
+    public synchronized double getRssi(String address) {
+        Link link = links.get(MacTable.toKey(address));
+        return link == null ? Integer.MIN_VALUE : link.rssi;
+    }
+
+    /**
+     * @return the smoothed share of operations that succeeded, 1 before the first one
+     */
+    public synchronized double getSuccessRate(String address) {
+        Link link = links.get(MacTable.toKey(address));
+        return link == null ? 1 : link.success;
+    }
+
+    /**
+     * @return a copy of the addresses, best server first
+     */
+    public synchronized List<String> rank(Collection<String> addresses) {
+        List<String> ranked = new ArrayList<>(addresses);
+        // Stable: the order of equal scores is kept
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(getScore(b), getScore(a));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Start the dwell time of the server, to be called when it is connected to.
+     */
+    public synchronized void onSelected(String address) {
+        Link link = links.get(MacTable.toKey(address));
+        if (link != null) link.selectedAt = clock.nowMillis();
+    }
+
+    /**
+     * @return true if the candidate should replace the server in use: it scores
+     * {@link #SWITCH_MARGIN} more and the current server was selected at least {@link #MIN_DWELL_MS} ago
+     */
+    public synchronized boolean shouldSwitch(String current, String candidate) {
+        Link from = links.get(MacTable.toKey(current));
+        Link to = links.get(MacTable.toKey(candidate));
+        if (to == null || current.equals(candidate)) return false;
+        if (from == null) return true;
+        if (from.selectedAt >= 0 && clock.nowMillis() - from.selectedAt < MIN_DWELL_MS) return false;
+        return score(to) > score(from) * (1 + SWITCH_MARGIN);
+    }
+
+    public synchronized void clear() {
+        links.clear();
+    }
+}
@@ -0,0 +1,184 @@
+package it.sapienza.netlab.airmon.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.models.ServiceLayout;
+
+/**
+ * {@link BleLink} over a BluetoothGatt. Characteristics are resolved through a
+ * {@link GattHandleCache}, so only the first request on each of them looks it up.
+ */
+class AndroidBleLink implements BleLink {
+
+    private final BluetoothGatt gatt;
+    private final GattHandleCache handles;
+
+    AndroidBleLink(BluetoothDevice device, Context context, Handler handler, final Callback callback) {
+        BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                callback.OnConnectionStateChange(AndroidBleLink.this, status,
+                        status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED);
+            }
+
+            @Override
+            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                callback.OnServicesDiscovered(AndroidBleLink.this, status);
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                callback.OnCharacteristicWrite(AndroidBleLink.this, characteristic.getUuid(), status);
+            }
+
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                callback.OnCharacteristicRead(AndroidBleLink.this, characteristic.getUuid(), characteristic.getValue(), status);
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                callback.OnDescriptorWrite(AndroidBleLink.this, descriptor.getUuid(), status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                callback.OnCharacteristicChanged(AndroidBleLink.this, characteristic.getUuid(), characteristic.getValue());
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                callback.OnMtuChanged(AndroidBleLink.this, mtu, status);
+            }
+        };
+        // From Android 8 the callbacks run on the handler thread, before on binder threads
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            gatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE,
+                    BluetoothDevice.PHY_LE_1M_MASK, handler);
+        } else {
+            gatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+        }
+        handles = new GattHandleCache(gatt);
+    }
+
+    @Override
+    public String getAddress() {
+        return gatt.getDevice().getAddress();
+    }
+
+    @Override
+    public boolean connect() {
+        return gatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        // A failed GATT client must be closed before the next attempt, or the stack runs out of clients
+        gatt.close();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return gatt.discoverServices();
+    }
+
+    @Override
+    public ServiceLayout getLayout() {
+        return handles.getLayout();
+    }
+
+    @Override
+    public void clearHandles() {
+        handles.clear();
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        return handles.getCharacteristic(serviceUUID, characteristicUUID) != null;
+    }
+
+    @Override
+    public boolean write(UUID serviceUUID, UUID characteristicUUID, byte[] value, boolean withResponse) {
+        BluetoothGattCharacteristic characteristic = handles.getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            return false;
+        }
+        characteristic.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(value);
+        return gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = handles.getCharacteristic(serviceUUID, characteristicUUID);
+        return characteristic != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] value) {
+        BluetoothGattCharacteristic characteristic = handles.getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUUID);
+        if (descriptor == null) {
+            return false;
+        }
+        descriptor.setValue(value);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, UUID characteristicUUID, boolean indication) {
+        // Enable the local routing of the notifications, then write the Client Characteristic Configuration descriptor
+        BluetoothGattCharacteristic characteristic = handles.getCharacteristic(serviceUUID, characteristicUUID);
+        if (characteristic == null) {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(Constants.NotificationDescriptor);
+        if (descriptor == null || !gatt.setCharacteristicNotification(characteristic, true)) {
+            return false;
+        }
+        descriptor.setValue(indication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean setPreferredPhy(boolean fast) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (fast && (adapter == null || !adapter.isLe2MPhySupported())) return false;
+        int phy = fast ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+        // The controllers settle on it, or keep the current PHY if the server does not support it
+        gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package it.sapienza.netlab.airmon.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Handler;
+
+import java.util.List;
+
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.Utility;
+
+/**
+ * {@link BleTransport} over the Bluetooth stack of the device.
+ */
+public class AndroidBleTransport implements BleTransport {
+
+    private final Context context;
+    private final Handler handler;
+    private BluetoothLeScanner scanner;
+    private ScanCallback scanCallback;
+    private ScanListener scanListener;
+    private boolean batched;                    //The controller holds the results for the report delay
+    private volatile boolean stopping;          //Waiting for the batch flushed by stopScan
+    // The controller did not answer the flush, e.g. with nothing batched
+    private final Runnable flushTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (stopping) finishStop(null);
+        }
+    };
+
+    /**
+     * @param handler thread running the GATT callbacks, from Android 8
+     */
+    public AndroidBleTransport(Context context, Handler handler) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+    }
+
+    @Override
+    public boolean startScan(int scanMode, final ScanListener listener) {
+        // A scan still waiting for its last batch is stopped at once
+        finishStop(null);
+        synchronized (this) {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            scanner = adapter == null ? null : adapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                return false;
+            }
+            scanCallback = new ScanCallback() {
+                //Results delivered in batches when the scan runs with a report delay
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    for (int i = 0; i < results.size(); i++) {
+                        onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, results.get(i));
+                    }
+                    // After the flush asked by stopScan nothing is left in the controller
+                    if (stopping) finishStop(this);
+                }
+
+                @Override
+                public void onScanResult(int callbackType, ScanResult result) {
+                    listener.OnAdvertisement(result.getDevice().getAddress(), result.getRssi(), result.getTimestampNanos());
+                }
+
+                @Override
+                public void onScanFailed(int errorCode) {
+                    listener.OnScanFailed(errorCode);
+                }
+            };
+            scanListener = listener;
+            stopping = false;
+            // ScanScheduler modes have the same values as ScanSettings
+            ScanSettings settings = Utility.buildScanSettings(adapter, scanMode);
+            batched = settings.getReportDelayMillis() > 0;
+            scanner.startScan(Utility.buildScanFilters(), settings, scanCallback);
+            return true;
+        }
+    }
+
+    @Override
+    public void stopScan() {
+        synchronized (this) {
+            if (scanCallback == null || stopping) return;
+            if (batched) {
+                // Deliver the results still batched in the controller, the scan stops when they are in
+                stopping = true;
+                scanner.flushPendingScanResults(scanCallback);
+                handler.postDelayed(flushTimeout, Constants.SCAN_FLUSH_TIMEOUT_MS);
+                return;
+            }
+        }
+        finishStop(null);
+    }
+
+    /**
+     * Stop the scan and tell its listener.
+     *
+     * @param callback the callback of the scan to stop, null for the current one
+     */
+    private void finishStop(ScanCallback callback) {
+        ScanListener listener;
+        synchronized (this) {
+            if (scanCallback == null || (callback != null && callback != scanCallback)) return;
+            handler.removeCallbacks(flushTimeout);
+            scanner.stopScan(scanCallback);
+            listener = scanListener;
+            scanCallback = null;
+            scanListener = null;
+            stopping = false;
+        }
+        listener.OnScanStopped();
+    }
+
+    @Override
+    public BleLink connect(String address, BleLink.Callback callback) {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        return new AndroidBleLink(adapter.getRemoteDevice(address), context, handler, callback);
+    }
+}
@@ -0,0 +1,98 @@
+package it.sapienza.netlab.airmon.transport;
+
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.models.ServiceLayout;
+
+/**
+ * GATT client connection to a single server, opened by {@link BleTransport#connect}.
+ * <p>
+ * Requests return false when they cannot be issued; otherwise they complete with the matching
+ * {@link Callback} method, as with BluetoothGatt only one request may be outstanding at a time.
+ * Statuses are the BluetoothGatt ones.
+ */
+public interface BleLink {
+
+    int GATT_SUCCESS = 0;
+    int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    int GATT_ERROR = 133;                               //Generic failure of the stack, hidden in BluetoothGatt
+    int GATT_FAILURE = 0x101;
+    int CONNECTION_PRIORITY_BALANCED = 0;               //Same values as BluetoothGatt
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    String getAddress();
+
+    /**
+     * Connect again after a disconnection, keeping the services known so far.
+     *
+     * @return false if the link must be closed and a new one opened
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Release the link, no callback is delivered afterwards.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return the services known on this link, empty before discovery
+     */
+    ServiceLayout getLayout();
+
+    /**
+     * Forget the characteristics resolved so far, to be called when the services are discovered again.
+     */
+    void clearHandles();
+
+    boolean hasCharacteristic(UUID serviceUUID, UUID characteristicUUID);
+
+    /**
+     * @param withResponse false to write without response, completing as soon as the packet is sent
+     */
+    boolean write(UUID serviceUUID, UUID characteristicUUID, byte[] value, boolean withResponse);
+
+    boolean read(UUID serviceUUID, UUID characteristicUUID);
+
+    boolean writeDescriptor(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID, byte[] value);
+
+    /**
+     * Enable notifications, or indications, of the characteristic. Completes with
+     * {@link Callback#OnDescriptorWrite}.
+     */
+    boolean subscribe(UUID serviceUUID, UUID characteristicUUID, boolean indication);
+
+    boolean requestMtu(int mtu);
+
+    /**
+     * Ask the server for the connection interval of the priority. Not queued behind the other
+     * requests and without callback: the new interval applies a few connection events later.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * @param fast true to prefer the 2M PHY, false for the 1M one
+     * @return false if the PHY cannot be chosen on this device
+     */
+    boolean setPreferredPhy(boolean fast);
+
+    interface Callback {
+        void OnConnectionStateChange(BleLink link, int status, boolean connected);
+
+        void OnServicesDiscovered(BleLink link, int status);
+
+        void OnCharacteristicWrite(BleLink link, UUID characteristicUUID, int status);
+
+        void OnCharacteristicRead(BleLink link, UUID characteristicUUID, byte[] value, int status);
+
+        void OnDescriptorWrite(BleLink link, UUID descriptorUUID, int status);
+
+        void OnCharacteristicChanged(BleLink link, UUID characteristicUUID, byte[] value);
+
+        void OnMtuChanged(BleLink link, int mtu, int status);
+    }
+}
@@ -0,0 +1,43 @@
+package it.sapienza.netlab.airmon.transport;
+
+/**
+ * Radio used to find the servers and connect to them: the Android Bluetooth stack, or a
+ * {@link SimulatedTransport} to run the upload logic off a device.
+ */
+public interface BleTransport {
+
+    /**
+     * Scan for servers exposing the Location or Time service, until {@link #stopScan()}.
+     *
+     * @param scanMode one of the ScanScheduler.MODE_* values
+     * @return false if the scan could not start, e.g. Bluetooth is off
+     */
+    boolean startScan(int scanMode, ScanListener listener);
+
+    /**
+     * Deliver the advertisements still batched, then stop the scan and call
+     * {@link ScanListener#OnScanStopped()}, possibly after this method returned.
+     */
+    void stopScan();
+
+    /**
+     * Open a GATT client connection to the server, reported to the callback.
+     *
+     * @return the link, or null if the address is unknown to the transport
+     */
+    BleLink connect(String address, BleLink.Callback callback);
+
+    interface ScanListener {
+        void OnAdvertisement(String address, int rssi, long timestampNanos);
+
+        /**
+         * @param errorCode one of the ScanCallback.SCAN_FAILED_* values
+         */
+        void OnScanFailed(int errorCode);
+
+        /**
+         * Called once after {@link #stopScan()}, when the last advertisement of the scan was delivered.
+         */
+        void OnScanStopped();
+    }
+}
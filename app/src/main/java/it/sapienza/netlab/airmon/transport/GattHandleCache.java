@@ -0,0 +1,75 @@
+package it.sapienza.netlab.airmon.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.models.ServiceLayout;
+
+/**
+ * Services and characteristics of a connection, resolved once and then reused by every
+ * operation instead of being looked up by UUID again. Must be cleared whenever the services
+ * of the BluetoothGatt are discovered again, since the stack then creates new objects.
+ */
+public class GattHandleCache {
+
+    private final BluetoothGatt gatt;
+    private final HashMap<UUID, BluetoothGattService> services = new HashMap<>();
+    private final HashMap<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+
+    public GattHandleCache(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public synchronized BluetoothGattService getService(UUID serviceUUID) {
+        BluetoothGattService service = services.get(serviceUUID);
+        if (service == null) {
+            service = gatt.getService(serviceUUID);
+            if (service != null) services.put(serviceUUID, service);
+        }
+        return service;
+    }
+
+    /**
+     * @return the characteristic, or null if the server does not have it
+     */
+    public synchronized BluetoothGattCharacteristic getCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = characteristics.get(characteristicUUID);
+        if (characteristic != null && characteristic.getService().getUuid().equals(serviceUUID)) {
+            return characteristic;
+        }
+        BluetoothGattService service = getService(serviceUUID);
+        if (service == null) {
+            return null;
+        }
+        characteristic = service.getCharacteristic(characteristicUUID);
+        if (characteristic != null) characteristics.put(characteristicUUID, characteristic);
+        return characteristic;
+    }
+
+    public synchronized void clear() {
+        services.clear();
+        characteristics.clear();
+    }
+
+    /**
+     * @return the layout of the services currently known by the BluetoothGatt, empty before discovery
+     */
+    public ServiceLayout getLayout() {
+        ServiceLayout.Builder builder = new ServiceLayout.Builder();
+        for (BluetoothGattService service : gatt.getServices()) {
+            builder.addService(service.getUuid());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                builder.addCharacteristic(service.getUuid(), characteristic.getUuid());
+            }
+        }
+        return builder.build();
+    }
+}
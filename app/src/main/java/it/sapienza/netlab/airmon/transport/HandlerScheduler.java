@@ -0,0 +1,140 @@
+package it.sapienza.netlab.airmon.transport;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ScheduledExecutorService} running its tasks on the thread of a Handler, so that the
+ * timers of the tasks run with the GATT callbacks of {@link AndroidBleTransport}, as a
+ * {@link SimulatedScheduler} runs them with the simulated ones. Cancelling a task removes it
+ * from the Handler.
+ */
+public class HandlerScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final Handler handler;
+    private volatile boolean shutdown = false;
+
+    public HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return post(new Task<Void>(command, uptimeAfter(delay, unit)));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return post(new Task<>(callable, uptimeAfter(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException("Schedule the next run from the task");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException("Schedule the next run from the task");
+    }
+
+    private static long uptimeAfter(long delay, TimeUnit unit) {
+        return SystemClock.uptimeMillis() + Math.max(0, unit.toMillis(delay));
+    }
+
+    private <V> Task<V> post(Task<V> task) {
+        if (shutdown || !handler.postAtTime(task, task.uptimeMillis)) {
+            throw new RejectedExecutionException("Handler thread stopped");
+        }
+        return task;
+    }
+
+    /**
+     * Stop accepting tasks, the ones already posted still run: remove them from the Handler to drop them.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return shutdown;
+    }
+
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long uptimeMillis;
+
+        Task(Callable<V> callable, long uptimeMillis) {
+            super(callable);
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        Task(Runnable runnable, long uptimeMillis) {
+            super(runnable, null);
+            this.uptimeMillis = uptimeMillis;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            handler.removeCallbacks(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(uptimeMillis - SystemClock.uptimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        protected void done() {
+            // A failed task crashes the Handler thread, as a posted Runnable would
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Scheduled task failed", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package it.sapienza.netlab.airmon.transport;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.models.ServiceLayout;
+
+/**
+ * {@link BleLink} to a {@link SimulatedServer}, with the timing of a connection-oriented link:
+ * an acknowledged request completes at the next connection event, packets without response
+ * share the events {@link SimulatedServer#getPacketsPerEvent()} at a time, and a request can
+ * only start once the previous one completed.
+ * <p>
+ * The connection interval is the one of the server, shortened or lengthened by the connection
+ * priority requested; the 2M PHY halves the air time of each packet.
+ */
+class SimulatedLink implements BleLink {
+
+    static final int DISCOVERY_INTERVALS = 4;                   //Connection events to read the attribute table
+    static final long CONNECT_TIMEOUT_MS = 30000;               //Failed connections end with status 133 after this
+    static final int GATT_CONN_TIMEOUT = 8;                     //Status of a link dropped by the supervision timeout
+    static final long HIGH_PRIORITY_INTERVAL_MS = 15;           //Longest intervals of the priorities on Android
+    static final long LOW_POWER_INTERVAL_MS = 125;
+
+    private static final ServiceLayout EMPTY = new ServiceLayout.Builder().build();
+
+    private final SimulatedServer server;
+    private final SimulatedScheduler scheduler;
+    private final Random random;
+    private final Callback callback;
+    private final Set<UUID> subscribed = new HashSet<>();
+    private boolean connected = false;
+    private boolean connecting = false;
+    private boolean closed = false;
+    private boolean busy = false;                               //A request is outstanding
+    private long linkFreeNanos = 0;                             //When the radio can send the next packet
+    private int generation = 0;                                 //Bumped at each disconnection, stale events are dropped
+    private ServiceLayout layout = EMPTY;                       //Kept across reconnections, as BluetoothGatt does
+    private int mtu = SimulatedServer.DEFAULT_MTU;
+    private long storedRecords = 0;                             //Records the server stored from this connection
+    private long intervalNanos;                                 //Connection interval of the current priority
+    private long intervalSinceNanos;                            //When the connection events were last counted
+    private boolean fastPhy = false;
+
+    SimulatedLink(SimulatedServer server, SimulatedScheduler scheduler, Random random, Callback callback) {
+        this.server = server;
+        this.scheduler = scheduler;
+        this.random = random;
+        this.callback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return server.getAddress();
+    }
+
+    SimulatedServer getServer() {
+        return server;
+    }
+
+    @Override
+    public boolean connect() {
+        if (closed) return false;
+        if (connected || connecting) return true;
+        connecting = true;
+        final int gen = generation;
+        if (server.isOnline()) {
+            after(server.getConnectLatencyMillis(), gen, new Runnable() {
+                @Override
+                public void run() {
+                    if (!server.isOnline()) {
+                        fail(BleLink.GATT_ERROR);
+                        return;
+                    }
+                    connecting = false;
+                    connected = true;
+                    mtu = SimulatedServer.DEFAULT_MTU;
+                    storedRecords = 0;
+                    linkFreeNanos = scheduler.nowNanos();
+                    intervalNanos = TimeUnit.MILLISECONDS.toNanos(server.getConnectionIntervalMillis());
+                    intervalSinceNanos = scheduler.nowNanos();
+                    fastPhy = false;
+                    server.onConnected(SimulatedLink.this);
+                    callback.OnConnectionStateChange(SimulatedLink.this, BleLink.GATT_SUCCESS, true);
+                }
+            });
+        } else {
+            after(CONNECT_TIMEOUT_MS, gen, new Runnable() {
+                @Override
+                public void run() {
+                    fail(BleLink.GATT_ERROR);
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (closed || !(connected || connecting)) return;
+        final int gen = generation;
+        after(connected ? intervalNanos : TimeUnit.MILLISECONDS.toNanos(server.getConnectionIntervalMillis()),
+                TimeUnit.NANOSECONDS, gen, new Runnable() {
+            @Override
+            public void run() {
+                fail(BleLink.GATT_SUCCESS);
+            }
+        });
+    }
+
+    /**
+     * Lose the connection from the server side.
+     */
+    void drop() {
+        if (connected) fail(GATT_CONN_TIMEOUT);
+    }
+
+    private void fail(int status) {
+        if (connected) countConnectionEvents();
+        generation++;
+        connected = false;
+        connecting = false;
+        busy = false;
+        subscribed.clear();
+        server.onDisconnected(this);
+        callback.OnConnectionStateChange(this, status, false);
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (connected) countConnectionEvents();
+        generation++;
+        connected = false;
+        connecting = false;
+        server.onDisconnected(this);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!begin()) return false;
+        after(DISCOVERY_INTERVALS * intervalNanos, TimeUnit.NANOSECONDS, generation, new Runnable() {
+            @Override
+            public void run() {
+                busy = false;
+                layout = server.getLayout();
+                callback.OnServicesDiscovered(SimulatedLink.this, BleLink.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public ServiceLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public void clearHandles() {
+        // Nothing resolved: the layout is looked up on each request
+    }
+
+    @Override
+    public boolean hasCharacteristic(UUID serviceUUID, UUID characteristicUUID) {
+        return layout.hasCharacteristic(serviceUUID, characteristicUUID);
+    }
+
+    @Override
+    public boolean write(final UUID serviceUUID, final UUID characteristicUUID, byte[] value, boolean withResponse) {
+        if (!layout.hasCharacteristic(serviceUUID, characteristicUUID) || !begin()) return false;
+        final byte[] copy = value.clone();
+        if (withResponse) {
+            // Values longer than the MTU go as a long write, one prepared write per packet
+            int requests = copy.length <= mtu - 3 ? 1 : (copy.length + mtu - 6) / (mtu - 5) + 1;
+            acknowledged(requests, new Runnable() {
+                @Override
+                public void run() {
+                    int status = server.onWrite(SimulatedLink.this, serviceUUID, characteristicUUID, copy);
+                    callback.OnCharacteristicWrite(SimulatedLink.this, characteristicUUID, status);
+                }
+            });
+            return true;
+        }
+        final boolean tooLong = copy.length > mtu - 3;
+        final boolean lost = random.nextDouble() < server.getLossRate();
+        after(nextPacketDelayNanos(), TimeUnit.NANOSECONDS, generation, new Runnable() {
+            @Override
+            public void run() {
+                busy = false;
+                if (!tooLong && !lost) server.onWrite(SimulatedLink.this, serviceUUID, characteristicUUID, copy);
+                callback.OnCharacteristicWrite(SimulatedLink.this, characteristicUUID,
+                        tooLong ? BleLink.GATT_INVALID_ATTRIBUTE_LENGTH : BleLink.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean read(UUID serviceUUID, final UUID characteristicUUID) {
+        if (!layout.hasCharacteristic(serviceUUID, characteristicUUID) || !begin()) return false;
+        final boolean present = server.getLayout().hasCharacteristic(serviceUUID, characteristicUUID);
+        acknowledged(1, new Runnable() {
+            @Override
+            public void run() {
+                callback.OnCharacteristicRead(SimulatedLink.this, characteristicUUID,
+                        present ? server.onRead(SimulatedLink.this, characteristicUUID) : new byte[0],
+                        present ? BleLink.GATT_SUCCESS : BleLink.GATT_FAILURE);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final UUID serviceUUID, final UUID characteristicUUID, final UUID descriptorUUID, final byte[] value) {
+        if (!layout.hasCharacteristic(serviceUUID, characteristicUUID) || !SimulatedServer.isNotifiable(characteristicUUID)
+                || !descriptorUUID.equals(Constants.NotificationDescriptor) || !begin()) {
+            return false;
+        }
+        acknowledged(1, new Runnable() {
+            @Override
+            public void run() {
+                int status = BleLink.GATT_SUCCESS;
+                if (!server.getLayout().hasCharacteristic(serviceUUID, characteristicUUID)) {
+                    status = BleLink.GATT_FAILURE;
+                } else if (value.length > 0 && (value[0] & 3) != 0) {
+                    subscribed.add(characteristicUUID);
+                    callback.OnDescriptorWrite(SimulatedLink.this, descriptorUUID, status);
+                    server.onSubscribed(SimulatedLink.this, characteristicUUID);
+                    return;
+                } else {
+                    subscribed.remove(characteristicUUID);
+                }
+                callback.OnDescriptorWrite(SimulatedLink.this, descriptorUUID, status);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean subscribe(UUID serviceUUID, UUID characteristicUUID, boolean indication) {
+        return writeDescriptor(serviceUUID, characteristicUUID, Constants.NotificationDescriptor,
+                new byte[]{(byte) (indication ? 2 : 1), 0});
+    }
+
+    @Override
+    public boolean requestMtu(final int requested) {
+        if (!begin()) return false;
+        acknowledged(1, new Runnable() {
+            @Override
+            public void run() {
+                mtu = Math.max(SimulatedServer.DEFAULT_MTU, Math.min(requested, server.getMaxMtu()));
+                callback.OnMtuChanged(SimulatedLink.this, mtu, BleLink.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (closed || !connected) return false;
+        // Sent anyway, the peripheral answers with a rejection
+        if (!server.isParameterUpdatesAccepted()) return true;
+        long millis;
+        switch (priority) {
+            case CONNECTION_PRIORITY_HIGH:
+                millis = HIGH_PRIORITY_INTERVAL_MS;
+                break;
+            case CONNECTION_PRIORITY_LOW_POWER:
+                millis = LOW_POWER_INTERVAL_MS;
+                break;
+            default:
+                millis = server.getConnectionIntervalMillis();
+        }
+        countConnectionEvents();
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return true;
+    }
+
+    @Override
+    public boolean setPreferredPhy(boolean fast) {
+        if (closed || !connected) return false;
+        fastPhy = fast;
+        return true;
+    }
+
+    /**
+     * Add the connection events since the last count to the server, at the current interval.
+     */
+    private void countConnectionEvents() {
+        long now = scheduler.nowNanos();
+        server.onConnectionEvents((now - intervalSinceNanos) / (double) intervalNanos);
+        intervalSinceNanos = now;
+    }
+
+    /**
+     * @return the connection events not counted yet
+     */
+    double getPendingConnectionEvents() {
+        return connected ? (scheduler.nowNanos() - intervalSinceNanos) / (double) intervalNanos : 0;
+    }
+
+    long getConnectionIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    int getMtu() {
+        return mtu;
+    }
+
+    long getStoredRecords() {
+        return storedRecords;
+    }
+
+    void onStored() {
+        storedRecords++;
+    }
+
+    /**
+     * Send a notification of the server to the client, if it subscribed to the characteristic.
+     */
+    void notify(final UUID characteristicUUID, byte[] value) {
+        if (!connected || !subscribed.contains(characteristicUUID)) return;
+        if (random.nextDouble() < server.getLossRate()) return;
+        final byte[] copy = value.clone();
+        after(nextPacketDelayNanos(), TimeUnit.NANOSECONDS, generation, new Runnable() {
+            @Override
+            public void run() {
+                callback.OnCharacteristicChanged(SimulatedLink.this, characteristicUUID, copy);
+            }
+        });
+    }
+
+    /**
+     * @return false if the request cannot start, as BluetoothGatt does while another one is outstanding
+     */
+    private boolean begin() {
+        if (closed || !connected || busy) return false;
+        busy = true;
+        return true;
+    }
+
+    /**
+     * Complete a request after its round trips, each retried at the next connection event when lost.
+     */
+    private void acknowledged(int requests, final Runnable completion) {
+        long intervals = requests;
+        for (int i = 0; i < requests; i++) {
+            while (random.nextDouble() < server.getLossRate()) intervals++;
+        }
+        long start = Math.max(scheduler.nowNanos(), linkFreeNanos);
+        long end = start + intervals * intervalNanos;
+        linkFreeNanos = end;
+        after(end - scheduler.nowNanos(), TimeUnit.NANOSECONDS, generation, new Runnable() {
+            @Override
+            public void run() {
+                busy = false;
+                completion.run();
+            }
+        });
+    }
+
+    /**
+     * Reserve the radio for one packet.
+     *
+     * @return the delay until the packet is sent
+     */
+    private long nextPacketDelayNanos() {
+        long now = scheduler.nowNanos();
+        long packet = intervalNanos / Math.max(1, server.getPacketsPerEvent() * (fastPhy ? 2 : 1));
+        linkFreeNanos = Math.max(now, linkFreeNanos) + packet;
+        return linkFreeNanos - now;
+    }
+
+    private void after(long millis, int gen, Runnable task) {
+        after(millis, TimeUnit.MILLISECONDS, gen, task);
+    }
+
+    private void after(long delay, TimeUnit unit, final int gen, final Runnable task) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Events of a previous connection, or after close, are never delivered
+                if (gen == generation && !closed) task.run();
+            }
+        }, delay, unit);
+    }
+}
@@ -0,0 +1,209 @@
+package it.sapienza.netlab.airmon.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Clock;
+
+/**
+ * Runs the tasks of a simulation in virtual time, on the thread calling {@link #runUntilIdle()}
+ * or {@link #runFor(long)}: time jumps from one task to the next, so hours of traffic take as
+ * long as the code under test needs. Tasks due at the same time run in the order they were
+ * scheduled, so a run is repeatable.
+ * <p>
+ * Also usable as the timer of a GattOperationQueue, whose timeouts then follow the virtual time.
+ * Tasks can be scheduled from any thread, but they only run on the caller of the run methods.
+ */
+public class SimulatedScheduler extends AbstractExecutorService implements ScheduledExecutorService, Clock {
+
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long nowNanos = 0;
+    private long sequence = 0;
+    private boolean shutdown = false;
+    private long executed = 0;
+
+    @Override
+    public synchronized long nowMillis() {
+        return nowNanos / 1000000L;
+    }
+
+    @Override
+    public synchronized long nowNanos() {
+        return nowNanos;
+    }
+
+    /**
+     * Run the tasks due within the given time, then move the clock to its end.
+     *
+     * @return the number of tasks run
+     */
+    public int runFor(long millis) {
+        long end;
+        synchronized (this) {
+            end = nowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+        int run = runUntil(end);
+        synchronized (this) {
+            if (nowNanos < end) nowNanos = end;
+        }
+        return run;
+    }
+
+    /**
+     * Run the tasks until none is left, including the ones they schedule.
+     *
+     * @return the number of tasks run
+     */
+    public int runUntilIdle() {
+        return runUntil(Long.MAX_VALUE);
+    }
+
+    private int runUntil(long endNanos) {
+        int run = 0;
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                task = queue.peek();
+                if (task == null || task.time > endNanos) break;
+                queue.poll();
+                nowNanos = Math.max(nowNanos, task.time);
+                executed++;
+            }
+            // Cancelled tasks do nothing
+            task.run();
+            run++;
+        }
+        return run;
+    }
+
+    /**
+     * @return the number of tasks waiting, cancelled ones included
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of tasks run so far
+     */
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    private synchronized <V> Task<V> add(Task<V> task) {
+        if (!shutdown) queue.add(task);
+        return task;
+    }
+
+    private synchronized long timeAfter(long delay, TimeUnit unit) {
+        return nowNanos + Math.max(0, unit.toNanos(delay));
+    }
+
+    private synchronized long nextSequence() {
+        return sequence++;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(new Task<Void>(command, timeAfter(delay, unit), nextSequence()));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(new Task<>(callable, timeAfter(delay, unit), nextSequence()));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException("Periodic tasks are not simulated, schedule the next run from the task");
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException("Periodic tasks are not simulated, schedule the next run from the task");
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>(queue);
+        queue.clear();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private final long time;
+        private final long sequence;
+
+        Task(Callable<V> callable, long time, long sequence) {
+            super(callable);
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        Task(Runnable runnable, long time, long sequence) {
+            super(runnable, null);
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - nowNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task<?> task = (Task<?>) other;
+            if (time != task.time) return time < task.time ? -1 : 1;
+            return Long.compare(sequence, task.sequence);
+        }
+
+        @Override
+        protected void done() {
+            // FutureTask keeps the exception for get(), which nobody calls on a timer task
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Simulated task failed", e.getCause());
+            }
+        }
+    }
+}
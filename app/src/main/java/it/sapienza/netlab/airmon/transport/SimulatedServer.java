@@ -0,0 +1,495 @@
+package it.sapienza.netlab.airmon.transport;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.models.ServiceLayout;
+
+/**
+ * In-memory model of an ESP32 server of a {@link SimulatedTransport}: the Location and Time
+ * services of {@link Constants}, the Batch characteristics when enabled, and Service Changed.
+ * <p>
+ * Fixes are stored from the text characteristics once the timestamp is written, from a binary
+ * record on the Location characteristic, or from batch frames as specified by BatchFrameCodec.
+ * Once the storage capacity is reached new fixes are discarded and the server notifies the
+ * Location characteristic, or acks with the full status in batch mode, until {@link #freeStorage()}.
+ * With {@link #setCreditsEnabled(boolean)} the Location notifications advertise the free slots
+ * instead, as specified by CreditCodec.
+ * <p>
+ * The setters configure the radio: they apply to the next packets and connections.
+ * Not thread safe, used from the thread running the {@link SimulatedScheduler}.
+ */
+public class SimulatedServer {
+
+    public static final int DEFAULT_MTU = 23;
+    public static final byte[] MEMORY_FULL = {1};                      //Value notified on the Location characteristic
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String address;
+    private int rssi = -60;
+    private long advertisingIntervalMillis = 100;
+    private long connectLatencyMillis = 40;
+    private long connectionIntervalMillis = 30;
+    private boolean parameterUpdatesAccepted = true;
+    private int packetsPerEvent = 6;
+    private double lossRate = 0;
+    private int maxMtu = Constants.REQUESTED_MTU;
+    private int storageCapacity = Integer.MAX_VALUE;
+    private boolean batchSupported = false;
+    private boolean online = true;
+    private boolean creditsEnabled = false;
+
+    private final List<SimulatedLink> links = new ArrayList<>();
+    private final List<LocationRecord> stored = new ArrayList<>();
+    private final LocationRecord record = new LocationRecord();
+    private ServiceLayout layout;
+    private String latitude;                                           //Text fields written before the timestamp
+    private String longitude;
+    private final Map<SimulatedLink, Integer> linkSessions = new HashMap<>();      //Batch session bound to each connection
+    private final Map<Integer, Long> expectedSeqs = new HashMap<>();               //Next batch record expected from each session
+
+    private long writes = 0;
+    private long framesReceived = 0;
+    private long framesDiscarded = 0;
+    private long recordsDiscarded = 0;
+    private long creditsSent = 0;
+    private double connectionEvents = 0;
+
+    SimulatedServer(String address) {
+        this.address = address;
+        buildLayout();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public SimulatedServer setRssi(int rssi) {
+        this.rssi = rssi;
+        return this;
+    }
+
+    public long getAdvertisingIntervalMillis() {
+        return advertisingIntervalMillis;
+    }
+
+    public SimulatedServer setAdvertisingIntervalMillis(long advertisingIntervalMillis) {
+        this.advertisingIntervalMillis = advertisingIntervalMillis;
+        return this;
+    }
+
+    public long getConnectLatencyMillis() {
+        return connectLatencyMillis;
+    }
+
+    /**
+     * @param connectLatencyMillis time from the connection request to the connection
+     */
+    public SimulatedServer setConnectLatencyMillis(long connectLatencyMillis) {
+        this.connectLatencyMillis = connectLatencyMillis;
+        return this;
+    }
+
+    public long getConnectionIntervalMillis() {
+        return connectionIntervalMillis;
+    }
+
+    /**
+     * @param connectionIntervalMillis time between connection events: an acknowledged request
+     *                                 completes in one interval, a discovery in a few
+     */
+    public SimulatedServer setConnectionIntervalMillis(long connectionIntervalMillis) {
+        this.connectionIntervalMillis = connectionIntervalMillis;
+        return this;
+    }
+
+    public boolean isParameterUpdatesAccepted() {
+        return parameterUpdatesAccepted;
+    }
+
+    /**
+     * @param parameterUpdatesAccepted false to keep the connection interval whatever priority the
+     *                                 client requests, as a peripheral rejecting the updates does
+     */
+    public SimulatedServer setParameterUpdatesAccepted(boolean parameterUpdatesAccepted) {
+        this.parameterUpdatesAccepted = parameterUpdatesAccepted;
+        return this;
+    }
+
+    public int getPacketsPerEvent() {
+        return packetsPerEvent;
+    }
+
+    /**
+     * @param packetsPerEvent packets without response sent in each connection event
+     */
+    public SimulatedServer setPacketsPerEvent(int packetsPerEvent) {
+        this.packetsPerEvent = packetsPerEvent;
+        return this;
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * @param lossRate probability that an advertisement, a write without response or a notification
+     *                 is lost; acknowledged requests are retried by the link and take one more interval
+     */
+    public SimulatedServer setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    public int getMaxMtu() {
+        return maxMtu;
+    }
+
+    public SimulatedServer setMaxMtu(int maxMtu) {
+        this.maxMtu = maxMtu;
+        return this;
+    }
+
+    public int getStorageCapacity() {
+        return storageCapacity;
+    }
+
+    /**
+     * @param storageCapacity fixes stored before the memory is full
+     */
+    public SimulatedServer setStorageCapacity(int storageCapacity) {
+        this.storageCapacity = storageCapacity;
+        return this;
+    }
+
+    public boolean isBatchSupported() {
+        return batchSupported;
+    }
+
+    /**
+     * Expose the Batch characteristics, or remove them as a firmware update would: the connected
+     * clients subscribed to Service Changed are indicated.
+     */
+    public SimulatedServer setBatchSupported(boolean batchSupported) {
+        if (this.batchSupported == batchSupported) return this;
+        this.batchSupported = batchSupported;
+        buildLayout();
+        for (SimulatedLink link : new ArrayList<>(links)) {
+            link.notify(Constants.CharacteristicServiceChangedUUID, new byte[4]);
+        }
+        return this;
+    }
+
+    public boolean isCreditsEnabled() {
+        return creditsEnabled;
+    }
+
+    /**
+     * @param creditsEnabled advertise the free slots on the Location characteristic, as the firmware with
+     *                       flow control does, instead of only notifying a full memory
+     */
+    public SimulatedServer setCreditsEnabled(boolean creditsEnabled) {
+        this.creditsEnabled = creditsEnabled;
+        return this;
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Switch the server off, dropping its connections, or on again.
+     */
+    public SimulatedServer setOnline(boolean online) {
+        this.online = online;
+        if (!online) dropConnections();
+        return this;
+    }
+
+    /**
+     * Drop every connection, as a supervision timeout would.
+     */
+    public void dropConnections() {
+        for (SimulatedLink link : new ArrayList<>(links)) {
+            link.drop();
+        }
+    }
+
+    /**
+     * @return true while connected to at least one client, the server does not advertise meanwhile
+     */
+    public boolean isConnected() {
+        return !links.isEmpty();
+    }
+
+    public ServiceLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the fixes stored, the timestamp of the text ones is not parsed and left to 0
+     */
+    public List<LocationRecord> getStored() {
+        return stored;
+    }
+
+    public int getStoredCount() {
+        return stored.size();
+    }
+
+    public boolean isFull() {
+        return stored.size() >= storageCapacity;
+    }
+
+    public int getFreeSlots() {
+        return Math.max(0, storageCapacity - stored.size());
+    }
+
+    /**
+     * Empty the storage, as when the fixes are uploaded from the server. The clients are told
+     * of the free slots if credits are enabled.
+     */
+    public void freeStorage() {
+        stored.clear();
+        for (SimulatedLink link : new ArrayList<>(links)) {
+            notifyCredits(link);
+        }
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * @return batch frames discarded because a previous frame was lost
+     */
+    public long getFramesDiscarded() {
+        return framesDiscarded;
+    }
+
+    /**
+     * @return fixes discarded because the memory was full
+     */
+    public long getRecordsDiscarded() {
+        return recordsDiscarded;
+    }
+
+    /**
+     * @return credit notifications sent
+     */
+    public long getCreditsSent() {
+        return creditsSent;
+    }
+
+    private void buildLayout() {
+        ServiceLayout.Builder builder = new ServiceLayout.Builder()
+                .addCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID)
+                .addCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicLatitudeUUID)
+                .addCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicLongitudeUUID)
+                .addCharacteristic(Constants.TimeServiceUUID, Constants.CharacteristicTimestampUUID)
+                .addCharacteristic(Constants.GenericAttributeServiceUUID, Constants.CharacteristicServiceChangedUUID);
+        if (batchSupported) {
+            builder.addCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID)
+                    .addCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchAckUUID);
+        }
+        layout = builder.build();
+    }
+
+    static boolean isNotifiable(UUID characteristicUUID) {
+        return characteristicUUID.equals(Constants.CharacteristicLocationUUID)
+                || characteristicUUID.equals(Constants.CharacteristicBatchAckUUID)
+                || characteristicUUID.equals(Constants.CharacteristicServiceChangedUUID);
+    }
+
+    /**
+     * @return the connection events of every link so far, the radio wakes up for each of them even without data
+     */
+    public double getConnectionEvents() {
+        double events = connectionEvents;
+        for (SimulatedLink link : links) events += link.getPendingConnectionEvents();
+        return events;
+    }
+
+    /**
+     * @return the connection interval of the first link, as set by its connection priority, 0 if not connected
+     */
+    public long getCurrentConnectionIntervalMillis() {
+        return links.isEmpty() ? 0 : links.get(0).getConnectionIntervalMillis();
+    }
+
+    void onConnectionEvents(double events) {
+        connectionEvents += events;
+    }
+
+    void onConnected(SimulatedLink link) {
+        links.add(link);
+    }
+
+    void onDisconnected(SimulatedLink link) {
+        links.remove(link);
+        linkSessions.remove(link);
+    }
+
+    /**
+     * A client subscribed to the notifications of the characteristic. A client subscribing to
+     * Service Changed with the services of an older layout is told at once, as a bonded one would
+     * be on reconnection.
+     */
+    void onSubscribed(SimulatedLink link, UUID characteristicUUID) {
+        if (characteristicUUID.equals(Constants.CharacteristicLocationUUID)) notifyCredits(link);
+        if (characteristicUUID.equals(Constants.CharacteristicServiceChangedUUID) && !layout.equals(link.getLayout())) {
+            link.notify(Constants.CharacteristicServiceChangedUUID, new byte[4]);
+        }
+    }
+
+    /**
+     * @return the value read from the characteristic
+     */
+    byte[] onRead(SimulatedLink link, UUID characteristicUUID) {
+        if (creditsEnabled && characteristicUUID.equals(Constants.CharacteristicLocationUUID)) {
+            return creditValue(link);
+        }
+        return new byte[0];
+    }
+
+    private byte[] creditValue(SimulatedLink link) {
+        byte[] value = new byte[CreditCodec.CREDIT_SIZE];
+        CreditCodec.writeCredit(value, getFreeSlots(), link.getStoredRecords());
+        return value;
+    }
+
+    private void notifyCredits(SimulatedLink link) {
+        if (!creditsEnabled) return;
+        creditsSent++;
+        link.notify(Constants.CharacteristicLocationUUID, creditValue(link));
+    }
+
+    /**
+     * Handle a write received from the link.
+     *
+     * @return the GATT status of the write
+     */
+    int onWrite(SimulatedLink link, UUID serviceUUID, UUID characteristicUUID, byte[] value) {
+        if (!layout.hasCharacteristic(serviceUUID, characteristicUUID)) {
+            return BleLink.GATT_FAILURE;
+        }
+        writes++;
+        if (characteristicUUID.equals(Constants.CharacteristicLatitudeUUID)) {
+            latitude = new String(value, ASCII);
+        } else if (characteristicUUID.equals(Constants.CharacteristicLongitudeUUID)) {
+            longitude = new String(value, ASCII);
+        } else if (characteristicUUID.equals(Constants.CharacteristicTimestampUUID)) {
+            if (latitude == null || longitude == null) return BleLink.GATT_SUCCESS;
+            try {
+                store(link, record.set(Double.parseDouble(latitude), Double.parseDouble(longitude), 0, 0));
+            } catch (NumberFormatException e) {
+                // The firmware stores whatever it gets, the fix is just not counted here
+            }
+            latitude = null;
+            longitude = null;
+        } else if (characteristicUUID.equals(Constants.CharacteristicLocationUUID)) {
+            if (value.length != LocationRecordCodec.RECORD_SIZE) return BleLink.GATT_INVALID_ATTRIBUTE_LENGTH;
+            LocationRecordCodec.decode(value, 0, record);
+            store(link, record);
+        } else if (characteristicUUID.equals(Constants.CharacteristicBatchUUID)) {
+            receiveFrame(link, value);
+        }
+        return BleLink.GATT_SUCCESS;
+    }
+
+    private boolean store(SimulatedLink link, LocationRecord fix) {
+        if (isFull()) {
+            recordsDiscarded++;
+            if (creditsEnabled) {
+                notifyCredits(link);
+            } else {
+                link.notify(Constants.CharacteristicLocationUUID, MEMORY_FULL);
+            }
+            return false;
+        }
+        stored.add(new LocationRecord(fix.getLatitudeE6(), fix.getLongitudeE6(), fix.getEpochSeconds(), fix.getFlags()));
+        link.onStored();
+        return true;
+    }
+
+    private void receiveFrame(SimulatedLink link, byte[] frame) {
+        if (frame.length < BatchFrameCodec.HEADER_SIZE) return;
+        framesReceived++;
+        if (BatchFrameCodec.isSync(frame, frame.length)) {
+            sync(link, frame);
+            return;
+        }
+        Integer session = linkSessions.get(link);
+        if (session == null) {
+            framesDiscarded++;
+            if ((BatchFrameCodec.getFlags(frame) & BatchFrameCodec.FLAG_ACK_REQUESTED) != 0) {
+                notifyAck(link, BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION, 0);
+            }
+            return;
+        }
+        long expectedSeq = expectedSeqs.get(session);
+        long first = BatchFrameCodec.expandSeq(BatchFrameCodec.getFirstSeq(frame), expectedSeq);
+        int count = BatchFrameCodec.getCount(frame);
+        boolean full = false;
+        if (first > expectedSeq) {
+            // A previous frame was lost: wait for it to be sent again
+            framesDiscarded++;
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (first + i < expectedSeq) continue;
+                if (isFull()) {
+                    full = true;
+                    recordsDiscarded += count - i;
+                    break;
+                }
+                LocationRecordCodec.decode(frame, BatchFrameCodec.HEADER_SIZE + i * LocationRecordCodec.RECORD_SIZE, record);
+                stored.add(new LocationRecord(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags()));
+                link.onStored();
+                expectedSeq++;
+            }
+            expectedSeqs.put(session, expectedSeq);
+        }
+        if ((BatchFrameCodec.getFlags(frame) & BatchFrameCodec.FLAG_ACK_REQUESTED) != 0 || full) {
+            notifyAck(link, full ? BatchFrameCodec.ACK_STATUS_FULL : BatchFrameCodec.ACK_STATUS_OK, expectedSeq);
+        }
+        if (full) notifyCredits(link);
+    }
+
+    /**
+     * Bind the connection to the session of the sync frame, which starts from its oldest record
+     * unless the session already went further.
+     */
+    private void sync(SimulatedLink link, byte[] frame) {
+        int session = BatchFrameCodec.getSession(frame);
+        Long known = expectedSeqs.get(session);
+        long oldest = BatchFrameCodec.getFirstSeq(frame);
+        long expectedSeq = known == null ? oldest : Math.max(known, BatchFrameCodec.expandSeq(oldest, known));
+        linkSessions.put(link, session);
+        expectedSeqs.put(session, expectedSeq);
+        notifyAck(link, isFull() ? BatchFrameCodec.ACK_STATUS_FULL : BatchFrameCodec.ACK_STATUS_OK, expectedSeq);
+    }
+
+    private void notifyAck(SimulatedLink link, int status, long nextSeq) {
+        byte[] ack = new byte[BatchFrameCodec.ACK_SIZE];
+        BatchFrameCodec.writeAck(ack, status, nextSeq);
+        link.notify(Constants.CharacteristicBatchAckUUID, ack);
+    }
+}
@@ -0,0 +1,199 @@
+package it.sapienza.netlab.airmon.transport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BleTransport} over in-memory {@link SimulatedServer}s, running in the virtual time of a
+ * {@link SimulatedScheduler}. Every callback is delivered on the thread running the scheduler,
+ * so hundreds of servers can be simulated in one JVM without a radio or a device.
+ * <p>
+ * Runs with the same seed, configuration and requests deliver the same events at the same times.
+ */
+public class SimulatedTransport implements BleTransport {
+
+    // Share of the time the radio listens in each ScanScheduler mode, as ScanSettings does
+    private static final double[] SCAN_DUTY = {0.1, 0.25, 1.0};
+    private static final long MAX_ADVERTISING_DELAY_MS = 10;           //Random delay added to each advertisement
+
+    private final SimulatedScheduler scheduler;
+    private final Random random;
+    private final Map<String, SimulatedServer> servers = new LinkedHashMap<>();
+    private ScanListener scanListener;
+    private double scanDuty;
+    private int scanGeneration = 0;
+    private long connections = 0;
+    private long reportDelayMillis = 0;
+    private List<Sighting> batch;                                       //Advertisements held back, null if delivered at once
+
+    private static class Sighting {
+        final String address;
+        final int rssi;
+        final long timestampNanos;
+
+        Sighting(String address, int rssi, long timestampNanos) {
+            this.address = address;
+            this.rssi = rssi;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    public SimulatedTransport(SimulatedScheduler scheduler, long seed) {
+        this.scheduler = scheduler;
+        this.random = new Random(seed);
+    }
+
+    public SimulatedScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Add a server with the default configuration, see the setters of {@link SimulatedServer}.
+     */
+    public SimulatedServer addServer(String address) {
+        SimulatedServer server = new SimulatedServer(address.toUpperCase(Locale.ROOT));
+        servers.put(server.getAddress(), server);
+        if (scanListener != null) scheduleAdvertisement(server, scanGeneration);
+        return server;
+    }
+
+    /**
+     * Make a server of another transport reachable from this one as well, as by a second phone
+     * in range: both must run on the same scheduler.
+     */
+    public SimulatedServer addServer(SimulatedServer server) {
+        servers.put(server.getAddress(), server);
+        if (scanListener != null) scheduleAdvertisement(server, scanGeneration);
+        return server;
+    }
+
+    /**
+     * Add servers with consecutive addresses, starting from 02:00:00:00:00:00.
+     */
+    public void addServers(int count) {
+        for (int i = 0; i < count; i++) {
+            addServer(String.format(Locale.ROOT, "02:00:00:%02X:%02X:%02X", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+        }
+    }
+
+    public SimulatedServer getServer(String address) {
+        return servers.get(address.toUpperCase(Locale.ROOT));
+    }
+
+    public Collection<SimulatedServer> getServers() {
+        return Collections.unmodifiableCollection(servers.values());
+    }
+
+    /**
+     * Hold back the advertisements of the scans not in low latency mode and deliver them every
+     * reportDelayMillis, as the controller does when Utility.buildScanSettings sets a report delay.
+     *
+     * @param reportDelayMillis 0 to deliver every advertisement at once, the default
+     */
+    public void setReportDelayMillis(long reportDelayMillis) {
+        this.reportDelayMillis = reportDelayMillis;
+    }
+
+    /**
+     * @return the connection requests made so far
+     */
+    public long getConnections() {
+        return connections;
+    }
+
+    @Override
+    public boolean startScan(int scanMode, ScanListener listener) {
+        if (scanListener != null) {
+            listener.OnScanFailed(1);       //ScanCallback.SCAN_FAILED_ALREADY_STARTED
+            return true;
+        }
+        scanListener = listener;
+        scanDuty = SCAN_DUTY[Math.max(0, Math.min(SCAN_DUTY.length - 1, scanMode))];
+        scanGeneration++;
+        for (SimulatedServer server : new ArrayList<>(servers.values())) {
+            scheduleAdvertisement(server, scanGeneration);
+        }
+        batch = null;
+        if (reportDelayMillis > 0 && scanMode < SCAN_DUTY.length - 1) {
+            batch = new ArrayList<>();
+            scheduleReport(scanGeneration);
+        }
+        return true;
+    }
+
+    @Override
+    public void stopScan() {
+        final ScanListener listener = scanListener;
+        if (listener == null) return;
+        final List<Sighting> flushed = batch;
+        scanListener = null;
+        batch = null;
+        scanGeneration++;
+        // The results still batched come before the end of the scan
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (flushed != null) deliver(listener, flushed);
+                listener.OnScanStopped();
+            }
+        });
+    }
+
+    private void scheduleReport(final int generation) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != scanGeneration) return;
+                List<Sighting> report = batch;
+                batch = new ArrayList<>();
+                deliver(scanListener, report);
+                scheduleReport(generation);
+            }
+        }, reportDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void deliver(ScanListener listener, List<Sighting> sightings) {
+        for (Sighting sighting : sightings) {
+            listener.OnAdvertisement(sighting.address, sighting.rssi, sighting.timestampNanos);
+        }
+    }
+
+    private void scheduleAdvertisement(final SimulatedServer server, final int generation) {
+        long delay = server.getAdvertisingIntervalMillis() + (long) (random.nextDouble() * MAX_ADVERTISING_DELAY_MS);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != scanGeneration || scanListener == null) return;
+                // Connected servers stop advertising, offline ones do not advertise at all
+                if (server.isOnline() && !server.isConnected()
+                        && random.nextDouble() < scanDuty * (1 - server.getLossRate())) {
+                    if (batch != null) {
+                        batch.add(new Sighting(server.getAddress(), server.getRssi(), scheduler.nowNanos()));
+                    } else {
+                        scanListener.OnAdvertisement(server.getAddress(), server.getRssi(), scheduler.nowNanos());
+                    }
+                }
+                scheduleAdvertisement(server, generation);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public BleLink connect(String address, BleLink.Callback callback) {
+        SimulatedServer server = getServer(address);
+        if (server == null) {
+            return null;
+        }
+        connections++;
+        SimulatedLink link = new SimulatedLink(server, scheduler, random, callback);
+        link.connect();
+        return link;
+    }
+}
@@ -0,0 +1,267 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteUtilityTest {
+
+    private static final int RUNS = 2_000;
+
+    /**
+     * @return a random value of the given width, biased towards the extremes
+     */
+    private static long randomValue(Random random, int width) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return 0;
+            case 1:
+                return ByteUtility.mask(width);
+            default:
+                return random.nextLong() & ByteUtility.mask(width);
+        }
+    }
+
+    private static long randomVarint(Random random) {
+        // Uniform bit lengths, so that every encoded size is covered
+        int bits = random.nextInt(65);
+        return bits == 0 ? 0 : random.nextLong() >>> (64 - bits);
+    }
+
+    @Test
+    public void bitOrderMatchesGetBit() {
+        byte[] buffer = new byte[2];
+        ByteUtility.writeBits(buffer, 3, 7, 0b1011001);
+        ByteUtility.BitReader reader = new ByteUtility.BitReader(buffer, 0, 2);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(ByteUtility.getBit(buffer[i / 8], i % 8), reader.read(1));
+        }
+        assertEquals("11001000", ByteUtility.toBinaryString(buffer[0]));
+        assertEquals("00000010", ByteUtility.toBinaryString(buffer[1]));
+    }
+
+    @Test
+    public void writerAndReaderRoundTrip() {
+        Random random = new Random(19);
+        for (int run = 0; run < RUNS; run++) {
+            int fields = 1 + random.nextInt(40);
+            int[] widths = new int[fields];
+            long[] values = new long[fields];
+            long bits = 0;
+            for (int i = 0; i < fields; i++) {
+                widths[i] = random.nextInt(65);
+                values[i] = randomValue(random, widths[i]);
+                bits += widths[i];
+            }
+            int offset = random.nextInt(5);
+            byte[] buffer = new byte[offset + (int) ((bits + 7) / 8)];
+            ByteUtility.BitWriter writer = new ByteUtility.BitWriter(buffer, offset);
+            for (int i = 0; i < fields; i++) writer.write(values[i], widths[i]);
+            assertEquals(bits, writer.getBitCount());
+            assertEquals(buffer.length - offset, writer.flush());
+
+            ByteUtility.BitReader reader = new ByteUtility.BitReader(buffer, offset, buffer.length - offset);
+            long position = (long) offset * 8;
+            for (int i = 0; i < fields; i++) {
+                // The stream and the random access views agree
+                assertEquals(values[i], ByteUtility.readBits(buffer, position, widths[i]));
+                assertEquals(values[i], reader.read(widths[i]));
+                position += widths[i];
+            }
+            assertEquals(bits, reader.getBitCount());
+            assertTrue(reader.getRemainingBits() < 8);
+        }
+    }
+
+    @Test
+    public void byteBufferRoundTripKeepsTheByteOrder() {
+        Random random = new Random(23);
+        for (int run = 0; run < RUNS / 10; run++) {
+            ByteBuffer buffer = random.nextBoolean() ? ByteBuffer.allocate(512) : ByteBuffer.allocateDirect(512);
+            buffer.order(ByteOrder.BIG_ENDIAN).position(random.nextInt(8));
+            int start = buffer.position();
+            int fields = 1 + random.nextInt(40);
+            int[] widths = new int[fields];
+            long[] values = new long[fields];
+            ByteUtility.BitWriter writer = new ByteUtility.BitWriter(buffer);
+            for (int i = 0; i < fields; i++) {
+                widths[i] = 1 + random.nextInt(64);
+                values[i] = randomValue(random, widths[i]);
+                writer.write(values[i], widths[i]);
+            }
+            int bytes = writer.flush();
+            assertEquals(start + bytes, buffer.position());
+            assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+
+            // Same bytes as the array writer
+            byte[] array = new byte[bytes];
+            ByteUtility.BitWriter arrayWriter = new ByteUtility.BitWriter(array, 0);
+            for (int i = 0; i < fields; i++) arrayWriter.write(values[i], widths[i]);
+            arrayWriter.flush();
+            byte[] written = new byte[bytes];
+            buffer.flip().position(start);
+            buffer.duplicate().get(written);
+            assertArrayEquals(array, written);
+
+            ByteUtility.BitReader reader = new ByteUtility.BitReader(buffer);
+            for (int i = 0; i < fields; i++) assertEquals(values[i], reader.read(widths[i]));
+            assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+        }
+    }
+
+    @Test
+    public void writeBitsLeavesNeighboursUntouched() {
+        Random random = new Random(29);
+        for (int run = 0; run < RUNS; run++) {
+            byte[] buffer = new byte[12];
+            random.nextBytes(buffer);
+            byte[] before = buffer.clone();
+            int width = random.nextInt(65);
+            long offset = random.nextInt(buffer.length * 8 - width + 1);
+            long value = random.nextLong();
+            ByteUtility.writeBits(buffer, offset, width, value);
+            assertEquals(value & ByteUtility.mask(width), ByteUtility.readBits(buffer, offset, width));
+            assertEquals(ByteUtility.signExtend(value & ByteUtility.mask(width), width), ByteUtility.readSignedBits(buffer, offset, width));
+            for (int bit = 0; bit < buffer.length * 8; bit++) {
+                if (bit >= offset && bit < offset + width) continue;
+                assertEquals(ByteUtility.getBit(before[bit / 8], bit % 8), ByteUtility.getBit(buffer[bit / 8], bit % 8));
+            }
+        }
+    }
+
+    @Test
+    public void signedFieldsRoundTrip() {
+        Random random = new Random(31);
+        for (int run = 0; run < RUNS; run++) {
+            int width = 1 + random.nextInt(64);
+            long value = ByteUtility.signExtend(random.nextLong(), width);
+            byte[] buffer = new byte[9];
+            new ByteUtility.BitWriter(buffer, 0).write(value, width).flush();
+            assertEquals(value, new ByteUtility.BitReader(buffer, 0, buffer.length).readSigned(width));
+        }
+        assertEquals(-1, ByteUtility.signExtend(1, 1));
+        assertEquals(-2048, ByteUtility.signExtend(0x800, 12));
+        assertEquals(2047, ByteUtility.signExtend(0x7FF, 12));
+    }
+
+    @Test
+    public void varintRoundTrip() {
+        Random random = new Random(37);
+        byte[] buffer = new byte[ByteUtility.MAX_VARINT_SIZE + 3];
+        ByteBuffer byteBuffer = ByteBuffer.allocate(buffer.length);
+        for (int run = 0; run < RUNS * 5; run++) {
+            long value = randomVarint(random);
+            int size = ByteUtility.writeVarint(value, buffer, 3);
+            assertEquals(ByteUtility.varintSize(value), size);
+            assertEquals(value, ByteUtility.readVarint(buffer, 3));
+
+            byteBuffer.clear();
+            assertEquals(size, ByteUtility.putVarint(byteBuffer, value));
+            byteBuffer.flip();
+            assertEquals(value, ByteUtility.getVarint(byteBuffer));
+            assertEquals(size, byteBuffer.position());
+            for (int i = 0; i < size; i++) assertEquals(buffer[3 + i], byteBuffer.get(i));
+        }
+    }
+
+    @Test
+    public void varintMatchesLeb128() {
+        byte[] buffer = new byte[ByteUtility.MAX_VARINT_SIZE];
+        assertEquals(1, ByteUtility.writeVarint(0, buffer, 0));
+        assertEquals(0, buffer[0]);
+        assertEquals(1, ByteUtility.writeVarint(127, buffer, 0));
+        assertEquals(2, ByteUtility.writeVarint(128, buffer, 0));
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x01}, Arrays.copyOf(buffer, 2));
+        assertEquals(3, ByteUtility.writeVarint(624485, buffer, 0));
+        assertArrayEquals(new byte[]{(byte) 0xE5, (byte) 0x8E, 0x26}, Arrays.copyOf(buffer, 3));
+        assertEquals(ByteUtility.MAX_VARINT_SIZE, ByteUtility.writeVarint(-1, buffer, 0));
+        assertEquals(-1, ByteUtility.readVarint(buffer, 0));
+        assertEquals(ByteUtility.MAX_VARINT_SIZE, ByteUtility.varintSize(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void overlongVarintIsRejected() {
+        byte[] buffer = new byte[ByteUtility.MAX_VARINT_SIZE + 1];
+        Arrays.fill(buffer, (byte) 0x80);
+        try {
+            ByteUtility.readVarint(buffer, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void zigZagKeepsSmallMagnitudesSmall() {
+        assertEquals(0, ByteUtility.encodeZigZag(0L));
+        assertEquals(1, ByteUtility.encodeZigZag(-1L));
+        assertEquals(2, ByteUtility.encodeZigZag(1L));
+        assertEquals(3, ByteUtility.encodeZigZag(-2));
+        assertEquals(-1L, ByteUtility.encodeZigZag(Long.MIN_VALUE));
+        Random random = new Random(41);
+        for (int run = 0; run < RUNS * 5; run++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(value, ByteUtility.decodeZigZag(ByteUtility.encodeZigZag(value)));
+            int small = (int) value;
+            assertEquals(small, ByteUtility.decodeZigZag(ByteUtility.encodeZigZag(small)));
+        }
+    }
+
+    @Test
+    public void varintsAndFieldsShareAStream() {
+        Random random = new Random(43);
+        byte[] buffer = new byte[256];
+        for (int run = 0; run < RUNS / 10; run++) {
+            ByteUtility.BitWriter writer = new ByteUtility.BitWriter(buffer, 0);
+            long delta = random.nextInt(2_000_000) - 1_000_000;
+            int flags = random.nextInt(8);
+            long varint = randomVarint(random);
+            writer.write(flags, 3).writeBit(true).writeVarint(ByteUtility.encodeZigZag(delta)).alignToByte().writeVarint(varint);
+            writer.flush();
+
+            ByteUtility.BitReader reader = new ByteUtility.BitReader(buffer, 0, buffer.length);
+            assertEquals(flags, reader.read(3));
+            assertTrue(reader.readBit());
+            assertEquals(delta, ByteUtility.decodeZigZag(reader.readVarint()));
+            // Byte aligned varints are the plain encoding
+            long aligned = reader.alignToByte().getBitCount() / 8;
+            assertEquals(varint, ByteUtility.readVarint(buffer, (int) aligned));
+            assertEquals(varint, reader.readVarint());
+        }
+    }
+
+    @Test
+    public void readingPastTheEndFails() {
+        ByteUtility.BitReader reader = new ByteUtility.BitReader(new byte[3], 0, 3);
+        reader.read(20);
+        try {
+            reader.read(5);
+            fail();
+        } catch (BufferUnderflowException expected) {
+        }
+        try {
+            new ByteUtility.BitWriter(new byte[1], 0).write(0x1FF, 9).flush();
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test
+    public void rendersBinaryAndHex() {
+        byte[] bytes = {0x00, (byte) 0xA5, 0x7F, (byte) 0xFF};
+        assertEquals("10100101 01111111", ByteUtility.appendBinary(new StringBuilder(), bytes, 1, 2).toString());
+        assertEquals("00A57FFF", ByteUtility.appendHex(new StringBuilder(), bytes, 0, 4).toString());
+        for (int b = -128; b < 128; b++) {
+            String expected = String.format("%8s", Integer.toBinaryString(b & 0xff)).replace(' ', '0');
+            assertEquals(expected, ByteUtility.toBinaryString((byte) b));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DebugLogTest {
+
+    @Test
+    public void firstAppendAsksForRefresh() {
+        DebugLog log = new DebugLog(8);
+        assertTrue(log.append("a"));
+        assertFalse(log.append("b"));
+        StringBuilder text = new StringBuilder();
+        assertEquals(2, log.render(text, 4));
+        assertEquals("a\nb\n", text.toString());
+        assertFalse(log.isDirty());
+        assertTrue(log.append("c"));
+        log.render(text, 4);
+        assertEquals("a\nb\nc\n", text.toString());
+    }
+
+    @Test
+    public void onlyVisibleTailIsRendered() {
+        DebugLog log = new DebugLog(8);
+        for (int i = 0; i < 20; i++) {
+            log.append("line " + i);
+        }
+        StringBuilder text = new StringBuilder();
+        assertEquals(20, log.render(text, 3));
+        assertEquals("[18 lines skipped]\nline 18\nline 19\n", text.toString());
+        assertEquals(18, log.getSkipped());
+        log.append("line 20");
+        log.render(text, 3);
+        assertEquals("[18 lines skipped]\nline 19\nline 20\n", text.toString());
+        assertEquals(18, log.getSkipped());
+    }
+
+    @Test
+    public void clearHidesOlderLines() {
+        DebugLog log = new DebugLog(8);
+        log.append("old");
+        StringBuilder text = new StringBuilder();
+        log.render(text, 4);
+        assertTrue(log.clear());
+        log.render(text, 4);
+        assertEquals("", text.toString());
+        log.append("new");
+        log.render(text, 4);
+        assertEquals("new\n", text.toString());
+    }
+
+    @Test
+    public void concurrentLinesAreDrawnOrSkipped() throws InterruptedException {
+        final int writers = 4;
+        final int lines = 20_000;
+        final int maxLines = 30;
+        final DebugLog log = new DebugLog();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < lines / writers; i++) {
+                    log.append("Thread " + id + " line " + i);
+                }
+            });
+            threads[t].start();
+        }
+        // Renders as the UI thread does, as often as the writers leave it dirty
+        final long[] drawn = new long[1];
+        final StringBuilder text = new StringBuilder();
+        Thread ui = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (log.isDirty()) drawn[0] += render(log, text, maxLines);
+                Thread.yield();
+            }
+        });
+        ui.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ui.interrupt();
+        ui.join();
+        drawn[0] += render(log, text, maxLines);
+
+        assertEquals(lines, log.getWriteSequence());
+        // The skipped lines report plus the visible tail
+        assertEquals(maxLines, text.toString().split("\n").length);
+        assertEquals(lines, drawn[0] + log.getSkipped());
+    }
+
+    /**
+     * @return the lines drawn for the first time, render() also counts the ones it skipped
+     */
+    private static long render(DebugLog log, StringBuilder text, int maxLines) {
+        long skipped = log.getSkipped();
+        int appended = log.render(text, maxLines);
+        return appended - (log.getSkipped() - skipped);
+    }
+}
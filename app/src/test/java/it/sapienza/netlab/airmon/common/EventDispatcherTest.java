@@ -0,0 +1,195 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDispatcherTest {
+
+    private static class Hit {
+        final int producer;
+        final int seq;
+
+        Hit(int producer, int seq) {
+            this.producer = producer;
+            this.seq = seq;
+        }
+    }
+
+    private static class SpecialHit extends Hit {
+        SpecialHit(int seq) {
+            super(0, seq);
+        }
+    }
+
+    private static class Count implements EventDispatcher.Coalescing {
+        final int value;
+
+        Count(int value) {
+            this.value = value;
+        }
+    }
+
+    // Runs the tasks when asked, as a Handler does at the next frame
+    private static class FrameExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        int runFrame() {
+            int run = 0;
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+                run++;
+            }
+            return run;
+        }
+    }
+
+    @Test
+    public void deliversInOrderToTheSubscribersOfTheType() {
+        EventDispatcher dispatcher = new EventDispatcher();
+        FrameExecutor frame = new FrameExecutor();
+        final List<Object> hits = new ArrayList<>();
+        final List<Object> counts = new ArrayList<>();
+        dispatcher.subscribe(Hit.class, frame, new EventDispatcher.Subscriber<Hit>() {
+            @Override
+            public void OnEvent(Hit event) {
+                hits.add(event);
+            }
+        });
+        dispatcher.subscribe(Count.class, frame, new EventDispatcher.Subscriber<Count>() {
+            @Override
+            public void OnEvent(Count event) {
+                counts.add(event);
+            }
+        });
+        Hit first = new Hit(0, 1);
+        SpecialHit second = new SpecialHit(2);
+        dispatcher.post(first);
+        dispatcher.post("not subscribed");
+        dispatcher.post(second);
+        assertEquals(0, hits.size());
+        // A single task per subscriber, however many events
+        assertEquals(1, frame.runFrame());
+        assertEquals(2, hits.size());
+        assertTrue(hits.get(0) == first);
+        assertTrue(hits.get(1) == second);
+        assertEquals(0, counts.size());
+    }
+
+    @Test
+    public void burstsCollapseIntoTheLatestEvent() {
+        EventDispatcher dispatcher = new EventDispatcher();
+        FrameExecutor frame = new FrameExecutor();
+        final List<Object> received = new ArrayList<>();
+        dispatcher.subscribe(Object.class, frame, new EventDispatcher.Subscriber<Object>() {
+            @Override
+            public void OnEvent(Object event) {
+                received.add(event);
+            }
+        });
+        Hit hit = new Hit(0, 1);
+        for (int i = 1; i <= 5000; i++) dispatcher.post(new Count(i));
+        dispatcher.post(hit);
+        for (int i = 5001; i <= 10000; i++) dispatcher.post(new Count(i));
+        frame.runFrame();
+        // The count keeps its place in the order, with the latest value
+        assertEquals(2, received.size());
+        assertEquals(10000, ((Count) received.get(0)).value);
+        assertTrue(received.get(1) == hit);
+        assertEquals(9999, dispatcher.getCoalesced());
+
+        dispatcher.post(new Count(10001));
+        frame.runFrame();
+        assertEquals(10001, ((Count) received.get(2)).value);
+        assertEquals(10002, dispatcher.getPosted());
+        assertEquals(3, dispatcher.getDelivered());
+    }
+
+    @Test
+    public void slowSubscriberDoesNotBlockTheProducers() throws InterruptedException {
+        final int producers = 4;
+        final int events = 100000;
+        final EventDispatcher dispatcher = new EventDispatcher();
+        ExecutorService slow = Executors.newSingleThreadExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers * events);
+        final int[] next = new int[producers];
+        final int[] outOfOrder = {0};
+        dispatcher.subscribe(Hit.class, slow, new EventDispatcher.Subscriber<Hit>() {
+            @Override
+            public void OnEvent(Hit event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (event.seq != next[event.producer]++) outOfOrder[0]++;
+                done.countDown();
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < events; i++) dispatcher.post(new Hit(producer, i));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // Every event is posted while the subscriber is still stuck on the first one
+        for (Thread thread : threads) thread.join(TimeUnit.SECONDS.toMillis(30));
+        for (Thread thread : threads) assertFalse(thread.isAlive());
+        assertEquals(producers * events, done.getCount());
+
+        release.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        slow.shutdown();
+        assertTrue(slow.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(0, outOfOrder[0]);
+        assertEquals(producers * events, dispatcher.getDelivered());
+    }
+
+    @Test
+    public void failingSubscriberKeepsReceivingAndUnsubscribeDropsTheQueue() {
+        EventDispatcher dispatcher = new EventDispatcher();
+        FrameExecutor frame = new FrameExecutor();
+        final List<Integer> received = new ArrayList<>();
+        EventDispatcher.Subscription<Hit> subscription = dispatcher.subscribe(Hit.class, frame, new EventDispatcher.Subscriber<Hit>() {
+            @Override
+            public void OnEvent(Hit event) {
+                received.add(event.seq);
+                if (event.seq == 1) throw new IllegalStateException("subscriber bug");
+            }
+        });
+        dispatcher.post(new Hit(0, 1));
+        dispatcher.post(new Hit(0, 2));
+        frame.runFrame();
+        assertEquals(2, received.size());
+        assertEquals(1, dispatcher.getFailed());
+
+        dispatcher.post(new Hit(0, 3));
+        dispatcher.unsubscribe(subscription);
+        dispatcher.post(new Hit(0, 4));
+        frame.runFrame();
+        assertEquals(2, received.size());
+    }
+}
@@ -0,0 +1,71 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long micros = 0; micros < 100_000; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros + " below its bucket", LatencyHistogram.lowerBound(bucket) <= micros);
+            assertTrue(micros + " above its bucket", LatencyHistogram.lowerBound(bucket + 1) > micros);
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000 + random.nextInt(200_000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double p : new double[]{50, 90, 99}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long estimate = snapshot.getPercentile(p);
+            assertTrue(p + ": " + estimate + " vs " + exact, Math.abs(estimate - exact) <= exact / 16 + 1);
+        }
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getPercentile(50));
+        histogram.recordNanos(5_000_000);
+        assertEquals(5000, histogram.snapshot().getMax());
+        assertEquals(5000.0, histogram.snapshot().getMean(), 0.0);
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void concurrentRecordingIsNotLost() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50_000; i++) histogram.record(i % 1000 + id);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(200_000, histogram.snapshot().getCount());
+        assertEquals(1002, histogram.snapshot().getMax());
+    }
+}
@@ -0,0 +1,103 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Golden tests: the encoder must write the same bytes as the String based code it replaces.
+ */
+public class LegacyTextEncoderTest {
+
+    private static final TimeZone ROME = TimeZone.getTimeZone("Europe/Rome");
+
+    private static String coordinate(int microDegrees) {
+        byte[] buffer = new byte[LegacyTextEncoder.MAX_COORDINATE_LENGTH];
+        int length = LegacyTextEncoder.encodeCoordinate(microDegrees, buffer, 0);
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static void assertCoordinate(int microDegrees) {
+        assertEquals(String.valueOf(microDegrees / 1e6), coordinate(microDegrees));
+    }
+
+    @Test
+    public void coordinateSamples() {
+        assertEquals("41.9", coordinate(41900000));
+        assertEquals("-12.000001", coordinate(-12000001));
+        assertEquals("0.0", coordinate(0));
+        assertEquals("180.0", coordinate(180000000));
+        assertEquals("1.23E-4", coordinate(123));
+        assertEquals("-5.0E-6", coordinate(-5));
+        assertEquals("0.001", coordinate(1000));
+    }
+
+    @Test
+    public void coordinatesNearZeroMatchValueOf() {
+        for (int microDegrees = -2000000; microDegrees <= 2000000; microDegrees++) {
+            assertCoordinate(microDegrees);
+        }
+    }
+
+    @Test
+    public void randomCoordinatesMatchValueOf() {
+        Random random = new Random(15);
+        for (int i = 0; i < 1000000; i++) {
+            assertCoordinate(random.nextInt(360000001) - 180000000);
+        }
+        assertCoordinate(Integer.MAX_VALUE);
+        assertCoordinate(Integer.MIN_VALUE);
+        assertEquals(LegacyTextEncoder.MAX_COORDINATE_LENGTH, coordinate(Integer.MIN_VALUE).length());
+    }
+
+    private static void assertTimestamps(String pattern, boolean twelveHour, long from, long step, int count) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ITALY);
+        format.setTimeZone(ROME);
+        LegacyTextEncoder encoder = new LegacyTextEncoder(twelveHour, ROME);
+        byte[] buffer = new byte[LegacyTextEncoder.TIMESTAMP_LENGTH + 2];
+        for (int i = 0; i < count; i++) {
+            long time = from + i * step;
+            assertEquals(LegacyTextEncoder.TIMESTAMP_LENGTH, encoder.encodeTimestamp(time, buffer, 2));
+            assertEquals(format.format(new Date(time)), new String(buffer, 2, LegacyTextEncoder.TIMESTAMP_LENGTH, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void timestampsMatchSimpleDateFormat() {
+        // One fix a second through a whole day, crossing noon and midnight
+        long day = 1600000000000L;
+        assertTimestamps(LegacyTextEncoder.PATTERN_12H, true, day, 1000, 86400 + 10);
+        assertTimestamps(LegacyTextEncoder.PATTERN_24H, false, day, 1000, 86400 + 10);
+    }
+
+    @Test
+    public void timestampsAcrossDaylightSavingChanges() {
+        // 29 March and 25 October 2020, one fix every 7 seconds around each change
+        for (long change : new long[]{1585443600000L, 1603587600000L}) {
+            assertTimestamps(LegacyTextEncoder.PATTERN_12H, true, change - 3 * 3600000, 7000, 3000);
+            assertTimestamps(LegacyTextEncoder.PATTERN_24H, false, change - 3 * 3600000, 7000, 3000);
+        }
+    }
+
+    @Test
+    public void randomTimestampsMatchSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(LegacyTextEncoder.PATTERN_12H, Locale.ITALY);
+        format.setTimeZone(ROME);
+        LegacyTextEncoder encoder = new LegacyTextEncoder(true, ROME);
+        byte[] buffer = new byte[LegacyTextEncoder.TIMESTAMP_LENGTH];
+        Random random = new Random(15);
+        for (int i = 0; i < 100000; i++) {
+            // Out of order and far apart: the cached hour must be dropped
+            long time = (long) (random.nextDouble() * 4000000000000L);
+            encoder.encodeTimestamp(time, buffer, 0);
+            assertEquals(format.format(new Date(time)), new String(buffer, StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationIntakeTest {
+
+    private File file;
+    private LocationOutbox outbox;
+    private LocationIntake intake;
+    private int drains = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 1024);
+        intake = new LocationIntake(outbox, new Runnable() {
+            @Override
+            public void run() {
+                drains++;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        outbox.close();
+        file.delete();
+    }
+
+    // The fixes a filter with the service settings keeps, in order
+    private static List<LocationRecord> significant(long[][] fixes) {
+        final List<LocationRecord> kept = new ArrayList<>();
+        TrajectoryFilter filter = new TrajectoryFilter(new TrajectoryFilter.PointSink() {
+            @Override
+            public void accept(LocationRecord record) {
+                kept.add(new LocationRecord(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags()));
+            }
+        }, Constants.TRACK_TOLERANCE_METERS, Constants.TRACK_MIN_DISTANCE_METERS,
+                Constants.TRACK_MIN_INTERVAL_SECONDS, Constants.TRACK_MAX_INTERVAL_SECONDS);
+        for (long[] fix : fixes) filter.offer((int) fix[0], (int) fix[1], fix[2], 0);
+        return kept;
+    }
+
+    private void offerBatch(long[][] fixes) {
+        LocationRecord record = new LocationRecord();
+        for (long[] fix : fixes) intake.offer(record.set((int) fix[0], (int) fix[1], fix[2], 0));
+    }
+
+    @Test
+    public void batch_storesEverySignificantFixInOrder_oneDrain() {
+        long[][] fixes = SyntheticTracks.drive(21, 300);
+        List<LocationRecord> expected = significant(fixes);
+        assertTrue(expected.size() > 1);
+
+        offerBatch(fixes);
+        assertEquals(0, drains);
+        assertTrue(intake.endBatch());
+        assertEquals(1, drains);
+
+        assertEquals(expected.size(), outbox.size());
+        LocationRecord stored = new LocationRecord();
+        long seq = outbox.getReadSequence();
+        for (LocationRecord fix : expected) {
+            assertTrue(outbox.read(seq++, stored));
+            assertEquals(fix, stored);
+        }
+    }
+
+    @Test
+    public void batchWithoutSignificantFix_noDrain() {
+        long[][] fixes = new long[30][];
+        for (int i = 0; i < fixes.length; i++) {
+            fixes[i] = new long[]{SyntheticTracks.START_LAT, SyntheticTracks.START_LON, SyntheticTracks.START_TIME + i};
+        }
+        offerBatch(new long[][]{fixes[0]});
+        assertTrue(intake.endBatch());
+
+        // Standing still, before the maximum interval
+        offerBatch(fixes);
+        assertFalse(intake.endBatch());
+        assertEquals(1, drains);
+        assertEquals(1, outbox.size());
+    }
+}
@@ -0,0 +1,148 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationOutboxTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static LocationRecord record(int i) {
+        return new LocationRecord(41000000 + i, 12000000 - i, 1600000000L + i, 0);
+    }
+
+    @Test
+    public void appendReadCommit() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 16);
+        assertTrue(outbox.isEmpty());
+        long first = outbox.append(record(0));
+        outbox.append(record(1));
+        assertEquals(2, outbox.size());
+
+        LocationRecord dst = new LocationRecord();
+        assertTrue(outbox.read(first, dst));
+        assertEquals(record(0), dst);
+        assertTrue(outbox.read(first + 1, dst));
+        assertEquals(record(1), dst);
+        assertFalse(outbox.read(first + 2, dst));
+
+        outbox.commit(first + 1);
+        assertEquals(1, outbox.size());
+        assertEquals(first + 1, outbox.getReadSequence());
+        outbox.close();
+    }
+
+    @Test
+    public void bulkReadCopiesEncodedRecords() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 16);
+        for (int i = 0; i < 5; i++) outbox.append(record(i));
+        byte[] dst = new byte[3 * LocationRecordCodec.RECORD_SIZE];
+        assertEquals(3, outbox.read(outbox.getReadSequence() + 1, dst, 0, 10));
+        LocationRecord decoded = new LocationRecord();
+        for (int i = 0; i < 3; i++) {
+            LocationRecordCodec.decode(dst, i * LocationRecordCodec.RECORD_SIZE, decoded);
+            assertEquals(record(i + 1), decoded);
+        }
+        outbox.close();
+    }
+
+    @Test
+    public void survivesReopenWithoutFlush() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 256);
+        for (int i = 0; i < 100; i++) outbox.append(record(i));
+        outbox.commit(outbox.getReadSequence() + 30);
+        // No flush nor close: only the checkpoint at 64 is in the header, the tail must be found by the scan
+        LocationOutbox reopened = LocationOutbox.open(file, 8);
+        assertEquals(256, reopened.getCapacity());
+        assertEquals(70, reopened.size());
+        LocationRecord dst = new LocationRecord();
+        assertTrue(reopened.read(reopened.getReadSequence(), dst));
+        assertEquals(record(30), dst);
+        assertTrue(reopened.read(reopened.getWriteSequence() - 1, dst));
+        assertEquals(record(99), dst);
+        reopened.close();
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 16);
+        outbox.append(record(0));
+        long torn = outbox.append(record(1));
+        // No close: closing would checkpoint the write position past the torn record
+
+        // Clear the commit marker of the last record, as if the process died while writing it
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(64 + torn % 16 * 24 + 16);
+        raw.writeLong(0);
+        raw.close();
+
+        LocationOutbox reopened = LocationOutbox.open(file, 16);
+        assertEquals(1, reopened.size());
+        assertEquals(torn, reopened.getWriteSequence());
+        reopened.close();
+    }
+
+    @Test
+    public void overflowDropsOldest() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 8);
+        for (int i = 0; i < 20; i++) outbox.append(record(i));
+        assertEquals(8, outbox.size());
+        assertEquals(12, outbox.getDropped());
+        LocationRecord dst = new LocationRecord();
+        assertTrue(outbox.read(outbox.getReadSequence(), dst));
+        assertEquals(record(12), dst);
+        outbox.close();
+
+        LocationOutbox reopened = LocationOutbox.open(file, 8);
+        assertEquals(8, reopened.size());
+        assertEquals(12, reopened.getDropped());
+        reopened.close();
+    }
+
+    @Test
+    public void rewindRedeliversUntilOverwritten() throws IOException {
+        LocationOutbox outbox = LocationOutbox.open(file, 4);
+        long first = outbox.append(record(0));
+        outbox.append(record(1));
+        outbox.commit(first + 2);
+        assertTrue(outbox.isEmpty());
+        assertTrue(outbox.rewind(first + 1));
+        assertEquals(1, outbox.size());
+
+        for (int i = 2; i < 6; i++) outbox.append(record(i));
+        assertFalse(outbox.rewind(first));
+        outbox.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws IOException {
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.write(new byte[128]);
+        raw.seek(8);
+        raw.writeInt(Integer.reverseBytes(4));
+        raw.close();
+        LocationOutbox.open(file, 4);
+    }
+}
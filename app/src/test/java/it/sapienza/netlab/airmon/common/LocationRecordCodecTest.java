@@ -0,0 +1,100 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocationRecordCodecTest {
+
+    @Test
+    public void encode_layoutIsLittleEndian() {
+        byte[] dst = new byte[LocationRecordCodec.RECORD_SIZE];
+        LocationRecordCodec.encode(0x01020304, -2, 0xFFFFFFFEL, LocationRecord.FLAG_ACCURATE, dst, 0);
+        assertArrayEquals(new byte[]{
+                1, 1,
+                0x04, 0x03, 0x02, 0x01,
+                (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, dst);
+    }
+
+    @Test
+    public void roundTrip_array() {
+        LocationRecord in = new LocationRecord().set(41.902783, 12.496366, 1607093500123L,
+                LocationRecord.FLAG_ACCURATE | LocationRecord.FLAG_MOCK);
+        byte[] dst = new byte[LocationRecordCodec.RECORD_SIZE + 3];
+        assertEquals(LocationRecordCodec.RECORD_SIZE, LocationRecordCodec.encode(in, dst, 3));
+        LocationRecord out = LocationRecordCodec.decode(dst, 3, new LocationRecord());
+        assertEquals(in, out);
+        assertEquals(41902783, out.getLatitudeE6());
+        assertEquals(12496366, out.getLongitudeE6());
+        assertEquals(1607093500L, out.getEpochSeconds());
+    }
+
+    @Test
+    public void record_smallerThanTextPayload() {
+        // The three characteristics written for each fix before the binary record
+        int text = String.valueOf(41.902783).getBytes().length
+                + String.valueOf(12.496366).getBytes().length
+                + new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.ITALY).format(new Date(1607093500123L)).getBytes().length;
+        assertTrue(LocationRecordCodec.RECORD_SIZE < text);
+    }
+
+    @Test
+    public void roundTrip_extremes() {
+        LocationRecord out = new LocationRecord();
+        byte[] dst = new byte[LocationRecordCodec.RECORD_SIZE];
+        LocationRecord in = new LocationRecord().set(-90.0, -180.0, 0xFFFFFFFFL * 1000, 0xFF);
+        LocationRecordCodec.encode(in, dst, 0);
+        assertEquals(in, LocationRecordCodec.decode(dst, 0, out));
+        in.set(90.0, 180.0, 0, 0);
+        LocationRecordCodec.encode(in, dst, 0);
+        assertEquals(in, LocationRecordCodec.decode(dst, 0, out));
+    }
+
+    @Test
+    public void roundTrip_byteBufferMatchesArray() {
+        LocationRecord in = new LocationRecord(-33868820, 151209290, 1700000000L, LocationRecord.FLAG_BUFFERED);
+        byte[] expected = new byte[LocationRecordCodec.RECORD_SIZE];
+        LocationRecordCodec.encode(in, expected, 0);
+
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer buffer = ByteBuffer.allocate(2 * LocationRecordCodec.RECORD_SIZE).order(order);
+            LocationRecordCodec.encode(in, buffer);
+            LocationRecordCodec.encode(in, buffer);
+            assertEquals(2 * LocationRecordCodec.RECORD_SIZE, buffer.position());
+
+            byte[] actual = new byte[LocationRecordCodec.RECORD_SIZE];
+            buffer.flip();
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+            assertEquals(in, LocationRecordCodec.decode(buffer, new LocationRecord()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsUnknownVersion() {
+        byte[] dst = new byte[LocationRecordCodec.RECORD_SIZE];
+        dst[0] = 2;
+        LocationRecordCodec.decode(dst, 0, new LocationRecord());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsNegativeTime() {
+        LocationRecordCodec.encode(0, 0, -1, 0, new byte[LocationRecordCodec.RECORD_SIZE], 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void encode_rejectsShortBuffer() {
+        LocationRecordCodec.encode(0, 0, 0, 0, new byte[LocationRecordCodec.RECORD_SIZE], 1);
+    }
+}
@@ -0,0 +1,82 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MacTableTest {
+
+    @Test
+    public void parseAndFormatAddress() {
+        long key = MacTable.toKey("A4:C1:38:0F:2B:9E");
+        assertEquals(0xA4C1380F2B9EL, key);
+        assertEquals("A4:C1:38:0F:2B:9E", MacTable.toAddress(key));
+        assertEquals(key, MacTable.toKey("a4:c1:38:0f:2b:9e"));
+        assertEquals(0, MacTable.toKey("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void malformedAddressIsRejected() {
+        assertEquals(MacTable.INVALID_ADDRESS, MacTable.toKey(null));
+        assertEquals(MacTable.INVALID_ADDRESS, MacTable.toKey("A4:C1:38:0F:2B"));
+        assertEquals(MacTable.INVALID_ADDRESS, MacTable.toKey("A4-C1-38-0F-2B-9E"));
+        assertEquals(MacTable.INVALID_ADDRESS, MacTable.toKey("A4:C1:38:0F:2B:9G"));
+    }
+
+    @Test
+    public void putKeepsLatestSighting() {
+        MacTable<String> table = new MacTable<>();
+        assertTrue(table.put(0, -80, 10, "zero"));
+        assertFalse(table.put(0, -60, 20, "zero again"));
+        assertEquals(1, table.size());
+        assertEquals(-60, table.getRssi(0));
+        assertEquals(20, table.getTimestampNanos(0));
+        assertEquals("zero again", table.get(0));
+        assertNull(table.get(1));
+        assertEquals(Integer.MIN_VALUE, table.getRssi(1));
+        assertFalse(table.contains(MacTable.INVALID_ADDRESS));
+    }
+
+    @Test
+    public void intValueSurvivesGrowth() {
+        MacTable<Void> table = new MacTable<>(4);
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(table.putInt(i, -50, i, i * 3));
+        }
+        assertFalse(table.putInt(7, -70, 2_000, table.getInt(7, -1)));
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(i * 3, table.getInt(i, -1));
+        }
+        assertEquals(-70, table.getRssi(7));
+        assertEquals(-1, table.getInt(1_000, -1));
+        assertNull(table.get(7));
+    }
+
+    @Test
+    public void growsAndMatchesHashMap() {
+        MacTable<Long> table = new MacTable<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            // Few vendor prefixes, as in a real crowd of advertisers
+            long key = (long) random.nextInt(4) << 40 | random.nextInt(5_000);
+            assertEquals(!expected.containsKey(key), table.put(key, -i % 100, i, (long) i));
+            expected.put(key, (long) i);
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey()));
+            assertEquals((long) entry.getValue(), table.getTimestampNanos(entry.getKey()));
+        }
+        table.clear();
+        assertEquals(0, table.size());
+        assertFalse(table.contains(expected.keySet().iterator().next()));
+    }
+}
@@ -0,0 +1,75 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRingTest {
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (seed + i);
+        }
+        return message;
+    }
+
+    @Test
+    public void writeAndReadBack() {
+        MessageRing ring = new MessageRing(64);
+        assertEquals(-1, ring.readLast(new byte[8], 0));
+        assertTrue(ring.write(message(5, 1)));
+        assertTrue(ring.write(message(3, 10)));
+        byte[] dst = new byte[8];
+        assertEquals(5, ring.read(0, dst, 0));
+        assertArrayEquals(message(5, 1), Arrays.copyOf(dst, 5));
+        assertEquals(3, ring.read(1, dst, 2));
+        assertArrayEquals(message(3, 10), Arrays.copyOfRange(dst, 2, 5));
+        assertEquals(3, ring.readLast(dst, 0));
+        assertEquals(-1, ring.read(2, dst, 0));
+        assertEquals(2, ring.size());
+        assertEquals(8, ring.getTotalBytes());
+    }
+
+    @Test
+    public void oldestMessagesAreEvicted() {
+        MessageRing ring = new MessageRing(20);
+        byte[] dst = new byte[20];
+        for (int i = 0; i < 50; i++) {
+            // 2 + 7 bytes each: two messages fit, the ring wraps at every offset
+            assertTrue(ring.write(message(7, i)));
+            assertEquals(7, ring.readLast(dst, 0));
+            assertArrayEquals(message(7, i), Arrays.copyOf(dst, 7));
+        }
+        assertEquals(2, ring.size());
+        ring.read(0, dst, 0);
+        assertArrayEquals(message(7, 48), Arrays.copyOf(dst, 7));
+        assertEquals(50, ring.getTotalMessages());
+        assertEquals(350, ring.getTotalBytes());
+        assertEquals(48, ring.getEvicted());
+    }
+
+    @Test
+    public void oversizedMessageIsRejected() {
+        MessageRing ring = new MessageRing(10);
+        assertFalse(ring.write(message(9, 0)));
+        assertTrue(ring.write(message(8, 0)));
+        assertEquals(1, ring.getRejected());
+        assertEquals(1, ring.size());
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertEquals(-1, ring.lastLength());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readIntoSmallBufferFails() {
+        MessageRing ring = new MessageRing(10);
+        ring.write(message(4, 0));
+        ring.readLast(new byte[3], 0);
+    }
+}
@@ -0,0 +1,134 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.sapienza.netlab.airmon.models.Device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RoutingTableTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20_000;
+    private static final int IDS = 256;
+
+    private final RoutingTable table = RoutingTable.getInstance();
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger removed = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        table.cleanRoutingTable();
+    }
+
+    @After
+    public void tearDown() {
+        table.cleanRoutingTable();
+    }
+
+    private void add(Device device) {
+        if (table.addDevice(device)) added.incrementAndGet();
+    }
+
+    private void remove(Device device) {
+        if (table.removeDevice(device)) removed.incrementAndGet();
+    }
+
+    @Test
+    public void addLookupRemove() {
+        Device device = new Device("12");
+        add(device);
+        table.addDevice(1, 2);
+        assertEquals(1, table.size());
+        assertSame(device, table.getDevice("12"));
+        assertTrue(table.contains("12"));
+        List<Device> snapshot = table.getDeviceList();
+        remove(new Device("12"));
+        remove(device);
+        assertEquals(1, snapshot.size());
+        assertEquals(0, table.size());
+        assertEquals(1, added.get());
+        assertEquals(1, removed.get());
+    }
+
+    @Test
+    public void singletonIsSharedAcrossThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<RoutingTable>> instances = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            instances.add(executor.submit(new Callable<RoutingTable>() {
+                @Override
+                public RoutingTable call() {
+                    return RoutingTable.getInstance();
+                }
+            }));
+        }
+        for (Future<RoutingTable> instance : instances) {
+            assertSame(table, instance.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void concurrentUpdatesKeepCountsConsistent() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(seed);
+                    start.await();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        Device device = new Device("device" + random.nextInt(IDS));
+                        if (random.nextInt(4) == 0) {
+                            remove(device);
+                        } else {
+                            add(device);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        // Readers iterate snapshots while the table changes
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                start.await();
+                for (int i = 0; i < OPERATIONS / 10; i++) {
+                    for (Device device : table.getDeviceList()) {
+                        assertTrue(device.getId().startsWith("device"));
+                    }
+                }
+                return null;
+            }
+        }));
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(table.size(), added.get() - removed.get());
+        assertEquals(table.size(), table.getDeviceList().size());
+        assertTrue(table.size() <= IDS);
+    }
+}
@@ -0,0 +1,61 @@
+package it.sapienza.netlab.airmon.common;
+
+import java.util.Random;
+
+/**
+ * Tracks shaped like the ones logged by the fused location provider: a fix per second, GPS noise,
+ * stops, straight streets and turns. Fixes are stored as {latitudeE6, longitudeE6, epochSeconds}.
+ * Also compiled into the benchmarks module.
+ */
+public class SyntheticTracks {
+
+    public static final int START_LAT = 41900000;          //Rome
+    public static final int START_LON = 12500000;
+    public static final long START_TIME = 1600000000L;
+
+    private static final double METERS_PER_E6 = 6371008.8 * Math.PI / 180 / 1e6;
+
+    /**
+     * @param speed      meters per second while moving
+     * @param noise      standard deviation of the GPS error, in meters
+     * @param turnEvery  mean seconds between turns
+     * @param stopChance chance of stopping for a while at each turn
+     */
+    public static long[][] generate(long seed, int fixes, double speed, double noise, int turnEvery, double stopChance) {
+        Random random = new Random(seed);
+        long[][] track = new long[fixes][];
+        double lonScale = METERS_PER_E6 * Math.cos(START_LAT * 1e-6 * Math.PI / 180);
+        double x = 0, y = 0;
+        double heading = random.nextDouble() * 2 * Math.PI;
+        int stopped = 0;
+        for (int i = 0; i < fixes; i++) {
+            if (stopped > 0) {
+                stopped--;
+            } else {
+                if (random.nextInt(turnEvery) == 0) {
+                    // Mostly right angles, as in a street grid
+                    heading += (random.nextBoolean() ? 1 : -1) * (Math.PI / 2 + random.nextGaussian() * 0.2);
+                    if (random.nextDouble() < stopChance) stopped = 10 + random.nextInt(120);
+                }
+                x += Math.cos(heading) * speed;
+                y += Math.sin(heading) * speed;
+            }
+            double nx = x + random.nextGaussian() * noise;
+            double ny = y + random.nextGaussian() * noise;
+            track[i] = new long[]{START_LAT + Math.round(ny / METERS_PER_E6), START_LON + Math.round(nx / lonScale), START_TIME + i};
+        }
+        return track;
+    }
+
+    public static long[][] walk(long seed, int fixes) {
+        return generate(seed, fixes, 1.4, 3, 60, 0.3);
+    }
+
+    public static long[][] drive(long seed, int fixes) {
+        return generate(seed, fixes, 12, 4, 30, 0.2);
+    }
+
+    public static long[][] stationary(long seed, int fixes) {
+        return generate(seed, fixes, 0, 5, Integer.MAX_VALUE, 0);
+    }
+}
@@ -0,0 +1,137 @@
+package it.sapienza.netlab.airmon.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrajectoryFilterTest {
+
+    private static final double TOLERANCE = 10;
+    private static final double MIN_DISTANCE = 5;
+    private static final long MAX_INTERVAL = 60;
+    private static final double METERS_PER_E6 = 6371008.8 * Math.PI / 180 / 1e6;
+
+    private final List<LocationRecord> sent = new ArrayList<>();
+    private TrajectoryFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new TrajectoryFilter(new TrajectoryFilter.PointSink() {
+            @Override
+            public void accept(LocationRecord record) {
+                sent.add(new LocationRecord(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags()));
+            }
+        }, TOLERANCE, MIN_DISTANCE, 1, MAX_INTERVAL);
+    }
+
+    // Fix at (east, north) meters from the start, t seconds after it
+    private void offer(double east, double north, long t) {
+        double lonScale = METERS_PER_E6 * Math.cos(SyntheticTracks.START_LAT * 1e-6 * Math.PI / 180);
+        filter.offer(SyntheticTracks.START_LAT + (int) Math.round(north / METERS_PER_E6),
+                SyntheticTracks.START_LON + (int) Math.round(east / lonScale), SyntheticTracks.START_TIME + t, 0);
+    }
+
+    private long sentAt(int i) {
+        return sent.get(i).getEpochSeconds() - SyntheticTracks.START_TIME;
+    }
+
+    @Test
+    public void firstFixIsSentRightAway() {
+        offer(0, 0, 0);
+        assertEquals(1, sent.size());
+        assertFalse(filter.flush());
+    }
+
+    @Test
+    public void deadBandDropsStillFixes() {
+        offer(0, 0, 0);
+        for (int t = 1; t < MAX_INTERVAL; t++) offer(t % 2, 2, t);
+        assertEquals(1, sent.size());
+        assertEquals(MAX_INTERVAL - 1, filter.getDropped());
+        // Still there after a minute: sent anyway
+        offer(1, 1, MAX_INTERVAL);
+        assertEquals(2, sent.size());
+        assertEquals(MAX_INTERVAL, sentAt(1));
+    }
+
+    @Test
+    public void straightLineKeepsItsEnds() {
+        for (int t = 0; t < 50; t++) offer(t * 10, 0, t);
+        assertEquals(1, sent.size());
+        assertTrue(filter.flush());
+        assertEquals(2, sent.size());
+        assertEquals(49, sentAt(1));
+        assertEquals(50, filter.getOffered());
+        assertEquals(0, filter.getDropped());
+    }
+
+    @Test
+    public void turnIsSentAtTheNextFix() {
+        for (int t = 0; t <= 20; t++) offer(t * 10, 0, t);
+        offer(200, 10, 21);
+        assertEquals(1, sent.size());
+        offer(200, 20, 22);
+        // The corner is known once the track leaves the sleeve
+        assertEquals(2, sent.size());
+        assertEquals(21, sentAt(1));
+        for (int t = 23; t <= 40; t++) offer(200, (t - 20) * 10, t);
+        filter.flush();
+        assertEquals(3, sent.size());
+        assertEquals(40, sentAt(2));
+    }
+
+    @Test
+    public void turningBackKeepsTheFarthestFix() {
+        for (int t = 0; t <= 10; t++) offer(t * 10, 0, t);
+        for (int t = 11; t <= 20; t++) offer(100 - (t - 10) * 10, 0, t);
+        filter.flush();
+        assertEquals(3, sent.size());
+        assertEquals(10, sentAt(1));
+        assertEquals(20, sentAt(2));
+    }
+
+    @Test
+    public void longStraightIsSentEveryMaxInterval() {
+        for (int t = 0; t <= 3 * MAX_INTERVAL; t++) offer(t * 10, 0, t);
+        assertEquals(4, sent.size());
+        assertEquals(2 * MAX_INTERVAL, sentAt(2));
+    }
+
+    @Test
+    public void dropsStayWithinTolerance() {
+        for (long[][] track : new long[][][]{SyntheticTracks.walk(1, 3600), SyntheticTracks.drive(2, 3600), SyntheticTracks.stationary(3, 3600)}) {
+            sent.clear();
+            filter.reset();
+            for (long[] fix : track) filter.offer((int) fix[0], (int) fix[1], fix[2], 0);
+            filter.flush();
+            assertTrue(sent.size() < track.length / 4);
+            // Past the end of a segment by up to the tolerance, plus the dead-band
+            double bound = TOLERANCE * Math.sqrt(2) + MIN_DISTANCE;
+            int segment = 0;
+            for (long[] fix : track) {
+                while (segment < sent.size() - 2 && sent.get(segment + 1).getEpochSeconds() < fix[2]) segment++;
+                double error = distanceToSegment(fix, sent.get(segment), sent.get(Math.min(segment + 1, sent.size() - 1)));
+                assertTrue("fix at " + fix[2] + " is " + error + " m away", error <= bound);
+            }
+        }
+    }
+
+    private static double distanceToSegment(long[] fix, LocationRecord a, LocationRecord b) {
+        double lonScale = METERS_PER_E6 * Math.cos(a.getLatitudeE6() * 1e-6 * Math.PI / 180);
+        double px = (fix[1] - a.getLongitudeE6()) * lonScale;
+        double py = (fix[0] - a.getLatitudeE6()) * METERS_PER_E6;
+        double bx = (b.getLongitudeE6() - a.getLongitudeE6()) * lonScale;
+        double by = (b.getLatitudeE6() - a.getLatitudeE6()) * METERS_PER_E6;
+        double length = bx * bx + by * by;
+        double k = length == 0 ? 0 : Math.max(0, Math.min(1, (px * bx + py * by) / length));
+        return Math.hypot(px - k * bx, py - k * by);
+    }
+}
@@ -0,0 +1,139 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Batch uploads of several outboxes to the same simulated server, each through its own
+ * ConnectionManager: the sequence numbers of an outbox are only compared with the ones of the
+ * same outbox.
+ */
+public class BatchSessionSimulationTest {
+
+    private static final String ADDRESS = "0A:00:00:00:00:01";
+    private static final long DRAIN_INTERVAL_MS = 1000;
+
+    private SimulatedScheduler scheduler;
+    private SimulatedTransport transport;
+    private SimulatedServer server;
+    private final List<File> files = new ArrayList<>();
+    private final List<LocationOutbox> outboxes = new ArrayList<>();
+    private final List<ConnectionManager> managers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new SimulatedScheduler();
+        transport = new SimulatedTransport(scheduler, 3);
+        server = transport.addServer(ADDRESS).setBatchSupported(true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ConnectionManager manager : managers) manager.disconnectAll();
+        for (LocationOutbox outbox : outboxes) outbox.close();
+        for (File file : files) file.delete();
+    }
+
+    private LocationOutbox newOutbox() throws IOException {
+        File file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        files.add(file);
+        LocationOutbox outbox = LocationOutbox.open(file, 1024);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    /**
+     * Append records numbered from first in their latitude, with the phone in their longitude.
+     */
+    private static void append(LocationOutbox outbox, int phone, int first, int records) {
+        for (int i = first; i < first + records; i++) {
+            outbox.append(new LocationRecord(i, phone, 1600000000L + i, 0));
+        }
+    }
+
+    private ConnectionManager start(SimulatedTransport phone, LocationOutbox outbox) {
+        final ConnectionManager manager = new ConnectionManager(phone, 1, scheduler, scheduler);
+        manager.setOutbox(outbox, null);
+        managers.add(manager);
+        manager.connect(ADDRESS);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                manager.drain();
+                scheduler.schedule(this, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        return manager;
+    }
+
+    private List<Integer> storedFrom(int phone) {
+        List<Integer> latitudes = new ArrayList<>();
+        for (LocationRecord record : server.getStored()) {
+            if (record.getLongitudeE6() == phone) latitudes.add(record.getLatitudeE6());
+        }
+        return latitudes;
+    }
+
+    private static void assertNumbered(int first, int records, List<Integer> latitudes) {
+        assertEquals(records, latitudes.size());
+        for (int i = 0; i < records; i++) {
+            assertEquals(first + i, (int) latitudes.get(i));
+        }
+    }
+
+    @Test
+    public void twoPhonesUploadToOneServer() throws IOException {
+        LocationOutbox first = newOutbox();
+        LocationOutbox second = newOutbox();
+        // Both outboxes use the sequence numbers from 1
+        append(first, 1, 1, 150);
+        append(second, 2, 1, 150);
+        SimulatedTransport secondPhone = new SimulatedTransport(scheduler, 4);
+        secondPhone.addServer(server);
+        start(transport, first);
+        start(secondPhone, second);
+        scheduler.runFor(20000);
+
+        assertTrue(first.isEmpty());
+        assertTrue(second.isEmpty());
+        assertEquals(300, server.getStoredCount());
+        assertNumbered(1, 150, storedFrom(1));
+        assertNumbered(1, 150, storedFrom(2));
+    }
+
+    @Test
+    public void newOutboxStartsOver() throws IOException {
+        LocationOutbox lost = newOutbox();
+        append(lost, 1, 1, 100);
+        ConnectionManager before = start(transport, lost);
+        scheduler.runFor(10000);
+        assertEquals(100, server.getStoredCount());
+        before.setOutbox(null, null);
+        before.disconnectAll();
+
+        // The outbox file was deleted: the sequence numbers start from 1 again
+        LocationOutbox outbox = newOutbox();
+        append(outbox, 1, 101, 50);
+        start(transport, outbox);
+        scheduler.runFor(10000);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(1, 150, storedFrom(1));
+    }
+}
@@ -0,0 +1,102 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a backlog to a simulated server and compares the simulated link time with the
+ * legacy upload, which needs three acknowledged writes per fix.
+ */
+public class BatchUploadThroughputTest {
+
+    private static final int BACKLOG = 5000;
+    private static final int LEGACY_WRITES_PER_FIX = 3;
+
+    private File file;
+    private LocationOutbox outbox;
+    private long now = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 8192);
+        for (int i = 0; i < BACKLOG; i++) {
+            outbox.append(new LocationRecord(41000000 + i, 12000000 + i, 1600000000L + i, 0));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        outbox.close();
+        file.delete();
+    }
+
+    private long drain(SimulatedBatchServer server, int mtu) {
+        BatchUploader uploader = new BatchUploader(outbox, server, clock);
+        uploader.setOnAckListener(new BatchUploader.OnAckListener() {
+            @Override
+            public void OnAck(long nextSeq) {
+                outbox.commit(nextSeq);
+            }
+        });
+        uploader.setMtu(mtu);
+        uploader.pump();
+        while (!outbox.isEmpty()) {
+            now += SimulatedBatchServer.CONNECTION_INTERVAL_MS;
+            for (byte[] ack : server.connectionEvent()) {
+                uploader.onAck(ack);
+            }
+            if (server.isLinkIdle()) uploader.pump();
+            assertTrue("drain stalled", now < 3600000);
+        }
+        return now;
+    }
+
+    @Test
+    public void batchOutperformsLegacyWrites() {
+        long legacyMillis = (long) BACKLOG * LEGACY_WRITES_PER_FIX * SimulatedBatchServer.CONNECTION_INTERVAL_MS;
+        SimulatedBatchServer server = new SimulatedBatchServer(0, Integer.MAX_VALUE, 1);
+        long batchMillis = drain(server, 247);
+
+        assertEquals(BACKLOG, server.stored.size());
+        assertTrue(batchMillis * 50 < legacyMillis);
+    }
+
+    @Test
+    public void defaultMtuStillBeatsLegacy() {
+        long legacyMillis = (long) BACKLOG * LEGACY_WRITES_PER_FIX * SimulatedBatchServer.CONNECTION_INTERVAL_MS;
+        SimulatedBatchServer server = new SimulatedBatchServer(0, Integer.MAX_VALUE, 1);
+        long batchMillis = drain(server, 23);
+        assertTrue(batchMillis * 3 < legacyMillis);
+    }
+
+    @Test
+    public void lossyLinkDeliversEveryRecordOnceInOrder() {
+        SimulatedBatchServer server = new SimulatedBatchServer(0.05, Integer.MAX_VALUE, 7);
+        drain(server, 247);
+        // Frames following a lost one were discarded, and sent again
+        assertTrue(server.framesDiscarded > 0);
+        assertEquals(BACKLOG, server.stored.size());
+        for (int i = 0; i < BACKLOG; i++) {
+            assertEquals(41000000 + i, server.stored.get(i).getLatitudeE6());
+        }
+    }
+}
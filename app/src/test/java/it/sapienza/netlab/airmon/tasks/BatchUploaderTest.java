@@ -0,0 +1,232 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchUploaderTest {
+
+    private File file;
+    private LocationOutbox outbox;
+    private long now = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+    private final List<byte[]> frames = new ArrayList<>();
+    private final BatchUploader.FrameSink sink = new BatchUploader.FrameSink() {
+        @Override
+        public boolean sendFrame(byte[] frame, int length, boolean checkpoint) {
+            byte[] copy = new byte[length];
+            System.arraycopy(frame, 0, copy, 0, length);
+            frames.add(copy);
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        outbox.close();
+        file.delete();
+    }
+
+    private void append(int records) {
+        for (int i = 0; i < records; i++) {
+            outbox.append(new LocationRecord(i, -i, 1600000000L + i, 0));
+        }
+    }
+
+    private static byte[] ack(int status, long nextSeq) {
+        byte[] ack = new byte[BatchFrameCodec.ACK_SIZE];
+        BatchFrameCodec.writeAck(ack, status, nextSeq);
+        return ack;
+    }
+
+    // Alone with its server: the acks commit the outbox
+    private BatchUploader uploader() {
+        BatchUploader uploader = new BatchUploader(outbox, sink, clock);
+        uploader.setOnAckListener(new BatchUploader.OnAckListener() {
+            @Override
+            public void OnAck(long nextSeq) {
+                outbox.commit(nextSeq);
+            }
+        });
+        return uploader;
+    }
+
+    // Answer the sync frame of a new uploader as a server that has nothing of this outbox yet
+    private BatchUploader synced(BatchUploader uploader) {
+        assertEquals(1, uploader.pump());
+        byte[] sync = frames.get(frames.size() - 1);
+        assertTrue(BatchFrameCodec.isSync(sync, sync.length));
+        assertEquals(outbox.getSessionId(), BatchFrameCodec.getSession(sync));
+        assertTrue(uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, BatchFrameCodec.getFirstSeq(sync))));
+        frames.clear();
+        return uploader;
+    }
+
+    @Test
+    public void recordsPerFrameFollowsMtu() {
+        assertEquals(1, BatchFrameCodec.recordsPerFrame(23));
+        assertEquals(17, BatchFrameCodec.recordsPerFrame(247));
+        assertEquals(36, BatchFrameCodec.recordsPerFrame(517));
+    }
+
+    @Test
+    public void packsRecordsAndRequestsAckOnLastFrame() {
+        BatchUploader uploader = uploader();
+        uploader.setMtu(247);
+        synced(uploader);
+        append(40);
+        assertEquals(3, uploader.pump());
+        assertEquals(17, BatchFrameCodec.getCount(frames.get(0)));
+        assertEquals(17, BatchFrameCodec.getCount(frames.get(1)));
+        assertEquals(6, BatchFrameCodec.getCount(frames.get(2)));
+        assertEquals(0, BatchFrameCodec.getFlags(frames.get(0)));
+        assertEquals(BatchFrameCodec.FLAG_ACK_REQUESTED, BatchFrameCodec.getFlags(frames.get(2)));
+        assertEquals(18, BatchFrameCodec.getFirstSeq(frames.get(1)));
+
+        LocationRecord record = LocationRecordCodec.decode(frames.get(1), BatchFrameCodec.HEADER_SIZE, new LocationRecord());
+        assertEquals(17, record.getLatitudeE6());
+        assertEquals(40, outbox.size());
+    }
+
+    @Test
+    public void ackCommitsOutbox() {
+        BatchUploader uploader = synced(uploader());
+        append(5);
+        uploader.pump();
+        assertTrue(uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, 6)));
+        assertTrue(outbox.isEmpty());
+        assertFalse(uploader.onAck(new byte[]{0, 0}));
+    }
+
+    @Test
+    public void windowLimitsFramesInFlight() {
+        BatchUploader uploader = synced(uploader());
+        append(100);
+        assertEquals(BatchUploader.MAX_FRAMES_IN_FLIGHT, uploader.pump());
+        assertEquals(0, uploader.pump());
+        // Every CHECKPOINT_FRAMES frames an ack was requested: answering the first one opens the window
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, 1 + BatchUploader.CHECKPOINT_FRAMES));
+        assertEquals(BatchUploader.MAX_FRAMES_IN_FLIGHT + BatchUploader.CHECKPOINT_FRAMES, frames.size());
+    }
+
+    @Test
+    public void lostFrameIsSentAgain() {
+        BatchUploader uploader = synced(uploader());
+        append(3);
+        uploader.pump();
+        frames.clear();
+        // The server stored only the first record
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, 2));
+        assertEquals(2, frames.size());
+        assertEquals(2, BatchFrameCodec.getFirstSeq(frames.get(0)));
+    }
+
+    @Test
+    public void missingAckTimesOut() {
+        BatchUploader uploader = synced(uploader());
+        append(2);
+        uploader.pump();
+        assertEquals(0, uploader.pump());
+        now += BatchUploader.ACK_TIMEOUT_MS + 1;
+        assertEquals(2, uploader.pump());
+        assertEquals(1, BatchFrameCodec.getFirstSeq(frames.get(2)));
+    }
+
+    @Test
+    public void fullServerPausesUpload() {
+        BatchUploader uploader = synced(uploader());
+        append(4);
+        uploader.pump();
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_FULL, 3));
+        assertTrue(uploader.isServerFull());
+        assertEquals(2, outbox.size());
+        assertEquals(0, uploader.pump());
+        now += BatchUploader.FULL_RETRY_MS;
+        assertEquals(2, uploader.pump());
+    }
+
+    @Test
+    public void nothingIsSentBeforeTheSyncAck() {
+        BatchUploader uploader = uploader();
+        append(5);
+        assertEquals(1, uploader.pump());
+        assertEquals(0, uploader.pump());
+        assertEquals(1, frames.size());
+        assertEquals(0, BatchFrameCodec.getCount(frames.get(0)));
+        assertEquals(1, BatchFrameCodec.getFirstSeq(frames.get(0)));
+        // The sync frame is sent again if its ack does not arrive
+        now += BatchUploader.ACK_TIMEOUT_MS + 1;
+        assertEquals(1, uploader.pump());
+        assertTrue(BatchFrameCodec.isSync(frames.get(1), frames.get(1).length));
+    }
+
+    @Test
+    public void syncAckCommitsWhatTheServerAlreadyHas() {
+        BatchUploader uploader = uploader();
+        uploader.setMtu(247);
+        append(5);
+        uploader.pump();
+        frames.clear();
+        // The ack of the first three records was lost on the previous connection
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, 4));
+        assertEquals(2, outbox.size());
+        assertEquals(1, frames.size());
+        assertEquals(4, BatchFrameCodec.getFirstSeq(frames.get(0)));
+        assertEquals(2, BatchFrameCodec.getCount(frames.get(0)));
+    }
+
+    @Test
+    public void unknownSessionSyncsAgain() {
+        BatchUploader uploader = uploader();
+        uploader.setMtu(247);
+        synced(uploader);
+        append(3);
+        uploader.pump();
+        // The server restarted and lost the session of the connection
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION, 0));
+        assertEquals(3, outbox.size());
+        byte[] sync = frames.get(frames.size() - 1);
+        assertTrue(BatchFrameCodec.isSync(sync, sync.length));
+        assertEquals(1, BatchFrameCodec.getFirstSeq(sync));
+        // A second answer of the lost session is not taken for the sync ack
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION, 0));
+        assertEquals(0, uploader.pump());
+        uploader.onAck(ack(BatchFrameCodec.ACK_STATUS_OK, 1));
+        assertEquals(1, BatchFrameCodec.getFirstSeq(frames.get(frames.size() - 1)));
+        assertEquals(3, BatchFrameCodec.getCount(frames.get(frames.size() - 1)));
+    }
+
+    @Test
+    public void expandSeqHandlesWrapAround() {
+        assertEquals(0x100000005L, BatchFrameCodec.expandSeq(5, 0xFFFFFFF0L));
+        assertEquals(0xFFFFFFF0L, BatchFrameCodec.expandSeq(0xFFFFFFF0L, 0x100000005L));
+        assertEquals(42, BatchFrameCodec.expandSeq(42, 40));
+    }
+}
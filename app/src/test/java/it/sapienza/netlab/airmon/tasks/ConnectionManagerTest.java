@@ -0,0 +1,150 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains the outbox to two simulated servers at once: every ready server gets every record, and
+ * a record leaves the outbox once all of them have it.
+ */
+public class ConnectionManagerTest {
+
+    private static final String FIRST = "0A:00:00:00:00:01";
+    private static final String SECOND = "0A:00:00:00:00:02";
+    private static final long DRAIN_INTERVAL_MS = 1000;
+
+    private SimulatedScheduler scheduler;
+    private SimulatedServer first;
+    private SimulatedServer second;
+    private File file;
+    private LocationOutbox outbox;
+    private ConnectionManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = new SimulatedScheduler();
+        SimulatedTransport transport = new SimulatedTransport(scheduler, 5);
+        first = transport.addServer(FIRST).setBatchSupported(true);
+        second = transport.addServer(SECOND).setBatchSupported(true);
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 4096);
+        manager = new ConnectionManager(transport, 2, scheduler, scheduler);
+        manager.setOutbox(outbox, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.disconnectAll();
+        outbox.close();
+        file.delete();
+    }
+
+    /**
+     * Append records numbered from 1 in their latitude.
+     */
+    private void append(int records) {
+        for (int i = 1; i <= records; i++) {
+            outbox.append(new LocationRecord(i, 12000000, 1600000000L + i, 0));
+        }
+    }
+
+    private void start() {
+        manager.connect(FIRST);
+        manager.connect(SECOND);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                manager.drain();
+                scheduler.schedule(this, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertNumbered(int records, List<LocationRecord> stored) {
+        assertEquals(records, stored.size());
+        for (int i = 0; i < records; i++) {
+            assertEquals(i + 1, stored.get(i).getLatitudeE6());
+        }
+    }
+
+    @Test
+    public void everyBatchServerGetsEveryRecord() {
+        append(300);
+        start();
+        scheduler.runFor(20000);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(300, first.getStored());
+        assertNumbered(300, second.getStored());
+    }
+
+    @Test
+    public void recordsStayUntilEveryServerHasThem() {
+        second.setStorageCapacity(100);
+        append(300);
+        start();
+        scheduler.runFor(20000);
+        assertNumbered(300, first.getStored());
+        assertEquals(100, second.getStoredCount());
+        assertEquals(200, outbox.size());
+
+        second.setStorageCapacity(300);
+        scheduler.runFor(BatchUploader.FULL_RETRY_MS + 2 * DRAIN_INTERVAL_MS);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(300, second.getStored());
+    }
+
+    @Test
+    public void serverAwayDoesNotHoldTheOthersBack() {
+        second.setOnline(false);
+        append(300);
+        start();
+        scheduler.runFor(20000);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(300, first.getStored());
+
+        // Back online and connected again by the next scan, it starts from the records appended meanwhile
+        second.setOnline(true);
+        manager.disconnect(SECOND);
+        manager.connect(SECOND);
+        for (int i = 301; i <= 320; i++) {
+            outbox.append(new LocationRecord(i, 12000000, 1600000000L + i, 0));
+        }
+        scheduler.runFor(60000);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(320, first.getStored());
+        assertEquals(20, second.getStoredCount());
+        assertEquals(301, second.getStored().get(0).getLatitudeE6());
+    }
+
+    @Test
+    public void textServerHoldsTheBatchCommitBack() {
+        second.setBatchSupported(false);
+        append(300);
+        start();
+        scheduler.runFor(5000);
+        // The batch server is done in a few connection events, the text one needs three writes per record
+        assertNumbered(300, first.getStored());
+        assertTrue(second.getStoredCount() < 300);
+        assertEquals(300 - second.getStoredCount(), outbox.size());
+
+        scheduler.runFor(120000);
+        assertTrue(outbox.isEmpty());
+        assertNumbered(300, second.getStored());
+    }
+}
@@ -0,0 +1,160 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.BleLink;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a backlog to a simulated server through a ConnectionManager, then sends a fix every
+ * 10 s. The {@link ConnectionPriorityPolicy} of the ConnectBLETask chooses the connection
+ * priority, or the server keeps a fixed interval by rejecting the parameter updates.
+ * Checks the time to drain the backlog and the connection events per second while idle.
+ */
+public class ConnectionPrioritySimulationTest {
+
+    private static final String ADDRESS = "0A:00:00:00:00:01";
+    private static final int BACKLOG = 2000;
+    private static final long FIX_INTERVAL_MS = 10000;
+    private static final long IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long POLICY = -1;
+    private static final long HIGH_INTERVAL_MS = 15;            //Interval of the high priority on Android
+    private static final long BALANCED_INTERVAL_MS = 30;        //Interval of the server, kept by the balanced priority
+
+    private SimulatedScheduler scheduler;
+    private SimulatedTransport transport;
+    private SimulatedServer server;
+    private File file;
+    private LocationOutbox outbox;
+    private ConnectionManager manager;
+    private int appended = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = new SimulatedScheduler();
+        transport = new SimulatedTransport(scheduler, 24);
+        server = transport.addServer(ADDRESS).setBatchSupported(true).setLossRate(0.02);
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 4096);
+        appended = 0;
+        manager = new ConnectionManager(transport, 1, scheduler, scheduler);
+        manager.setOutbox(outbox, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.disconnectAll();
+        outbox.close();
+        file.delete();
+    }
+
+    private void append(int records) {
+        for (int i = 0; i < records; i++) {
+            appended++;
+            outbox.append(new LocationRecord(appended, 12000000, 1600000000L + appended, 0));
+        }
+    }
+
+    private static class Result {
+        long drainMillis;
+        double idleEventsPerSecond;
+        long idleIntervalMillis;
+    }
+
+    /**
+     * Connect with a backlog, wait for it to drain, then send a fix every {@link #FIX_INTERVAL_MS}.
+     *
+     * @param fixedIntervalMillis connection interval kept by the server, or {@link #POLICY}
+     */
+    private Result run(long fixedIntervalMillis) {
+        if (fixedIntervalMillis != POLICY) {
+            server.setConnectionIntervalMillis(fixedIntervalMillis).setParameterUpdatesAccepted(false);
+        }
+        append(BACKLOG);
+        long start = scheduler.nowMillis();
+        manager.connect(ADDRESS);
+        while (outbox.size() > 0) {
+            scheduler.runFor(10);
+            // Acks lost at the end of the backlog are recovered by the next drain, as the location updates do
+            if (scheduler.nowMillis() % 1000 == 0) manager.drain();
+            assertTrue("backlog not drained", scheduler.nowMillis() - start < 60000);
+        }
+        Result result = new Result();
+        result.drainMillis = scheduler.nowMillis() - start;
+
+        long idleStart = scheduler.nowMillis();
+        double eventsBefore = server.getConnectionEvents();
+        long stored = server.getStoredCount();
+        for (long t = 0; t < IDLE_MS; t += FIX_INTERVAL_MS) {
+            append(1);
+            manager.drain();
+            scheduler.runFor(FIX_INTERVAL_MS);
+        }
+        for (int i = 0; i < 10 && outbox.size() > 0; i++) {
+            manager.drain();
+            scheduler.runFor(1000);
+        }
+        result.idleEventsPerSecond = (server.getConnectionEvents() - eventsBefore) * 1000 / (scheduler.nowMillis() - idleStart);
+        result.idleIntervalMillis = server.getCurrentConnectionIntervalMillis();
+        assertEquals(IDLE_MS / FIX_INTERVAL_MS, server.getStoredCount() - stored);
+        assertEquals(BACKLOG + IDLE_MS / FIX_INTERVAL_MS, server.getStoredCount());
+        return result;
+    }
+
+    @Test
+    public void alwaysHighDrainsFastButNeverIdles() {
+        Result result = run(HIGH_INTERVAL_MS);
+        assertEquals(1000.0 / 15, result.idleEventsPerSecond, 1);
+    }
+
+    @Test
+    public void policyDrainsAsFastAsHighAndIdlesAtLowPower() throws IOException {
+        Result policy = run(POLICY);
+        tearDown();
+        setUp();
+        Result high = run(HIGH_INTERVAL_MS);
+        tearDown();
+        setUp();
+        Result balanced = run(BALANCED_INTERVAL_MS);
+
+        assertTrue(policy.drainMillis < high.drainMillis * 1.25);
+        assertTrue(policy.drainMillis < balanced.drainMillis);
+        assertEquals(125, policy.idleIntervalMillis);
+        // The link still wakes up at the fixes, and lingers after each of them
+        assertTrue(policy.idleEventsPerSecond < high.idleEventsPerSecond / 5);
+        assertTrue(policy.idleEventsPerSecond < balanced.idleEventsPerSecond / 2);
+    }
+
+    @Test
+    public void singleFixesDoNotRaiseThePriority() {
+        ConnectionPriorityPolicy policy = new ConnectionPriorityPolicy(scheduler);
+        assertEquals(BleLink.CONNECTION_PRIORITY_HIGH, policy.onConnected());
+        assertEquals(ConnectionPriorityPolicy.NO_CHANGE, policy.update(0));
+        assertEquals(ConnectionPriorityPolicy.BALANCED_AFTER_MS, policy.getNextCheckMillis());
+        scheduler.runFor(ConnectionPriorityPolicy.BALANCED_AFTER_MS);
+        assertEquals(BleLink.CONNECTION_PRIORITY_BALANCED, policy.update(0));
+        scheduler.runFor(ConnectionPriorityPolicy.LOW_POWER_AFTER_MS);
+        assertEquals(BleLink.CONNECTION_PRIORITY_LOW_POWER, policy.update(0));
+        assertEquals(-1, policy.getNextCheckMillis());
+        // A fix is one write, a backlog is many
+        assertEquals(ConnectionPriorityPolicy.NO_CHANGE, policy.update(1));
+        policy.onOperationDone(TimeUnit.MILLISECONDS.toNanos(125));
+        assertEquals(ConnectionPriorityPolicy.NO_CHANGE, policy.update(0));
+        assertEquals(BleLink.CONNECTION_PRIORITY_HIGH, policy.update(3));
+        assertEquals(ConnectionPriorityPolicy.NO_CHANGE, policy.update(30));
+    }
+}
@@ -0,0 +1,165 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.tasks.ConnectionStateMachine.State;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+
+    private static final int MAX_ATTEMPTS = 4;
+
+    private long now;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+    private final List<String> events = new ArrayList<>();
+    private ConnectionStateMachine machine;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        machine = new ConnectionStateMachine(MAX_ATTEMPTS, clock, new Random(1));
+        machine.setOnStateChangedListener(new ConnectionStateMachine.OnStateChangedListener() {
+            @Override
+            public void OnStateChanged(State from, State to) {
+                events.add(to.name());
+            }
+
+            @Override
+            public void OnConnectionLost() {
+                events.add("lost");
+            }
+        });
+    }
+
+    private void becomeReady() {
+        machine.onConnected();
+        machine.onReady();
+    }
+
+    @Test
+    public void connectDiscoverReady() {
+        assertTrue(machine.connect());
+        assertFalse(machine.connect());
+        becomeReady();
+        assertEquals(State.READY, machine.getState());
+        assertEquals("[CONNECTING, DISCOVERING, READY]", events.toString());
+    }
+
+    @Test
+    public void backoffGrowsWithJitter() {
+        machine.connect();
+        long ceiling = ConnectionStateMachine.BASE_BACKOFF_MS;
+        for (int failure = 1; failure < MAX_ATTEMPTS; failure++) {
+            long delay = machine.onDisconnected();
+            assertEquals(State.BACKING_OFF, machine.getState());
+            assertTrue(delay + " in [" + ceiling / 2 + ", " + ceiling + "]", delay >= ceiling / 2 && delay <= ceiling);
+            now += delay - 1;
+            assertFalse(machine.poll());
+            assertEquals(1, machine.getPollDelay());
+            now += 1;
+            assertTrue(machine.poll());
+            assertEquals(State.CONNECTING, machine.getState());
+            ceiling *= 2;
+        }
+    }
+
+    @Test
+    public void circuitOpensAndReArmsAfterCooldown() {
+        machine.connect();
+        for (int failure = 1; failure < MAX_ATTEMPTS; failure++) {
+            now += machine.onDisconnected();
+            machine.poll();
+        }
+        assertEquals(ConnectionStateMachine.COOLDOWN_MS, machine.onDisconnected());
+        assertEquals(State.FAILED, machine.getState());
+        now += ConnectionStateMachine.COOLDOWN_MS - 1;
+        assertFalse(machine.poll());
+        now += 1;
+        assertTrue(machine.poll());
+        // Half open: a single failure opens the circuit again
+        assertEquals(ConnectionStateMachine.COOLDOWN_MS, machine.onDisconnected());
+        assertEquals(State.FAILED, machine.getState());
+        now += ConnectionStateMachine.COOLDOWN_MS;
+        assertTrue(machine.poll());
+        becomeReady();
+        assertEquals(0, machine.getFailures());
+    }
+
+    @Test
+    public void lostConnectionIsReportedAndRecovered() {
+        machine.connect();
+        becomeReady();
+        events.clear();
+        now = 10_000;
+        long delay = machine.onDisconnected();
+        assertTrue(delay <= ConnectionStateMachine.BASE_BACKOFF_MS);
+        assertEquals("[BACKING_OFF, lost]", events.toString());
+        now += delay;
+        assertTrue(machine.poll());
+        now += 200;
+        becomeReady();
+        assertEquals(delay + 200, machine.getLastRecoveryMillis());
+        assertEquals(1, machine.getRecoveries());
+    }
+
+    @Test
+    public void stopCancelsReconnection() {
+        machine.connect();
+        becomeReady();
+        machine.onDisconnected();
+        machine.stop();
+        assertEquals(State.IDLE, machine.getState());
+        now += ConnectionStateMachine.MAX_BACKOFF_MS;
+        assertFalse(machine.poll());
+        assertEquals(ConnectionStateMachine.NO_POLL, machine.onDisconnected());
+        assertEquals(ConnectionStateMachine.NO_POLL, machine.getPollDelay());
+    }
+
+    /**
+     * Drop a ready connection again and again over a link where each attempt fails with some
+     * probability (e.g. status 133) after a connection timeout, and check the time to recover.
+     */
+    @Test
+    public void meanTimeToRecoverOnFlakyLink() {
+        Random link = new Random(42);
+        long attemptMillis = 300;
+        double failureRate = 0.25;
+        machine.connect();
+        becomeReady();
+        for (int drop = 0; drop < 1000; drop++) {
+            now += 60_000;
+            now += Math.max(0, machine.onDisconnected());
+            while (machine.getState() != State.READY) {
+                if (!machine.poll()) {
+                    now += machine.getPollDelay();
+                    continue;
+                }
+                now += attemptMillis;
+                if (link.nextDouble() < failureRate) {
+                    now += Math.max(0, machine.onDisconnected());
+                } else {
+                    becomeReady();
+                }
+            }
+        }
+        assertEquals(1000, machine.getRecoveries());
+        double mean = machine.getMeanRecoveryMillis();
+        assertTrue(mean >= attemptMillis);
+        // Far from the cooldown: most drops recover within the first backoff steps
+        assertTrue(mean < ConnectionStateMachine.COOLDOWN_MS / 10);
+    }
+}
@@ -0,0 +1,132 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Test;
+
+import it.sapienza.netlab.airmon.common.Clock;
+import it.sapienza.netlab.airmon.common.CreditCodec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CreditWindowTest {
+
+    private long now = 0;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+
+    private static byte[] credit(int free, long stored) {
+        byte[] value = new byte[CreditCodec.CREDIT_SIZE];
+        CreditCodec.writeCredit(value, free, stored);
+        return value;
+    }
+
+    @Test
+    public void codecRoundTrip() {
+        byte[] value = credit(1234, 0x1_0000_0005L);
+        assertTrue(CreditCodec.isCredit(value));
+        assertFalse(CreditCodec.isMemoryFull(value));
+        assertEquals(1234, CreditCodec.getFreeSlots(value));
+        assertEquals(5, CreditCodec.getStored(value));
+        assertEquals(CreditCodec.MAX_FREE_SLOTS, CreditCodec.getFreeSlots(credit(1 << 20, 0)));
+        assertTrue(CreditCodec.isMemoryFull(credit(0, 7)));
+        // The notification of the firmware without credits
+        assertFalse(CreditCodec.isCredit(new byte[]{1}));
+        assertTrue(CreditCodec.isMemoryFull(new byte[]{1}));
+    }
+
+    @Test
+    public void unlimitedUntilTheFirstCredit() {
+        CreditWindow window = new CreditWindow(clock);
+        assertEquals(Integer.MAX_VALUE, window.available());
+        window.onSent(30);
+        assertFalse(window.isKnown());
+        // 10 of the 30 stored when the credit was sent, 20 in flight
+        window.onNotification(credit(50, 10));
+        assertTrue(window.isKnown());
+        assertEquals(30, window.available());
+    }
+
+    @Test
+    public void windowFollowsTheCredits() {
+        CreditWindow window = new CreditWindow(clock);
+        window.onNotification(credit(3, 0));
+        assertTrue(window.tryAcquire());
+        window.onSent(2);
+        assertEquals(0, window.available());
+        assertFalse(window.tryAcquire());
+        // A repeated credit opens nothing
+        assertFalse(window.onNotification(credit(3, 0)));
+        // The server stored the 3 records and then freed its storage
+        assertTrue(window.onNotification(credit(100, 3)));
+        assertEquals(100, window.available());
+    }
+
+    @Test
+    public void abandonedRecordsAreGivenBack() {
+        CreditWindow window = new CreditWindow(clock);
+        window.onNotification(credit(10, 0));
+        window.onSent(10);
+        window.onAbandoned(4);
+        assertEquals(4, window.available());
+        window.onAbandoned(100);
+        assertEquals(0, window.getSent());
+    }
+
+    @Test
+    public void connectionResetsTheCount() {
+        CreditWindow window = new CreditWindow(clock);
+        window.onNotification(credit(5, 0));
+        window.onSent(5);
+        window.reset();
+        assertEquals(Integer.MAX_VALUE, window.available());
+        window.onNotification(credit(5, 0));
+        assertEquals(5, window.available());
+    }
+
+    @Test
+    public void storedCountWraps() {
+        CreditWindow window = new CreditWindow(clock);
+        window.onNotification(credit(10, 0xFFFFFFF0L));
+        for (long sent = 0; sent < 0xFFFFFFF0L + 10; sent += Integer.MAX_VALUE) {
+            window.onSent((int) Math.min(Integer.MAX_VALUE, 0xFFFFFFF0L + 10 - sent));
+        }
+        assertEquals(0, window.available());
+        // 0x10 after the wrap: 0x20 records stored since the last credit
+        window.onNotification(credit(10, 0x10));
+        assertEquals(10 + 0x20 - 10, window.available());
+    }
+
+    @Test
+    public void legacyMemoryFullPausesForTheRetryTime() {
+        CreditWindow window = new CreditWindow(clock);
+        assertFalse(window.onNotification(new byte[]{1}));
+        assertEquals(0, window.available());
+        now += BatchUploader.FULL_RETRY_MS - 1;
+        assertEquals(0, window.available());
+        now++;
+        assertEquals(Integer.MAX_VALUE, window.available());
+    }
+
+    @Test
+    public void closedWindowAsksForAProbe() {
+        CreditWindow window = new CreditWindow(clock);
+        assertFalse(window.shouldProbe());
+        window.onNotification(credit(0, 0));
+        now += CreditWindow.PROBE_INTERVAL_MS - 1;
+        assertFalse(window.shouldProbe());
+        now++;
+        assertTrue(window.shouldProbe());
+        // Once per interval
+        assertFalse(window.shouldProbe());
+        now += CreditWindow.PROBE_INTERVAL_MS;
+        assertTrue(window.shouldProbe());
+        window.onNotification(credit(1, 0));
+        now += CreditWindow.PROBE_INTERVAL_MS;
+        assertFalse(window.shouldProbe());
+    }
+}
@@ -0,0 +1,193 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads to a simulated server with a small storage through a ConnectionManager and its
+ * ConnectBLETask: the credits of the Location notifications drive the batch uploader, or the
+ * text writes to a server without the Batch characteristic.
+ */
+public class FlowControlSimulationTest {
+
+    private static final String ADDRESS = "0A:00:00:00:00:01";
+    private static final int CAPACITY = 100;
+    private static final long DRAIN_INTERVAL_MS = 1000;
+
+    private SimulatedScheduler scheduler;
+    private SimulatedServer server;
+    private File file;
+    private LocationOutbox outbox;
+    private ConnectionManager manager;
+    private int appended = 0;
+    private final List<LocationRecord> collected = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = new SimulatedScheduler();
+        SimulatedTransport transport = new SimulatedTransport(scheduler, 7);
+        server = transport.addServer(ADDRESS).setStorageCapacity(CAPACITY).setCreditsEnabled(true);
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 4096);
+        manager = new ConnectionManager(transport, 1, scheduler, scheduler);
+        manager.setOutbox(outbox, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.disconnectAll();
+        outbox.close();
+        file.delete();
+    }
+
+    /**
+     * Append records numbered from 1 in their latitude.
+     */
+    private void append(int records) {
+        for (int i = 0; i < records; i++) {
+            appended++;
+            outbox.append(new LocationRecord(appended, 12000000, 1600000000L + appended, 0));
+        }
+    }
+
+    private void start() {
+        manager.connect(ADDRESS);
+        scheduleDrain();
+    }
+
+    // The outbox is drained again at every fix, here one per interval
+    private void scheduleDrain() {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                manager.drain();
+                scheduleDrain();
+            }
+        }, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Move the records of the server to {@link #collected} and free its storage, as an upload of
+     * the server would.
+     */
+    private void collect() {
+        collected.addAll(server.getStored());
+        server.freeStorage();
+    }
+
+    private void assertCollectedInOrder(int records) {
+        collected.addAll(server.getStored());
+        server.getStored().clear();
+        assertEquals(records, collected.size());
+        for (int i = 0; i < records; i++) {
+            assertEquals(i + 1, collected.get(i).getLatitudeE6());
+        }
+    }
+
+    @Test
+    public void batchUploadStopsAtTheCredits() {
+        server.setBatchSupported(true);
+        append(500);
+        start();
+        scheduler.runFor(5000);
+        assertEquals(CAPACITY, server.getStoredCount());
+        assertEquals(0, server.getRecordsDiscarded());
+        assertEquals(0, server.getFramesDiscarded());
+        assertEquals(400, outbox.size());
+    }
+
+    @Test
+    public void batchUploadResumesAsSoonAsStorageIsFreed() {
+        server.setBatchSupported(true);
+        append(500);
+        start();
+        scheduler.runFor(5000);
+        for (int round = 0; round < 4; round++) {
+            collect();
+            // A few connection events, not a retry timeout nor the next drain
+            scheduler.runFor(300);
+            assertEquals(CAPACITY, server.getStoredCount());
+        }
+        assertEquals(0, server.getRecordsDiscarded());
+        assertEquals(0, outbox.size());
+        assertCollectedInOrder(500);
+    }
+
+    @Test
+    public void firmwareWithoutCreditsWastesWrites() {
+        server.setBatchSupported(true).setCreditsEnabled(false);
+        append(500);
+        start();
+        scheduler.runFor(5000);
+        // Same setup as above: the frames past the capacity are sent and thrown away
+        assertEquals(CAPACITY, server.getStoredCount());
+        assertTrue(server.getRecordsDiscarded() > 0);
+        assertEquals(0, server.getCreditsSent());
+    }
+
+    @Test
+    public void textWritesStopAtTheCredits() {
+        append(250);
+        start();
+        scheduler.runFor(20000);
+        assertEquals(CAPACITY, server.getStoredCount());
+        assertEquals(0, server.getRecordsDiscarded());
+        collect();
+        scheduler.runFor(20000);
+        collect();
+        scheduler.runFor(20000);
+        assertEquals(0, server.getRecordsDiscarded());
+        // Latitude, longitude and timestamp of each fix, as ConnectionManager.drain sends them
+        assertEquals(3 * 250, server.getWrites());
+        assertCollectedInOrder(250);
+    }
+
+    @Test
+    public void lostCreditIsRecoveredByAProbe() {
+        server.setBatchSupported(true);
+        append(200);
+        start();
+        scheduler.runFor(5000);
+        assertEquals(CAPACITY, server.getStoredCount());
+        // Storage freed without the client being told: only a read of the credits opens the window
+        server.setCreditsEnabled(false);
+        collect();
+        server.setCreditsEnabled(true);
+        scheduler.runFor(CreditWindow.PROBE_INTERVAL_MS + 2 * DRAIN_INTERVAL_MS);
+        assertEquals(CAPACITY, server.getStoredCount());
+        assertEquals(0, server.getRecordsDiscarded());
+        assertCollectedInOrder(200);
+    }
+
+    @Test
+    public void lossyLinkKeepsTheCreditsInStep() {
+        server.setBatchSupported(true).setLossRate(0.05);
+        append(1000);
+        start();
+        for (int i = 0; i < 60 && outbox.size() > 0; i++) {
+            scheduler.runFor(5000);
+            collect();
+        }
+        scheduler.runFor(5000);
+        assertEquals(0, outbox.size());
+        assertEquals(0, server.getRecordsDiscarded());
+        assertCollectedInOrder(1000);
+    }
+}
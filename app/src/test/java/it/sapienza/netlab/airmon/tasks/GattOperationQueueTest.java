@@ -0,0 +1,237 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.Constants;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+
+    private ScheduledExecutorService timer;
+    private GattOperationQueue queue;
+    private List<String> executed;
+    private List<String> done;
+
+    @Before
+    public void setUp() {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        queue = new GattOperationQueue(timer);
+        executed = Collections.synchronizedList(new ArrayList<String>());
+        done = Collections.synchronizedList(new ArrayList<String>());
+        queue.setOnQueueListener(new GattOperationQueue.OnQueueListener() {
+            @Override
+            public void OnQueueEmpty() {
+                done.add("empty");
+            }
+
+            @Override
+            public void OnOperationDone(GattOperation operation, int status) {
+                done.add(operation.getName() + ":" + status);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private GattOperation operation(GattOperation.Type type, final String name, final boolean starts) {
+        return operation(type, null, name, starts);
+    }
+
+    private GattOperation operation(GattOperation.Type type, UUID uuid, final String name, final boolean starts) {
+        return new GattOperation(type, uuid, name) {
+            @Override
+            protected boolean execute() {
+                executed.add(name);
+                return starts;
+            }
+        };
+    }
+
+    @Test
+    public void dispatchesNextOnCompletion() {
+        queue.enqueue(operation(GattOperation.Type.WRITE, "lat", true));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "lon", true));
+        assertEquals(Collections.singletonList("lat"), executed);
+        assertEquals(2, queue.size());
+
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE, null, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(2, executed.size());
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE, null, GattOperationQueue.STATUS_SUCCESS));
+        assertTrue(queue.isIdle());
+        assertEquals(Arrays.asList("lat:0", "lon:0", "empty"), done);
+    }
+
+    @Test
+    public void ignoresCompletionOfAnotherType() {
+        queue.enqueue(operation(GattOperation.Type.REQUEST_MTU, "mtu", true));
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE, null, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(1, queue.size());
+        assertTrue(queue.onOperationComplete(GattOperation.Type.REQUEST_MTU, null, GattOperationQueue.STATUS_SUCCESS));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void notificationCompletesOnDescriptorWrite() {
+        queue.enqueue(operation(GattOperation.Type.ENABLE_NOTIFICATION, Constants.NotificationDescriptor, "notify", true));
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR, UUID.randomUUID(), GattOperationQueue.STATUS_SUCCESS));
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR, Constants.NotificationDescriptor,
+                GattOperationQueue.STATUS_SUCCESS));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteTheNextWrite() throws InterruptedException {
+        final UUID latitude = UUID.randomUUID();
+        final UUID longitude = UUID.randomUUID();
+        final CountDownLatch second = new CountDownLatch(1);
+        queue.enqueue(operation(GattOperation.Type.WRITE, latitude, "lat", true).setTimeoutMillis(20));
+        queue.enqueue(new GattOperation(GattOperation.Type.WRITE, longitude, "lon") {
+            @Override
+            protected boolean execute() {
+                second.countDown();
+                return true;
+            }
+        });
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+        assertEquals("lat:" + GattOperationQueue.STATUS_TIMEOUT, done.get(0));
+        // The write of the latitude completes after its timeout, while the longitude is written
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE, latitude, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(1, queue.size());
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE, longitude, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(Arrays.asList("lat:" + GattOperationQueue.STATUS_TIMEOUT, "lon:0", "empty"), done);
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteTheNextWriteOfTheSameCharacteristic() throws InterruptedException {
+        final UUID batch = UUID.randomUUID();
+        final CountDownLatch second = new CountDownLatch(1);
+        queue.enqueue(operation(GattOperation.Type.WRITE, batch, "frame1", true).setTimeoutMillis(20));
+        queue.enqueue(new GattOperation(GattOperation.Type.WRITE, batch, "frame2") {
+            @Override
+            protected boolean execute() {
+                second.countDown();
+                return true;
+            }
+        });
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+        // The first callback answers the frame that timed out, the second one the frame written now
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE, batch, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(1, queue.size());
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE, batch, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(Arrays.asList("frame1:" + GattOperationQueue.STATUS_TIMEOUT, "frame2:0", "empty"), done);
+    }
+
+    @Test
+    public void lateCallbackAfterClearDoesNotCompleteTheNextSubscription() {
+        queue.enqueue(operation(GattOperation.Type.ENABLE_NOTIFICATION, Constants.NotificationDescriptor, "notify", true));
+        queue.clear();
+        queue.enqueue(operation(GattOperation.Type.ENABLE_NOTIFICATION, Constants.NotificationDescriptor, "again", true));
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR, Constants.NotificationDescriptor,
+                GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(1, queue.size());
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE_DESCRIPTOR, Constants.NotificationDescriptor,
+                GattOperationQueue.STATUS_SUCCESS));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void resetForgetsTheRequestsInFlight() {
+        final UUID latitude = UUID.randomUUID();
+        queue.enqueue(operation(GattOperation.Type.WRITE, latitude, "lat", true));
+        queue.reset();
+        // A new connection: its callbacks answer its own requests
+        queue.enqueue(operation(GattOperation.Type.WRITE, latitude, "lat2", true));
+        assertTrue(queue.onOperationComplete(GattOperation.Type.WRITE, latitude, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(Arrays.asList("lat:" + GattOperationQueue.STATUS_CANCELLED, "lat2:0", "empty"), done);
+    }
+
+    @Test
+    public void failsOperationsThatDoNotStart() {
+        queue.enqueue(operation(GattOperation.Type.WRITE, "a", false));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "b", false));
+        assertTrue(queue.isIdle());
+        assertEquals(Arrays.asList("a:" + GattOperationQueue.STATUS_NOT_STARTED, "empty",
+                "b:" + GattOperationQueue.STATUS_NOT_STARTED, "empty"), done);
+    }
+
+    @Test
+    public void timeoutFailsAndAdvances() throws InterruptedException {
+        final CountDownLatch second = new CountDownLatch(1);
+        queue.enqueue(operation(GattOperation.Type.WRITE, "slow", true).setTimeoutMillis(20));
+        queue.enqueue(new GattOperation(GattOperation.Type.READ, "next") {
+            @Override
+            protected boolean execute() {
+                second.countDown();
+                return true;
+            }
+        });
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+        assertEquals("slow:" + GattOperationQueue.STATUS_TIMEOUT, done.get(0));
+        // A late callback for the timed out write must not complete the read
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE, null, GattOperationQueue.STATUS_SUCCESS));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void abortOnErrorCancelsPending() {
+        queue.setAbortOnError(true);
+        queue.enqueue(operation(GattOperation.Type.WRITE, "a", true));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "b", true));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "c", true));
+        queue.onOperationComplete(GattOperation.Type.WRITE, null, 133);
+        assertTrue(queue.isIdle());
+        assertEquals(Collections.singletonList("a"), executed);
+        assertEquals(Arrays.asList("a:133", "b:" + GattOperationQueue.STATUS_CANCELLED,
+                "c:" + GattOperationQueue.STATUS_CANCELLED, "empty"), done);
+    }
+
+    @Test
+    public void errorDoesNotStopQueueByDefault() {
+        queue.enqueue(operation(GattOperation.Type.WRITE, "a", true));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "b", true));
+        queue.onOperationComplete(GattOperation.Type.WRITE, null, 133);
+        assertEquals(Arrays.asList("a", "b"), executed);
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        queue.enqueue(operation(GattOperation.Type.WRITE, "a", true));
+        queue.enqueue(operation(GattOperation.Type.WRITE, "b", true));
+        queue.clear();
+        assertTrue(queue.isIdle());
+        assertEquals(Arrays.asList("a:" + GattOperationQueue.STATUS_CANCELLED,
+                "b:" + GattOperationQueue.STATUS_CANCELLED), done);
+        assertFalse(queue.onOperationComplete(GattOperation.Type.WRITE, null, GattOperationQueue.STATUS_SUCCESS));
+    }
+
+    @Test
+    public void perOperationListenerIsNotified() {
+        final int[] status = {Integer.MIN_VALUE};
+        queue.enqueue(operation(GattOperation.Type.READ, "r", true).setOnOperationDoneListener(new GattOperation.OnOperationDoneListener() {
+            @Override
+            public void OnOperationDone(GattOperation operation, int s) {
+                status[0] = s;
+            }
+        }));
+        queue.onOperationComplete(GattOperation.Type.READ, null, GattOperationQueue.STATUS_SUCCESS);
+        assertEquals(GattOperationQueue.STATUS_SUCCESS, status[0]);
+    }
+}
@@ -0,0 +1,45 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyMetricsTest {
+
+    private static final String SERVER = "AA:BB:CC:DD:EE:FF";
+
+    @Test
+    public void phasesAndOperationsAreKeptPerServer() {
+        LatencyMetrics metrics = new LatencyMetrics();
+        metrics.record(SERVER, LatencyMetrics.Phase.READY, 800_000_000L);
+        metrics.record(SERVER, LatencyMetrics.Phase.READY, 1_200_000_000L);
+        metrics.record(SERVER, GattOperation.Type.WRITE, 30_000_000L);
+        metrics.record("11:22:33:44:55:66", GattOperation.Type.WRITE, 90_000_000L);
+
+        assertEquals(2, metrics.snapshot(SERVER, LatencyMetrics.Phase.READY).getCount());
+        assertEquals(1_200_000, metrics.snapshot(SERVER, LatencyMetrics.Phase.READY).getMax());
+        assertEquals(0, metrics.snapshot(SERVER, LatencyMetrics.Phase.CONNECT).getCount());
+        assertEquals(30_000, metrics.snapshot(SERVER, GattOperation.Type.WRITE).getMax());
+        assertNull(metrics.snapshot("00:00:00:00:00:00", LatencyMetrics.Phase.READY));
+
+        List<LatencyMetrics.Row> rows = metrics.snapshot();
+        assertEquals(3, rows.size());
+    }
+
+    @Test
+    public void csvRowsInMilliseconds() throws IOException {
+        LatencyMetrics metrics = new LatencyMetrics();
+        metrics.record(SERVER, LatencyMetrics.Phase.CONNECT, 4_000_000L);
+        StringWriter out = new StringWriter();
+        metrics.write(out, "fw-1.2", 1000);
+        String row = out.toString();
+        assertTrue(row, row.startsWith("1000,fw-1.2," + SERVER + ",CONNECT,1,4.000,"));
+        assertEquals(LatencyMetrics.CSV_HEADER.split(",").length, row.trim().split(",").length);
+    }
+}
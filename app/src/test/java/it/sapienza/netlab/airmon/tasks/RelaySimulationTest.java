@@ -0,0 +1,279 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LatencyHistogram;
+import it.sapienza.netlab.airmon.common.RelayFrameCodec;
+import it.sapienza.netlab.airmon.common.RoutingTable;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Phones relaying their fixes to a collector over a simulated topology, in virtual time: each
+ * phone beacons and produces a fix every second, links lose beacons, writes and write responses
+ * at their loss rate. Checks the end-to-end delivery ratio and latency.
+ */
+public class RelaySimulationTest {
+
+    private static final long BEACON_INTERVAL_MS = 1000;
+    private static final long FIX_INTERVAL_MS = 1000;
+    private static final long HOP_DELAY_MS = 30;                //Each way, one connection interval
+    private static final long WRITE_TIMEOUT_MS = 500;
+    private static final long WARM_UP_MS = 30000;
+
+    private SimulatedScheduler scheduler;
+    private Random random;
+    private final Map<String, Node> byId = new HashMap<>();
+    private final Map<Long, Long> producedAt = new HashMap<>();
+    private final Set<Long> received = new HashSet<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long produced = 0;
+    private long duplicates = 0;
+    private long writes = 0;
+
+    @Before
+    public void setUp() {
+        scheduler = new SimulatedScheduler();
+        random = new Random(21);
+    }
+
+    private class Node implements RelayRouter.FrameSink, RelayRouter.OnRecordDeliveredListener {
+        final int id;
+        final RelayRouter router;
+        final Map<Node, Double> links = new HashMap<>();
+        boolean producing = false;
+        long producedHere = 0;
+
+        Node(int id) {
+            this.id = id;
+            router = new RelayRouter(id, new RoutingTable(), this, scheduler);
+            router.setOnRecordDeliveredListener(this);
+        }
+
+        void start() {
+            // Beacons are not in step, as with phones turned on at different times
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    beacon();
+                    scheduler.schedule(this, BEACON_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            }, random.nextInt((int) BEACON_INTERVAL_MS), TimeUnit.MILLISECONDS);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (producing) produce();
+                    scheduler.schedule(this, FIX_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                }
+            }, random.nextInt((int) FIX_INTERVAL_MS), TimeUnit.MILLISECONDS);
+        }
+
+        private void beacon() {
+            byte[] beacon = new byte[RelayFrameCodec.BEACON_SIZE];
+            router.writeBeacon(beacon);
+            for (Map.Entry<Node, Double> link : links.entrySet()) {
+                if (random.nextDouble() >= link.getValue()) link.getKey().router.onBeacon(beacon);
+            }
+        }
+
+        private void produce() {
+            long key = (long) id << 32 | producedHere++;
+            producedAt.put(key, scheduler.nowMillis());
+            produced++;
+            router.originate(new LocationRecord(id, (int) producedHere, 1600000000L + producedHere, 0));
+        }
+
+        @Override
+        public boolean sendFrame(String device, byte[] frame, int length) {
+            final Node to = byId.get(device);
+            final double loss = links.get(to);
+            final byte[] value = Arrays.copyOf(frame, length);
+            writes++;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (random.nextDouble() < loss) {
+                        fail(WRITE_TIMEOUT_MS - HOP_DELAY_MS);
+                        return;
+                    }
+                    final boolean accepted = to.router.onFrame(id, value, value.length);
+                    if (random.nextDouble() < loss) {
+                        // The write went through, its response did not
+                        fail(WRITE_TIMEOUT_MS - HOP_DELAY_MS);
+                        return;
+                    }
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            router.onFrameSent(accepted);
+                        }
+                    }, HOP_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+            }, HOP_DELAY_MS, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        private void fail(long delay) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    router.onFrameSent(false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void OnRecordDelivered(int origin, long seq, LocationRecord record, int hops) {
+            long key = (long) origin << 32 | seq;
+            if (!received.add(key)) {
+                duplicates++;
+                return;
+            }
+            latency.record(TimeUnit.MILLISECONDS.toMicros(scheduler.nowMillis() - producedAt.get(key)));
+        }
+    }
+
+    private Node node(int id) {
+        Node node = new Node(id);
+        byId.put(RelayRouter.deviceId(id), node);
+        node.start();
+        return node;
+    }
+
+    private static void link(Node a, Node b, double loss) {
+        a.links.put(b, loss);
+        b.links.put(a, loss);
+    }
+
+    /**
+     * @return a collector followed by a line of phones, each in range of the previous one only
+     */
+    private List<Node> line(int phones, double loss) {
+        Node collector = node(1);
+        collector.router.setCollector(true);
+        List<Node> line = new ArrayList<>();
+        line.add(collector);
+        for (int i = 1; i <= phones; i++) {
+            Node phone = node(i + 1);
+            link(line.get(i - 1), phone, loss);
+            line.add(phone);
+        }
+        return line;
+    }
+
+    private void produceFor(long millis, Node... producers) {
+        for (Node node : producers) node.producing = true;
+        scheduler.runFor(millis);
+        for (Node node : producers) node.producing = false;
+    }
+
+    private long deliveredFrom(Node node) {
+        long count = 0;
+        for (long key : received) {
+            if (key >>> 32 == node.id) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void lineOfFourHopsDeliversEverything() {
+        List<Node> line = line(4, 0.05);
+        scheduler.runFor(WARM_UP_MS);
+        produceFor(TimeUnit.MINUTES.toMillis(10), line.subList(1, line.size()).toArray(new Node[0]));
+        scheduler.runFor(WARM_UP_MS);
+
+        assertEquals(produced, received.size());
+        assertEquals(0, duplicates);
+        assertTrue(latency.snapshot().getPercentile(99) < TimeUnit.SECONDS.toMicros(5));
+        for (Node node : line) assertEquals(0, node.router.getQueued());
+    }
+
+    @Test
+    public void linkQualityBeatsHopCount() {
+        Node collector = node(1);
+        collector.router.setCollector(true);
+        Node relay = node(2);
+        Node phone = node(3);
+        link(collector, relay, 0);
+        link(relay, phone, 0);
+        link(collector, phone, 0.7);
+        scheduler.runFor(WARM_UP_MS);
+        produceFor(TimeUnit.MINUTES.toMillis(5), phone);
+        scheduler.runFor(WARM_UP_MS);
+
+        assertEquals(produced, received.size());
+        // Two good hops cost less than a link losing most packets
+        assertTrue(relay.router.getForwarded() > produced * 0.8);
+    }
+
+    @Test
+    public void routesLongerThanTheHopLimitAreNotUsed() {
+        List<Node> line = line(RelayRouter.MAX_HOPS + 1, 0);
+        Node far = line.get(line.size() - 1);
+        scheduler.runFor(WARM_UP_MS);
+        produceFor(TimeUnit.MINUTES.toMillis(1), line.subList(1, line.size()).toArray(new Node[0]));
+        scheduler.runFor(WARM_UP_MS);
+
+        assertEquals(0, deliveredFrom(far));
+        assertEquals(far.producedHere, far.router.getQueued());
+        for (Node node : line.subList(1, line.size() - 1)) assertEquals(node.producedHere, deliveredFrom(node));
+        assertEquals(0, duplicates);
+    }
+
+    @Test
+    public void recordsWaitForTheCollectorWithoutLooping() {
+        List<Node> line = line(3, 0);
+        Node collector = line.get(0);
+        Node[] phones = line.subList(1, line.size()).toArray(new Node[0]);
+        scheduler.runFor(WARM_UP_MS);
+        produceFor(TimeUnit.MINUTES.toMillis(1), phones);
+
+        // The collector leaves the range of its server: the phones only keep their records
+        collector.router.setCollector(false);
+        scheduler.runFor(5 * BEACON_INTERVAL_MS);
+        long writesBefore = writes;
+        produceFor(TimeUnit.MINUTES.toMillis(1), phones);
+        assertTrue("writes while no route: " + (writes - writesBefore), writes - writesBefore < 10);
+        for (Node phone : phones) assertFalse(phone.router.getQueued() == 0);
+
+        collector.router.setCollector(true);
+        scheduler.runFor(WARM_UP_MS);
+        assertEquals(produced, received.size());
+        assertEquals(0, duplicates);
+        for (Node phone : phones) assertEquals(0, phone.router.getDropped());
+    }
+
+    @Test
+    public void duplicatesAreDroppedByOriginAndSequence() {
+        RelayRouter.SequenceWindow window = new RelayRouter.SequenceWindow();
+        assertTrue(window.add(5));
+        assertFalse(window.add(5));
+        assertTrue(window.add(3));
+        assertTrue(window.add(5 + RelayRouter.DUPLICATE_WINDOW - 1));
+        assertFalse(window.add(3));
+        // Too old to tell, taken as seen
+        assertFalse(window.add(4));
+        assertTrue(window.add(100000));
+        assertFalse(window.add(100000));
+        assertTrue(window.add(99999));
+        // Sequence numbers wrap on the air
+        RelayRouter.SequenceWindow wrapping = new RelayRouter.SequenceWindow();
+        assertTrue(wrapping.add(0xFFFFFFF0L));
+        assertEquals(0x100000000L + 7, wrapping.expand(7));
+    }
+}
@@ -0,0 +1,136 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import it.sapienza.netlab.airmon.common.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+
+    private static final String A = "AA:00:00:00:00:01";
+    private static final String B = "AA:00:00:00:00:02";
+    private static final String C = "AA:00:00:00:00:03";
+
+    private long now;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        scheduler = new ScanScheduler(2, clock);
+    }
+
+    // Run a whole window, finding the servers at its end
+    private long window(String... servers) {
+        scheduler.startWindow();
+        now += scheduler.getWindowMillis();
+        for (String server : servers) {
+            scheduler.onServerFound(server);
+        }
+        return scheduler.endWindow();
+    }
+
+    @Test
+    public void stopsAsSoonAsTargetCountIsFound() {
+        scheduler.startSession();
+        scheduler.startWindow();
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getScanMode());
+        now += 300;
+        assertFalse(scheduler.onServerFound(A));
+        assertFalse(scheduler.onServerFound(A));
+        now += 200;
+        assertTrue(scheduler.onServerFound(B));
+        assertEquals(ScanScheduler.STOP, scheduler.endWindow());
+        assertFalse(scheduler.isInSession());
+        assertEquals(300, scheduler.getLastTimeToFirstDiscovery());
+        assertEquals(500, scheduler.getScanMillis());
+    }
+
+    @Test
+    public void stopsWhenTargetAddressesAreFound() {
+        scheduler.setTargets(Arrays.asList(B, C));
+        scheduler.startSession();
+        scheduler.startWindow();
+        assertFalse(scheduler.onServerFound(A));
+        assertFalse(scheduler.onServerFound(B));
+        assertFalse(scheduler.onServerFound(B));
+        assertTrue(scheduler.onServerFound(C));
+    }
+
+    @Test
+    public void emptyWindowsBackOff() {
+        scheduler.startSession();
+        for (int i = 1; i < ScanScheduler.EMPTY_WINDOWS_BEFORE_BACKOFF; i++) {
+            assertEquals(0, window());
+            assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getScanMode());
+        }
+        long pause = window();
+        assertEquals(ScanScheduler.BASE_PAUSE_MS, pause);
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getScanMode());
+        assertEquals(2 * pause, window());
+        long last = 0;
+        for (int i = 0; i < 10; i++) {
+            last = window();
+        }
+        assertEquals(ScanScheduler.MAX_PAUSE_MS, last);
+        // A new session forgets the back-off
+        scheduler.startSession();
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getScanMode());
+        assertEquals(0, window());
+    }
+
+    @Test
+    public void missingServerStartsBurst() {
+        scheduler = new ScanScheduler(10, clock);
+        scheduler.startSession();
+        assertEquals(0, window(A, B));
+        assertEquals(ScanScheduler.WINDOW_MS, scheduler.getWindowMillis());
+        // B disappeared
+        assertEquals(0, window(A));
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getScanMode());
+        assertEquals(ScanScheduler.BURST_WINDOW_MS, scheduler.getWindowMillis());
+        assertEquals(0, window(A, C));
+        assertEquals(ScanScheduler.BURST_WINDOW_MS, scheduler.getWindowMillis());
+        assertEquals(0, window(A, B, C));
+        // Back to normal windows once the burst is over
+        assertEquals(0, window(A, B, C, C.replace('3', '4')));
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getScanMode());
+        assertEquals(ScanScheduler.WINDOW_MS, scheduler.getWindowMillis());
+    }
+
+    @Test
+    public void sameServersTwiceEndSession() {
+        scheduler = new ScanScheduler(3, clock);
+        scheduler.startSession();
+        assertEquals(0, window(A));
+        assertEquals(ScanScheduler.STOP, window(A));
+    }
+
+    @Test
+    public void timeToFirstDiscoveryIsAveragedOverSessions() {
+        scheduler.startSession();
+        window();
+        window(A, B);
+        assertEquals(2 * ScanScheduler.WINDOW_MS, scheduler.getLastTimeToFirstDiscovery());
+        scheduler.startSession();
+        scheduler.startWindow();
+        now += 1000;
+        scheduler.onServerFound(A);
+        assertEquals(1000, scheduler.getLastTimeToFirstDiscovery());
+        assertEquals((2 * ScanScheduler.WINDOW_MS + 1000) / 2.0, scheduler.getMeanTimeToFirstDiscovery(), 0.001);
+        assertEquals(2, scheduler.getDiscoveries());
+        assertEquals(2, scheduler.getSessions());
+    }
+}
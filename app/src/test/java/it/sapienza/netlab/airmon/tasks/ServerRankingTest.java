@@ -0,0 +1,113 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import it.sapienza.netlab.airmon.common.Clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerRankingTest {
+
+    private static final String A = "AA:00:00:00:00:01";
+    private static final String B = "AA:00:00:00:00:02";
+    private static final String C = "AA:00:00:00:00:03";
+
+    private long now;
+    private final Clock clock = new Clock() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+    };
+    private ServerRanking ranking;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        ranking = new ServerRanking(clock);
+    }
+
+    private void advertise(String address, int rssi, int times) {
+        for (int i = 0; i < times; i++) ranking.onAdvertisement(address, rssi, now * 1000000L);
+    }
+
+    @Test
+    public void strongerServerFirst() {
+        advertise(A, -85, 5);
+        advertise(B, -60, 5);
+        advertise(C, -75, 5);
+        assertEquals(Arrays.asList(B, C, A), ranking.rank(Arrays.asList(A, B, C)));
+        assertEquals(1, ranking.getScore(B), 1e-9);
+        // Servers never heard come last, in their order
+        assertEquals(Arrays.asList(B, "AA:00:00:00:00:09", "AA:00:00:00:00:08"),
+                ranking.rank(Arrays.asList("AA:00:00:00:00:09", B, "AA:00:00:00:00:08")));
+    }
+
+    @Test
+    public void singleOutlierDoesNotReorder() {
+        advertise(A, -70, 10);
+        advertise(B, -75, 10);
+        ranking.onAdvertisement(A, -95, 0);
+        assertEquals(Arrays.asList(A, B), ranking.rank(Arrays.asList(B, A)));
+        assertTrue(ranking.getRssi(A) > -80);
+    }
+
+    @Test
+    public void failuresLowerTheRank() {
+        advertise(A, -65, 5);
+        advertise(B, -75, 5);
+        assertEquals(Arrays.asList(A, B), ranking.rank(Arrays.asList(A, B)));
+        for (int i = 0; i < 10; i++) {
+            ranking.onOperation(A, false);
+            ranking.onOperation(B, true);
+        }
+        assertTrue(ranking.getSuccessRate(A) < 0.5);
+        assertEquals(Arrays.asList(B, A), ranking.rank(Arrays.asList(A, B)));
+        // And recover with successes
+        for (int i = 0; i < 40; i++) ranking.onOperation(A, true);
+        assertEquals(Arrays.asList(A, B), ranking.rank(Arrays.asList(A, B)));
+    }
+
+    @Test
+    public void noisyServersDoNotFlap() {
+        Random random = new Random(22);
+        advertise(A, -72, 1);
+        advertise(B, -72, 1);
+        String current = A;
+        ranking.onSelected(current);
+        int switches = 0;
+        // Same mean RSSI, 6 dB of noise, one advertisement each every 100 ms for an hour
+        for (int i = 0; i < 36000; i++) {
+            now += 100;
+            ranking.onAdvertisement(A, -72 + (int) Math.round(random.nextGaussian() * 6), now);
+            ranking.onAdvertisement(B, -72 + (int) Math.round(random.nextGaussian() * 6), now);
+            String other = current.equals(A) ? B : A;
+            if (ranking.shouldSwitch(current, other)) {
+                current = other;
+                ranking.onSelected(current);
+                switches++;
+            }
+        }
+        assertTrue("switches: " + switches, switches < 10);
+    }
+
+    @Test
+    public void clearlyBetterServerWinsAfterTheDwellTime() {
+        advertise(A, -85, 5);
+        ranking.onSelected(A);
+        advertise(B, -62, 5);
+        assertFalse(ranking.shouldSwitch(A, B));
+        now += ServerRanking.MIN_DWELL_MS;
+        assertTrue(ranking.shouldSwitch(A, B));
+        // Slightly better is not enough
+        advertise(C, -83, 5);
+        assertFalse(ranking.shouldSwitch(A, C));
+        assertFalse(ranking.shouldSwitch(A, A));
+    }
+}
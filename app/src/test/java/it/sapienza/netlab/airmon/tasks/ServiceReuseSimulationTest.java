@@ -0,0 +1,127 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reconnects a ConnectBLETask whose link dropped while it was working: the link keeps its
+ * services, which are discovered again only once the server shows they changed meanwhile.
+ */
+public class ServiceReuseSimulationTest {
+
+    private static final String ADDRESS = "0A:00:00:00:00:01";
+    private static final long DRAIN_INTERVAL_MS = 1000;
+
+    private SimulatedScheduler scheduler;
+    private SimulatedServer server;
+    private File file;
+    private LocationOutbox outbox;
+    private ConnectionManager manager;
+    private int appended = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = new SimulatedScheduler();
+        SimulatedTransport transport = new SimulatedTransport(scheduler, 9);
+        server = transport.addServer(ADDRESS);
+        file = File.createTempFile("outbox", ".bin");
+        assertTrue(file.delete());
+        outbox = LocationOutbox.open(file, 1024);
+        manager = new ConnectionManager(transport, 1, scheduler, scheduler);
+        manager.setOutbox(outbox, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.disconnectAll();
+        outbox.close();
+        file.delete();
+    }
+
+    private void append(int records) {
+        for (int i = 0; i < records; i++) {
+            appended++;
+            outbox.append(new LocationRecord(appended, 12000000, 1600000000L + appended, 0));
+        }
+    }
+
+    private ConnectBLETask start() {
+        ConnectBLETask task = manager.connect(ADDRESS);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                manager.drain();
+                scheduler.schedule(this, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }, DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.runFor(5000);
+        assertTrue(task.isReady());
+        return task;
+    }
+
+    private long discoveries() {
+        return manager.getLatencyMetrics().snapshot(ADDRESS, LatencyMetrics.Phase.DISCOVER).getCount();
+    }
+
+    // The records appended after the reconnection reach the server
+    private void assertDelivered(int records) {
+        append(records);
+        scheduler.runFor(30000);
+        assertTrue(outbox.isEmpty());
+        assertEquals(appended, server.getStoredCount());
+    }
+
+    @Test
+    public void keptLinkIsNotDiscoveredAgain() {
+        server.setBatchSupported(true);
+        ConnectBLETask task = start();
+        server.dropConnections();
+        scheduler.runFor(10000);
+        assertTrue(task.isReady());
+        assertTrue(task.isBatchSupported());
+        assertEquals(1, discoveries());
+        assertDelivered(50);
+    }
+
+    @Test
+    public void characteristicRemovedWhileAwayIsRejected() {
+        server.setBatchSupported(true);
+        ConnectBLETask task = start();
+        server.dropConnections();
+        // A firmware without batches: subscribing to the Batch Ack characteristic fails
+        server.setBatchSupported(false);
+        scheduler.runFor(10000);
+        assertTrue(task.isReady());
+        assertFalse(task.isBatchSupported());
+        assertEquals(2, discoveries());
+        assertDelivered(5);
+    }
+
+    @Test
+    public void characteristicAddedWhileAwayIsIndicated() {
+        ConnectBLETask task = start();
+        server.dropConnections();
+        // Nothing fails with the old services: only Service Changed tells the batches are there
+        server.setBatchSupported(true);
+        scheduler.runFor(10000);
+        assertTrue(task.isReady());
+        assertTrue(task.isBatchSupported());
+        assertEquals(2, discoveries());
+        assertDelivered(50);
+    }
+}
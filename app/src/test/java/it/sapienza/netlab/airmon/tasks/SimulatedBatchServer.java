@@ -0,0 +1,120 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * In-memory model of the ESP32 side of the batched upload, following the BatchFrameCodec spec,
+ * behind a link that delivers a bounded number of packets per connection event.
+ */
+class SimulatedBatchServer implements BatchUploader.FrameSink {
+
+    static final long CONNECTION_INTERVAL_MS = 30;
+    static final int PACKETS_PER_EVENT = 6;
+
+    private final List<byte[]> link = new ArrayList<>();
+    private final List<byte[]> acks = new ArrayList<>();
+    private final Random random;
+    private final double lossRate;
+    private final int storageCapacity;
+
+    final List<LocationRecord> stored = new ArrayList<>();
+    final Map<Integer, Long> expectedSeqs = new HashMap<>();
+    Integer session;                                    //Bound by the sync frame of the connection
+    int framesReceived = 0;
+    int framesDiscarded = 0;
+
+    SimulatedBatchServer(double lossRate, int storageCapacity, long seed) {
+        this.lossRate = lossRate;
+        this.storageCapacity = storageCapacity;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public boolean sendFrame(byte[] frame, int length, boolean checkpoint) {
+        byte[] copy = new byte[length];
+        System.arraycopy(frame, 0, copy, 0, length);
+        link.add(copy);
+        return true;
+    }
+
+    /**
+     * Deliver the packets of one connection event.
+     *
+     * @return the acks notified during the event
+     */
+    List<byte[]> connectionEvent() {
+        acks.clear();
+        int delivered = 0;
+        while (delivered < PACKETS_PER_EVENT && !link.isEmpty()) {
+            byte[] frame = link.remove(0);
+            delivered++;
+            if (random.nextDouble() < lossRate) continue;
+            receive(frame);
+        }
+        return new ArrayList<>(acks);
+    }
+
+    boolean isLinkIdle() {
+        return link.isEmpty();
+    }
+
+    void freeStorage() {
+        stored.clear();
+    }
+
+    private void receive(byte[] frame) {
+        framesReceived++;
+        if (BatchFrameCodec.isSync(frame, frame.length)) {
+            session = BatchFrameCodec.getSession(frame);
+            Long known = expectedSeqs.get(session);
+            long oldest = BatchFrameCodec.getFirstSeq(frame);
+            expectedSeqs.put(session, known == null ? oldest : Math.max(known, BatchFrameCodec.expandSeq(oldest, known)));
+            ack(BatchFrameCodec.ACK_STATUS_OK, expectedSeqs.get(session));
+            return;
+        }
+        if (session == null) {
+            framesDiscarded++;
+            if ((BatchFrameCodec.getFlags(frame) & BatchFrameCodec.FLAG_ACK_REQUESTED) != 0) {
+                ack(BatchFrameCodec.ACK_STATUS_UNKNOWN_SESSION, 0);
+            }
+            return;
+        }
+        long expectedSeq = expectedSeqs.get(session);
+        long first = BatchFrameCodec.expandSeq(BatchFrameCodec.getFirstSeq(frame), expectedSeq);
+        int count = BatchFrameCodec.getCount(frame);
+        boolean full = false;
+        if (first > expectedSeq) {
+            framesDiscarded++;
+        } else {
+            LocationRecord record = new LocationRecord();
+            for (int i = 0; i < count; i++) {
+                if (first + i < expectedSeq) continue;
+                if (stored.size() >= storageCapacity) {
+                    full = true;
+                    break;
+                }
+                LocationRecordCodec.decode(frame, BatchFrameCodec.HEADER_SIZE + i * LocationRecordCodec.RECORD_SIZE, record);
+                stored.add(new LocationRecord(record.getLatitudeE6(), record.getLongitudeE6(), record.getEpochSeconds(), record.getFlags()));
+                expectedSeq++;
+            }
+            expectedSeqs.put(session, expectedSeq);
+        }
+        if ((BatchFrameCodec.getFlags(frame) & BatchFrameCodec.FLAG_ACK_REQUESTED) != 0 || full) {
+            ack(full ? BatchFrameCodec.ACK_STATUS_FULL : BatchFrameCodec.ACK_STATUS_OK, expectedSeq);
+        }
+    }
+
+    private void ack(int status, long nextSeq) {
+        byte[] ack = new byte[BatchFrameCodec.ACK_SIZE];
+        BatchFrameCodec.writeAck(ack, status, nextSeq);
+        acks.add(ack);
+    }
+}
@@ -0,0 +1,151 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.LocationOutbox;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedScheduler;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+import it.sapienza.netlab.airmon.transport.SimulatedTransport;
+
+/**
+ * Simulated servers, each receiving a backlog of {@link #BACKLOG} fixes from its own client at
+ * once. Each client is a {@link ConnectionManager} with its own outbox, connected to a single
+ * server through the {@link ConnectBLETask} of the app. Also compiled into the benchmarks module.
+ */
+public class SimulatedFleet implements Closeable {
+
+    public static final int BACKLOG = 500;
+    private static final long PUMP_INTERVAL_MS = 1000;
+
+    private final SimulatedScheduler scheduler = new SimulatedScheduler();
+    private final SimulatedTransport transport = new SimulatedTransport(scheduler, 42);
+    private final List<Client> clients = new ArrayList<>();
+
+    /**
+     * @param lossRate share of the packets lost by every server
+     */
+    public SimulatedFleet(int servers, double lossRate) throws IOException {
+        transport.addServers(servers);
+        try {
+            for (SimulatedServer server : transport.getServers()) {
+                server.setBatchSupported(true).setLossRate(lossRate);
+                Client client = new Client(transport, scheduler);
+                clients.add(client);
+                client.start(server.getAddress());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the latitude of the i-th fix of every backlog
+     */
+    public static int latitudeE6(int i) {
+        return 41000000 + i;
+    }
+
+    /**
+     * Run the uploads to the end.
+     *
+     * @return the number of events simulated
+     */
+    public int run() {
+        return scheduler.runUntilIdle();
+    }
+
+    public SimulatedScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public Collection<SimulatedServer> getServers() {
+        return transport.getServers();
+    }
+
+    /**
+     * @return true if every client has emptied its outbox
+     */
+    public boolean isDelivered() {
+        for (Client client : clients) {
+            if (!client.outbox.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return virtual milliseconds the slowest client took to empty its outbox, -1 if one did not
+     */
+    public long getSlowestMillis() {
+        long slowest = 0;
+        for (Client client : clients) {
+            if (client.doneAt < 0) return -1;
+            slowest = Math.max(slowest, client.doneAt);
+        }
+        return slowest;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Client client : clients) client.close();
+        clients.clear();
+    }
+
+    /**
+     * A phone uploading its outbox through its own {@link ConnectionManager}, drained again every
+     * {@link #PUMP_INTERVAL_MS} as the location updates do.
+     */
+    private static class Client {
+        private final SimulatedScheduler scheduler;
+        private final ConnectionManager manager;
+        private final File file;
+        private final LocationOutbox outbox;
+        private long doneAt = -1;
+
+        Client(SimulatedTransport transport, SimulatedScheduler scheduler) throws IOException {
+            this.scheduler = scheduler;
+            file = File.createTempFile("outbox", ".bin");
+            if (!file.delete()) throw new IOException("Cannot delete " + file);
+            outbox = LocationOutbox.open(file, BACKLOG * 2);
+            for (int i = 0; i < BACKLOG; i++) {
+                outbox.append(new LocationRecord(latitudeE6(i), 12000000 + i, 1600000000L + i, 0));
+            }
+            manager = new ConnectionManager(transport, 1, scheduler, scheduler);
+            manager.setOutbox(outbox, null);
+        }
+
+        void start(String address) {
+            manager.connect(address);
+            pump();
+        }
+
+        private void pump() {
+            if (outbox.isEmpty()) {
+                if (doneAt < 0) doneAt = scheduler.nowMillis();
+                manager.disconnectAll();
+                return;
+            }
+            // Also recovers from a lost ack, after BatchUploader.ACK_TIMEOUT_MS
+            manager.drain();
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pump();
+                }
+            }, PUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void close() throws IOException {
+            manager.disconnectAll();
+            outbox.close();
+            file.delete();
+        }
+    }
+}
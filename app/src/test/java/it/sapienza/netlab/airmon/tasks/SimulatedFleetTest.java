@@ -0,0 +1,48 @@
+package it.sapienza.netlab.airmon.tasks;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.transport.SimulatedServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads a backlog to hundreds of simulated servers at once: every server stores every fix, in order.
+ */
+public class SimulatedFleetTest {
+
+    private static final int SERVERS = 200;
+
+    private static void run(double lossRate) throws IOException {
+        SimulatedFleet fleet = new SimulatedFleet(SERVERS, lossRate);
+        try {
+            fleet.run();
+            assertTrue(fleet.isDelivered());
+            assertTrue(fleet.getSlowestMillis() > 0);
+            for (SimulatedServer server : fleet.getServers()) {
+                List<LocationRecord> stored = server.getStored();
+                assertEquals(SimulatedFleet.BACKLOG, stored.size());
+                for (int i = 0; i < SimulatedFleet.BACKLOG; i++) {
+                    assertEquals(SimulatedFleet.latitudeE6(i), stored.get(i).getLatitudeE6());
+                }
+            }
+        } finally {
+            fleet.close();
+        }
+    }
+
+    @Test
+    public void fleetWithoutLoss() throws IOException {
+        run(0);
+    }
+
+    @Test
+    public void fleetWithLoss() throws IOException {
+        run(0.05);
+    }
+}
@@ -0,0 +1,313 @@
+package it.sapienza.netlab.airmon.transport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+import it.sapienza.netlab.airmon.tasks.ScanScheduler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedTransportTest {
+
+    private static final String ADDRESS = "0A:00:00:00:00:01";
+
+    private SimulatedScheduler scheduler;
+    private SimulatedTransport transport;
+    private SimulatedServer server;
+    private final List<String> events = new ArrayList<>();
+    private final List<byte[]> notifications = new ArrayList<>();
+    private int mtu;
+
+    private final BleLink.Callback callback = new BleLink.Callback() {
+        @Override
+        public void OnConnectionStateChange(BleLink link, int status, boolean connected) {
+            events.add((connected ? "connected:" : "disconnected:") + status);
+        }
+
+        @Override
+        public void OnServicesDiscovered(BleLink link, int status) {
+            events.add("discovered:" + status);
+        }
+
+        @Override
+        public void OnCharacteristicWrite(BleLink link, UUID characteristicUUID, int status) {
+            events.add("write:" + status);
+        }
+
+        @Override
+        public void OnCharacteristicRead(BleLink link, UUID characteristicUUID, byte[] value, int status) {
+            events.add("read:" + status);
+        }
+
+        @Override
+        public void OnDescriptorWrite(BleLink link, UUID descriptorUUID, int status) {
+            events.add("descriptor:" + status);
+        }
+
+        @Override
+        public void OnCharacteristicChanged(BleLink link, UUID characteristicUUID, byte[] value) {
+            events.add("changed:" + characteristicUUID);
+            notifications.add(value);
+        }
+
+        @Override
+        public void OnMtuChanged(BleLink link, int mtu, int status) {
+            SimulatedTransportTest.this.mtu = mtu;
+            events.add("mtu:" + status);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        scheduler = new SimulatedScheduler();
+        transport = new SimulatedTransport(scheduler, 1);
+        server = transport.addServer(ADDRESS);
+    }
+
+    private BleLink connectAndDiscover() {
+        BleLink link = transport.connect(ADDRESS, callback);
+        scheduler.runUntilIdle();
+        assertTrue(link.discoverServices());
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("connected:0", "discovered:0"), events);
+        events.clear();
+        return link;
+    }
+
+    private static byte[] encode(int i) {
+        byte[] value = new byte[LocationRecordCodec.RECORD_SIZE];
+        LocationRecordCodec.encode(new LocationRecord(41000000 + i, 12000000 + i, 1600000000L + i, 0), value, 0);
+        return value;
+    }
+
+    @Test
+    public void scanFindsHundredsOfServers() {
+        transport.addServers(499);
+        assertEquals(500, transport.getServers().size());
+        final Set<String> found = new HashSet<>();
+        assertTrue(transport.startScan(ScanScheduler.MODE_LOW_LATENCY, new BleTransport.ScanListener() {
+            @Override
+            public void OnAdvertisement(String address, int rssi, long timestampNanos) {
+                found.add(address);
+            }
+
+            @Override
+            public void OnScanFailed(int errorCode) {
+            }
+
+            @Override
+            public void OnScanStopped() {
+            }
+        }));
+        scheduler.runFor(500);
+        assertEquals(500, found.size());
+        transport.stopScan();
+        scheduler.runUntilIdle();
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void batchedResultsAreDeliveredBeforeTheScanStops() {
+        transport.addServers(9);
+        transport.setReportDelayMillis(Constants.SCAN_REPORT_DELAY_MS);
+        final Set<String> found = new HashSet<>();
+        final List<String> calls = new ArrayList<>();
+        assertTrue(transport.startScan(ScanScheduler.MODE_BALANCED, new BleTransport.ScanListener() {
+            @Override
+            public void OnAdvertisement(String address, int rssi, long timestampNanos) {
+                assertTrue("advertisement after the scan stopped", calls.isEmpty());
+                found.add(address);
+            }
+
+            @Override
+            public void OnScanFailed(int errorCode) {
+            }
+
+            @Override
+            public void OnScanStopped() {
+                calls.add("stopped");
+            }
+        }));
+        // The window ends before the controller reports: every advertisement is still batched
+        scheduler.runFor(Constants.SCAN_REPORT_DELAY_MS - 100);
+        assertEquals(0, found.size());
+        transport.stopScan();
+        assertTrue(calls.isEmpty());
+        scheduler.runUntilIdle();
+        assertEquals(10, found.size());
+        assertEquals(Collections.singletonList("stopped"), calls);
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void exposesLocationAndTimeServices() {
+        BleLink link = transport.connect(ADDRESS, callback);
+        scheduler.runUntilIdle();
+        assertEquals(0, link.getLayout().size());
+        assertTrue(link.discoverServices());
+        scheduler.runUntilIdle();
+        assertTrue(link.hasCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID));
+        assertTrue(link.hasCharacteristic(Constants.TimeServiceUUID, Constants.CharacteristicTimestampUUID));
+        assertFalse(link.hasCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID));
+        assertEquals(server.getLayout(), link.getLayout());
+    }
+
+    @Test
+    public void unknownAddressIsNotConnected() {
+        assertNull(transport.connect("0A:00:00:00:00:02", callback));
+    }
+
+    @Test
+    public void requestsAreSerialised() {
+        BleLink link = connectAndDiscover();
+        assertTrue(link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(0), true));
+        assertFalse(link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(1), true));
+        long start = scheduler.nowMillis();
+        scheduler.runUntilIdle();
+        assertEquals(server.getConnectionIntervalMillis(), scheduler.nowMillis() - start);
+        assertEquals(Arrays.asList("write:0"), events);
+        assertEquals(1, server.getStoredCount());
+    }
+
+    @Test
+    public void mtuIsCappedByTheServer() {
+        server.setMaxMtu(185);
+        BleLink link = connectAndDiscover();
+        assertTrue(link.requestMtu(Constants.REQUESTED_MTU));
+        scheduler.runUntilIdle();
+        assertEquals(185, mtu);
+    }
+
+    @Test
+    public void legacyTextFixIsStoredWithTheTimestamp() {
+        BleLink link = connectAndDiscover();
+        link.write(Constants.LocationServiceUUID, Constants.CharacteristicLatitudeUUID, "41.9".getBytes(), true);
+        scheduler.runUntilIdle();
+        link.write(Constants.LocationServiceUUID, Constants.CharacteristicLongitudeUUID, "12.5".getBytes(), true);
+        scheduler.runUntilIdle();
+        assertEquals(0, server.getStoredCount());
+        link.write(Constants.TimeServiceUUID, Constants.CharacteristicTimestampUUID, "01-01-2021 10:00:00".getBytes(), true);
+        scheduler.runUntilIdle();
+        assertEquals(new LocationRecord(41900000, 12500000, 0, 0), server.getStored().get(0));
+    }
+
+    @Test
+    public void memoryFullIsNotified() {
+        server.setStorageCapacity(2);
+        BleLink link = connectAndDiscover();
+        assertTrue(link.subscribe(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, false));
+        scheduler.runUntilIdle();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(i), true));
+            scheduler.runUntilIdle();
+        }
+        assertEquals(2, server.getStoredCount());
+        assertEquals(1, server.getRecordsDiscarded());
+        assertEquals(1, notifications.size());
+        assertArrayEquals(SimulatedServer.MEMORY_FULL, notifications.get(0));
+
+        server.freeStorage();
+        link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(3), true);
+        scheduler.runUntilIdle();
+        assertEquals(1, server.getStoredCount());
+    }
+
+    @Test
+    public void lossDropsWritesWithoutResponse() {
+        server.setLossRate(0.3);
+        BleLink link = connectAndDiscover();
+        int writes = 2000;
+        for (int i = 0; i < writes; i++) {
+            assertTrue(link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(i), false));
+            scheduler.runUntilIdle();
+        }
+        // Every write completes, about 30% never reach the server
+        assertEquals(writes, events.size());
+        assertEquals(0.7, server.getStoredCount() / (double) writes, 0.05);
+    }
+
+    @Test
+    public void writesWithoutResponseShareTheConnectionEvents() {
+        BleLink link = connectAndDiscover();
+        long start = scheduler.nowNanos();
+        for (int i = 0; i < 60; i++) {
+            link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(i), false);
+            scheduler.runUntilIdle();
+        }
+        // 6 packets per event: 10 events
+        assertEquals(10 * server.getConnectionIntervalMillis(), (scheduler.nowNanos() - start) / 1000000);
+    }
+
+    @Test
+    public void tooLongWriteWithoutResponseFails() {
+        BleLink link = connectAndDiscover();
+        link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, new byte[SimulatedServer.DEFAULT_MTU], false);
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("write:" + BleLink.GATT_INVALID_ATTRIBUTE_LENGTH), events);
+        assertEquals(0, server.getWrites());
+    }
+
+    @Test
+    public void serviceChangedIsIndicated() {
+        BleLink link = connectAndDiscover();
+        link.subscribe(Constants.GenericAttributeServiceUUID, Constants.CharacteristicServiceChangedUUID, true);
+        scheduler.runUntilIdle();
+        server.setBatchSupported(true);
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("descriptor:0", "changed:" + Constants.CharacteristicServiceChangedUUID), events);
+        assertFalse(link.hasCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID));
+        link.discoverServices();
+        scheduler.runUntilIdle();
+        assertTrue(link.hasCharacteristic(Constants.LocationServiceUUID, Constants.CharacteristicBatchUUID));
+    }
+
+    @Test
+    public void droppedLinkKeepsItsServicesOnReconnection() {
+        BleLink link = connectAndDiscover();
+        server.dropConnections();
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("disconnected:" + SimulatedLink.GATT_CONN_TIMEOUT), events);
+        assertFalse(link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(0), true));
+        events.clear();
+        assertTrue(link.connect());
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("connected:0"), events);
+        assertEquals(server.getLayout(), link.getLayout());
+    }
+
+    @Test
+    public void offlineServerFailsTheConnection() {
+        server.setOnline(false);
+        BleLink link = transport.connect(ADDRESS, callback);
+        assertNotNull(link);
+        scheduler.runUntilIdle();
+        assertEquals(Arrays.asList("disconnected:" + BleLink.GATT_ERROR), events);
+        assertEquals(SimulatedLink.CONNECT_TIMEOUT_MS, scheduler.nowMillis());
+    }
+
+    @Test
+    public void closedLinkDeliversNothing() {
+        BleLink link = connectAndDiscover();
+        link.write(Constants.LocationServiceUUID, Constants.CharacteristicLocationUUID, encode(0), true);
+        link.close();
+        scheduler.runUntilIdle();
+        assertTrue(events.isEmpty());
+        assertFalse(server.isConnected());
+    }
+}
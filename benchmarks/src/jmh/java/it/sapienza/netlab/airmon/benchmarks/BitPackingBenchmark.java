@@ -0,0 +1,132 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.ByteUtility;
+
+/**
+ * Packing a frame of narrow fields with the word-at-a-time BitWriter and BitReader, against the
+ * same fields set and read one bit at a time with setBit, clearBit and getBit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BitPackingBenchmark {
+
+    private static final int FIELDS = 128;
+
+    @Param({"3", "12", "27"})
+    public int width;
+
+    private final long[] values = new long[FIELDS];
+    private final long[] deltas = new long[FIELDS];
+    private byte[] frame;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < FIELDS; i++) {
+            values[i] = random.nextLong() & ((1L << width) - 1);
+            // Consecutive fixes in micro-degrees differ by a few hundred
+            deltas[i] = random.nextInt(1000) - 500;
+        }
+        frame = new byte[FIELDS * width / 8 + 1 + FIELDS * ByteUtility.MAX_VARINT_SIZE];
+        packWithWriter();
+    }
+
+    @Benchmark
+    public byte[] packPerBit() {
+        int bit = 0;
+        for (long value : values) {
+            for (int i = 0; i < width; i++, bit++) {
+                int index = bit >>> 3;
+                frame[index] = ((value >>> i) & 1) != 0
+                        ? ByteUtility.setBit(frame[index], bit & 7)
+                        : ByteUtility.clearBit(frame[index], bit & 7);
+            }
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public int packWithWriter() {
+        ByteUtility.BitWriter writer = new ByteUtility.BitWriter(frame, 0);
+        for (long value : values) writer.write(value, width);
+        return writer.flush();
+    }
+
+    @Benchmark
+    public byte[] packWithWriteBits() {
+        long bit = 0;
+        for (long value : values) {
+            ByteUtility.writeBits(frame, bit, width, value);
+            bit += width;
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public long unpackPerBit() {
+        long sum = 0;
+        int bit = 0;
+        for (int field = 0; field < FIELDS; field++) {
+            long value = 0;
+            for (int i = 0; i < width; i++, bit++) {
+                value |= (long) ByteUtility.getBit(frame[bit >>> 3], bit & 7) << i;
+            }
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long unpackWithReader() {
+        long sum = 0;
+        ByteUtility.BitReader reader = new ByteUtility.BitReader(frame, 0, frame.length);
+        for (int field = 0; field < FIELDS; field++) sum += reader.read(width);
+        return sum;
+    }
+
+    @Benchmark
+    public long unpackWithReadBits() {
+        long sum = 0;
+        long bit = 0;
+        for (int field = 0; field < FIELDS; field++) {
+            sum += ByteUtility.readBits(frame, bit, width);
+            bit += width;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int packZigZagVarints() {
+        int offset = 0;
+        for (long delta : deltas) offset += ByteUtility.writeVarint(ByteUtility.encodeZigZag(delta), frame, offset);
+        return offset;
+    }
+
+    @Benchmark
+    public String renderPerBit() {
+        // What printByte did before the lookup table
+        String s = "";
+        for (int i = 7; i > -1; i--) {
+            s += ByteUtility.getBit(frame[0], i);
+        }
+        return s;
+    }
+
+    @Benchmark
+    public String renderWithTable() {
+        return ByteUtility.toBinaryString(frame[0]);
+    }
+}
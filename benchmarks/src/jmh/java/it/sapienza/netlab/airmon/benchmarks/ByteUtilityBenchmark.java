@@ -0,0 +1,52 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.ByteUtility;
+
+/**
+ * Bit access of ByteUtility over a buffer of random bytes, as used on the flag bytes of a message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ByteUtilityBenchmark {
+
+    private static final int SIZE = 1024;
+
+    private final byte[] buffer = new byte[SIZE];
+
+    @Setup
+    public void setUp() {
+        new Random(42).nextBytes(buffer);
+    }
+
+    @Benchmark
+    public int getBits() {
+        int ones = 0;
+        for (byte b : buffer) {
+            for (int offset = 0; offset < 8; offset++) {
+                ones += ByteUtility.getBit(b, offset);
+            }
+        }
+        return ones;
+    }
+
+    @Benchmark
+    public byte[] setAndClearBits() {
+        for (int i = 0; i < SIZE; i++) {
+            byte b = ByteUtility.setBit(buffer[i], i & 7);
+            buffer[i] = ByteUtility.clearBit(b, (i + 3) & 7);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,67 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.DebugLog;
+
+/**
+ * Appends to the debug log, from one thread and from several at once as the worker threads of
+ * the service do, against the String.format rebuild of the whole text that writeDebug did for
+ * every line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DebugLogBenchmark {
+
+    private static final String LINE = "Write done on 02:00:00:00:00:2A, status 0";
+    private static final int MAX_LINES = 30;
+
+    private final DebugLog log = new DebugLog();
+    private String text = "";
+    private int lineCount;
+
+    @Benchmark
+    @Threads(1)
+    public boolean appendSingleThread() {
+        return log.append(LINE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean appendFourThreads() {
+        return log.append(LINE);
+    }
+
+    // What writeDebug did, each line queued to the UI thread
+    private synchronized String format() {
+        if (lineCount == MAX_LINES) {
+            text = String.format("%s\n", LINE);
+            lineCount = 1;
+        } else {
+            text = String.format("%s%s\n", text, LINE);
+            lineCount++;
+        }
+        return text;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String formatSingleThread() {
+        return format();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String formatFourThreads() {
+        return format();
+    }
+}
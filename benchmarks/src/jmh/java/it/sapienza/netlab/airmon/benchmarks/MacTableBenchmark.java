@@ -0,0 +1,77 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.MacTable;
+
+/**
+ * Deduplication of the advertisements of a scan: the list of results searched by address string,
+ * as ServerScanCallback did, against the MacTable index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MacTableBenchmark {
+
+    private static final int ADVERTISEMENTS = 10_000;
+
+    @Param({"10", "100", "1000"})
+    public int devices;
+
+    // Stand for the ScanResults: the address string is cached by BluetoothDevice
+    private final String[] addresses = new String[ADVERTISEMENTS];
+    private final int[] rssi = new int[ADVERTISEMENTS];
+    private final MacTable<String> table = new MacTable<>();
+
+    @Setup
+    public void generate() {
+        String[] known = new String[devices];
+        Random random = new Random(devices);
+        for (int i = 0; i < devices; i++) {
+            known[i] = MacTable.toAddress(0xC0FFEE000000L | random.nextInt(1 << 24));
+        }
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            addresses[i] = known[random.nextInt(devices)];
+            rssi[i] = -40 - random.nextInt(60);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADVERTISEMENTS)
+    public int listScan() {
+        List<String> results = new ArrayList<>();
+        outer:
+        for (String address : addresses) {
+            for (String stored : results) {
+                if (stored.equals(address)) {
+                    continue outer;
+                }
+            }
+            results.add(address);
+        }
+        return results.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADVERTISEMENTS)
+    public int tableScan() {
+        table.clear();
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            table.put(MacTable.toKey(addresses[i]), rssi[i], i * 1_000_000L, addresses[i]);
+        }
+        return table.size();
+    }
+}
@@ -0,0 +1,101 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.BatchFrameCodec;
+import it.sapienza.netlab.airmon.common.Constants;
+import it.sapienza.netlab.airmon.common.LegacyTextEncoder;
+import it.sapienza.netlab.airmon.common.LocationRecordCodec;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * Encoding of a fix for the servers: the binary record, a full batch frame at the requested MTU,
+ * and the legacy text characteristics, against the String and SimpleDateFormat code they replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PayloadEncodingBenchmark {
+
+    private static final int FIXES = 256;
+
+    private final LocationRecord[] records = new LocationRecord[FIXES];
+    private final LocationRecord decoded = new LocationRecord();
+    private final byte[] record = new byte[LocationRecordCodec.RECORD_SIZE];
+    private final byte[] text = new byte[LegacyTextEncoder.TIMESTAMP_LENGTH];
+    private byte[] frame;
+    private int perFrame;
+    private LegacyTextEncoder encoder;
+    private SimpleDateFormat format;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < FIXES; i++) {
+            // A walk around Rome, one fix per second
+            records[i] = new LocationRecord(41890000 + i * 17, 12490000 - i * 11, 1600000000L + i, LocationRecord.FLAG_ACCURATE);
+        }
+        perFrame = BatchFrameCodec.recordsPerFrame(Constants.REQUESTED_MTU);
+        frame = new byte[BatchFrameCodec.frameSize(perFrame)];
+        TimeZone timeZone = TimeZone.getTimeZone("Europe/Rome");
+        encoder = new LegacyTextEncoder(true, timeZone);
+        format = new SimpleDateFormat(LegacyTextEncoder.PATTERN_12H, Locale.ITALY);
+        format.setTimeZone(timeZone);
+    }
+
+    private LocationRecord nextRecord() {
+        LocationRecord r = records[next];
+        next = (next + 1) % FIXES;
+        return r;
+    }
+
+    @Benchmark
+    public byte[] encodeRecord() {
+        LocationRecordCodec.encode(nextRecord(), record, 0);
+        return record;
+    }
+
+    @Benchmark
+    public LocationRecord encodeAndDecodeRecord() {
+        LocationRecordCodec.encode(nextRecord(), record, 0);
+        return LocationRecordCodec.decode(record, 0, decoded);
+    }
+
+    @Benchmark
+    public byte[] fillBatchFrame() {
+        BatchFrameCodec.writeHeader(frame, BatchFrameCodec.FLAG_ACK_REQUESTED, perFrame, next);
+        int offset = BatchFrameCodec.HEADER_SIZE;
+        for (int i = 0; i < perFrame; i++) {
+            offset += LocationRecordCodec.encode(nextRecord(), frame, offset);
+        }
+        return frame;
+    }
+
+    @Benchmark
+    public int encodeLegacyText() {
+        LocationRecord r = nextRecord();
+        int length = LegacyTextEncoder.encodeCoordinate(r.getLatitudeE6(), text, 0);
+        length += LegacyTextEncoder.encodeCoordinate(r.getLongitudeE6(), text, 0);
+        return length + encoder.encodeTimestamp(r.getEpochSeconds() * 1000L, text, 0);
+    }
+
+    @Benchmark
+    public int encodeLegacyTextWithFormatter() {
+        LocationRecord r = nextRecord();
+        int length = String.valueOf(LocationRecord.fromMicroDegrees(r.getLatitudeE6())).getBytes().length;
+        length += String.valueOf(LocationRecord.fromMicroDegrees(r.getLongitudeE6())).getBytes().length;
+        return length + format.format(new Date(r.getEpochSeconds() * 1000L)).getBytes().length;
+    }
+}
@@ -0,0 +1,88 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.RoutingTable;
+import it.sapienza.netlab.airmon.models.Device;
+
+/**
+ * The routing table under contention: threads looking devices up while others add and remove
+ * them, as the GATT callbacks do while the UI reads the table.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingTableBenchmark {
+
+    private static final int DEVICES = 4096;                //Power of two, ids are picked with a mask
+
+    @State(Scope.Group)
+    public static class Table {
+        final RoutingTable table = RoutingTable.getInstance();
+        final Device[] devices = new Device[DEVICES];
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            table.cleanRoutingTable();
+            for (int i = 0; i < DEVICES; i++) {
+                devices[i] = new Device("device-" + i, 64);
+                // Half of the devices start in the table, so lookups hit and miss
+                if ((i & 1) == 0) table.addDevice(devices[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            table.cleanRoutingTable();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        int next() {
+            next = next * 1103515245 + 12345;
+            return (next >>> 8) & (DEVICES - 1);
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public boolean addAndRemove(Table table, Cursor cursor) {
+        Device device = table.devices[cursor.next()];
+        table.table.addDevice(device);
+        return table.table.removeDevice(table.devices[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Device lookup(Table table, Cursor cursor) {
+        return table.table.getDevice(table.devices[cursor.next()].getId());
+    }
+
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(4)
+    public boolean contains(Table table, Cursor cursor) {
+        return table.table.contains(table.devices[cursor.next()].getId());
+    }
+}
@@ -0,0 +1,83 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.EventDispatcher;
+import it.sapienza.netlab.airmon.listeners.ServerScanCallback;
+
+/**
+ * Advertisements delivered to ServerScanCallback by a scan among many servers, each advertising
+ * many times: almost all of them come from a server already found and only update its RSSI.
+ * The events the callback posts are delivered on the scan thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScanDedupBenchmark {
+
+    private static final int ADVERTISEMENTS = 1 << 16;
+
+    @Param({"100", "10000"})
+    public int servers;
+
+    private final String[] addresses = new String[ADVERTISEMENTS];
+    private final int[] rssi = new int[ADVERTISEMENTS];
+    private ServerScanCallback callback;
+    private EventDispatcher events;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(42);
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            int server = random.nextInt(servers);
+            // Fresh strings, as each ScanResult carries its own
+            addresses[i] = String.format(Locale.ROOT, "02:00:00:%02X:%02X:%02X", (server >> 16) & 0xff, (server >> 8) & 0xff, server & 0xff);
+            rssi[i] = -40 - random.nextInt(60);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp(final Blackhole blackhole) {
+        events = new EventDispatcher();
+        // Subscribers run on the scan thread, as if the executor were always idle
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        events.subscribe(Object.class, direct, new EventDispatcher.Subscriber<Object>() {
+            @Override
+            public void OnEvent(Object event) {
+                blackhole.consume(event);
+            }
+        });
+        callback = new ServerScanCallback(events);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADVERTISEMENTS)
+    public int deliverScan() {
+        long timestamp = 0;
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            callback.OnAdvertisement(addresses[i], rssi[i], timestamp);
+            timestamp += 1000000;
+        }
+        return callback.getRssi(addresses[0]);
+    }
+}
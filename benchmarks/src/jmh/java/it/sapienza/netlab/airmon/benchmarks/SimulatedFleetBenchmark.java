@@ -0,0 +1,51 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.tasks.SimulatedFleet;
+
+/**
+ * Simulation of hundreds of clients uploading their backlog at once, through the operation queue,
+ * the batch uploader and the simulated servers: the host time of a whole run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatedFleetBenchmark {
+
+    @Param({"200"})
+    public int servers;
+
+    @Param({"0", "0.05"})
+    public double lossRate;
+
+    private SimulatedFleet fleet;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        fleet = new SimulatedFleet(servers, lossRate);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        if (!fleet.isDelivered()) throw new IllegalStateException("Backlog not delivered");
+        fleet.close();
+    }
+
+    @Benchmark
+    public int uploadBacklog() {
+        return fleet.run();
+    }
+}
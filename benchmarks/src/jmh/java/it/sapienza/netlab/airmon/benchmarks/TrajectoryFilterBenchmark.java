@@ -0,0 +1,65 @@
+package it.sapienza.netlab.airmon.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import it.sapienza.netlab.airmon.common.SyntheticTracks;
+import it.sapienza.netlab.airmon.common.TrajectoryFilter;
+import it.sapienza.netlab.airmon.models.LocationRecord;
+
+/**
+ * The trajectory filter over an hour of walking, driving or standing still, a fix per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrajectoryFilterBenchmark {
+
+    private static final int FIXES = 3600;
+
+    @Param({"walk", "drive", "still"})
+    public String track;
+
+    private long[][] fixes;
+    private TrajectoryFilter filter;
+    private int sent;
+
+    @Setup
+    public void setUp() {
+        switch (track) {
+            case "walk":
+                fixes = SyntheticTracks.walk(11, FIXES);
+                break;
+            case "drive":
+                fixes = SyntheticTracks.drive(12, FIXES);
+                break;
+            default:
+                fixes = SyntheticTracks.stationary(13, FIXES);
+        }
+        filter = new TrajectoryFilter(new TrajectoryFilter.PointSink() {
+            @Override
+            public void accept(LocationRecord record) {
+                sent++;
+            }
+        }, 10, 5, 1, 60);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIXES)
+    public int filterTrack() {
+        filter.reset();
+        sent = 0;
+        for (long[] fix : fixes) filter.offer((int) fix[0], (int) fix[1], fix[2], 0);
+        filter.flush();
+        return sent;
+    }
+}
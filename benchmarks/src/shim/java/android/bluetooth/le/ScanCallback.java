@@ -0,0 +1,12 @@
+package android.bluetooth.le;
+
+/**
+ * Stand-in for the Android class, only its error codes are used by the app classes benchmarked.
+ */
+public abstract class ScanCallback {
+
+    public static final int SCAN_FAILED_ALREADY_STARTED = 1;
+    public static final int SCAN_FAILED_APPLICATION_REGISTRATION_FAILED = 2;
+    public static final int SCAN_FAILED_INTERNAL_ERROR = 3;
+    public static final int SCAN_FAILED_FEATURE_UNSUPPORTED = 4;
+}